@@ -0,0 +1,198 @@
+package com.skythinker.gptassistant.api;
+
+import com.skythinker.gptassistant.data.BatchJob;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+// 批量运行BatchJob：同时进行的请求数不超过concurrency，发起请求的速率由令牌桶限制
+// 每条结果完成即写入任务的结果文件，stop()后未完成的输入保持待运行状态，再次start()时继续
+public class BatchRunner {
+    // 进度回调，在网络线程中调用
+    public interface Listener {
+        void onItemFinished(int index);
+        void onStopped(boolean completed); // completed为所有输入均已成功
+    }
+
+    // 运行进度，速率按本次start()以来完成的数量计算
+    public static class Progress {
+        public int total, done, failed, running;
+        public double itemsPerMinute = 0;
+        public long etaSeconds = -1; // 无法估计时为-1
+    }
+
+    private final ChatApiClient client;
+    private final BatchJob job;
+    private final int concurrency;
+    private final TokenBucket rateLimiter;
+    private Listener listener = null;
+
+    private final ArrayDeque<Integer> queue = new ArrayDeque<>(); // 待发起的输入序号
+    private final ArrayList<ChatRequest> activeRequests = new ArrayList<>();
+    private int inFlight = 0; // 已取出但尚未结束的输入数（含等待限速的）
+    private boolean running = false;
+    private long sessionStartNanos = 0;
+    private int sessionFinished = 0; // 本次运行完成的数量（含失败）
+
+    // requestsPerMinute不大于0时不限速
+    public BatchRunner(ChatApiClient client, BatchJob job, int concurrency, int requestsPerMinute) {
+        this.client = client;
+        this.job = job;
+        this.concurrency = Math.max(1, concurrency);
+        this.rateLimiter = TokenBucket.perMinute(requestsPerMinute, this.concurrency); // 开始时允许并发数个请求同时发出
+    }
+
+    public BatchRunner setListener(Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    public BatchJob getJob() { return job; }
+
+    public synchronized boolean isRunning() { return running; }
+
+    // 开始运行所有尚未成功的输入
+    public void start() {
+        synchronized (this) {
+            if(running) {
+                return;
+            }
+            running = true;
+            queue.clear();
+            queue.addAll(job.getUnfinishedIndexes());
+            sessionStartNanos = System.nanoTime();
+            sessionFinished = 0;
+        }
+        pump();
+    }
+
+    // 停止运行，取消进行中的请求，这些输入保持待运行状态
+    public void stop() {
+        ArrayList<ChatRequest> requests;
+        synchronized (this) {
+            if(!running) {
+                return;
+            }
+            running = false;
+            queue.clear();
+            requests = new ArrayList<>(activeRequests);
+        }
+        for(ChatRequest request : requests) {
+            request.cancel();
+        }
+        checkStopped();
+    }
+
+    public synchronized Progress getProgress() {
+        Progress progress = new Progress();
+        progress.total = job.size();
+        progress.done = job.getCount(BatchJob.Status.DONE);
+        progress.failed = job.getCount(BatchJob.Status.FAILED);
+        progress.running = activeRequests.size();
+        double minutes = (System.nanoTime() - sessionStartNanos) / 60e9;
+        if(running && sessionFinished > 0 && minutes > 0) {
+            progress.itemsPerMinute = sessionFinished / minutes;
+            int remaining = queue.size() + inFlight;
+            progress.etaSeconds = (long) (remaining / progress.itemsPerMinute * 60);
+        }
+        return progress;
+    }
+
+    // 在并发数以内依次取出输入，按限速安排发起时间
+    private void pump() {
+        while(true) {
+            int index;
+            long waitMs;
+            synchronized (this) {
+                if(!running || inFlight >= concurrency || queue.isEmpty()) {
+                    break;
+                }
+                index = queue.poll();
+                inFlight++;
+                waitMs = rateLimiter.reserve(1);
+            }
+            if(waitMs > 0) {
+                HttpEngine.schedule(() -> launch(index), waitMs);
+            } else {
+                HttpEngine.execute(() -> launch(index));
+            }
+        }
+        checkStopped();
+    }
+
+    private void launch(int index) {
+        boolean stopped;
+        synchronized (this) {
+            stopped = !running;
+            if(stopped) { // 等待限速期间被停止
+                inFlight--;
+            }
+        }
+        if(stopped) {
+            checkStopped();
+            return;
+        }
+        StringBuilder content = new StringBuilder();
+        ChatRequest[] holder = new ChatRequest[1];
+        ChatApiClient.OnReceiveListener itemListener = new ChatApiClient.OnReceiveListener() {
+            @Override
+            public void onMsgReceive(String message) { content.append(message); }
+
+            @Override
+            public void onError(String message) { onItemEnd(holder, index, BatchJob.Status.FAILED, message); }
+
+            @Override
+            public void onFunctionCall(ArrayList<ChatApiClient.CallingFunction> functions) { // 批量运行不提供函数
+                onItemEnd(holder, index, BatchJob.Status.FAILED, content.toString());
+            }
+
+            @Override
+            public void onFinished(boolean completed) {
+                onItemEnd(holder, index, completed ? BatchJob.Status.DONE : BatchJob.Status.FAILED, content.toString());
+            }
+        };
+        synchronized (this) { // 回调中需要持有锁才能读取holder，保证请求已被记录
+            ChatRequest request = client.sendPromptList(job.buildMessages(index), itemListener);
+            holder[0] = request;
+            if(request.isActive()) {
+                activeRequests.add(request);
+            }
+        }
+    }
+
+    // 一条输入结束，停止运行后未成功的输入（通常是被取消的）不记录结果
+    private void onItemEnd(ChatRequest[] holder, int index, BatchJob.Status status, String output) {
+        boolean cancelled;
+        synchronized (this) {
+            cancelled = !running && status != BatchJob.Status.DONE;
+            activeRequests.remove(holder[0]);
+            inFlight--;
+            if(!cancelled) {
+                sessionFinished++;
+            }
+        }
+        if(!cancelled) {
+            job.setResult(index, status, output);
+        }
+        if(!cancelled && listener != null) {
+            listener.onItemFinished(index);
+        }
+        pump();
+    }
+
+    // 没有进行中的请求且不再继续时通知结束
+    private void checkStopped() {
+        boolean completed;
+        synchronized (this) {
+            if(inFlight > 0 || (running && !queue.isEmpty()) || sessionStartNanos == 0) {
+                return;
+            }
+            running = false;
+            sessionStartNanos = 0; // 只通知一次
+            completed = job.getCount(BatchJob.Status.DONE) == job.size();
+        }
+        if(listener != null) {
+            listener.onStopped(completed);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.skythinker.gptassistant.api;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+// 与OpenAI的tiktoken兼容的字节级BPE分词器，只用于计数
+// 文本先按编码对应的正则切分为片段，每个片段的UTF-8字节按合并优先级（rank）反复合并相邻字节对
+// 词表由TokenCounter在首次使用时下载，载入前使用TokenEstimator的估算值
+public class BpeTokenizer extends TokenEstimator {
+    private static final int MAX_PIECE_BYTES = 512; // 超长片段（如无空格的长串）分块合并，避免平方复杂度，这类片段的计数可能与tiktoken略有差别
+
+    private final Map<String, Integer> ranks; // 字节序列（每个字节映射为一个ISO-8859-1字符）-> 合并优先级
+
+    // ranks的键为字节序列按ISO-8859-1解码得到的字符串
+    public BpeTokenizer(Encoding encoding, Map<String, Integer> ranks) {
+        super(encoding);
+        this.ranks = ranks;
+    }
+
+    // 从tiktoken格式的词表（每行为"base64字节序列 rank"，rank从0开始连续递增）载入，格式不符时抛出IOException
+    public static BpeTokenizer load(Encoding encoding, InputStream input) throws IOException {
+        HashMap<String, Integer> ranks = new HashMap<>(encoding == Encoding.O200K_BASE ? 262144 : 131072);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.US_ASCII));
+        String line;
+        while((line = reader.readLine()) != null) {
+            if(line.isEmpty()) {
+                continue;
+            }
+            int space = line.indexOf(' ');
+            try {
+                if(space <= 0 || Integer.parseInt(line.substring(space + 1).trim()) != ranks.size()) { // 下载不完整或内容有误
+                    throw new IOException("invalid vocabulary line " + ranks.size());
+                }
+                byte[] token = Base64.getDecoder().decode(line.substring(0, space));
+                ranks.put(new String(token, StandardCharsets.ISO_8859_1), ranks.size());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("invalid vocabulary line " + ranks.size(), e);
+            }
+        }
+        if(ranks.size() < 256) { // 至少包含所有单字节
+            throw new IOException("incomplete vocabulary");
+        }
+        return new BpeTokenizer(encoding, ranks);
+    }
+
+    @Override
+    public boolean isExact() { return true; }
+
+    // 计算文本的token数
+    @Override
+    public int count(CharSequence text) {
+        if(text == null || text.length() == 0) {
+            return 0;
+        }
+        int count = 0;
+        Matcher matcher = getEncoding().pattern.matcher(text);
+        while(matcher.find()) {
+            byte[] bytes = matcher.group().getBytes(StandardCharsets.UTF_8);
+            for(int start = 0; start < bytes.length; start += MAX_PIECE_BYTES) {
+                count += mergePiece(bytes, start, Math.min(bytes.length, start + MAX_PIECE_BYTES));
+            }
+        }
+        return count;
+    }
+
+    // 对一个片段进行BPE合并，返回合并后的token数
+    private int mergePiece(byte[] bytes, int from, int to) {
+        String piece = new String(bytes, from, to - from, StandardCharsets.ISO_8859_1);
+        if(ranks.containsKey(piece)) {
+            return 1;
+        }
+        int n = piece.length();
+        int[] bounds = new int[n + 1]; // 各token的起始位置，最后一个为结尾
+        for(int i = 0; i <= n; i++) {
+            bounds[i] = i;
+        }
+        int parts = n;
+        while(parts > 1) {
+            int bestRank = Integer.MAX_VALUE, bestIndex = -1;
+            for(int i = 0; i < parts - 1; i++) {
+                Integer rank = ranks.get(piece.substring(bounds[i], bounds[i + 2]));
+                if(rank != null && rank < bestRank) {
+                    bestRank = rank;
+                    bestIndex = i;
+                }
+            }
+            if(bestIndex < 0) {
+                break;
+            }
+            System.arraycopy(bounds, bestIndex + 2, bounds, bestIndex + 1, parts - bestIndex - 1); // 删除被合并的边界
+            parts--;
+        }
+        return parts;
+    }
+}
@@ -1,48 +1,40 @@
 package com.skythinker.gptassistant.api;
 
 import android.content.Context;
-import android.util.Log;
-
-import androidx.annotation.Nullable;
 
+import com.skythinker.gptassistant.data.ApiEndpoint;
+import com.skythinker.gptassistant.data.CompletionCache;
+import com.skythinker.gptassistant.data.TelemetryStore;
 import com.skythinker.gptassistant.tool.GlobalUtils;
 import com.skythinker.gptassistant.R;
 import com.unfbx.chatgpt.OpenAiStreamClient;
-import com.unfbx.chatgpt.entity.chat.BaseChatCompletion;
-import com.unfbx.chatgpt.entity.chat.ChatCompletionWithPicture;
-import com.unfbx.chatgpt.entity.chat.Content;
-import com.unfbx.chatgpt.entity.chat.FunctionCall;
-import com.unfbx.chatgpt.entity.chat.ImageUrl;
-import com.unfbx.chatgpt.entity.chat.Message;
-import com.unfbx.chatgpt.entity.chat.ChatCompletion;
-import com.unfbx.chatgpt.entity.chat.MessagePicture;
-import com.unfbx.chatgpt.entity.chat.Parameters;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import cn.hutool.json.JSONArray;
 import cn.hutool.json.JSONObject;
-import okhttp3.ConnectionSpec;
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
 import okhttp3.Response;
-import okhttp3.internal.http2.StreamResetException;
 import okhttp3.sse.EventSource;
-import okhttp3.sse.EventSourceListener;
+import okhttp3.sse.EventSources;
 
-import com.skythinker.gptassistant.data.ChatManager.ChatMessage.ChatRole;
 import com.skythinker.gptassistant.data.ChatManager.ChatMessage;
-import com.unfbx.chatgpt.entity.chat.tool.ToolCallFunction;
-import com.unfbx.chatgpt.entity.chat.tool.ToolCalls;
-import com.unfbx.chatgpt.entity.chat.tool.ToolChoice;
-import com.unfbx.chatgpt.entity.chat.tool.Tools;
-import com.unfbx.chatgpt.entity.chat.tool.ToolsFunction;
 
 public class ChatApiClient {
-    // 消息回调接口
+    // 消息回调接口，逐个增量的回调每个数据块调用一次，需要合并更新时应改为订阅StreamBuffer
     public interface OnReceiveListener {
-        void onMsgReceive(String message);
+        default void onMsgReceive(String message) { }
+        default void onReasoningReceive(String reasoning) { }
         void onError(String message);
         void onFunctionCall(ArrayList<CallingFunction> functions);
         void onFinished(boolean completed);
@@ -61,13 +53,34 @@ public class ChatApiClient {
     OnReceiveListener listener = null;
 
     OkHttpClient httpClient = null;
-    OpenAiStreamClient chatGPT = null;
-
-    List<Tools> functions = new ArrayList<>();
+    OpenAiStreamClient chatGPT = null; // 仅用于校验API配置，请求由ChatRequestEncoder编码后直接发送
+
+    LinkedHashMap<String, String> functions = new LinkedHashMap<>(); // 函数名 -> 编码后的JSON
+    String toolsJson = null; // 编码后的函数列表缓存
+
+    List<ApiEndpoint> extraEndpoints = new ArrayList<>(); // 除主接入点外的其他接入点
+    final EndpointRouter router = new EndpointRouter();
+    boolean hedgeEnabled = false; // 首字延迟超过阈值时向另一个接入点发起对冲请求
+    boolean cacheEnabled = false; // 是否使用回复缓存
+    RateLimiter.Priority priority = RateLimiter.Priority.INTERACTIVE; // 限速排队时的优先级
+
+    // 回复缓存和性能记录的读写线程，单线程按提交顺序执行，先结束的请求写入的缓存对之后的查找可见
+    private static final ExecutorService storageExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ChatApiClient-storage");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // 在回复缓存和性能记录的读写线程中执行任务，如在后台载入记录
+    public static void executeStorage(Runnable task) {
+        storageExecutor.execute(task);
+    }
 
-    ArrayList<CallingFunction> callingFunctions = new ArrayList<>();
+    private static final long PREWARM_INTERVAL_MS = 30000; // 预热间隔，小于常见服务端的空闲超时（60s左右），持续输入时连接保持可用
+    long lastPrewarmTime = 0;
 
-    boolean isReasoning = false;
+    EventSource.Factory eventSourceFactory = null;
+    final ArrayList<ChatRequest> activeRequests = new ArrayList<>(); // 尚未结束的请求
 
     Context context = null;
 
@@ -75,268 +88,146 @@ public class ChatApiClient {
         this.context = context;
         this.listener = listener;
         this.model = model;
-        httpClient = new OkHttpClient.Builder()
-            .connectTimeout(30, java.util.concurrent.TimeUnit.SECONDS)
-            .readTimeout(30, java.util.concurrent.TimeUnit.SECONDS)
-            .writeTimeout(30, java.util.concurrent.TimeUnit.SECONDS)
-            .connectionSpecs(Arrays.asList(ConnectionSpec.CLEARTEXT, ConnectionSpec.COMPATIBLE_TLS))
-            .build();
+        httpClient = HttpEngine.newClient(HttpEngine.Profile.CHAT).newBuilder() // 独立的Dispatcher，stop()时不影响其他请求
+                .addInterceptor(chain -> { // 请求开始执行时标记为连接中
+                    ChatRequest chatRequest = chain.request().tag(ChatRequest.class);
+                    if(chatRequest != null && chatRequest.getState() == ChatRequest.State.QUEUED) { // 对冲或重试的连接不改变状态
+                        chatRequest.setState(ChatRequest.State.CONNECTING);
+                    }
+                    return chain.proceed(chain.request());
+                })
+                .eventListenerFactory(ChatMetrics.EVENT_LISTENER_FACTORY) // 记录带有计时标签的请求的连接耗时
+                .build();
+        eventSourceFactory = EventSources.createFactory(httpClient);
         setApiInfo(url, apiKey);
     }
 
-    // 向GPT发送消息列表
-    public void sendPromptList(List<ChatMessage> promptList) {
-        if(url.isEmpty() || apiKey.isEmpty() || chatGPT == null) {
-            listener.onError(context.getString(R.string.text_gpt_conf_error));
-            return;
-        }
+    // 向GPT发送消息列表，使用客户端的默认回调
+    public ChatRequest sendPromptList(List<ChatMessage> promptList) {
+        return sendPromptList(promptList, listener);
+    }
 
-        BaseChatCompletion chatCompletion = null;
+    // 向GPT发送消息列表，使用客户端的默认回调，收到的事件同时写入stream（可在多轮函数调用请求间共用）
+    public ChatRequest sendPromptList(List<ChatMessage> promptList, StreamBuffer stream) {
+        return sendPromptList(promptList, listener, stream);
+    }
 
-        boolean hasAnyAtttachment = false;
-        for(ChatMessage message : promptList) {
-            if(message.attachments.size() > 0) {
-                hasAnyAtttachment = true;
-                break;
-            }
+    // 向GPT发送消息列表，返回可单独取消的请求句柄
+    public ChatRequest sendPromptList(List<ChatMessage> promptList, OnReceiveListener listener) {
+        return sendPromptList(promptList, listener, null);
+    }
+
+    public ChatRequest sendPromptList(List<ChatMessage> promptList, OnReceiveListener listener, StreamBuffer stream) {
+        ChatRequest chatRequest = new ChatRequest(context, listener);
+        chatRequest.stream = stream;
+        List<ApiEndpoint> endpoints = router.route(model);
+        if(endpoints.isEmpty()) { // 没有填写完整的接入点
+            chatRequest.setState(ChatRequest.State.FAILED);
+            listener.onError(context.getString(R.string.text_gpt_conf_error));
+            return chatRequest;
         }
 
-        if(!hasAnyAtttachment) { // 没有任何附件，使用普通content格式（兼容旧模型）
-            ArrayList<Message> messageList = new ArrayList<>(); // 将消息数据转换为ChatGPT需要的格式
-            for (ChatMessage message : promptList) {
-                if (message.role == ChatRole.SYSTEM) {
-                    messageList.add(Message.builder().role(Message.Role.SYSTEM).content(message.contentText).build());
-                } else if (message.role == ChatRole.USER) {
-                    messageList.add(Message.builder().role(Message.Role.USER).content(message.contentText).build());
-                } else if (message.role == ChatRole.ASSISTANT) {
-                    if (message.toolCalls.size() > 0) {
-                        if(message.toolCalls.get(0).id != null) { // 用tool方式回复
-                            ArrayList<ToolCalls> toolCallsList = new ArrayList<>();
-                            for(ChatMessage.ToolCall toolCall : message.toolCalls) {
-                                ToolCallFunction functionCall = ToolCallFunction.builder()
-                                        .name(toolCall.functionName)
-                                        .arguments(toolCall.arguments)
-                                        .build();
-                                ToolCalls toolCalls = ToolCalls.builder()
-                                        .id(toolCall.id)
-                                        .type(Tools.Type.FUNCTION.getName())
-                                        .function(functionCall)
-                                        .build();
-                                toolCallsList.add(toolCalls);
-                            }
-                            messageList.add(Message.builder().role(Message.Role.ASSISTANT).toolCalls(toolCallsList).content("").build());
-                        } else { // 用function方式回复（历史遗留）
-                            ChatMessage.ToolCall toolCall = message.toolCalls.get(0);
-                            FunctionCall functionCall = FunctionCall.builder()
-                                .name(toolCall.functionName)
-                                .arguments(toolCall.arguments)
-                                .build();
-                            messageList.add(Message.builder().role(Message.Role.ASSISTANT).functionCall(functionCall).content("").build());
-                        }
-                    } else {
-                        messageList.add(Message.builder().role(Message.Role.ASSISTANT)
-                                .content(message.contentText.replaceFirst("(?s)^<think>\\n.*?\\n</think>\\n", "")).build()); // 去除思维链内容
-                    }
-                } else if (message.role == ChatRole.FUNCTION) {
-                    ChatMessage.ToolCall toolCall = message.toolCalls.get(0);
-                    if(toolCall.id != null) { // 用tool方式回复
-                        messageList.add(Message.builder().role(Message.Role.TOOL).toolCallId(toolCall.id).name(toolCall.functionName).content(toolCall.content).build());
-                    } else { // 用function方式回复（历史遗留）
-                        messageList.add(Message.builder().role(Message.Role.FUNCTION).name(toolCall.functionName).content(toolCall.content).build());
-                    }
-                }
-            }
+        long buildStart = System.nanoTime();
+        RequestBody requestBody = ChatRequestEncoder.encode(promptList,
+                model.replaceAll("\\*$",""), // 去掉自定义模型结尾的*号
+                temperature, getToolsJson(), GlobalUtils.checkVisionSupport(model)); // 请求体可重复写出，切换接入点时复用
+        chatRequest.metrics.buildUs = (System.nanoTime() - buildStart) / 1000;
+        try {
+            chatRequest.metrics.payloadBytes = requestBody.contentLength();
+        } catch (IOException ignore) { }
 
-            if (!functions.isEmpty()) { // 如果有函数列表，则将函数列表传入
-                chatCompletion = ChatCompletion.builder()
-                        .messages(messageList)
-                        .model(model.replaceAll("\\*$","")) // 去掉自定义模型结尾的*号
-                        .tools(functions)
-                        .toolChoice(ToolChoice.Choice.AUTO.getName())
-                        .temperature(temperature)
-                        .maxTokens(null)
-                        .build();
-            } else {
-                chatCompletion = ChatCompletion.builder()
-                        .messages(messageList)
-                        .model(model.replaceAll("\\*$","")) // 去掉自定义模型结尾的*号
-                        .temperature(temperature)
-                        .maxTokens(null)
-                        .build();
+        synchronized (activeRequests) {
+            activeRequests.add(chatRequest);
+        }
+        String requestModel = model; // 请求结束前可能切换模型
+        chatRequest.onTerminate = () -> { // 在请求的锁外调用，磁盘读写交给storageExecutor
+            synchronized (activeRequests) {
+                activeRequests.remove(chatRequest);
             }
-        } else { // 含有附件，使用contentList格式
-            ArrayList<MessagePicture> messageList = new ArrayList<>(); // 将消息数据转换为ChatGPT需要的格式
-            for (ChatMessage message : promptList) {
-                List<Content> contentList = new ArrayList<>();
-                if (message.contentText != null) {
-                    String contentText = message.role != ChatRole.ASSISTANT ? message.contentText :
-                            message.contentText.replaceFirst("(?s)^<think>\\n.*?\\n</think>\\n", ""); // 去除思维链内容
-                    contentList.add(Content.builder().type(Content.Type.TEXT.getName()).text(contentText).build());
+            storageExecutor.execute(() -> {
+                recordTelemetry(chatRequest, requestModel);
+                if(chatRequest.cacheKey != null && chatRequest.getState() == ChatRequest.State.DONE
+                        && chatRequest.recording != null && !chatRequest.recording.isEmpty()) { // 只缓存正常结束的回复
+                    CompletionCache.put(chatRequest.cacheKey, chatRequest.recording);
                 }
-                for(ChatMessage.ToolCall toolCall : message.toolCalls) { // 处理函数调用
-                    if(toolCall.content != null) {
-                        contentList.add(Content.builder().type(Content.Type.TEXT.getName()).text(toolCall.content).build());
-                    }
-                }
-                for(ChatMessage.Attachment attachment : message.attachments) { // 处理附件
-                    if(attachment.type == ChatMessage.Attachment.Type.IMAGE && GlobalUtils.checkVisionSupport(model)) {
-                        ImageUrl imageUrl = ImageUrl.builder().url("data:image/jpeg;base64," + attachment.content).build();
-                        contentList.add(Content.builder().type(Content.Type.IMAGE_URL.getName()).imageUrl(imageUrl).build());
-                    } else if(attachment.type == ChatMessage.Attachment.Type.TEXT) {
-                        contentList.add(Content.builder().type(Content.Type.TEXT.getName()).text(attachment.content).build());
-                    }
-                }
-                if (message.role == ChatRole.SYSTEM) {
-                    messageList.add(MessagePicture.builder().role(Message.Role.SYSTEM).content(contentList).build());
-                } else if (message.role == ChatRole.USER) {
-                    messageList.add(MessagePicture.builder().role(Message.Role.USER).content(contentList).build());
-                } else if (message.role == ChatRole.ASSISTANT) {
-                    if (message.toolCalls.size() > 0) {
-                        if(message.toolCalls.get(0).id != null) { // 用tool方式回复
-                            ArrayList<ToolCalls> toolCallsList = new ArrayList<>();
-                            for(ChatMessage.ToolCall toolCall : message.toolCalls) {
-                                ToolCallFunction functionCall = ToolCallFunction.builder()
-                                        .name(toolCall.functionName)
-                                        .arguments(toolCall.arguments)
-                                        .build();
-                                ToolCalls toolCalls = ToolCalls.builder()
-                                        .id(toolCall.id)
-                                        .type(Tools.Type.FUNCTION.getName())
-                                        .function(functionCall)
-                                        .build();
-                                toolCallsList.add(toolCalls);
-                            }
-                            messageList.add(MessagePicture.builder().role(Message.Role.ASSISTANT).toolCalls(toolCallsList).build());
-                        } else { // 用function方式回复（历史遗留）
-                            ChatMessage.ToolCall toolCall = message.toolCalls.get(0);
-                            FunctionCall functionCall = FunctionCall.builder()
-                                    .name(toolCall.functionName)
-                                    .arguments(toolCall.arguments)
-                                    .build();
-                            messageList.add(MessagePicture.builder().role(Message.Role.ASSISTANT).functionCall(functionCall).build());
-                        }
-                    } else {
-                        messageList.add(MessagePicture.builder().role(Message.Role.ASSISTANT).content(contentList).build());
-                    }
-                } else if (message.role == ChatRole.FUNCTION) {
-                    ChatMessage.ToolCall toolCall = message.toolCalls.get(0);
-                    if(toolCall.id != null) { // 用tool方式回复
-                        messageList.add(MessagePicture.builder().role(Message.Role.TOOL).toolCallId(toolCall.id).name(toolCall.functionName).content(contentList).build());
-                    } else { // 用function方式回复（历史遗留）
-                        messageList.add(MessagePicture.builder().role(Message.Role.FUNCTION).name(toolCall.functionName).content(contentList).build());
-                    }
+            });
+        };
+        chatRequest.rateLimiter = RateLimiter.getShared();
+        chatRequest.priority = priority;
+        chatRequest.estimatedTokens = TokenCounter.countMessages(promptList, model) + getToolsTokenCount(); // 消息的token数已缓存
+        long hedgeDelay = hedgeEnabled ? router.getHedgeDelay(model) : 0;
+        Runnable launch = () -> chatRequest.start(router, requestModel, endpoints, hedgeDelay, (endpoint, connectTiming, eventSourceListener) -> {
+            Request request = new Request.Builder()
+                    .url(endpoint.getHost() + "v1/chat/completions")
+                    .header("Authorization", "Bearer " + endpoint.getKey())
+                    .header("Accept", "text/event-stream")
+                    .tag(ChatRequest.class, chatRequest) // 用于在拦截器中更新请求状态
+                    .tag(ChatMetrics.ConnectTiming.class, connectTiming) // 用于记录该连接的建立耗时
+                    .post(requestBody)
+                    .build();
+            return eventSourceFactory.newEventSource(request, eventSourceListener);
+        });
+        if(!cacheEnabled) {
+            launch.run();
+            return chatRequest;
+        }
+        storageExecutor.execute(() -> { // 在后台计算键并查找缓存，命中时重放，否则发出请求并记录回复
+            chatRequest.cacheKey = ChatRequestEncoder.cacheKeyOf(requestBody);
+            CompletionCache.Entry cached = chatRequest.cacheKey == null ? null : CompletionCache.get(chatRequest.cacheKey);
+            if(cached != null) {
+                HttpEngine.execute(() -> chatRequest.replay(cached));
+            } else {
+                if(chatRequest.cacheKey != null) {
+                    chatRequest.recording = new CompletionCache.Entry();
                 }
+                HttpEngine.execute(launch);
             }
+        });
+        return chatRequest;
+    }
 
-            if (!functions.isEmpty()) { // 如果有函数列表，则将函数列表传入
-                chatCompletion = ChatCompletionWithPicture.builder()
-                        .messages(messageList)
-                        .model(model.replaceAll("\\*$","")) // 去掉自定义Vision模型结尾的*号
-                        .tools(functions)
-                        .toolChoice(ToolChoice.Choice.AUTO.getName())
-                        .temperature(temperature)
-                        .maxTokens(null)
-                        .build();
-            } else {
-                chatCompletion = ChatCompletionWithPicture.builder()
-                        .messages(messageList)
-                        .model(model.replaceAll("\\*$","")) // 去掉自定义Vision模型结尾的*号
-                        .temperature(temperature)
-                        .maxTokens(null)
-                        .build();
-            }
+    // 预先与首选接入点建立连接（DNS、TCP、TLS），用户开始输入或语音识别时调用，随后的对话请求可复用该连接
+    // 发送一个不跟随重定向的HEAD请求，响应内容和状态码均忽略；有请求进行中或距上次预热不久时不发送
+    public void prewarm() {
+        long now = System.currentTimeMillis();
+        if(now - lastPrewarmTime < PREWARM_INTERVAL_MS || isStreaming()) {
+            return;
         }
-
-        callingFunctions.clear(); // 清空当前函数调用列表
-
-        chatGPT.streamChatCompletion(chatCompletion, new EventSourceListener() { // GPT返回消息回调
-            @Override
-            public void onOpen(EventSource eventSource, Response response) {
-                Log.d("ChatApiClient", "onOpen");
-            }
-
-            @Override
-            public void onEvent(EventSource eventSource, @Nullable String id, @Nullable String type, String data) {
-                if(data.equals("[DONE]")){ // 回复完成
-                    Log.d("ChatApiClient", "onEvent: DONE");
-                    if(callingFunctions.isEmpty()) {
-                        listener.onFinished(true);
-                    } else {
-                        listener.onFunctionCall(callingFunctions);
-                    }
-                } else { // 正在回复
-//                    Log.d("ChatApiClient", "onEvent: " + data);
-                    JSONObject json = new JSONObject(data);
-                    if(json.containsKey("choices") && json.getJSONArray("choices").size() > 0) {
-                        JSONObject delta = ((JSONObject) json.getJSONArray("choices").get(0)).getJSONObject("delta");
-                        if (delta != null) {
-                            if (delta.containsKey("tool_calls")) { // GPT请求函数调用
-                                JSONObject toolCall = delta.getJSONArray("tool_calls").getJSONObject(0);
-                                JSONObject functionCall = toolCall.getJSONObject("function");
-                                if (toolCall.containsKey("id") && functionCall.containsKey("name")) {
-                                    CallingFunction callingFunction = new CallingFunction();
-                                    callingFunction.toolId = toolCall.getStr("id");
-                                    callingFunction.name = functionCall.getStr("name");
-                                    callingFunctions.add(callingFunction);
-                                }
-                                if (callingFunctions.size() > 0 && functionCall.containsKey("arguments")) {
-                                    callingFunctions.get(callingFunctions.size() - 1).arguments += functionCall.getStr("arguments");
-                                }
-                            } else if (delta.containsKey("content") && delta.getStr("content") != null) { // GPT返回普通消息
-                                if (isReasoning) {
-                                    isReasoning = false;
-                                    listener.onMsgReceive("\n</think>\n");
-                                }
-                                listener.onMsgReceive(delta.getStr("content"));
-                            } else if (delta.containsKey("reasoning_content") && delta.getStr("reasoning_content") != null) { // GPT返回思维链消息
-                                if (!isReasoning) {
-                                    isReasoning = true;
-                                    listener.onMsgReceive("<think>\n");
-                                }
-                                listener.onMsgReceive(delta.getStr("reasoning_content"));
-                            }
-                        }
+        List<ApiEndpoint> endpoints = router.route(model);
+        if(endpoints.isEmpty()) {
+            return;
+        }
+        lastPrewarmTime = now;
+        Request request;
+        try {
+            request = new Request.Builder()
+                    .url(endpoints.get(0).getHost() + "v1/chat/completions")
+                    .head()
+                    .build();
+        } catch (IllegalArgumentException e) { // 地址格式错误，发送时再提示
+            return;
+        }
+        httpClient.newBuilder().followRedirects(false).build() // 与对话请求共用连接池，重定向到其他主机的连接无法复用
+                .newCall(request).enqueue(new Callback() {
+                    @Override
+                    public void onFailure(Call call, IOException e) { }
+
+                    @Override
+                    public void onResponse(Call call, Response response) {
+                        response.close(); // 释放连接回连接池
                     }
-                }
-            }
-
-            @Override
-            public void onClosed(EventSource eventSource) {
-                Log.d("ChatApiClient", "onClosed");
-            }
+                });
+    }
 
-            @Override
-            public void onFailure(EventSource eventSource, @Nullable Throwable throwable, @Nullable Response response) {
-                if(throwable != null) {
-                    if(throwable instanceof StreamResetException) { // 请求被用户取消，不算错误
-                        Log.d("ChatApiClient", "onFailure: Cancelled");
-                        listener.onFinished(false);
-                    } else {
-                        String err = throwable.toString();
-                        Log.d("ChatApiClient", "onFailure: " + err + "\n" + Log.getStackTraceString(throwable));
-                        if(err.equals("java.io.IOException: Canceled")) { // 解释常见的错误
-                            err = context.getString(R.string.text_gpt_cancel);
-                        } else if(err.equals("java.net.SocketTimeoutException: timeout")) {
-                            err = context.getString(R.string.text_gpt_timeout);
-                        }
-                        listener.onError(err);
-                    }
-                } else {
-                    if(response != null && response.body() != null) {
-                        try {
-                            String err = response.body().string();
-                            if(err.length() > 300) {
-                                err = err.substring(0, 300);
-                                err += "...";
-                            }
-                            listener.onError(err);
-                        } catch (IOException ignore) { }
-                    } else {
-                        listener.onError(context.getString(R.string.text_gpt_unknown_error));
-                    }
-                }
-            }
-        });
+    // 保存已结束请求的性能数据，取消的请求不计入
+    private void recordTelemetry(ChatRequest chatRequest, String requestModel) {
+        ChatRequest.State state = chatRequest.getState();
+        ApiEndpoint endpoint = chatRequest.getEndpoint();
+        if(state == ChatRequest.State.CANCELLED || endpoint == null) {
+            return;
+        }
+        TelemetryStore.add(chatRequest.metrics.toRecord(requestModel, endpoint.getHost(), state.name(),
+                chatRequest.getAttemptCount(), chatRequest.isHedged(), chatRequest.isWonByHedge(), chatRequest.getConnectTiming()));
     }
 
     // 配置API信息
@@ -346,6 +237,7 @@ public class ChatApiClient {
         }
         this.url = url;
         this.apiKey = apiKey;
+        updateEndpoints();
         try {
             chatGPT = new OpenAiStreamClient.Builder()
                     .apiKey(Arrays.asList(apiKey))
@@ -361,14 +253,47 @@ public class ChatApiClient {
         }
     }
 
-    // 获取当前是否正在请求GPT
+    // 配置主接入点之外的其他接入点，与主接入点一起按延迟和错误率路由
+    public void setExtraEndpoints(List<ApiEndpoint> endpoints) {
+        extraEndpoints = new ArrayList<>(endpoints);
+        updateEndpoints();
+    }
+
+    private void updateEndpoints() {
+        ArrayList<ApiEndpoint> endpoints = new ArrayList<>();
+        endpoints.add(new ApiEndpoint(url, apiKey, new ArrayList<>())); // 主接入点支持所有模型
+        endpoints.addAll(extraEndpoints);
+        router.setEndpoints(endpoints);
+    }
+
+    // 设置是否启用对冲请求
+    public void setHedgeEnabled(boolean enabled) { hedgeEnabled = enabled; }
+
+    // 设置是否使用回复缓存，相同的请求直接重放之前的回复
+    public void setCacheEnabled(boolean enabled) { cacheEnabled = enabled; }
+
+    // 设置请求的优先级，同一接入点的额度不足时交互请求先于后台请求发出
+    public void setPriority(RateLimiter.Priority priority) { this.priority = priority; }
+
+    // 获取接入点路由，用于查看各接入点的统计数据
+    public EndpointRouter getRouter() { return router; }
+
+    // 获取当前是否有未结束的请求
     public boolean isStreaming() {
-        return httpClient.connectionPool().connectionCount() - httpClient.connectionPool().idleConnectionCount() > 0;
+        synchronized (activeRequests) {
+            return !activeRequests.isEmpty();
+        }
     }
 
-    // 中断当前请求
+    // 中断本客户端的所有请求
     public void stop() {
-        httpClient.dispatcher().cancelAll();
+        ArrayList<ChatRequest> requests;
+        synchronized (activeRequests) {
+            requests = new ArrayList<>(activeRequests);
+        }
+        for(ChatRequest request : requests) {
+            request.cancel();
+        }
     }
 
     // 设置使用的模型
@@ -376,49 +301,56 @@ public class ChatApiClient {
         this.model = model;
     }
 
+    public String getModel() { return model; }
+
     // 设置温度
     public void setTemperature(float temperature) { this.temperature = temperature; }
 
     // 添加一个函数，有同名函数则覆盖
     public void addFunction(String name, String desc, String params, String[] required) {
-        removeFunction(name); // 删除同名函数
-
-        Parameters parameters = Parameters.builder()
-                .type("object")
-                .properties(new JSONObject(params))
-                .required(Arrays.asList(required))
-                .build();
-
-        Tools tools = Tools.builder()
-                .type(Tools.Type.FUNCTION.getName())
-                .function(ToolsFunction.builder()
-                        .name(name)
-                        .description(desc)
-                        .parameters(parameters)
-                        .build())
-                .build();
-
-//        Functions functions = Functions.builder()
-//                .name(name)
-//                .description(desc)
-//                .parameters(parameters)
-//                .build();
-
-        this.functions.add(tools);
+        JSONObject parameters = new JSONObject()
+                .putOpt("type", "object")
+                .putOpt("properties", new JSONObject(params))
+                .putOpt("required", new JSONArray(required));
+        JSONObject function = new JSONObject()
+                .putOpt("name", name)
+                .putOpt("description", desc)
+                .putOpt("parameters", parameters);
+        JSONObject tool = new JSONObject()
+                .putOpt("type", "function")
+                .putOpt("function", function);
+
+        functions.put(name, tool.toString()); // 添加时即编码，发送请求时直接拼接
+        toolsJson = null;
     }
 
     // 删除一个函数
     public void removeFunction(String name) {
-        for(int i = 0; i < this.functions.size(); i++) {
-            if(this.functions.get(i).getFunction().getName().equals(name)) {
-                this.functions.remove(i);
-                break;
-            }
+        if(functions.remove(name) != null) {
+            toolsJson = null;
         }
     }
 
     // 删除所有函数
     public void clearAllFunctions() {
-        this.functions.clear();
+        functions.clear();
+        toolsJson = null;
+    }
+
+    // 获取函数列表占用的token数，发送时计入请求的token数，也用于从上下文预算中扣除
+    public int getToolsTokenCount() {
+        String json = getToolsJson();
+        return json == null ? 0 : TokenCounter.count(json, model);
+    }
+
+    // 获取编码后的函数列表，没有函数时返回null
+    private String getToolsJson() {
+        if(functions.isEmpty()) {
+            return null;
+        }
+        if(toolsJson == null) {
+            toolsJson = "[" + String.join(",", functions.values()) + "]";
+        }
+        return toolsJson;
     }
 }
@@ -0,0 +1,164 @@
+package com.skythinker.gptassistant.api;
+
+import com.skythinker.gptassistant.data.TelemetryStore;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+
+// 一次对话请求的性能数据：请求构建耗时、请求体大小、连接耗时、首字延迟、字间延迟和生成速度
+// 由ChatRequest在网络线程中填写，请求结束后转为TelemetryStore.Record保存
+public class ChatMetrics {
+    // 一次连接的建立过程计时，由OkHttp的EventListener填写
+    public static class ConnectTiming {
+        volatile long callStart = 0, secureStart = 0, secureEnd = 0, acquired = 0; // System.nanoTime()
+        volatile boolean newConnection = false; // 是否新建了连接（未复用连接池中的连接）
+
+        final EventListener listener = new EventListener() {
+            @Override
+            public void callStart(Call call) {
+                callStart = System.nanoTime();
+            }
+
+            @Override
+            public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+                newConnection = true;
+            }
+
+            @Override
+            public void secureConnectStart(Call call) {
+                secureStart = System.nanoTime();
+            }
+
+            @Override
+            public void secureConnectEnd(Call call, Handshake handshake) {
+                secureEnd = System.nanoTime();
+            }
+
+            @Override
+            public void connectionAcquired(Call call, Connection connection) {
+                if(acquired == 0) { // 重定向或重试时只记录第一次
+                    acquired = System.nanoTime();
+                }
+            }
+        };
+
+        // 从开始请求到获得可用连接的时间（含DNS、TCP和TLS），复用连接时接近0
+        long getConnectMs() {
+            return callStart == 0 || acquired == 0 ? -1 : (acquired - callStart) / 1000000;
+        }
+
+        // 是否复用了已有的连接（如预热的连接），1为复用，0为新建，-1为未知
+        int getReused() {
+            return acquired == 0 ? -1 : (newConnection ? 0 : 1);
+        }
+
+        // TLS握手时间，未进行握手（复用连接或明文连接）时为-1
+        long getTlsMs() {
+            return secureStart == 0 || secureEnd == 0 ? -1 : (secureEnd - secureStart) / 1000000;
+        }
+    }
+
+    // 为带有ConnectTiming标签的请求创建EventListener
+    static final EventListener.Factory EVENT_LISTENER_FACTORY = call -> {
+        ConnectTiming timing = call.request().tag(ConnectTiming.class);
+        return timing == null ? EventListener.NONE : timing.listener;
+    };
+
+    long buildUs = -1; // 编码请求体的耗时（微秒）
+    long payloadBytes = -1; // 请求体大小
+    private volatile long startNanos = 0; // 开始发送请求（首个连接发起）的时间
+    private volatile long firstTokenNanos = 0, lastTokenNanos = 0; // 可在界面线程中实时读取
+    private volatile long tokenEvents = 0; // 含有内容的数据块数
+    private volatile long usageTokens = -1; // 服务端返回的生成token数
+    private volatile long endNanos = 0;
+    private long rateWaitMs = 0; // 在限速队列中等待的总时间（各连接累加）
+
+    void onStart() {
+        startNanos = System.nanoTime();
+    }
+
+    // 收到一个含有内容（回复、思维链或函数调用）的数据块
+    void onTokenEvent() {
+        long now = System.nanoTime();
+        if(firstTokenNanos == 0) {
+            firstTokenNanos = now;
+        }
+        lastTokenNanos = now;
+        tokenEvents++;
+    }
+
+    synchronized void onRateWait(long waitMs) {
+        rateWaitMs += waitMs;
+    }
+
+    void onUsage(long completionTokens) {
+        if(completionTokens >= 0) {
+            usageTokens = completionTokens;
+        }
+    }
+
+    void onEnd() {
+        endNanos = System.nanoTime();
+    }
+
+    // 生成的token数，服务端未返回用量时以数据块数估计（一般每个数据块为一个token）
+    long getTokens() {
+        return usageTokens >= 0 ? usageTokens : tokenEvents;
+    }
+
+    // 实时首字延迟（毫秒），尚未收到内容时为-1
+    public long getTtftMs() {
+        long first = firstTokenNanos;
+        return first == 0 || startNanos == 0 ? -1 : (first - startNanos) / 1000000;
+    }
+
+    // 实时生成速度（token/s），首个token之后计算，数据不足时为-1
+    public double getTokensPerSec() {
+        long first = firstTokenNanos, last = endNanos != 0 ? lastTokenNanos : System.nanoTime();
+        long tokens = getTokens();
+        double seconds = (last - first) / 1e9;
+        return first == 0 || tokens < 2 || seconds <= 0 ? -1 : (tokens - 1) / seconds;
+    }
+
+    // 转为保存用的记录，connectTiming为最终使用的连接的计时
+    TelemetryStore.Record toRecord(String model, String host, String status, int attempts, boolean hedged, boolean hedgeWon, ConnectTiming connectTiming) {
+        TelemetryStore.Record record = new TelemetryStore.Record();
+        record.time = System.currentTimeMillis();
+        record.model = model;
+        record.host = host;
+        record.status = status;
+        record.attempts = attempts;
+        record.hedged = hedged;
+        record.hedgeWon = hedgeWon;
+        record.buildUs = buildUs;
+        record.payloadBytes = payloadBytes;
+        synchronized (this) {
+            record.rateWaitMs = rateWaitMs;
+        }
+        if(connectTiming != null) {
+            record.connectMs = connectTiming.getConnectMs();
+            record.tlsMs = connectTiming.getTlsMs();
+            record.connReused = connectTiming.getReused();
+        }
+        if(firstTokenNanos != 0) {
+            record.ttftMs = (firstTokenNanos - startNanos) / 1000000; // 对冲或重试时包含等待前一个连接的时间，即用户感受到的延迟
+            record.tokens = getTokens();
+            if(tokenEvents > 1) {
+                double generateSeconds = (lastTokenNanos - firstTokenNanos) / 1e9;
+                record.itlMs = generateSeconds * 1000 / (tokenEvents - 1);
+                if(generateSeconds > 0) {
+                    record.tokensPerSec = (record.tokens - 1) / generateSeconds; // 首个token之后的生成速度
+                }
+            }
+        }
+        if(endNanos != 0) {
+            record.totalMs = (endNanos - startNanos) / 1000000;
+        }
+        return record;
+    }
+}
@@ -0,0 +1,593 @@
+package com.skythinker.gptassistant.api;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.skythinker.gptassistant.R;
+import com.skythinker.gptassistant.api.ChatApiClient.CallingFunction;
+import com.skythinker.gptassistant.api.ChatApiClient.OnReceiveListener;
+import com.skythinker.gptassistant.data.ApiEndpoint;
+import com.skythinker.gptassistant.data.CompletionCache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+import okhttp3.Response;
+import okhttp3.internal.http2.StreamResetException;
+import okhttp3.sse.EventSource;
+import okhttp3.sse.EventSourceListener;
+
+// 一次对话请求的句柄，每个请求拥有独立的解析器和状态，可单独取消
+public class ChatRequest {
+    private static final int MAX_RATE_LIMIT_RETRIES = 3; // 收到429后在同一接入点排队重试的最大次数
+    private static final long MAX_RATE_LIMIT_WAIT_MS = 60000; // 要求等待更久时直接报错
+
+    // 请求状态，DONE、TOOL_CALL、FAILED、CANCELLED为终止状态
+    public enum State {
+        QUEUED,     // 已提交，等待调度
+        CONNECTING, // 正在建立连接并发送请求
+        STREAMING,  // 正在接收回复
+        TOOL_CALL,  // 回复结束，GPT请求调用函数
+        DONE,       // 回复正常结束
+        FAILED,     // 请求出错
+        CANCELLED;  // 被取消
+
+        public boolean isTerminal() {
+            return this == TOOL_CALL || this == DONE || this == FAILED || this == CANCELLED;
+        }
+    }
+
+    // 状态变化回调，在网络线程中调用
+    public interface OnStateChangeListener {
+        void onStateChange(ChatRequest request, State state);
+    }
+
+    // 向指定接入点发起连接，由ChatApiClient实现
+    interface Launcher {
+        EventSource launch(ApiEndpoint endpoint, ChatMetrics.ConnectTiming timing, EventSourceListener listener);
+    }
+
+    // 向一个接入点发起的一次连接，对冲时同一请求可能同时有两个连接
+    private class Attempt {
+        final ApiEndpoint endpoint;
+        final boolean hedge; // 是否为对冲发起的连接
+        final long startTime = System.nanoTime();
+        final ChatMetrics.ConnectTiming connectTiming = new ChatMetrics.ConnectTiming();
+        EventSource eventSource = null;
+        RateLimiter.Ticket ticket = null; // 在限速队列中等待时不为null
+        boolean granted = false; // 已获得限速额度
+        boolean abandoned = false; // 对冲中落选，已被取消
+
+        Attempt(ApiEndpoint endpoint, boolean hedge) {
+            this.endpoint = endpoint;
+            this.hedge = hedge;
+        }
+
+        long elapsedMs() {
+            return (System.nanoTime() - startTime) / 1000000;
+        }
+
+        final EventSourceListener eventSourceListener = new EventSourceListener() {
+            @Override
+            public void onOpen(EventSource eventSource, Response response) {
+                Log.d("ChatApiClient", "onOpen");
+                if(rateLimiter != null) {
+                    rateLimiter.onResponse(endpoint, response.headers());
+                }
+                setState(State.STREAMING);
+            }
+
+            @Override
+            public void onEvent(EventSource eventSource, @Nullable String id, @Nullable String type, String data) {
+                if(cancelled || !claimWinner(Attempt.this)) {
+                    return;
+                }
+                handleEvent(data);
+            }
+
+            @Override
+            public void onClosed(EventSource eventSource) {
+                Log.d("ChatApiClient", "onClosed");
+                if(cancelled) {
+                    return;
+                }
+                synchronized (ChatRequest.this) {
+                    liveAttempts.remove(Attempt.this);
+                    if(winner == null && !liveAttempts.isEmpty()) { // 没有任何数据就关闭了，由其他连接继续
+                        return;
+                    }
+                }
+                if(claimWinner(Attempt.this) && isActive()) { // 服务端未发送[DONE]就关闭了连接，按完成处理
+                    finish();
+                }
+            }
+
+            @Override
+            public void onFailure(EventSource eventSource, @Nullable Throwable throwable, @Nullable Response response) {
+                handleFailure(Attempt.this, throwable, response);
+            }
+        };
+    }
+
+    private final Context context;
+    private final OnReceiveListener listener;
+    private volatile State state = State.QUEUED;
+    private volatile boolean cancelled = false;
+    private OnStateChangeListener stateListener = null;
+    Runnable onTerminate = null; // 进入终止状态时调用，由ChatApiClient设置
+
+    private EndpointRouter router = null;
+    private String model = "";
+    private List<ApiEndpoint> endpoints = null; // 按顺序尝试的接入点
+    private int attemptCount = 0;
+    private Launcher launcher = null;
+    private final ArrayList<Attempt> liveAttempts = new ArrayList<>(); // 尚未结束的连接
+    private Attempt lastAttempt = null;
+    private Attempt winner = null; // 最先收到数据的连接，之后只处理该连接的数据
+    private ScheduledFuture<?> hedgeTimer = null;
+    private boolean hedged = false;
+    RateLimiter rateLimiter = null; // 不为null时每个连接发起前先向限速器申请额度，由ChatApiClient设置
+    RateLimiter.Priority priority = RateLimiter.Priority.INTERACTIVE;
+    int estimatedTokens = 0; // 请求消耗的token数估计，用于token限速
+    private int rateLimitRetries = 0; // 因429在同一接入点排队重试的次数
+
+    private final ChatStreamParser streamParser = new ChatStreamParser(); // 流式数据解析器（复用缓冲区）
+    private final ToolCallAssembler toolCallAssembler = new ToolCallAssembler(); // 按index拼接函数调用
+    final ChatMetrics metrics = new ChatMetrics(); // 性能数据，请求构建耗时和请求体大小由ChatApiClient填写
+    CompletionCache.Entry recording = null; // 不为null时记录收到的回复，用于写入缓存
+    volatile String cacheKey = null; // 回复缓存的键，启用缓存时由ChatApiClient在后台计算
+    StreamBuffer stream = null; // 不为null时将收到的事件写入该缓冲，由ChatApiClient设置
+    private String finishReason = null; // 服务端给出的结束原因
+
+    ChatRequest(Context context, OnReceiveListener listener) {
+        this.context = context;
+        this.listener = listener;
+    }
+
+    public State getState() { return state; }
+
+    // 当前（或最终）使用的接入点
+    public synchronized ApiEndpoint getEndpoint() {
+        Attempt attempt = winner != null ? winner : lastAttempt;
+        return attempt == null ? null : attempt.endpoint;
+    }
+
+    // 已尝试的连接数（含对冲和429后的重试）
+    public synchronized int getAttemptCount() { return attemptCount + rateLimitRetries; }
+
+    // 是否发起过对冲请求
+    public synchronized boolean isHedged() { return hedged; }
+
+    // 是否由对冲发起的连接最先返回数据
+    public synchronized boolean isWonByHedge() { return winner != null && winner.hedge; }
+
+    // 当前（或最终）使用的连接的建立过程计时
+    synchronized ChatMetrics.ConnectTiming getConnectTiming() {
+        Attempt attempt = winner != null ? winner : lastAttempt;
+        return attempt == null ? null : attempt.connectTiming;
+    }
+
+    // 性能数据，可在请求进行中读取首字延迟和生成速度
+    public ChatMetrics getMetrics() { return metrics; }
+
+    // 请求是否仍在进行中
+    public boolean isActive() { return !state.isTerminal(); }
+
+    public ChatRequest setOnStateChangeListener(OnStateChangeListener stateListener) {
+        this.stateListener = stateListener;
+        return this;
+    }
+
+    // 取消该请求，不影响同一客户端的其他请求
+    public void cancel() {
+        cancelled = true;
+        ArrayList<Attempt> attempts;
+        synchronized (this) {
+            attempts = new ArrayList<>(liveAttempts);
+            cancelHedgeTimer();
+        }
+        ArrayList<Attempt> waiting = new ArrayList<>();
+        for(Attempt attempt : attempts) {
+            if(attempt.eventSource != null) {
+                attempt.eventSource.cancel();
+            } else if(attempt.ticket != null && attempt.ticket.cancel()) { // 仍在限速队列中，没有连接会报告取消
+                waiting.add(attempt);
+            }
+        }
+        setState(State.CANCELLED);
+        for(Attempt attempt : waiting) {
+            handleFailure(attempt, new IOException("Canceled"), null);
+        }
+    }
+
+    // 依次尝试各接入点发起请求，hedgeDelayMs大于0时若超过该时间仍未收到数据，向下一个接入点发起对冲请求
+    void start(EndpointRouter router, String model, List<ApiEndpoint> endpoints, long hedgeDelayMs, Launcher launcher) {
+        if(cancelled) { // 在后台查找缓存时已被取消
+            notifyCancelled();
+            return;
+        }
+        this.router = router;
+        this.model = model;
+        this.endpoints = endpoints;
+        this.launcher = launcher;
+        router.recordRequest();
+        metrics.onStart();
+        if(!launchNext(false)) {
+            if(!cancelled) { // 所有接入点的地址均无效
+                setState(State.FAILED);
+                listener.onError(context.getString(R.string.text_gpt_conf_error));
+            }
+            return;
+        }
+        if(hedgeDelayMs > 0 && endpoints.size() > 1) {
+            synchronized (this) {
+                if(winner == null && isActive()) {
+                    hedgeTimer = HttpEngine.schedule(this::launchHedge, hedgeDelayMs);
+                }
+            }
+        }
+    }
+
+    // 重放缓存的回复，不发起网络请求
+    void replay(CompletionCache.Entry entry) {
+        setState(State.STREAMING);
+        for(CompletionCache.Chunk chunk : entry.chunks) {
+            if(cancelled) {
+                notifyCancelled();
+                return;
+            }
+            if(chunk.reasoning) {
+                emit(StreamEvent.reasoning(chunk.text));
+                listener.onReasoningReceive(chunk.text);
+            } else {
+                emit(StreamEvent.content(chunk.text));
+                listener.onMsgReceive(chunk.text);
+            }
+        }
+        if(setState(State.DONE)) {
+            listener.onFinished(true);
+        }
+    }
+
+    // 没有连接的请求（查找或重放缓存时）被取消，与连接被取消时一样报告，使调用方结束等待
+    private void notifyCancelled() {
+        listener.onError(context.getString(R.string.text_gpt_cancel));
+    }
+
+    // 超过对冲阈值仍未收到数据，向下一个接入点再发一次相同的请求
+    private void launchHedge() {
+        synchronized (this) {
+            hedgeTimer = null;
+            if(cancelled || winner != null || !isActive() || attemptCount >= endpoints.size()) {
+                return;
+            }
+            hedged = true;
+            Log.d("ChatApiClient", "hedge: no token from " + lastAttempt.endpoint.getHost() + " in time");
+        }
+        router.recordHedge();
+        launchNext(true);
+    }
+
+    private synchronized void cancelHedgeTimer() {
+        if(hedgeTimer != null) {
+            hedgeTimer.cancel(false);
+            hedgeTimer = null;
+        }
+    }
+
+    // 向下一个接入点发起请求，没有剩余接入点时返回false
+    private boolean launchNext(boolean hedge) {
+        ApiEndpoint endpoint;
+        synchronized (this) {
+            if(cancelled || attemptCount >= endpoints.size()) {
+                return false;
+            }
+            endpoint = endpoints.get(attemptCount++);
+        }
+        launchAttempt(endpoint, hedge);
+        return true;
+    }
+
+    // 向接入点发起一个连接，有限速器时先排队等待额度
+    private void launchAttempt(ApiEndpoint endpoint, boolean hedge) {
+        Attempt attempt = new Attempt(endpoint, hedge);
+        synchronized (this) {
+            liveAttempts.add(attempt);
+            lastAttempt = attempt;
+        }
+        if(rateLimiter == null) {
+            connect(attempt);
+            return;
+        }
+        RateLimiter.Ticket ticket = rateLimiter.acquire(endpoint, estimatedTokens, priority, waitMs -> {
+            metrics.onRateWait(waitMs);
+            if(waitMs > 0) {
+                Log.d("ChatApiClient", "launch: waited " + waitMs + "ms for rate limit of " + endpoint.getHost());
+            }
+            synchronized (ChatRequest.this) {
+                attempt.granted = true;
+                attempt.ticket = null;
+            }
+            connect(attempt);
+        });
+        synchronized (this) {
+            if(!attempt.granted) { // 仍在排队，取消时需要移出队列
+                attempt.ticket = ticket;
+            }
+        }
+    }
+
+    private void connect(Attempt attempt) {
+        if(cancelled || attempt.abandoned) { // 等待额度期间被取消或在对冲中落选
+            handleFailure(attempt, new IOException("Canceled"), null);
+            return;
+        }
+        EventSource eventSource;
+        try {
+            eventSource = launcher.launch(attempt.endpoint, attempt.connectTiming, attempt.eventSourceListener);
+        } catch (IllegalArgumentException e) { // 地址格式错误
+            Log.d("ChatApiClient", "launch: invalid host " + attempt.endpoint.getHost());
+            router.recordFailure(attempt.endpoint);
+            synchronized (this) {
+                liveAttempts.remove(attempt);
+            }
+            if(!launchNext(attempt.hedge)) {
+                failIfIdle();
+            }
+            return;
+        }
+        synchronized (this) {
+            attempt.eventSource = eventSource;
+            if(cancelled || attempt.abandoned) { // 发起连接时已被取消
+                eventSource.cancel();
+            }
+        }
+    }
+
+    // 没有可尝试的接入点且没有进行中的连接时以配置错误结束
+    private void failIfIdle() {
+        synchronized (this) {
+            if(!liveAttempts.isEmpty()) {
+                return;
+            }
+        }
+        if(!cancelled && setState(State.FAILED)) {
+            listener.onError(context.getString(R.string.text_gpt_conf_error));
+        }
+    }
+
+    // 确定最先收到数据的连接并取消其余连接，返回该连接是否为胜出者
+    private boolean claimWinner(Attempt attempt) {
+        ArrayList<Attempt> losers = new ArrayList<>();
+        synchronized (this) {
+            if(winner != null) {
+                return winner == attempt;
+            }
+            if(attempt.abandoned) {
+                return false;
+            }
+            winner = attempt;
+            cancelHedgeTimer();
+            for(Attempt other : liveAttempts) {
+                if(other != attempt) {
+                    other.abandoned = true;
+                    losers.add(other);
+                }
+            }
+            liveAttempts.removeAll(losers);
+        }
+        router.recordSuccess(attempt.endpoint, model, attempt.elapsedMs()); // 收到首个数据，记录首字延迟
+        if(hedged) {
+            router.recordHedgeResult(attempt.hedge);
+        }
+        for(Attempt loser : losers) { // 落选的连接至少已等待了这么久，计入其延迟
+            if(loser.ticket != null && loser.ticket.cancel()) { // 仍在限速队列中，尚未发出
+                continue;
+            }
+            router.recordLatency(loser.endpoint, loser.elapsedMs());
+            if(loser.eventSource != null) {
+                loser.eventSource.cancel();
+            }
+        }
+        return true;
+    }
+
+    // 切换状态，已终止的请求不再改变状态
+    boolean setState(State newState) {
+        synchronized (this) {
+            if(state.isTerminal() || state == newState) {
+                return false;
+            }
+            state = newState;
+            if(newState.isTerminal()) {
+                metrics.onEnd();
+                cancelHedgeTimer();
+                emit(StreamEvent.finish(finishReasonOf(newState)));
+            }
+            if(stateListener != null) {
+                stateListener.onStateChange(this, newState);
+            }
+        }
+        if(newState.isTerminal() && onTerminate != null) { // 在锁外调用，不阻塞取消和对冲
+            onTerminate.run();
+        }
+        return true;
+    }
+
+    // 将事件写入流式缓冲
+    private void emit(StreamEvent event) {
+        if(stream != null) {
+            stream.accept(event);
+        }
+    }
+
+    // 终止状态对应的结束原因，服务端给出了原因时优先使用
+    private String finishReasonOf(State state) {
+        switch (state) {
+            case DONE:
+                return finishReason != null ? finishReason : "stop";
+            case TOOL_CALL:
+                return "tool_calls";
+            case CANCELLED:
+                return "cancelled";
+            default:
+                return "error";
+        }
+    }
+
+    // 回复结束，有函数调用时交给调用方执行，否则正常结束
+    private void finish() {
+        ArrayList<CallingFunction> functions = toolCallAssembler.finish();
+        if(functions.isEmpty()) {
+            setState(State.DONE);
+            listener.onFinished(true);
+        } else {
+            for(CallingFunction function : toolCallAssembler.getMalformedCalls()) {
+                Log.d("ChatApiClient", "finish: malformed arguments of " + function.name + ": " + function.arguments);
+            }
+            setState(State.TOOL_CALL);
+            listener.onFunctionCall(functions);
+        }
+    }
+
+    // 处理胜出连接的一个SSE数据
+    private void handleEvent(String data) {
+        if(data.equals("[DONE]")){ // 回复完成
+            Log.d("ChatApiClient", "onEvent: DONE");
+            finish();
+        } else { // 正在回复
+//            Log.d("ChatApiClient", "onEvent: " + data);
+            if(!streamParser.parse(data)) {
+                Log.d("ChatApiClient", "onEvent: malformed chunk " + data);
+                return;
+            }
+            if(streamParser.hasUsage()) {
+                metrics.onUsage(streamParser.getCompletionTokens());
+                emit(StreamEvent.usage(streamParser.getPromptTokens(), streamParser.getCompletionTokens()));
+            }
+            if(streamParser.hasFinishReason()) {
+                finishReason = streamParser.getFinishReason();
+            }
+            if (streamParser.getToolCallCount() > 0) { // GPT请求函数调用（可能同时包含多个调用）
+                metrics.onTokenEvent();
+                toolCallAssembler.accept(streamParser);
+                if(stream != null) {
+                    for(int i = 0; i < streamParser.getToolCallCount(); i++) {
+                        ChatStreamParser.ToolCallDelta delta = streamParser.getToolCall(i);
+                        emit(StreamEvent.toolCall(delta.getIndex(), delta.getId(), delta.getName(), delta.getArgumentsChars()));
+                    }
+                }
+            } else {
+                if ((streamParser.hasReasoningContent() && streamParser.getReasoningContentChars().length() > 0) || (streamParser.hasContent() && streamParser.getContentChars().length() > 0)) { // 忽略只有角色信息的首个数据块
+                    metrics.onTokenEvent();
+                }
+                if (streamParser.hasReasoningContent() && streamParser.getReasoningContentChars().length() > 0) { // GPT返回思维链消息
+                    emit(StreamEvent.reasoning(streamParser.getReasoningContentChars())); // 直接追加解析器缓冲区中的文本
+                    String reasoning = streamParser.getReasoningContent();
+                    if(recording != null) {
+                        recording.add(true, reasoning);
+                    }
+                    listener.onReasoningReceive(reasoning);
+                }
+                if (streamParser.hasContent()) { // GPT返回普通消息
+                    emit(StreamEvent.content(streamParser.getContentChars()));
+                    String content = streamParser.getContent();
+                    if(recording != null) {
+                        recording.add(false, content);
+                    }
+                    listener.onMsgReceive(content);
+                }
+            }
+        }
+    }
+
+    // 收到429后在同一接入点重试，限速器会让该连接等到服务端允许的时间；次数或等待时间超限时返回false
+    private boolean retryAfterRateLimit(ApiEndpoint endpoint, long waitMs) {
+        synchronized (this) {
+            if(cancelled || rateLimitRetries >= MAX_RATE_LIMIT_RETRIES || waitMs > MAX_RATE_LIMIT_WAIT_MS) {
+                return false;
+            }
+            rateLimitRetries++;
+        }
+        Log.d("ChatApiClient", "onFailure: rate limited by " + endpoint.getHost() + ", retry after " + waitMs + "ms");
+        launchAttempt(endpoint, false);
+        return true;
+    }
+
+    // 处理一个连接的失败，尚未收到数据时可由其他连接继续或切换接入点重试
+    private void handleFailure(Attempt attempt, @Nullable Throwable throwable, @Nullable Response response) {
+        boolean hasWinner;
+        synchronized (this) {
+            liveAttempts.remove(attempt);
+            if(attempt.abandoned) { // 对冲中落选而被取消
+                return;
+            }
+            if(cancelled && !liveAttempts.isEmpty()) { // 请求被取消，由最后一个连接报告
+                return;
+            }
+            hasWinner = winner != null;
+        }
+        long rateLimitWaitMs = -1; // 收到429时服务端要求的等待时间
+        if(!cancelled && response != null && rateLimiter != null) {
+            rateLimiter.onResponse(attempt.endpoint, response.headers());
+            if(response.code() == 429) {
+                rateLimitWaitMs = rateLimiter.onRateLimited(attempt.endpoint, response.headers());
+            }
+        }
+        if(!cancelled) {
+            router.recordFailure(attempt.endpoint);
+            if(!hasWinner) { // 尚未收到数据
+                synchronized (this) {
+                    if(!liveAttempts.isEmpty()) { // 另一个连接仍在等待，由它继续
+                        return;
+                    }
+                }
+                if(EndpointRouter.isRetryable(throwable, response)) { // 换一个接入点重试
+                    Log.d("ChatApiClient", "onFailure: " + attempt.endpoint.getHost() + " failed, " + (throwable != null ? throwable.toString() : "HTTP " + response.code()));
+                    if(launchNext(false)) {
+                        return;
+                    }
+                }
+                if(rateLimitWaitMs >= 0 && retryAfterRateLimit(attempt.endpoint, rateLimitWaitMs)) { // 没有其他接入点，排队等待额度恢复后重试
+                    return;
+                }
+            }
+        }
+        setState(cancelled ? State.CANCELLED : State.FAILED);
+        if(throwable != null) {
+            if(throwable instanceof StreamResetException) { // 请求被用户取消，不算错误
+                Log.d("ChatApiClient", "onFailure: Cancelled");
+                listener.onFinished(false);
+            } else {
+                String err = throwable.toString();
+                Log.d("ChatApiClient", "onFailure: " + err + "\n" + Log.getStackTraceString(throwable));
+                if(err.equals("java.io.IOException: Canceled")) { // 解释常见的错误
+                    err = context.getString(R.string.text_gpt_cancel);
+                } else if(err.equals("java.net.SocketTimeoutException: timeout")) {
+                    err = context.getString(R.string.text_gpt_timeout);
+                }
+                listener.onError(err);
+            }
+        } else {
+            if(response != null && response.body() != null) {
+                try {
+                    String err = response.body().string();
+                    if(err.length() > 300) {
+                        err = err.substring(0, 300);
+                        err += "...";
+                    }
+                    if(response.code() == 429) { // 重试后仍被限速，说明需要等待的时间
+                        err = context.getString(R.string.format_gpt_rate_limited, (Math.max(rateLimitWaitMs, 0) + 999) / 1000, err);
+                    }
+                    listener.onError(err);
+                } catch (IOException ignore) { }
+            } else {
+                listener.onError(context.getString(R.string.text_gpt_unknown_error));
+            }
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package com.skythinker.gptassistant.api;
+
+import androidx.annotation.Nullable;
+
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage.ChatRole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import cn.hutool.json.JSONUtil;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.HashingSink;
+import okio.Okio;
+
+// 将消息列表编码为chat/completions请求体
+// 每条消息编码后的JSON片段缓存在ChatMessage.encodeCache中，消息未改变时直接复用，每轮对话只需编码新增的消息
+// 图片以原始字节保存在附件中，在写出请求体时才分段编码为base64写入socket，不生成完整的base64字符串
+public class ChatRequestEncoder {
+    private static final MediaType JSON_TYPE = MediaType.parse("application/json; charset=utf-8");
+
+    // 编码格式标志，格式不同的片段不能复用
+    private static final int FLAG_CONTENT_LIST = 1; // 使用contentList格式
+    private static final int FLAG_VISION = 2; // 模型支持识图
+
+    // 一条消息编码后的JSON片段
+    private static class Fragment {
+        final int flags;
+        final Object[] fingerprint; // 编码时消息各字段的引用，用于判断消息是否被修改
+        final Object[] parts; // byte[]（已编码的JSON）或ImagePart（图片的原始字节，写出时编码为base64）
+        final long length;
+
+        Fragment(int flags, Object[] fingerprint, Object[] parts, long length) {
+            this.flags = flags;
+            this.fingerprint = fingerprint;
+            this.parts = parts;
+            this.length = length;
+        }
+
+        boolean matches(int flags, Object[] fingerprint) {
+            return this.flags == flags && sameFingerprint(this.fingerprint, fingerprint);
+        }
+    }
+
+    // 片段中的图片数据
+    private static class ImagePart {
+        final byte[] data;
+        final String key; // 附件内容的键，计算缓存键时代替图片数据
+
+        ImagePart(byte[] data, String key) {
+            this.data = data;
+            this.key = key;
+        }
+    }
+
+    // 用于逐段生成片段内容
+    private static class FragmentWriter {
+        final ArrayList<Object> parts = new ArrayList<>();
+        final Buffer buffer = new Buffer();
+        long length = 0;
+
+        FragmentWriter raw(String s) {
+            buffer.writeUtf8(s);
+            return this;
+        }
+
+        FragmentWriter string(@Nullable String s) {
+            buffer.writeUtf8(s == null ? "null" : JSONUtil.quote(s));
+            return this;
+        }
+
+        // 写入一个字段（值为null时忽略），前面总是带逗号
+        FragmentWriter optField(String key, @Nullable String value) {
+            if(value != null) {
+                raw(",\"").raw(key).raw("\":").string(value);
+            }
+            return this;
+        }
+
+        FragmentWriter image(byte[] data, String key) {
+            flush();
+            parts.add(new ImagePart(data, key));
+            length += base64Length(data.length);
+            return this;
+        }
+
+        void flush() {
+            if(buffer.size() > 0) {
+                length += buffer.size();
+                parts.add(buffer.readByteArray());
+            }
+        }
+    }
+
+    // 编码后的请求体，可重复写出（便于OkHttp重试）
+    private static class EncodedBody extends RequestBody {
+        final byte[] head, tail;
+        final Fragment[] fragments;
+        final long length;
+
+        EncodedBody(byte[] head, Fragment[] fragments, byte[] tail) {
+            this.head = head;
+            this.fragments = fragments;
+            this.tail = tail;
+            long length = head.length + tail.length + Math.max(fragments.length - 1, 0);
+            for(Fragment fragment : fragments) {
+                length += fragment.length;
+            }
+            this.length = length;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return JSON_TYPE;
+        }
+
+        @Override
+        public long contentLength() {
+            return length;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            writeTo(sink, false);
+        }
+
+        // imageKeys为true时图片只写出附件的键，用于计算缓存键
+        void writeTo(BufferedSink sink, boolean imageKeys) throws IOException {
+            byte[] base64Buffer = null;
+            sink.write(head);
+            for(int i = 0; i < fragments.length; i++) {
+                if(i > 0)
+                    sink.writeByte(',');
+                for(Object part : fragments[i].parts) {
+                    if(part instanceof byte[]) {
+                        sink.write((byte[]) part);
+                    } else if(imageKeys && ((ImagePart) part).key != null) {
+                        sink.writeUtf8(((ImagePart) part).key);
+                    } else {
+                        if(base64Buffer == null) {
+                            base64Buffer = new byte[base64Length(BASE64_CHUNK)];
+                        }
+                        writeBase64(sink, ((ImagePart) part).data, base64Buffer);
+                    }
+                }
+            }
+            sink.write(tail);
+        }
+    }
+
+    private static final byte[] BASE64_TABLE = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+    private static final int BASE64_CHUNK = 3 * 1024; // 每次编码的字节数，为3的倍数使各段之间不需要填充
+
+    static long base64Length(long size) {
+        return 4 * ((size + 2) / 3);
+    }
+
+    // 将数据分段编码为base64写入sink，buffer的长度至少为base64Length(BASE64_CHUNK)
+    static void writeBase64(BufferedSink sink, byte[] data, byte[] buffer) throws IOException {
+        for(int start = 0; start < data.length; start += BASE64_CHUNK) {
+            int end = Math.min(start + BASE64_CHUNK, data.length), out = 0, i = start;
+            for(; i + 2 < end; i += 3) {
+                int bits = (data[i] & 0xFF) << 16 | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF);
+                buffer[out++] = BASE64_TABLE[bits >>> 18];
+                buffer[out++] = BASE64_TABLE[(bits >>> 12) & 0x3F];
+                buffer[out++] = BASE64_TABLE[(bits >>> 6) & 0x3F];
+                buffer[out++] = BASE64_TABLE[bits & 0x3F];
+            }
+            if(i < end) { // 最后一段剩余1或2个字节
+                int bits = (data[i] & 0xFF) << 16 | (i + 1 < end ? (data[i + 1] & 0xFF) << 8 : 0);
+                buffer[out++] = BASE64_TABLE[bits >>> 18];
+                buffer[out++] = BASE64_TABLE[(bits >>> 12) & 0x3F];
+                buffer[out++] = i + 1 < end ? BASE64_TABLE[(bits >>> 6) & 0x3F] : (byte) '=';
+                buffer[out++] = '=';
+            }
+            sink.write(buffer, 0, out);
+        }
+    }
+
+    // 计算请求体的SHA-256作为回复缓存的键，请求体包含模型、温度、函数列表和全部消息，图片以附件的键代替，不编码base64
+    public static String cacheKeyOf(RequestBody requestBody) {
+        try {
+            HashingSink hashingSink = HashingSink.sha256(Okio.blackhole());
+            BufferedSink sink = Okio.buffer(hashingSink);
+            if(requestBody instanceof EncodedBody) {
+                ((EncodedBody) requestBody).writeTo(sink, true);
+            } else {
+                requestBody.writeTo(sink);
+            }
+            sink.flush();
+            return hashingSink.hash().hex();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // 编码整个请求，toolsJson为已编码的工具列表（可为null）
+    public static RequestBody encode(List<ChatMessage> messages, String model, float temperature, @Nullable String toolsJson, boolean visionSupport) {
+        int flags = visionSupport ? FLAG_VISION : 0;
+        for(ChatMessage message : messages) {
+            if(message.attachments.size() > 0) { // 含有附件，使用contentList格式，否则使用普通content格式（兼容旧模型）
+                flags |= FLAG_CONTENT_LIST;
+                break;
+            }
+        }
+
+        Fragment[] fragments = new Fragment[messages.size()];
+        for(int i = 0; i < messages.size(); i++) {
+            fragments[i] = getFragment(messages.get(i), flags);
+        }
+
+        FragmentWriter head = new FragmentWriter()
+                .raw("{\"model\":").string(model)
+                .raw(",\"stream\":true,\"temperature\":").raw(Float.toString(temperature))
+                .raw(",\"messages\":[");
+        FragmentWriter tail = new FragmentWriter().raw("]");
+        if(toolsJson != null) { // 如果有函数列表，则将函数列表传入
+            tail.raw(",\"tools\":").raw(toolsJson).raw(",\"tool_choice\":\"auto\"");
+        }
+        tail.raw("}");
+        return new EncodedBody(head.buffer.readByteArray(), fragments, tail.buffer.readByteArray());
+    }
+
+    // 从缓存中获取消息片段，消息或格式改变时重新编码
+    private static Fragment getFragment(ChatMessage message, int flags) {
+        Object[] fingerprint = fingerprintOf(message);
+        ChatMessage.EncodeCache cache = message.encodeCache;
+        synchronized (cache) {
+            if(cache.latest instanceof Fragment && ((Fragment) cache.latest).matches(flags, fingerprint)) {
+                return (Fragment) cache.latest;
+            }
+            if(cache.previous instanceof Fragment && ((Fragment) cache.previous).matches(flags, fingerprint)) { // 同一消息的两种变体交替使用（如被清空内容的副本）
+                Object swap = cache.latest;
+                cache.latest = cache.previous;
+                cache.previous = swap;
+                return (Fragment) cache.latest;
+            }
+            Fragment fragment = encodeMessage(message, flags, fingerprint);
+            cache.previous = cache.latest;
+            cache.latest = fragment;
+            return fragment;
+        }
+    }
+
+    // 消息各字段的引用，字段被替换时即视为消息已修改（TokenCounter也使用）
+    static Object[] fingerprintOf(ChatMessage message) {
+        Object[] fingerprint = new Object[2 + message.toolCalls.size() * 4 + message.attachments.size() * 2];
+        int i = 0;
+        fingerprint[i++] = message.role;
+        fingerprint[i++] = message.contentText;
+        for(ChatMessage.ToolCall toolCall : message.toolCalls) {
+            fingerprint[i++] = toolCall.id;
+            fingerprint[i++] = toolCall.functionName;
+            fingerprint[i++] = toolCall.arguments;
+            fingerprint[i++] = toolCall.content;
+        }
+        for(ChatMessage.Attachment attachment : message.attachments) {
+            fingerprint[i++] = attachment.type;
+            fingerprint[i++] = attachment.getKey(); // 附件内容由键确定，不必为计算指纹读取文件
+        }
+        return fingerprint;
+    }
+
+    static boolean sameFingerprint(@Nullable Object[] a, Object[] b) {
+        if(a == null || a.length != b.length)
+            return false;
+        for(int i = 0; i < a.length; i++) {
+            if(a[i] != b[i])
+                return false;
+        }
+        return true;
+    }
+
+    // 将单条消息编码为ChatGPT需要的格式
+    private static Fragment encodeMessage(ChatMessage message, int flags, Object[] fingerprint) {
+        boolean useContentList = (flags & FLAG_CONTENT_LIST) != 0;
+        String contentText = message.contentText; // 思维链保存在reasoningText中，不发送
+
+        FragmentWriter w = new FragmentWriter();
+        w.raw("{\"role\":");
+        if(message.role == ChatRole.FUNCTION) {
+            ChatMessage.ToolCall toolCall = message.toolCalls.get(0);
+            if(toolCall.id != null) { // 用tool方式回复
+                w.string("tool").optField("tool_call_id", toolCall.id);
+            } else { // 用function方式回复（历史遗留）
+                w.string("function");
+            }
+            w.optField("name", toolCall.functionName);
+            if(useContentList) {
+                writeContentList(w.raw(",\"content\":"), message, contentText, flags);
+            } else {
+                w.optField("content", toolCall.content);
+            }
+        } else if(message.role == ChatRole.ASSISTANT && message.toolCalls.size() > 0) {
+            w.string("assistant");
+            if(!useContentList) {
+                w.raw(",\"content\":\"\"");
+            }
+            if(message.toolCalls.get(0).id != null) { // 用tool方式回复
+                w.raw(",\"tool_calls\":[");
+                for(int i = 0; i < message.toolCalls.size(); i++) {
+                    ChatMessage.ToolCall toolCall = message.toolCalls.get(i);
+                    w.raw(i > 0 ? ",{\"id\":" : "{\"id\":").string(toolCall.id)
+                            .raw(",\"type\":\"function\",\"function\":{\"name\":").string(toolCall.functionName)
+                            .raw(",\"arguments\":").string(toolCall.arguments)
+                            .raw("}}");
+                }
+                w.raw("]");
+            } else { // 用function方式回复（历史遗留）
+                ChatMessage.ToolCall toolCall = message.toolCalls.get(0);
+                w.raw(",\"function_call\":{\"name\":").string(toolCall.functionName)
+                        .raw(",\"arguments\":").string(toolCall.arguments)
+                        .raw("}");
+            }
+        } else {
+            w.string(message.role.name().toLowerCase());
+            if(useContentList) {
+                writeContentList(w.raw(",\"content\":"), message, contentText, flags);
+            } else {
+                w.optField("content", contentText);
+            }
+        }
+        w.raw("}");
+        w.flush();
+        return new Fragment(flags, fingerprint, w.parts.toArray(), w.length);
+    }
+
+    // 写入contentList格式的内容：文本、函数调用结果和附件
+    private static void writeContentList(FragmentWriter w, ChatMessage message, String contentText, int flags) {
+        boolean first = true;
+        w.raw("[");
+        if(contentText != null) {
+            writeTextContent(w, contentText, first);
+            first = false;
+        }
+        for(ChatMessage.ToolCall toolCall : message.toolCalls) { // 处理函数调用
+            if(toolCall.content != null) {
+                writeTextContent(w, toolCall.content, first);
+                first = false;
+            }
+        }
+        for(ChatMessage.Attachment attachment : message.attachments) { // 处理附件
+            if(attachment.type == ChatMessage.Attachment.Type.IMAGE && (flags & FLAG_VISION) != 0) {
+                w.raw(first ? "{" : ",{").raw("\"type\":\"image_url\",\"image_url\":{\"url\":\"data:image/jpeg;base64,")
+                        .image(attachment.getBytes() == null ? new byte[0] : attachment.getBytes(), attachment.getKey())
+                        .raw("\"}}");
+                first = false;
+            } else if(attachment.type == ChatMessage.Attachment.Type.TEXT) {
+                writeTextContent(w, attachment.getContent(), first);
+                first = false;
+            }
+        }
+        w.raw("]");
+    }
+
+    private static void writeTextContent(FragmentWriter w, String text, boolean first) {
+        w.raw(first ? "{" : ",{").raw("\"type\":\"text\",\"text\":").string(text).raw("}");
+    }
+}
@@ -0,0 +1,423 @@
+package com.skythinker.gptassistant.api;
+
+import java.util.ArrayList;
+
+// 流式回复数据块解析器，仅提取choices[0].delta中的content、reasoning_content、tool_calls，choices[0].finish_reason以及usage
+// 直接扫描原始字符串，解析结果存放在可复用的缓冲区中，避免为每个数据块构建完整的JSON对象
+public class ChatStreamParser {
+
+    // 单个工具调用的增量数据
+    public static class ToolCallDelta {
+        private int index;
+        private final StringBuilder id = new StringBuilder();
+        private final StringBuilder name = new StringBuilder();
+        private final StringBuilder arguments = new StringBuilder();
+        private boolean hasId, hasName, hasArguments;
+
+        private void reset(int defaultIndex) {
+            index = defaultIndex;
+            hasId = hasName = hasArguments = false;
+        }
+
+        public int getIndex() { return index; }
+        public boolean hasId() { return hasId; }
+        public boolean hasName() { return hasName; }
+        public boolean hasArguments() { return hasArguments; }
+        public String getId() { return hasId ? id.toString() : null; }
+        public String getName() { return hasName ? name.toString() : null; }
+        public String getArguments() { return hasArguments ? arguments.toString() : null; }
+        public CharSequence getArgumentsChars() { return hasArguments ? arguments : null; }
+    }
+
+    // 数据格式错误时抛出，不记录调用栈以避免额外开销
+    private static class MalformedException extends RuntimeException {
+        MalformedException() { super(null, null, false, false); }
+    }
+    private static final MalformedException MALFORMED = new MalformedException();
+
+    private static final int CTX_ROOT = 0, CTX_CHOICE = 1, CTX_DELTA = 2, CTX_TOOL_CALL = 3, CTX_FUNCTION = 4, CTX_USAGE = 5;
+
+    private String s;
+    private int pos, len;
+    private int keyStart, keyEnd;
+    private boolean keyEscaped;
+    private final StringBuilder keyBuffer = new StringBuilder();
+
+    private final StringBuilder content = new StringBuilder();
+    private final StringBuilder reasoningContent = new StringBuilder();
+    private final StringBuilder finishReason = new StringBuilder();
+    private boolean hasDelta, hasContent, hasReasoningContent, hasFinishReason;
+    private final ArrayList<ToolCallDelta> toolCallPool = new ArrayList<>();
+    private int toolCallCount;
+    private ToolCallDelta currentToolCall;
+    private boolean hasUsage;
+    private long promptTokens, completionTokens, totalTokens;
+
+    // 解析一个数据块，格式错误时返回false
+    public boolean parse(String data) {
+        hasDelta = hasContent = hasReasoningContent = hasFinishReason = hasUsage = false;
+        toolCallCount = 0;
+        promptTokens = completionTokens = totalTokens = -1;
+        s = data;
+        pos = 0;
+        len = data.length();
+        try {
+            skipWhitespace();
+            expect('{');
+            parseObject(CTX_ROOT);
+            return true;
+        } catch (MalformedException | IndexOutOfBoundsException | NumberFormatException e) {
+            hasDelta = hasContent = hasReasoningContent = hasFinishReason = hasUsage = false;
+            toolCallCount = 0;
+            return false;
+        } finally {
+            s = null;
+        }
+    }
+
+    public boolean hasDelta() { return hasDelta; }
+    public boolean hasContent() { return hasContent; }
+    public String getContent() { return hasContent ? content.toString() : null; }
+    public CharSequence getContentChars() { return hasContent ? content : null; }
+    public boolean hasReasoningContent() { return hasReasoningContent; }
+    public String getReasoningContent() { return hasReasoningContent ? reasoningContent.toString() : null; }
+    public CharSequence getReasoningContentChars() { return hasReasoningContent ? reasoningContent : null; }
+    public boolean hasFinishReason() { return hasFinishReason; }
+    public String getFinishReason() { return hasFinishReason ? finishReason.toString() : null; }
+    public int getToolCallCount() { return toolCallCount; }
+    public ToolCallDelta getToolCall(int i) { return toolCallPool.get(i); }
+    public boolean hasUsage() { return hasUsage; }
+    public long getPromptTokens() { return promptTokens; }
+    public long getCompletionTokens() { return completionTokens; }
+    public long getTotalTokens() { return totalTokens; }
+
+    // 解析对象中的各个字段（左括号已被读取）
+    private void parseObject(int ctx) {
+        skipWhitespace();
+        if(peek() == '}') {
+            pos++;
+            return;
+        }
+        while(true) {
+            skipWhitespace();
+            readKey();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            parseField(ctx);
+            skipWhitespace();
+            char c = next();
+            if(c == '}') {
+                return;
+            } else if(c != ',') {
+                throw MALFORMED;
+            }
+        }
+    }
+
+    // 根据所处位置和键名处理字段值
+    private void parseField(int ctx) {
+        switch (ctx) {
+            case CTX_ROOT:
+                if(keyIs("choices")) {
+                    parseChoices();
+                    return;
+                } else if(keyIs("usage") && peek() == '{') {
+                    pos++;
+                    hasUsage = true;
+                    parseObject(CTX_USAGE);
+                    return;
+                }
+                break;
+            case CTX_CHOICE:
+                if(keyIs("delta") && peek() == '{') {
+                    pos++;
+                    hasDelta = true;
+                    parseObject(CTX_DELTA);
+                    return;
+                } else if(keyIs("finish_reason")) {
+                    hasFinishReason = readStringOrNull(finishReason);
+                    return;
+                }
+                break;
+            case CTX_DELTA:
+                if(keyIs("content")) {
+                    hasContent = readStringOrNull(content);
+                    return;
+                } else if(keyIs("reasoning_content")) {
+                    hasReasoningContent = readStringOrNull(reasoningContent);
+                    return;
+                } else if(keyIs("tool_calls") && peek() == '[') {
+                    pos++;
+                    parseToolCalls();
+                    return;
+                }
+                break;
+            case CTX_TOOL_CALL:
+                if(keyIs("index")) {
+                    long index = readLongOrNull();
+                    if(index >= 0)
+                        currentToolCall.index = (int) index;
+                    return;
+                } else if(keyIs("id")) {
+                    currentToolCall.hasId = readStringOrNull(currentToolCall.id);
+                    return;
+                } else if(keyIs("function") && peek() == '{') {
+                    pos++;
+                    parseObject(CTX_FUNCTION);
+                    return;
+                }
+                break;
+            case CTX_FUNCTION:
+                if(keyIs("name")) {
+                    currentToolCall.hasName = readStringOrNull(currentToolCall.name);
+                    return;
+                } else if(keyIs("arguments")) {
+                    currentToolCall.hasArguments = readStringOrNull(currentToolCall.arguments);
+                    return;
+                }
+                break;
+            case CTX_USAGE:
+                if(keyIs("prompt_tokens")) {
+                    promptTokens = readLongOrNull();
+                    return;
+                } else if(keyIs("completion_tokens")) {
+                    completionTokens = readLongOrNull();
+                    return;
+                } else if(keyIs("total_tokens")) {
+                    totalTokens = readLongOrNull();
+                    return;
+                }
+                break;
+        }
+        skipValue();
+    }
+
+    // 解析choices数组，只处理第一个元素
+    private void parseChoices() {
+        if(peek() != '[') {
+            skipValue();
+            return;
+        }
+        pos++;
+        skipWhitespace();
+        if(peek() == ']') {
+            pos++;
+            return;
+        }
+        boolean first = true;
+        while(true) {
+            skipWhitespace();
+            if(first && peek() == '{') {
+                pos++;
+                parseObject(CTX_CHOICE);
+            } else {
+                skipValue();
+            }
+            first = false;
+            skipWhitespace();
+            char c = next();
+            if(c == ']') {
+                return;
+            } else if(c != ',') {
+                throw MALFORMED;
+            }
+        }
+    }
+
+    // 解析tool_calls数组中的所有元素（左括号已被读取）
+    private void parseToolCalls() {
+        skipWhitespace();
+        if(peek() == ']') {
+            pos++;
+            return;
+        }
+        while(true) {
+            skipWhitespace();
+            if(peek() == '{') {
+                pos++;
+                if(toolCallCount == toolCallPool.size()) {
+                    toolCallPool.add(new ToolCallDelta());
+                }
+                currentToolCall = toolCallPool.get(toolCallCount);
+                currentToolCall.reset(toolCallCount);
+                toolCallCount++;
+                parseObject(CTX_TOOL_CALL);
+            } else {
+                skipValue();
+            }
+            skipWhitespace();
+            char c = next();
+            if(c == ']') {
+                return;
+            } else if(c != ',') {
+                throw MALFORMED;
+            }
+        }
+    }
+
+    // 读取键名，仅记录其位置，含转义字符时才进行解码
+    private void readKey() {
+        expect('"');
+        keyStart = pos;
+        keyEscaped = false;
+        while(true) {
+            char c = s.charAt(pos);
+            if(c == '"') {
+                break;
+            } else if(c == '\\') {
+                keyEscaped = true;
+                pos += 2;
+            } else {
+                pos++;
+            }
+        }
+        keyEnd = pos;
+        pos++;
+        if(keyEscaped) {
+            keyBuffer.setLength(0);
+            pos = keyStart - 1;
+            readString(keyBuffer);
+        }
+    }
+
+    private boolean keyIs(String key) {
+        if(keyEscaped) {
+            return key.contentEquals(keyBuffer);
+        }
+        return keyEnd - keyStart == key.length() && s.regionMatches(keyStart, key, 0, key.length());
+    }
+
+    // 读取字符串到缓冲区，值为null或其他类型时返回false
+    private boolean readStringOrNull(StringBuilder out) {
+        if(peek() == '"') {
+            out.setLength(0);
+            readString(out);
+            return true;
+        }
+        skipValue();
+        return false;
+    }
+
+    private void readString(StringBuilder out) {
+        expect('"');
+        int start = pos;
+        while(true) {
+            char c = s.charAt(pos);
+            if(c == '"') {
+                out.append(s, start, pos);
+                pos++;
+                return;
+            } else if(c == '\\') {
+                out.append(s, start, pos);
+                pos++;
+                char e = s.charAt(pos++);
+                switch (e) {
+                    case '"': out.append('"'); break;
+                    case '\\': out.append('\\'); break;
+                    case '/': out.append('/'); break;
+                    case 'b': out.append('\b'); break;
+                    case 'f': out.append('\f'); break;
+                    case 'n': out.append('\n'); break;
+                    case 'r': out.append('\r'); break;
+                    case 't': out.append('\t'); break;
+                    case 'u':
+                        out.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                        pos += 4;
+                        break;
+                    default: throw MALFORMED;
+                }
+                start = pos;
+            } else {
+                pos++;
+            }
+        }
+    }
+
+    // 读取整数，值为null或其他类型时返回-1
+    private long readLongOrNull() {
+        char c = peek();
+        if(c < '0' || c > '9') {
+            skipValue();
+            return -1;
+        }
+        long value = 0;
+        while(pos < len && (c = s.charAt(pos)) >= '0' && c <= '9') {
+            value = value * 10 + (c - '0');
+            pos++;
+        }
+        if(pos < len && (c == '.' || c == 'e' || c == 'E')) { // 非整数，跳过剩余部分
+            skipValue();
+        }
+        return value;
+    }
+
+    // 跳过任意类型的值
+    private void skipValue() {
+        char c = peek();
+        if(c == '"') {
+            skipString();
+        } else if(c == '{' || c == '[') {
+            int depth = 0;
+            while(true) {
+                c = s.charAt(pos);
+                if(c == '"') {
+                    skipString();
+                    continue;
+                }
+                pos++;
+                if(c == '{' || c == '[') {
+                    depth++;
+                } else if(c == '}' || c == ']') {
+                    if(--depth == 0)
+                        return;
+                }
+            }
+        } else {
+            while(pos < len) {
+                c = s.charAt(pos);
+                if(c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t' || c == '\r' || c == '\n')
+                    return;
+                pos++;
+            }
+        }
+    }
+
+    private void skipString() {
+        pos++;
+        while(true) {
+            char c = s.charAt(pos);
+            if(c == '"') {
+                pos++;
+                return;
+            }
+            pos += (c == '\\') ? 2 : 1;
+        }
+    }
+
+    private void skipWhitespace() {
+        while(pos < len) {
+            char c = s.charAt(pos);
+            if(c != ' ' && c != '\t' && c != '\r' && c != '\n')
+                return;
+            pos++;
+        }
+    }
+
+    private char peek() {
+        if(pos >= len)
+            throw MALFORMED;
+        return s.charAt(pos);
+    }
+
+    private char next() {
+        if(pos >= len)
+            throw MALFORMED;
+        return s.charAt(pos++);
+    }
+
+    private void expect(char c) {
+        if(next() != c)
+            throw MALFORMED;
+    }
+}
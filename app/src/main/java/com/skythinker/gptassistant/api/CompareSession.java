@@ -0,0 +1,126 @@
+package com.skythinker.gptassistant.api;
+
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.data.ChatManager.MessageList;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// 对比模式：将同一个消息列表同时发送给多个模型，每个模型的回复写入各自的StreamBuffer
+// 各模型按自己的token预算裁剪上下文；不提供函数调用，各模型的调用过程无法合并到同一条对话中
+public class CompareSession {
+    // 回复结束回调，在网络线程中调用
+    public interface Listener {
+        void onLaneFinished(Lane lane);
+    }
+
+    // 一个模型的回复
+    public static class Lane {
+        public final String model;
+        public final StreamBuffer stream = new StreamBuffer();
+        volatile ChatRequest request = null;
+        private volatile boolean finished = false, completed = false;
+        private volatile String error = null;
+
+        Lane(String model) {
+            this.model = model;
+        }
+
+        public boolean isFinished() { return finished; }
+
+        // 是否正常结束（未出错、未取消）
+        public boolean isCompleted() { return completed; }
+
+        // 出错信息，未出错时为null
+        public String getError() { return error; }
+
+        // 性能数据，请求尚未发出时为null
+        public ChatMetrics getMetrics() {
+            ChatRequest chatRequest = request;
+            return chatRequest == null ? null : chatRequest.getMetrics();
+        }
+    }
+
+    private final ChatApiClient client;
+    private final List<Lane> lanes = new ArrayList<>();
+    private Listener listener = null;
+
+    // client仅供本对比使用，发送时会切换其模型
+    public CompareSession(ChatApiClient client, List<String> models) {
+        this.client = client;
+        for(String model : models) {
+            lanes.add(new Lane(model));
+        }
+    }
+
+    public CompareSession setListener(Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    public List<Lane> getLanes() { return Collections.unmodifiableList(lanes); }
+
+    // 向所有模型发送消息列表，maxNormalChats为保留的普通消息数上限
+    public void start(List<ChatMessage> messages, int maxNormalChats) {
+        for(Lane lane : lanes) {
+            client.setModel(lane.model);
+            MessageList packed = ContextPacker.pack(messages, lane.model, maxNormalChats, 0);
+            ChatRequest chatRequest = client.sendPromptList(packed, new ChatApiClient.OnReceiveListener() {
+                @Override
+                public void onError(String message) {
+                    lane.error = message;
+                    onLaneEnd(lane, false);
+                }
+
+                @Override
+                public void onFunctionCall(ArrayList<ChatApiClient.CallingFunction> functions) { // 未提供函数，按已收到的内容结束
+                    onLaneEnd(lane, true);
+                }
+
+                @Override
+                public void onFinished(boolean completed) {
+                    onLaneEnd(lane, completed);
+                }
+            }, lane.stream);
+            lane.request = chatRequest; // 配置错误时请求已在发送中结束
+        }
+    }
+
+    private void onLaneEnd(Lane lane, boolean completed) {
+        synchronized (lane) {
+            if(lane.finished) {
+                return;
+            }
+            lane.completed = completed;
+            lane.finished = true;
+        }
+        if(listener != null) {
+            listener.onLaneFinished(lane);
+        }
+    }
+
+    // 是否有模型仍在回复
+    public boolean isActive() {
+        for(Lane lane : lanes) {
+            if(!lane.finished) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 取消除keep以外所有模型的回复，keep为null时全部取消
+    public void cancelOthers(Lane keep) {
+        for(Lane lane : lanes) {
+            ChatRequest chatRequest = lane.request;
+            if(lane != keep && chatRequest != null) {
+                chatRequest.cancel();
+            }
+        }
+    }
+
+    public void cancel() {
+        cancelOthers(null);
+    }
+}
@@ -0,0 +1,104 @@
+package com.skythinker.gptassistant.api;
+
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage.ChatRole;
+import com.skythinker.gptassistant.data.ChatManager.MessageList;
+
+import java.util.List;
+
+// 按token预算裁剪历史消息：系统消息和最后一个用户消息及之后的消息总是保留，
+// 更早的消息从新到旧装入，直到超出预算或普通消息数超过上限
+// 函数调用消息与其结果消息作为整体保留或删除，不完整的调用不会发送
+public class ContextPacker {
+    private static final int MAX_REPLY_RESERVE = 8192; // 为回复预留的token数上限
+    private static final double ESTIMATE_MARGIN = 0.75; // 计数不精确（词表未载入或非OpenAI模型）时只使用预算的这一比例，估算值偏小时也不超出上下文窗口
+
+    // 获取模型可用于请求消息的token预算，extraTokens为消息以外的开销（如函数列表）
+    public static int getBudget(String model, int extraTokens) {
+        int window = TokenCounter.getContextWindow(model);
+        int budget = window - Math.min(window / 4, MAX_REPLY_RESERVE) - extraTokens;
+        return TokenCounter.isExact(model) ? budget : (int) (budget * ESTIMATE_MARGIN);
+    }
+
+    // 按模型的上下文窗口裁剪消息列表
+    public static MessageList pack(List<ChatMessage> messages, String model, int maxNormalChats, int extraTokens) {
+        return packWithBudget(messages, model, maxNormalChats, getBudget(model, extraTokens));
+    }
+
+    // 按指定的token预算裁剪消息列表，返回保留的消息（保持原有顺序）
+    public static MessageList packWithBudget(List<ChatMessage> messages, String model, int maxNormalChats, int budget) {
+        int size = messages.size();
+        boolean[] keep = new boolean[size];
+        int lastUser = size;
+        for(int i = size - 1; i >= 0; i--) {
+            if(messages.get(i).role == ChatRole.USER) {
+                lastUser = i;
+                break;
+            }
+        }
+        if(lastUser == size) { // 没有用户消息，不裁剪
+            lastUser = 0;
+        }
+
+        int used = TokenCounter.TOKENS_PER_REPLY;
+        for(int i = 0; i < size; i++) {
+            if(i >= lastUser || messages.get(i).role == ChatRole.SYSTEM) {
+                keep[i] = true;
+                used += TokenCounter.countMessage(messages.get(i), model);
+            }
+        }
+
+        int normalCount = 0;
+        int end = lastUser - 1;
+        while(end >= 0) {
+            ChatMessage message = messages.get(end);
+            if(message.role == ChatRole.SYSTEM) {
+                end--;
+                continue;
+            }
+            int start = end;
+            boolean complete = true; // 函数调用与结果是否成对
+            if(message.role == ChatRole.FUNCTION) { // 向前找到发起调用的消息
+                while(start > 0 && messages.get(start - 1).role == ChatRole.FUNCTION) {
+                    start--;
+                }
+                ChatMessage caller = start > 0 ? messages.get(start - 1) : null;
+                if(caller != null && caller.role == ChatRole.ASSISTANT && caller.toolCalls.size() > 0) {
+                    start--;
+                } else {
+                    complete = false;
+                }
+            } else if(message.role == ChatRole.ASSISTANT && message.toolCalls.size() > 0) { // 调用没有对应的结果
+                complete = false;
+            }
+            if(complete) {
+                if(message.role == ChatRole.USER || (message.role == ChatRole.ASSISTANT && message.toolCalls.size() == 0)) {
+                    normalCount++;
+                }
+                if(normalCount > maxNormalChats) {
+                    break;
+                }
+                int tokens = 0;
+                for(int i = start; i <= end; i++) {
+                    tokens += TokenCounter.countMessage(messages.get(i), model);
+                }
+                if(used + tokens > budget) { // 保持历史连续，不跳过较大的消息去装更早的消息
+                    break;
+                }
+                used += tokens;
+                for(int i = start; i <= end; i++) {
+                    keep[i] = true;
+                }
+            }
+            end = start - 1;
+        }
+
+        MessageList packed = new MessageList();
+        for(int i = 0; i < size; i++) {
+            if(keep[i]) {
+                packed.add(messages.get(i));
+            }
+        }
+        return packed;
+    }
+}
@@ -0,0 +1,189 @@
+package com.skythinker.gptassistant.api;
+
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage.ChatRole;
+import com.skythinker.gptassistant.data.ChatManager.MessageList;
+import com.skythinker.gptassistant.data.ChatManager.Summary;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// 滚动摘要：对话历史超过阈值时，在后台用较便宜的模型将较早的轮次压缩为摘要，之后的请求发送摘要和最近的轮次
+// 摘要只增量扩展：新移出窗口的轮次与已有摘要合并为新摘要，已摘要的消息不再重复发送给摘要模型
+public class ContextSummarizer {
+    private static final int MAX_PART_CHARS = 2000; // 函数结果、附件等长内容在摘要请求中截断的长度
+    private static final String SYSTEM_PROMPT = "You maintain a running summary of a conversation between a user and an assistant. " +
+            "Merge the previous summary and the new messages into one updated summary. " +
+            "Keep facts, decisions, names, numbers, code identifiers, user preferences and open questions; drop greetings and filler. " +
+            "Write in the language of the conversation and reply with the summary only.";
+    private static final String SUMMARY_PREFIX = "Summary of the earlier part of this conversation:\n";
+
+    // 摘要完成回调，在网络线程中调用
+    public interface Callback {
+        void onSummary(Summary summary);
+    }
+
+    private final ChatApiClient client;
+    private boolean running = false;
+
+    // client仅用于摘要请求，发送时会切换其模型
+    public ContextSummarizer(ChatApiClient client) {
+        this.client = client;
+        client.setPriority(RateLimiter.Priority.BACKGROUND); // 不挤占对话请求的额度
+    }
+
+    // 计算摘要应覆盖的消息数：历史（非系统消息）的token数或普通消息数超过阈值时，最近的轮次只保留约一半，
+    // 返回保留部分开头的用户消息位置；不超过阈值时返回0
+    public static int findSplit(List<ChatMessage> messages, String model, int thresholdTokens, int maxNormalChats) {
+        int lastUser = -1;
+        int totalTokens = 0, totalNormal = 0;
+        for(int i = 0; i < messages.size(); i++) {
+            ChatMessage message = messages.get(i);
+            if(message.role == ChatRole.SYSTEM) {
+                continue;
+            }
+            if(message.role == ChatRole.USER) {
+                lastUser = i;
+            }
+            totalTokens += TokenCounter.countMessage(message, model);
+            if(isNormal(message)) {
+                totalNormal++;
+            }
+        }
+        if(lastUser <= 0 || (totalTokens <= thresholdTokens && totalNormal <= maxNormalChats)) {
+            return 0;
+        }
+
+        int split = lastUser; // 最新一轮总是保留
+        int keptTokens = 0, keptNormal = 0;
+        for(int i = messages.size() - 1; i >= 0; i--) {
+            ChatMessage message = messages.get(i);
+            if(message.role == ChatRole.SYSTEM) {
+                continue;
+            }
+            keptTokens += TokenCounter.countMessage(message, model);
+            if(isNormal(message)) {
+                keptNormal++;
+            }
+            if(keptTokens > thresholdTokens / 2 || keptNormal > maxNormalChats / 2) {
+                break;
+            }
+            if(message.role == ChatRole.USER && i < split) {
+                split = i;
+            }
+        }
+        return split;
+    }
+
+    private static boolean isNormal(ChatMessage message) {
+        return message.role == ChatRole.USER || (message.role == ChatRole.ASSISTANT && message.toolCalls.size() == 0);
+    }
+
+    // 需要时在后台扩展摘要，完成后回调新的摘要；不需要扩展或已有摘要请求进行中时返回false
+    // current为当前的摘要（可为null），与消息列表不一致时重新从头摘要
+    public boolean summarize(List<ChatMessage> messages, Summary current, String chatModel, String summaryModel,
+                             int thresholdTokens, int maxNormalChats, Callback callback) {
+        if(maxNormalChats <= 0) { // 不发送历史消息，无需摘要
+            return false;
+        }
+        thresholdTokens = Math.min(thresholdTokens, ContextPacker.getBudget(chatModel, 0) / 2);
+        int split = findSplit(messages, chatModel, thresholdTokens, maxNormalChats);
+        Summary base = current != null && current.matches(messages) ? current : null;
+        int from = base == null ? 0 : base.messageCount;
+        if(split <= from) {
+            return false;
+        }
+        synchronized (this) {
+            if(running) {
+                return false;
+            }
+            running = true;
+        }
+
+        List<ChatMessage> snapshot = new ArrayList<>(messages.subList(0, split)); // 回调前消息列表可能被修改
+        StringBuilder reply = new StringBuilder();
+        client.setModel(summaryModel);
+        client.sendPromptList(buildRequest(base == null ? null : base.text, snapshot, from), new ChatApiClient.OnReceiveListener() {
+            @Override
+            public void onMsgReceive(String message) { reply.append(message); }
+
+            @Override
+            public void onError(String message) { finish(null); }
+
+            @Override
+            public void onFunctionCall(ArrayList<ChatApiClient.CallingFunction> functions) { finish(null); }
+
+            @Override
+            public void onFinished(boolean completed) {
+                String text = reply.toString().trim();
+                finish(completed && !text.isEmpty() ? new Summary(text, snapshot, split) : null);
+            }
+
+            private void finish(Summary summary) {
+                synchronized (ContextSummarizer.this) {
+                    running = false;
+                }
+                if(summary != null) {
+                    callback.onSummary(summary);
+                }
+            }
+        });
+        return true;
+    }
+
+    // 构建摘要请求：已有摘要加上messages中从from开始的非系统消息
+    static MessageList buildRequest(String previousSummary, List<ChatMessage> messages, int from) {
+        StringBuilder transcript = new StringBuilder();
+        transcript.append("Previous summary:\n").append(previousSummary == null ? "(none)" : previousSummary).append("\n\nNew messages:\n");
+        for(int i = from; i < messages.size(); i++) {
+            ChatMessage message = messages.get(i);
+            if(message.role == ChatRole.USER) {
+                transcript.append("[User] ").append(truncate(message.contentText)).append("\n");
+                for(ChatMessage.Attachment attachment : message.attachments) {
+                    if(attachment.type == ChatMessage.Attachment.Type.TEXT) {
+                        transcript.append("[Attachment ").append(attachment.name).append("] ").append(truncate(attachment.getContent())).append("\n");
+                    }
+                }
+            } else if(message.role == ChatRole.ASSISTANT) {
+                if(message.contentText != null && !message.contentText.isEmpty()) {
+                    transcript.append("[Assistant] ").append(truncate(message.contentText)).append("\n");
+                }
+                for(ChatMessage.ToolCall toolCall : message.toolCalls) {
+                    transcript.append("[Assistant calls ").append(toolCall.functionName).append("] ").append(truncate(toolCall.arguments)).append("\n");
+                }
+            } else if(message.role == ChatRole.FUNCTION) {
+                for(ChatMessage.ToolCall toolCall : message.toolCalls) {
+                    transcript.append("[Result of ").append(toolCall.functionName).append("] ").append(truncate(toolCall.content)).append("\n");
+                }
+            }
+        }
+        MessageList request = new MessageList();
+        request.add(new ChatMessage(ChatRole.SYSTEM).setText(SYSTEM_PROMPT));
+        request.add(new ChatMessage(ChatRole.USER).setText(transcript.toString()));
+        return request;
+    }
+
+    private static String truncate(String text) {
+        if(text == null) {
+            return "";
+        }
+        return text.length() <= MAX_PART_CHARS ? text : text.substring(0, MAX_PART_CHARS) + "...";
+    }
+
+    // 以摘要代替被覆盖的消息：保留其中的系统消息，在其后插入摘要；摘要与消息列表不一致时原样返回
+    public static MessageList apply(List<ChatMessage> messages, Summary summary) {
+        MessageList result = new MessageList();
+        if(summary == null || !summary.matches(messages)) {
+            result.addAll(messages);
+            return result;
+        }
+        for(int i = 0; i < summary.messageCount; i++) {
+            if(messages.get(i).role == ChatRole.SYSTEM) {
+                result.add(messages.get(i));
+            }
+        }
+        result.add(new ChatMessage(ChatRole.SYSTEM).setText(SUMMARY_PREFIX + summary.text));
+        result.addAll(messages.subList(summary.messageCount, messages.size()));
+        return result;
+    }
+}
@@ -0,0 +1,207 @@
+package com.skythinker.gptassistant.api;
+
+import com.skythinker.gptassistant.data.ApiEndpoint;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import okhttp3.Response;
+import okhttp3.internal.http2.StreamResetException;
+
+// 多接入点路由，根据首字延迟（TTFT）和错误率的滑动平均选择接入点
+// 首个数据到达前的连接错误、5xx、429可切换到下一个接入点重试，连续出错的接入点暂时降级
+// 同时按模型统计首字延迟的分布，用于确定对冲请求的等待阈值
+public class EndpointRouter {
+    private static final double ALPHA = 0.3; // 滑动平均的权重
+    private static final double ERROR_PENALTY = 4; // 错误率对评分的放大系数
+    private static final long BASE_COOLDOWN_MS = 5000, MAX_COOLDOWN_MS = 120000; // 出错后的降级时长，连续出错时翻倍
+    private static final int TTFT_WINDOW = 50; // 每个模型保留的首字延迟样本数
+    private static final int MIN_HEDGE_SAMPLES = 10; // 样本不足时使用默认对冲阈值
+    private static final double HEDGE_PERCENTILE = 0.9; // 超过该分位数的首字延迟时发起对冲
+
+    // 接入点的统计数据
+    public static class EndpointStats {
+        public double ttftMs = -1; // 首字延迟的滑动平均，尚无样本时为-1
+        public double errorRate = 0; // 错误率的滑动平均
+        public int consecutiveFailures = 0;
+        public long cooldownUntil = 0; // 降级结束时间（System.currentTimeMillis）
+        public long successCount = 0, failureCount = 0;
+    }
+
+    // 对冲请求的统计数据
+    public static class HedgeStats {
+        public long requestCount = 0; // 发出的请求数
+        public long hedgedCount = 0; // 发起了对冲的请求数
+        public long hedgeWinCount = 0; // 对冲连接先返回数据的次数
+        public long primaryWinCount = 0; // 发起对冲后原连接仍先返回数据的次数
+
+        // 对冲率：发起对冲的请求所占比例
+        public double getHedgeRate() {
+            return requestCount == 0 ? 0 : (double) hedgedCount / requestCount;
+        }
+
+        // 对冲胜率：发起对冲后由对冲连接胜出的比例
+        public double getHedgeWinRate() {
+            long decided = hedgeWinCount + primaryWinCount;
+            return decided == 0 ? 0 : (double) hedgeWinCount / decided;
+        }
+    }
+
+    private final ArrayList<ApiEndpoint> endpoints = new ArrayList<>();
+    private final HashMap<String, EndpointStats> statsMap = new HashMap<>(); // 地址+密钥 -> 统计数据，更换接入点列表时保留
+    private final HashMap<String, long[]> ttftSamples = new HashMap<>(); // 模型 -> 最近的首字延迟样本（环形缓冲）
+    private final HashMap<String, Integer> ttftSampleCount = new HashMap<>(); // 模型 -> 累计样本数
+    private final HedgeStats hedgeStats = new HedgeStats();
+    private long defaultHedgeDelayMs = 4000, minHedgeDelayMs = 800, maxHedgeDelayMs = 20000; // 对冲阈值的默认值和上下限
+
+    private static String keyOf(ApiEndpoint endpoint) {
+        return endpoint.getHost() + "\n" + endpoint.getKey();
+    }
+
+    // 设置接入点列表，按优先级排列（统计数据相同时靠前的优先）
+    public synchronized void setEndpoints(List<ApiEndpoint> endpoints) {
+        this.endpoints.clear();
+        for(ApiEndpoint endpoint : endpoints) {
+            if(endpoint.isValid()) {
+                this.endpoints.add(endpoint);
+            }
+        }
+    }
+
+    public synchronized List<ApiEndpoint> getEndpoints() {
+        return new ArrayList<>(endpoints);
+    }
+
+    public synchronized EndpointStats getStats(ApiEndpoint endpoint) {
+        EndpointStats stats = statsMap.get(keyOf(endpoint));
+        if(stats == null) {
+            stats = new EndpointStats();
+            statsMap.put(keyOf(endpoint), stats);
+        }
+        return stats;
+    }
+
+    // 返回可用于该模型的接入点，按尝试顺序排列；没有接入点声明该模型时返回全部接入点
+    public synchronized List<ApiEndpoint> route(String model) {
+        ArrayList<ApiEndpoint> candidates = new ArrayList<>();
+        for(ApiEndpoint endpoint : endpoints) {
+            if(endpoint.supportsModel(model)) {
+                candidates.add(endpoint);
+            }
+        }
+        if(candidates.isEmpty()) {
+            candidates.addAll(endpoints);
+        }
+        long now = System.currentTimeMillis();
+        ArrayList<ApiEndpoint> healthy = new ArrayList<>(), cooling = new ArrayList<>();
+        for(ApiEndpoint endpoint : candidates) {
+            (getStats(endpoint).cooldownUntil > now ? cooling : healthy).add(endpoint);
+        }
+        // 排序是稳定的，评分相同时保持原有顺序；没有延迟样本的接入点评分为0，会被优先尝试一次
+        Collections.sort(healthy, (a, b) -> Double.compare(scoreOf(getStats(a)), scoreOf(getStats(b))));
+        Collections.sort(cooling, (a, b) -> Long.compare(getStats(a).cooldownUntil, getStats(b).cooldownUntil));
+        healthy.addAll(cooling); // 降级中的接入点仍作为最后的备选
+        return healthy;
+    }
+
+    private static double scoreOf(EndpointStats stats) {
+        return stats.ttftMs < 0 ? 0 : stats.ttftMs * (1 + ERROR_PENALTY * stats.errorRate);
+    }
+
+    // 记录一次成功的请求及其首字延迟
+    public synchronized void recordSuccess(ApiEndpoint endpoint, String model, long ttftMs) {
+        recordLatency(endpoint, ttftMs);
+        addTtftSample(model, ttftMs);
+        EndpointStats stats = getStats(endpoint);
+        stats.errorRate = (1 - ALPHA) * stats.errorRate;
+        stats.consecutiveFailures = 0;
+        stats.cooldownUntil = 0;
+        stats.successCount++;
+    }
+
+    // 仅更新接入点的首字延迟（如对冲中落选的连接已等待的时间）
+    public synchronized void recordLatency(ApiEndpoint endpoint, long ttftMs) {
+        EndpointStats stats = getStats(endpoint);
+        stats.ttftMs = stats.ttftMs < 0 ? ttftMs : ALPHA * ttftMs + (1 - ALPHA) * stats.ttftMs;
+    }
+
+    // 记录一次失败的请求，连续失败时延长降级时间
+    public synchronized void recordFailure(ApiEndpoint endpoint) {
+        EndpointStats stats = getStats(endpoint);
+        stats.errorRate = ALPHA + (1 - ALPHA) * stats.errorRate;
+        stats.consecutiveFailures++;
+        long cooldown = BASE_COOLDOWN_MS << Math.min(stats.consecutiveFailures - 1, 10);
+        stats.cooldownUntil = System.currentTimeMillis() + Math.min(cooldown, MAX_COOLDOWN_MS);
+        stats.failureCount++;
+    }
+
+    private void addTtftSample(String model, long ttftMs) {
+        long[] samples = ttftSamples.get(model);
+        if(samples == null) {
+            samples = new long[TTFT_WINDOW];
+            ttftSamples.put(model, samples);
+        }
+        int count = ttftSampleCount.containsKey(model) ? ttftSampleCount.get(model) : 0;
+        samples[count % TTFT_WINDOW] = ttftMs;
+        ttftSampleCount.put(model, count + 1);
+    }
+
+    // 获取该模型的对冲等待阈值：最近首字延迟的90分位数，样本不足时使用默认值
+    public synchronized long getHedgeDelay(String model) {
+        int count = ttftSampleCount.containsKey(model) ? ttftSampleCount.get(model) : 0;
+        if(count < MIN_HEDGE_SAMPLES) {
+            return defaultHedgeDelayMs;
+        }
+        long[] sorted = Arrays.copyOf(ttftSamples.get(model), Math.min(count, TTFT_WINDOW));
+        Arrays.sort(sorted);
+        long percentile = sorted[(int) Math.ceil(HEDGE_PERCENTILE * sorted.length) - 1];
+        return Math.max(minHedgeDelayMs, Math.min(maxHedgeDelayMs, percentile));
+    }
+
+    // 设置对冲阈值的默认值（样本不足时使用）和上下限
+    public synchronized void setHedgeDelayRange(long defaultMs, long minMs, long maxMs) {
+        defaultHedgeDelayMs = defaultMs;
+        minHedgeDelayMs = minMs;
+        maxHedgeDelayMs = maxMs;
+    }
+
+    public synchronized void recordRequest() {
+        hedgeStats.requestCount++;
+    }
+
+    public synchronized void recordHedge() {
+        hedgeStats.hedgedCount++;
+    }
+
+    // 记录发起对冲后哪个连接先返回数据
+    public synchronized void recordHedgeResult(boolean hedgeWon) {
+        if(hedgeWon) {
+            hedgeStats.hedgeWinCount++;
+        } else {
+            hedgeStats.primaryWinCount++;
+        }
+    }
+
+    // 获取对冲统计数据的副本
+    public synchronized HedgeStats getHedgeStats() {
+        HedgeStats copy = new HedgeStats();
+        copy.requestCount = hedgeStats.requestCount;
+        copy.hedgedCount = hedgeStats.hedgedCount;
+        copy.hedgeWinCount = hedgeStats.hedgeWinCount;
+        copy.primaryWinCount = hedgeStats.primaryWinCount;
+        return copy;
+    }
+
+    // 判断首个数据到达前的失败能否换一个接入点重试：连接错误、5xx或429
+    public static boolean isRetryable(Throwable throwable, Response response) {
+        if(throwable != null) {
+            return throwable instanceof IOException && !(throwable instanceof StreamResetException)
+                    && !"Canceled".equals(throwable.getMessage());
+        }
+        return response != null && (response.code() >= 500 || response.code() == 429);
+    }
+}
@@ -0,0 +1,103 @@
+package com.skythinker.gptassistant.api;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.ConnectionPool;
+import okhttp3.ConnectionSpec;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+// 全局共享的HTTP引擎，所有对外请求共用连接池、线程池和TLS会话缓存
+// 各用途的客户端均由同一个基础客户端派生（newBuilder），仅超时配置不同
+public class HttpEngine {
+    // 请求用途，对应不同的超时配置
+    public enum Profile {
+        CHAT(30, 30, 30),   // 流式对话，读超时为两个数据块之间的最长间隔
+        UPLOAD(30, 60, 60), // 上传音频等大文件
+        FETCH(10, 15, 15);  // 获取模板、更新信息等小请求
+
+        final int connectTimeout, readTimeout, writeTimeout; // 单位：秒
+
+        Profile(int connectTimeout, int readTimeout, int writeTimeout) {
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+            this.writeTimeout = writeTimeout;
+        }
+    }
+
+    private static OkHttpClient baseClient = null;
+    private static ExecutorService executor = null;
+    private static ScheduledExecutorService scheduler = null;
+    private static final OkHttpClient[] sharedClients = new OkHttpClient[Profile.values().length];
+
+    // 获取基础客户端，首次调用时创建
+    private static synchronized OkHttpClient getBaseClient() {
+        if(baseClient == null) {
+            AtomicInteger threadCount = new AtomicInteger(0);
+            executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "HttpEngine-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            baseClient = new OkHttpClient.Builder()
+                    .connectionPool(new ConnectionPool(8, 5, TimeUnit.MINUTES))
+                    .dispatcher(new Dispatcher(executor))
+                    .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)) // 支持HTTP/2时同一主机的请求复用一条连接
+                    .connectionSpecs(Arrays.asList(ConnectionSpec.CLEARTEXT, ConnectionSpec.COMPATIBLE_TLS))
+                    .build(); // 派生客户端会沿用此处创建的SSLSocketFactory，从而共享TLS会话缓存
+        }
+        return baseClient;
+    }
+
+    // 获取指定用途的共享客户端，共用同一个Dispatcher
+    public static synchronized OkHttpClient getClient(Profile profile) {
+        if(sharedClients[profile.ordinal()] == null) {
+            sharedClients[profile.ordinal()] = applyProfile(getBaseClient().newBuilder(), profile).build();
+        }
+        return sharedClients[profile.ordinal()];
+    }
+
+    // 创建指定用途的客户端，使用独立的Dispatcher（共用线程池），便于单独取消该客户端的请求
+    public static OkHttpClient newClient(Profile profile) {
+        OkHttpClient base = getBaseClient();
+        return applyProfile(base.newBuilder(), profile)
+                .dispatcher(new Dispatcher(executor))
+                .build();
+    }
+
+    // 在共享线程池中执行一个任务
+    public static void execute(Runnable task) {
+        getBaseClient();
+        executor.execute(task);
+    }
+
+    // 延迟执行一个任务（如对冲请求），任务应尽快返回
+    public static synchronized ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+        if(scheduler == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "HttpEngine-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.setRemoveOnCancelPolicy(true); // 取消的任务立即移出队列
+            scheduler = executor;
+        }
+        return scheduler.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static OkHttpClient.Builder applyProfile(OkHttpClient.Builder builder, Profile profile) {
+        return builder
+                .connectTimeout(profile.connectTimeout, TimeUnit.SECONDS)
+                .readTimeout(profile.readTimeout, TimeUnit.SECONDS)
+                .writeTimeout(profile.writeTimeout, TimeUnit.SECONDS);
+    }
+}
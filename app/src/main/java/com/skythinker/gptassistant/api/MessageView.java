@@ -0,0 +1,100 @@
+package com.skythinker.gptassistant.api;
+
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage.ChatRole;
+
+import java.util.AbstractList;
+import java.util.BitSet;
+import java.util.List;
+
+// 消息列表的只读视图：发送前的裁剪规则以屏蔽标记表示，不复制底层消息
+// 读取被屏蔽的函数结果消息时返回清空了结果内容的副本，副本缓存在原消息的maskCache中，
+// 之后的请求直接复用该副本及其编码和token计数缓存，每轮请求不再重新分配整个历史
+public class MessageView extends AbstractList<ChatMessage> {
+    private final List<ChatMessage> base;
+    private final BitSet masked = new BitSet();
+
+    public MessageView(List<ChatMessage> base) {
+        this.base = base;
+    }
+
+    @Override
+    public ChatMessage get(int index) {
+        ChatMessage message = base.get(index);
+        return masked.get(index) ? maskedCopyOf(message) : message;
+    }
+
+    @Override
+    public int size() { return base.size(); }
+
+    // 屏蔽一条函数结果消息的结果内容
+    public MessageView mask(int index) {
+        if(base.get(index).role == ChatRole.FUNCTION) {
+            masked.set(index);
+        }
+        return this;
+    }
+
+    public boolean isMasked(int index) { return masked.get(index); }
+
+    // 屏蔽最后一个用户消息之前该函数的所有结果（如网页内容），只保留本轮提问获取的结果
+    public MessageView maskResultsBeforeLastUser(String functionName) {
+        boolean foundLastUserMessage = false;
+        for(int i = base.size() - 1; i >= 0; i--) {
+            ChatMessage message = base.get(i);
+            if(message.role == ChatRole.USER) {
+                foundLastUserMessage = true;
+            }
+            if(foundLastUserMessage && isResultOf(message, functionName)) {
+                masked.set(i);
+            }
+        }
+        return this;
+    }
+
+    // 只保留最后keepCount条属于functionNames的函数结果，更早的全部屏蔽（如手机屏幕信息）
+    public MessageView keepLatestResults(int keepCount, String... functionNames) {
+        int found = 0;
+        for(int i = base.size() - 1; i >= 0; i--) {
+            ChatMessage message = base.get(i);
+            for(String functionName : functionNames) {
+                if(isResultOf(message, functionName)) {
+                    if(++found > keepCount) {
+                        masked.set(i);
+                    }
+                    break;
+                }
+            }
+        }
+        return this;
+    }
+
+    private static boolean isResultOf(ChatMessage message, String functionName) {
+        return message.role == ChatRole.FUNCTION && message.toolCalls.size() > 0
+                && functionName.equals(message.toolCalls.get(0).functionName);
+    }
+
+    // 获取清空了函数结果内容的副本，原消息未改变时复用缓存的副本
+    static ChatMessage maskedCopyOf(ChatMessage message) {
+        ChatMessage.MaskCache cache = message.maskCache;
+        Object[] fingerprint = ChatRequestEncoder.fingerprintOf(message);
+        synchronized (cache) {
+            if(cache.masked != null && ChatRequestEncoder.sameFingerprint(cache.fingerprint, fingerprint)) {
+                return cache.masked;
+            }
+            ChatMessage copy = new ChatMessage(message.role).setText(message.contentText).setReasoning(message.reasoningText);
+            copy.attachments = message.attachments; // 只读，直接共用
+            for(ChatMessage.ToolCall toolCall : message.toolCalls) {
+                ChatMessage.ToolCall maskedCall = new ChatMessage.ToolCall();
+                maskedCall.id = toolCall.id;
+                maskedCall.functionName = toolCall.functionName;
+                maskedCall.arguments = toolCall.arguments;
+                maskedCall.content = "";
+                copy.addFunctionCall(maskedCall);
+            }
+            cache.fingerprint = fingerprint;
+            cache.masked = copy;
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.skythinker.gptassistant.api;
+
+import com.skythinker.gptassistant.data.ApiEndpoint;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.Headers;
+
+// 客户端限速调度：每个接入点（地址+密钥）维护请求数和token数两个令牌桶，由服务端返回的x-ratelimit-*头校准
+// 收到429时按retry-after暂停该接入点，之后的请求排队等待而不是直接失败
+// 排队的请求按优先级调度，交互请求先于后台请求（如批量运行）；尚未收到限速头的接入点不限速
+// 进程内所有ChatApiClient共用同一个实例，同一密钥的额度在各界面间共享
+public class RateLimiter {
+    private static final long DEFAULT_RETRY_AFTER_MS = 1000; // 429未给出等待时间时的默认值
+    private static final Pattern DURATION_PATTERN = Pattern.compile("(\\d+(?:\\.\\d+)?)(ms|h|m|s)");
+
+    // 请求优先级，排在前面的先调度
+    public enum Priority {
+        INTERACTIVE, // 用户正在等待的对话
+        BACKGROUND   // 批量运行等后台请求
+    }
+
+    // 获得额度后的回调，waitMs为排队等待的时间
+    public interface OnGrantedListener {
+        void onGranted(long waitMs);
+    }
+
+    // 限速统计数据（自启动以来）
+    public static class Stats {
+        public long grantedCount = 0; // 放行的请求数
+        public long waitedCount = 0; // 其中需要等待的请求数
+        public long totalWaitMs = 0, maxWaitMs = 0;
+        public long rateLimitedCount = 0; // 收到的429响应数
+        public int queuedCount = 0; // 当前排队中的请求数
+    }
+
+    // 一个排队中的请求
+    public class Ticket {
+        final Bucket bucket;
+        final Priority priority;
+        final int tokens;
+        final long seq;
+        final long enqueueNanos = System.nanoTime();
+        final OnGrantedListener listener;
+        boolean done = false; // 已放行或已取消
+        long waitMs = 0; // 放行前等待的时间
+
+        Ticket(Bucket bucket, Priority priority, int tokens, long seq, OnGrantedListener listener) {
+            this.bucket = bucket;
+            this.priority = priority;
+            this.tokens = tokens;
+            this.seq = seq;
+            this.listener = listener;
+        }
+
+        // 取消排队，返回是否在放行前取消成功
+        public boolean cancel() {
+            synchronized (RateLimiter.this) {
+                if(done) {
+                    return false;
+                }
+                done = true;
+                bucket.waiters.remove(this);
+            }
+            drain(bucket);
+            return true;
+        }
+
+        boolean before(Ticket other) {
+            return priority != other.priority ? priority.ordinal() < other.priority.ordinal() : seq < other.seq;
+        }
+    }
+
+    // 一个接入点的额度
+    class Bucket {
+        final TokenBucket requests = new TokenBucket(0, 0); // 收到限速头之前不限速
+        final TokenBucket tokens = new TokenBucket(0, 0);
+        long blockedUntil = 0; // 收到429后暂停到该时间（System.currentTimeMillis）
+        final ArrayList<Ticket> waiters = new ArrayList<>(); // 按优先级和到达顺序排列
+        ScheduledFuture<?> wakeup = null;
+        long wakeupAt = 0;
+
+        long getWaitMs(int tokenCount) {
+            long wait = Math.max(0, blockedUntil - System.currentTimeMillis());
+            wait = Math.max(wait, requests.getWaitMs(1));
+            return Math.max(wait, tokens.getWaitMs(tokenCount));
+        }
+    }
+
+    private static final RateLimiter shared = new RateLimiter();
+
+    private final HashMap<String, Bucket> buckets = new HashMap<>();
+    private final Stats stats = new Stats();
+    private long nextSeq = 0;
+
+    public static RateLimiter getShared() { return shared; }
+
+    private static String keyOf(ApiEndpoint endpoint) {
+        return endpoint.getHost() + "\n" + endpoint.getKey();
+    }
+
+    private synchronized Bucket getBucket(ApiEndpoint endpoint) {
+        Bucket bucket = buckets.get(keyOf(endpoint));
+        if(bucket == null) {
+            bucket = new Bucket();
+            buckets.put(keyOf(endpoint), bucket);
+        }
+        return bucket;
+    }
+
+    // 申请向接入点发送一个约tokens个token的请求，额度足够且无人排队时在当前线程立即回调，否则排队后在线程池中回调
+    public Ticket acquire(ApiEndpoint endpoint, int tokens, Priority priority, OnGrantedListener listener) {
+        Bucket bucket = getBucket(endpoint);
+        Ticket ticket;
+        boolean granted;
+        synchronized (this) {
+            ticket = new Ticket(bucket, priority, tokens, nextSeq++, listener);
+            granted = bucket.waiters.isEmpty() && bucket.getWaitMs(tokens) == 0;
+            if(granted) { // 快速路径：直接放行
+                grant(ticket);
+            } else {
+                int index = 0;
+                while(index < bucket.waiters.size() && bucket.waiters.get(index).before(ticket)) {
+                    index++;
+                }
+                bucket.waiters.add(index, ticket);
+            }
+        }
+        if(granted) {
+            listener.onGranted(0);
+        } else {
+            drain(bucket);
+        }
+        return ticket;
+    }
+
+    // 依次放行队首可以发送的请求，队首需要等待时安排唤醒；后面的请求不越过队首，避免后台请求挤占额度
+    private void drain(Bucket bucket) {
+        ArrayList<Ticket> granted = new ArrayList<>();
+        synchronized (this) {
+            while(!bucket.waiters.isEmpty()) {
+                Ticket head = bucket.waiters.get(0);
+                long waitMs = bucket.getWaitMs(head.tokens);
+                if(waitMs > 0) {
+                    scheduleWakeup(bucket, waitMs);
+                    break;
+                }
+                bucket.waiters.remove(0);
+                grant(head);
+                granted.add(head);
+            }
+        }
+        for(Ticket ticket : granted) {
+            HttpEngine.execute(() -> ticket.listener.onGranted(ticket.waitMs));
+        }
+    }
+
+    private void grant(Ticket ticket) {
+        ticket.done = true;
+        ticket.bucket.requests.reserve(1);
+        ticket.bucket.tokens.reserve(ticket.tokens); // 超过桶容量的请求等待积满后发送，预支的部分由之后的请求等待
+        ticket.waitMs = (System.nanoTime() - ticket.enqueueNanos) / 1000000;
+        stats.grantedCount++;
+        if(ticket.waitMs > 0) {
+            stats.waitedCount++;
+            stats.totalWaitMs += ticket.waitMs;
+            stats.maxWaitMs = Math.max(stats.maxWaitMs, ticket.waitMs);
+        }
+    }
+
+    private void scheduleWakeup(Bucket bucket, long delayMs) {
+        long at = System.currentTimeMillis() + delayMs;
+        if(bucket.wakeup != null) {
+            if(bucket.wakeupAt <= at) { // 已安排的唤醒更早
+                return;
+            }
+            bucket.wakeup.cancel(false);
+        }
+        bucket.wakeupAt = at;
+        bucket.wakeup = HttpEngine.schedule(() -> {
+            synchronized (RateLimiter.this) {
+                bucket.wakeup = null;
+            }
+            drain(bucket);
+        }, delayMs);
+    }
+
+    // 根据响应头校准接入点的额度，没有限速头时不做改变
+    public void onResponse(ApiEndpoint endpoint, Headers headers) {
+        Bucket bucket = getBucket(endpoint);
+        synchronized (this) {
+            syncBucket(bucket.requests, headers.get("x-ratelimit-limit-requests"),
+                    headers.get("x-ratelimit-remaining-requests"), headers.get("x-ratelimit-reset-requests"));
+            syncBucket(bucket.tokens, headers.get("x-ratelimit-limit-tokens"),
+                    headers.get("x-ratelimit-remaining-tokens"), headers.get("x-ratelimit-reset-tokens"));
+        }
+        drain(bucket); // 额度可能变多
+    }
+
+    // 收到429响应，暂停该接入点直到服务端允许重试，返回需要等待的毫秒数
+    public long onRateLimited(ApiEndpoint endpoint, Headers headers) {
+        Bucket bucket = getBucket(endpoint);
+        long waitMs = parseRetryAfter(headers);
+        synchronized (this) {
+            stats.rateLimitedCount++;
+            if(waitMs < 0) { // 未给出等待时间，按额度恢复时间估计
+                waitMs = Math.max(parseDuration(headers.get("x-ratelimit-reset-requests")), parseDuration(headers.get("x-ratelimit-reset-tokens")));
+                if(waitMs <= 0) {
+                    waitMs = DEFAULT_RETRY_AFTER_MS;
+                }
+            }
+            bucket.blockedUntil = Math.max(bucket.blockedUntil, System.currentTimeMillis() + waitMs);
+        }
+        drain(bucket);
+        return waitMs;
+    }
+
+    // 用limit、remaining、reset三个头校准令牌桶：容量为limit，reset为剩余额度恢复到limit的时间
+    private static void syncBucket(TokenBucket bucket, String limitHeader, String remainingHeader, String resetHeader) {
+        double limit = parseNumber(limitHeader), remaining = parseNumber(remainingHeader);
+        if(limit <= 0 || remaining < 0) {
+            return;
+        }
+        long resetMs = parseDuration(resetHeader);
+        double refillPerSecond = resetMs > 0 && remaining < limit
+                ? (limit - remaining) * 1000 / resetMs
+                : limit / 60; // 常见的额度按分钟计算
+        bucket.sync(limit, refillPerSecond, remaining);
+    }
+
+    private static double parseNumber(String value) {
+        if(value == null) {
+            return -1;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // 解析x-ratelimit-reset-*格式的时长（如"20ms"、"1s"、"6m0s"、"1h2m3.5s"），纯数字按秒计算，无法解析时返回-1
+    public static long parseDuration(String value) {
+        if(value == null || value.trim().isEmpty()) {
+            return -1;
+        }
+        value = value.trim();
+        double number = parseNumber(value);
+        if(number >= 0) {
+            return (long) Math.ceil(number * 1000);
+        }
+        Matcher matcher = DURATION_PATTERN.matcher(value);
+        double ms = 0;
+        int end = 0;
+        while(matcher.find()) {
+            if(matcher.start() != end) {
+                return -1;
+            }
+            double amount = Double.parseDouble(matcher.group(1));
+            switch (matcher.group(2)) {
+                case "h": ms += amount * 3600000; break;
+                case "m": ms += amount * 60000; break;
+                case "s": ms += amount * 1000; break;
+                default: ms += amount; break;
+            }
+            end = matcher.end();
+        }
+        return end == value.length() && end > 0 ? (long) Math.ceil(ms) : -1;
+    }
+
+    // 解析retry-after-ms或retry-after头（秒数或HTTP日期），均没有时返回-1
+    public static long parseRetryAfter(Headers headers) {
+        double ms = parseNumber(headers.get("retry-after-ms"));
+        if(ms >= 0) {
+            return (long) Math.ceil(ms);
+        }
+        double seconds = parseNumber(headers.get("retry-after"));
+        if(seconds >= 0) {
+            return (long) Math.ceil(seconds * 1000);
+        }
+        Date date = headers.getDate("retry-after");
+        if(date != null) {
+            return Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+        return -1;
+    }
+
+    // 获取统计数据的副本
+    public synchronized Stats getStats() {
+        Stats copy = new Stats();
+        copy.grantedCount = stats.grantedCount;
+        copy.waitedCount = stats.waitedCount;
+        copy.totalWaitMs = stats.totalWaitMs;
+        copy.maxWaitMs = stats.maxWaitMs;
+        copy.rateLimitedCount = stats.rateLimitedCount;
+        for(Bucket bucket : buckets.values()) {
+            copy.queuedCount += bucket.waiters.size();
+        }
+        return copy;
+    }
+}
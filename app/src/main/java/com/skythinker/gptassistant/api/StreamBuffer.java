@@ -0,0 +1,229 @@
+package com.skythinker.gptassistant.api;
+
+import java.util.ArrayList;
+
+// 一次回复（可包含多轮函数调用请求）的流式事件缓冲，回复和思维链分别追加到只增不减的文本缓冲中
+// 各消费者（渲染、朗读等）以自己的最小间隔批量收到更新，期间的多个事件合并为一次，结束事件立即送达
+// 快照与缓冲共享底层数组，不复制已收到的文本
+public class StreamBuffer {
+    // 接收合并后的更新，在订阅时指定的调度器中调用
+    public interface Consumer {
+        void onUpdate(Snapshot snapshot);
+    }
+
+    // 在指定延迟后执行任务，如Handler::postDelayed
+    public interface Scheduler {
+        void post(Runnable task, long delayMs);
+    }
+
+    // 只追加的文本，扩容时换用新数组，旧数组中已写入的部分不再改变，因此快照无需复制
+    private static class Text {
+        private char[] chars = new char[256];
+        private int length = 0;
+
+        void append(CharSequence text) {
+            int count = text.length();
+            if(length + count > chars.length) {
+                char[] grown = new char[Math.max(chars.length * 2, length + count)];
+                System.arraycopy(chars, 0, grown, 0, length);
+                chars = grown;
+            }
+            if(text instanceof String) {
+                ((String) text).getChars(0, count, chars, length);
+            } else if(text instanceof StringBuilder) {
+                ((StringBuilder) text).getChars(0, count, chars, length);
+            } else {
+                for(int i = 0; i < count; i++) {
+                    chars[length + i] = text.charAt(i);
+                }
+            }
+            length += count;
+        }
+
+        CharSequence snapshot() {
+            return new Chars(chars, 0, length);
+        }
+    }
+
+    // 文本快照，引用缓冲的底层数组
+    private static class Chars implements CharSequence {
+        private final char[] chars;
+        private final int offset, length;
+
+        Chars(char[] chars, int offset, int length) {
+            this.chars = chars;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() { return length; }
+
+        @Override
+        public char charAt(int index) {
+            if(index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+            }
+            return chars[offset + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if(start < 0 || end > length || start > end) {
+                throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+            }
+            return new Chars(chars, offset + start, end - start);
+        }
+
+        @Override
+        public String toString() { return new String(chars, offset, length); }
+    }
+
+    // 某一时刻的缓冲内容，content和reasoning为截至此时的全部文本，
+    // contentStart和reasoningStart为该消费者上次收到的长度，之后的部分为新增内容
+    public static class Snapshot {
+        public CharSequence content, reasoning;
+        public int contentStart, reasoningStart;
+        public int toolCallCount; // 已收到增量的函数调用数（本轮请求）
+        public long promptTokens = -1, completionTokens = -1;
+        public String finishReason = null; // 最近一轮请求的结束原因，未结束时为null
+
+        public CharSequence newContent() { return content.subSequence(contentStart, content.length()); }
+
+        public CharSequence newReasoning() { return reasoning.subSequence(reasoningStart, reasoning.length()); }
+    }
+
+    // 一个消费者的订阅
+    public class Subscription {
+        private final long intervalMs;
+        private final Scheduler scheduler;
+        private final Consumer consumer;
+        private long lastDeliveryNanos = 0;
+        private long deliveredVersion = 0;
+        private int contentDelivered = 0, reasoningDelivered = 0;
+        private boolean pending = false; // 已安排了尚未执行的更新
+        private boolean cancelled = false;
+
+        private Subscription(long intervalMs, Scheduler scheduler, Consumer consumer) {
+            this.intervalMs = intervalMs;
+            this.scheduler = scheduler;
+            this.consumer = consumer;
+        }
+
+        // 取消订阅，已安排的更新不再送达
+        public void cancel() {
+            synchronized (StreamBuffer.this) {
+                cancelled = true;
+                subscriptions.remove(this);
+            }
+        }
+    }
+
+    private final Text content = new Text(), reasoning = new Text();
+    private int toolCallCount = 0;
+    private long promptTokens = -1, completionTokens = -1;
+    private String finishReason = null;
+    private long version = 0; // 每收到一个事件加1
+    private final ArrayList<Subscription> subscriptions = new ArrayList<>();
+
+    // 接收一个事件，由ChatRequest在网络线程中调用
+    public void accept(StreamEvent event) {
+        synchronized (this) {
+            switch (event.type) {
+                case CONTENT:
+                    content.append(event.text);
+                    break;
+                case REASONING:
+                    reasoning.append(event.text);
+                    break;
+                case TOOL_CALL:
+                    toolCallCount = Math.max(toolCallCount, event.toolIndex + 1);
+                    break;
+                case USAGE:
+                    promptTokens = event.promptTokens;
+                    completionTokens = event.completionTokens;
+                    break;
+                case FINISH:
+                    finishReason = event.finishReason;
+                    break;
+            }
+            if(event.type != StreamEvent.Type.FINISH && finishReason != null) { // 函数调用后的下一轮请求开始
+                finishReason = null;
+                toolCallCount = 0;
+            }
+            version++;
+        }
+        dispatchAll(event.type == StreamEvent.Type.FINISH);
+    }
+
+    // 订阅更新，两次更新之间至少间隔intervalMs，订阅时已有内容则立即送达一次
+    public Subscription subscribe(long intervalMs, Scheduler scheduler, Consumer consumer) {
+        Subscription subscription = new Subscription(intervalMs, scheduler, consumer);
+        synchronized (this) {
+            subscriptions.add(subscription);
+        }
+        dispatch(subscription, false);
+        return subscription;
+    }
+
+    // 取消所有订阅
+    public synchronized void unsubscribeAll() {
+        for(Subscription subscription : subscriptions) {
+            subscription.cancelled = true;
+        }
+        subscriptions.clear();
+    }
+
+    // 截至目前的全部回复（不复制）
+    public synchronized CharSequence getContent() { return content.snapshot(); }
+
+    // 截至目前的全部思维链（不复制）
+    public synchronized CharSequence getReasoning() { return reasoning.snapshot(); }
+
+    private void dispatchAll(boolean immediate) {
+        ArrayList<Subscription> targets;
+        synchronized (this) {
+            targets = new ArrayList<>(subscriptions);
+        }
+        for(Subscription subscription : targets) {
+            dispatch(subscription, immediate);
+        }
+    }
+
+    // 为一个订阅安排更新，已有未执行的更新时合并（结束事件除外）
+    private void dispatch(Subscription subscription, boolean immediate) {
+        long delayMs;
+        synchronized (this) {
+            if(subscription.cancelled || subscription.deliveredVersion == version || (subscription.pending && !immediate)) {
+                return;
+            }
+            long sinceLastMs = (System.nanoTime() - subscription.lastDeliveryNanos) / 1000000;
+            delayMs = immediate || subscription.deliveredVersion == 0 ? 0 : Math.max(0, subscription.intervalMs - sinceLastMs);
+            subscription.pending = true;
+        }
+        subscription.scheduler.post(() -> deliver(subscription), delayMs);
+    }
+
+    private void deliver(Subscription subscription) {
+        Snapshot snapshot = new Snapshot();
+        synchronized (this) {
+            subscription.pending = false;
+            if(subscription.cancelled || subscription.deliveredVersion == version) { // 已被另一次更新送达
+                return;
+            }
+            snapshot.content = content.snapshot();
+            snapshot.reasoning = reasoning.snapshot();
+            snapshot.contentStart = subscription.contentDelivered;
+            snapshot.reasoningStart = subscription.reasoningDelivered;
+            snapshot.toolCallCount = toolCallCount;
+            snapshot.promptTokens = promptTokens;
+            snapshot.completionTokens = completionTokens;
+            snapshot.finishReason = finishReason;
+            subscription.contentDelivered = content.length;
+            subscription.reasoningDelivered = reasoning.length;
+            subscription.deliveredVersion = version;
+            subscription.lastDeliveryNanos = System.nanoTime();
+        }
+        subscription.consumer.onUpdate(snapshot);
+    }
+}
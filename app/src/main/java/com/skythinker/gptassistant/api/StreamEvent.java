@@ -0,0 +1,58 @@
+package com.skythinker.gptassistant.api;
+
+// 流式回复中的一个事件：回复增量、思维链增量、函数调用增量、token用量或结束原因
+// 增量文本可能直接引用解析器的缓冲区，仅在分发期间有效，需要保留时应复制（StreamBuffer会追加到自己的缓冲中）
+public class StreamEvent {
+    public enum Type {
+        CONTENT,    // 回复增量
+        REASONING,  // 思维链增量
+        TOOL_CALL,  // 函数调用增量
+        USAGE,      // token用量
+        FINISH      // 回复结束
+    }
+
+    public final Type type;
+    public CharSequence text = null; // CONTENT、REASONING的增量文本，TOOL_CALL的参数增量
+    public int toolIndex = -1; // TOOL_CALL的调用序号
+    public String toolId = null, toolName = null; // TOOL_CALL的调用ID和函数名（仅首个增量中有）
+    public long promptTokens = -1, completionTokens = -1; // USAGE
+    public String finishReason = null; // FINISH的结束原因，如stop、tool_calls、length、error、cancelled
+
+    private StreamEvent(Type type) {
+        this.type = type;
+    }
+
+    public static StreamEvent content(CharSequence text) {
+        StreamEvent event = new StreamEvent(Type.CONTENT);
+        event.text = text;
+        return event;
+    }
+
+    public static StreamEvent reasoning(CharSequence text) {
+        StreamEvent event = new StreamEvent(Type.REASONING);
+        event.text = text;
+        return event;
+    }
+
+    public static StreamEvent toolCall(int index, String id, String name, CharSequence arguments) {
+        StreamEvent event = new StreamEvent(Type.TOOL_CALL);
+        event.toolIndex = index;
+        event.toolId = id;
+        event.toolName = name;
+        event.text = arguments;
+        return event;
+    }
+
+    public static StreamEvent usage(long promptTokens, long completionTokens) {
+        StreamEvent event = new StreamEvent(Type.USAGE);
+        event.promptTokens = promptTokens;
+        event.completionTokens = completionTokens;
+        return event;
+    }
+
+    public static StreamEvent finish(String reason) {
+        StreamEvent event = new StreamEvent(Type.FINISH);
+        event.finishReason = reason;
+        return event;
+    }
+}
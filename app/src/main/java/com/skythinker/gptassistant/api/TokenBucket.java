@@ -0,0 +1,69 @@
+package com.skythinker.gptassistant.api;
+
+// 令牌桶限速：最多积攒capacity个令牌，每秒补充refillPerSecond个
+// reserve()不阻塞线程，令牌不足时预支并返回需要等待的时间，之后的预留依次顺延
+public class TokenBucket {
+    private double capacity, refillPerSecond;
+    private double tokens; // 可为负数，表示已预支的令牌
+    private long lastRefillNanos = System.nanoTime();
+
+    // refillPerSecond不大于0时不限速
+    public TokenBucket(double capacity, double refillPerSecond) {
+        this.capacity = capacity;
+        this.refillPerSecond = refillPerSecond;
+        this.tokens = capacity;
+    }
+
+    // 按每分钟的次数限速，允许突发burst次
+    public static TokenBucket perMinute(int perMinute, int burst) {
+        return new TokenBucket(Math.max(1, burst), perMinute / 60.0);
+    }
+
+    // 预留permits个令牌，返回可以使用前需要等待的毫秒数，0表示立即可用
+    public synchronized long reserve(double permits) {
+        if(refillPerSecond <= 0) {
+            return 0;
+        }
+        refill();
+        tokens -= permits;
+        if(tokens >= 0) {
+            return 0;
+        }
+        return (long) Math.ceil(-tokens / refillPerSecond * 1000);
+    }
+
+    // 查询积攒到permits个令牌需要等待的毫秒数，不预留；permits超过容量时按积满计算
+    public synchronized long getWaitMs(double permits) {
+        if(refillPerSecond <= 0) {
+            return 0;
+        }
+        refill();
+        double missing = Math.min(permits, capacity) - tokens;
+        return missing <= 0 ? 0 : (long) Math.ceil(missing / refillPerSecond * 1000);
+    }
+
+    // 按服务端告知的额度校准：容量、补充速度和当前剩余令牌数
+    public synchronized void sync(double capacity, double refillPerSecond, double tokens) {
+        refill();
+        this.capacity = capacity;
+        this.refillPerSecond = refillPerSecond;
+        this.tokens = tokens;
+    }
+
+    // 是否限速
+    public synchronized boolean isLimited() {
+        return refillPerSecond > 0;
+    }
+
+    // 当前可用的令牌数（预支时为负数）
+    public synchronized double getTokens() {
+        refill();
+        return tokens;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) / 1e9 * refillPerSecond);
+        lastRefillNanos = now;
+    }
+}
@@ -0,0 +1,218 @@
+package com.skythinker.gptassistant.api;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.tool.GlobalUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.List;
+
+import okhttp3.Request;
+import okhttp3.Response;
+
+// 消息的token计数，按模型选择编码，结果缓存在ChatMessage.tokenCountCache中
+// 首次使用某个编码时在后台下载tiktoken的词表并精确计数，词表载入前使用估算值（ContextPacker会为估算值留出余量）
+public class TokenCounter {
+    private static final int TOKENS_PER_MESSAGE = 3; // 每条消息的格式开销
+    static final int TOKENS_PER_REPLY = 3; // 回复的起始标记
+    private static final int TOKENS_PER_TOOL_CALL = 8; // 每个函数调用的格式开销
+    private static final int TOKENS_PER_IMAGE = 765; // 一张图片按高精度1024x1024计
+
+    // 模型名前缀 -> 上下文窗口大小（token），按顺序匹配
+    private static final Object[][] CONTEXT_WINDOWS = {
+            {"gpt-5", 272000},
+            {"gpt-4.1", 1000000},
+            {"gpt-4o", 128000},
+            {"gpt-4-turbo", 128000},
+            {"gpt-4-32k", 32768},
+            {"gpt-4", 8192},
+            {"gpt-3.5-turbo", 16385},
+            {"o1", 200000},
+            {"o3", 200000},
+            {"o4", 200000},
+            {"claude", 200000},
+            {"gemini", 1000000},
+            {"deepseek", 64000},
+            {"glm", 128000},
+            {"moonshot", 128000},
+            {"kimi", 128000},
+            {"qwen", 32768},
+    };
+    private static final int DEFAULT_CONTEXT_WINDOW = 32768;
+
+    private static final String VOCABULARY_URL = "https://openaipublic.blob.core.windows.net/encodings/"; // tiktoken使用的词表地址
+    private static final long RETRY_INTERVAL_MS = 10 * 60 * 1000; // 下载或载入失败后重试的间隔
+
+    private static final EnumMap<TokenEstimator.Encoding, TokenEstimator> estimators = new EnumMap<>(TokenEstimator.Encoding.class);
+    private static final EnumMap<TokenEstimator.Encoding, BpeTokenizer> tokenizers = new EnumMap<>(TokenEstimator.Encoding.class); // 已载入词表的分词器
+    private static final EnumMap<TokenEstimator.Encoding, Long> nextLoadTime = new EnumMap<>(TokenEstimator.Encoding.class); // 可以再次尝试载入的时间
+    private static File vocabularyDir = null; // 未设置时只使用估算值
+
+    static {
+        for(TokenEstimator.Encoding encoding : TokenEstimator.Encoding.values()) {
+            estimators.put(encoding, new TokenEstimator(encoding));
+        }
+    }
+
+    // 设置词表的保存目录，词表在首次使用对应编码时才下载和载入
+    public static void init(Context context) {
+        synchronized (tokenizers) {
+            vocabularyDir = new File(context.getFilesDir(), "tokenizer");
+        }
+    }
+
+    private static String baseModel(String model) {
+        return model.replaceAll("\\*$", "").toLowerCase(); // 去掉自定义模型结尾的*号
+    }
+
+    // 获取模型使用的编码，未知模型按cl100k_base计
+    public static TokenEstimator.Encoding encodingOf(String model) {
+        String base = baseModel(model);
+        if(base.startsWith("gpt-4o") || base.startsWith("gpt-4.1") || base.startsWith("gpt-5")
+                || base.startsWith("o1") || base.startsWith("o3") || base.startsWith("o4")) {
+            return TokenEstimator.Encoding.O200K_BASE;
+        }
+        return TokenEstimator.Encoding.CL100K_BASE;
+    }
+
+    // 获取模型使用的分词器，词表尚未载入时返回估算器并在后台载入
+    public static TokenEstimator getEstimator(String model) {
+        TokenEstimator.Encoding encoding = encodingOf(model);
+        synchronized (tokenizers) {
+            BpeTokenizer tokenizer = tokenizers.get(encoding);
+            if(tokenizer != null) {
+                return tokenizer;
+            }
+            Long next = nextLoadTime.get(encoding);
+            if(vocabularyDir != null && (next == null || System.currentTimeMillis() >= next)) {
+                nextLoadTime.put(encoding, Long.MAX_VALUE); // 载入中
+                File dir = vocabularyDir;
+                HttpEngine.execute(() -> loadVocabulary(encoding, dir));
+            }
+        }
+        return estimators.get(encoding);
+    }
+
+    // 模型的计数是否精确：词表已载入，且为使用该编码的OpenAI模型（其他厂商的模型只是按cl100k_base近似）
+    public static boolean isExact(String model) {
+        String base = baseModel(model);
+        boolean openAi = base.startsWith("gpt-") || base.startsWith("o1") || base.startsWith("o3") || base.startsWith("o4");
+        return openAi && getEstimator(model).isExact();
+    }
+
+    // 载入词表，本地没有时先下载到临时文件，载入成功（格式完整）后再移动到目标位置，失败时在RETRY_INTERVAL_MS后重试
+    private static void loadVocabulary(TokenEstimator.Encoding encoding, File dir) {
+        File file = new File(dir, encoding.name + ".tiktoken");
+        File temp = new File(dir, encoding.name + ".tiktoken.tmp");
+        try {
+            File source = file;
+            if(!file.exists()) {
+                downloadVocabulary(encoding, temp);
+                source = temp;
+            }
+            BpeTokenizer tokenizer;
+            try (InputStream input = new FileInputStream(source)) {
+                tokenizer = BpeTokenizer.load(encoding, input);
+            }
+            if(source == temp && !temp.renameTo(file)) {
+                Log.w("TokenCounter", "cannot save " + file);
+            }
+            synchronized (tokenizers) {
+                tokenizers.put(encoding, tokenizer);
+            }
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            Log.w("TokenCounter", "load " + encoding.name + " failed: " + e);
+            file.delete(); // 文件可能已损坏，下次重新下载
+            synchronized (tokenizers) {
+                nextLoadTime.put(encoding, System.currentTimeMillis() + RETRY_INTERVAL_MS);
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private static void downloadVocabulary(TokenEstimator.Encoding encoding, File target) throws IOException {
+        if(!target.getParentFile().exists() && !target.getParentFile().mkdirs()) {
+            throw new IOException("cannot create " + target.getParent());
+        }
+        Request request = new Request.Builder().url(VOCABULARY_URL + encoding.name + ".tiktoken").build();
+        try (Response response = HttpEngine.getClient(HttpEngine.Profile.FETCH).newCall(request).execute()) {
+            if(!response.isSuccessful() || response.body() == null) {
+                throw new IOException("HTTP " + response.code());
+            }
+            try (InputStream input = response.body().byteStream(); OutputStream output = new FileOutputStream(target)) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while((read = input.read(buffer)) != -1) {
+                    output.write(buffer, 0, read);
+                }
+            }
+        }
+    }
+
+    // 获取模型的上下文窗口大小
+    public static int getContextWindow(String model) {
+        String base = baseModel(model);
+        for(Object[] entry : CONTEXT_WINDOWS) {
+            if(base.startsWith((String) entry[0]) || base.contains("/" + entry[0])) { // 兼容"厂商/模型"格式的名称
+                return (int) entry[1];
+            }
+        }
+        return DEFAULT_CONTEXT_WINDOW;
+    }
+
+    public static int count(String text, String model) {
+        return getEstimator(model).count(text);
+    }
+
+    // 计算一条消息的token数（含格式开销），消息未改变时使用缓存
+    public static int countMessage(ChatMessage message, String model) {
+        TokenEstimator estimator = getEstimator(model);
+        Object[] fingerprint = ChatRequestEncoder.fingerprintOf(message);
+        ChatMessage.TokenCountCache cache = message.tokenCountCache;
+        synchronized (cache) {
+            if(cache.estimator == estimator && ChatRequestEncoder.sameFingerprint(cache.fingerprint, fingerprint)) {
+                return cache.count;
+            }
+        }
+        int count = TOKENS_PER_MESSAGE + estimator.count(message.contentText);
+        for(ChatMessage.ToolCall toolCall : message.toolCalls) {
+            if(message.role == ChatMessage.ChatRole.FUNCTION) {
+                count += estimator.count(toolCall.content);
+            } else {
+                count += TOKENS_PER_TOOL_CALL + estimator.count(toolCall.functionName) + estimator.count(toolCall.arguments);
+            }
+        }
+        boolean vision = GlobalUtils.checkVisionSupport(model);
+        for(ChatMessage.Attachment attachment : message.attachments) {
+            if(attachment.type == ChatMessage.Attachment.Type.TEXT) {
+                count += estimator.count(attachment.getContent());
+            } else if(attachment.type == ChatMessage.Attachment.Type.IMAGE && vision) {
+                count += TOKENS_PER_IMAGE;
+            }
+        }
+        synchronized (cache) {
+            cache.fingerprint = fingerprint;
+            cache.estimator = estimator;
+            cache.count = count;
+        }
+        return count;
+    }
+
+    // 计算消息列表的token数（含回复的起始标记）
+    public static int countMessages(List<ChatMessage> messages, String model) {
+        int count = TOKENS_PER_REPLY;
+        for(ChatMessage message : messages) {
+            count += countMessage(message, model);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,86 @@
+package com.skythinker.gptassistant.api;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// 按OpenAI编码的切分规则估算token数，在词表（见BpeTokenizer）载入前用于控制请求大小
+// 文本先按编码对应的正则（与tiktoken相同）切分为片段，再按片段类型粗略估算，不保证不小于实际值，使用时需留出余量
+public class TokenEstimator {
+    // 支持的编码，包含切分正则和非ASCII文本每个token的平均字节数
+    public enum Encoding {
+        CL100K_BASE("cl100k_base", "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+", 2.0),
+        O200K_BASE("o200k_base", "[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]*[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]+(?i:'s|'t|'re|'ve|'m|'ll|'d)?"
+                + "|[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]+[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]*(?i:'s|'t|'re|'ve|'m|'ll|'d)?"
+                + "|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n/]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+", 3.0);
+
+        public final String name;
+        final Pattern pattern;
+        final double nonAsciiBytesPerToken;
+
+        Encoding(String name, String regex, double nonAsciiBytesPerToken) {
+            this.name = name;
+            this.pattern = Pattern.compile(regex);
+            this.nonAsciiBytesPerToken = nonAsciiBytesPerToken;
+        }
+    }
+
+    private final Encoding encoding;
+
+    public TokenEstimator(Encoding encoding) {
+        this.encoding = encoding;
+    }
+
+    public Encoding getEncoding() { return encoding; }
+
+    // 是否为与tiktoken一致的精确计数
+    public boolean isExact() { return false; }
+
+    // 估算文本的token数
+    public int count(CharSequence text) {
+        if(text == null || text.length() == 0) {
+            return 0;
+        }
+        int count = 0;
+        Matcher matcher = encoding.pattern.matcher(text);
+        while(matcher.find()) {
+            count += estimatePiece(matcher.group());
+        }
+        return count;
+    }
+
+    // 估算一个片段的token数
+    private int estimatePiece(String piece) {
+        int ascii = 0, nonAsciiBytes = 0;
+        boolean letters = true, digits = true;
+        for(int i = 0; i < piece.length(); i++) {
+            char c = piece.charAt(i);
+            if(c < 0x80) {
+                ascii++;
+                if(!Character.isLetter(c) && !(i == 0 && c == ' ')) {
+                    letters = false;
+                }
+                if(!Character.isDigit(c)) {
+                    digits = false;
+                }
+            } else if(Character.isHighSurrogate(c)) {
+                nonAsciiBytes += 4;
+                i++;
+            } else {
+                nonAsciiBytes += c < 0x800 ? 2 : 3;
+            }
+        }
+        int count = (int) Math.ceil(nonAsciiBytes / encoding.nonAsciiBytesPerToken);
+        if(ascii > 0) {
+            if(Character.isWhitespace(piece.charAt(0)) && piece.trim().isEmpty()) { // 空白（词表中有大量合并的缩进）
+                count += 1 + ascii / 16;
+            } else if(digits) { // 最多3位的数字
+                count += 1;
+            } else if(letters) { // 英文单词，常见词为1个token
+                count += ascii <= 8 ? 1 : (ascii + 4) / 5;
+            } else { // 数字和标点
+                count += (ascii + 1) / 2;
+            }
+        }
+        return Math.max(count, 1);
+    }
+}
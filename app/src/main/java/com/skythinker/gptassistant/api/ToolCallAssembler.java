@@ -0,0 +1,116 @@
+package com.skythinker.gptassistant.api;
+
+import com.skythinker.gptassistant.api.ChatApiClient.CallingFunction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import cn.hutool.json.JSONException;
+import cn.hutool.json.JSONUtil;
+
+// 将流式回复中的tool_calls增量拼接为完整的函数调用
+// 按index区分各个调用，支持同一数据块中包含多个交错的调用，参数片段追加到可增长的缓冲区中
+// 参数JSON仅在回复结束时校验一次
+public class ToolCallAssembler {
+    // 正在拼接的一个函数调用
+    private static class Slot {
+        final int index;
+        final int order; // 首次出现的顺序
+        String id = null;
+        String name = null;
+        final StringBuilder arguments = new StringBuilder();
+
+        Slot(int index, int order) {
+            this.index = index;
+            this.order = order;
+        }
+    }
+
+    private final ArrayList<Slot> slots = new ArrayList<>();
+    private final HashMap<Integer, Slot> slotByIndex = new HashMap<>(); // index -> 该index下最新的调用
+    private final ArrayList<CallingFunction> malformedCalls = new ArrayList<>();
+
+    // 处理解析器当前数据块中的所有tool_calls增量
+    public void accept(ChatStreamParser parser) {
+        for(int i = 0; i < parser.getToolCallCount(); i++) {
+            accept(parser.getToolCall(i));
+        }
+    }
+
+    public void accept(ChatStreamParser.ToolCallDelta delta) {
+        Slot slot = slotByIndex.get(delta.getIndex());
+        String id = delta.hasId() ? delta.getId() : null;
+        if(id != null && id.isEmpty()) {
+            id = null;
+        }
+        // 部分服务商所有调用都使用index 0，此时以新的id区分不同调用
+        if(slot == null || (id != null && slot.id != null && !slot.id.equals(id))) {
+            slot = new Slot(delta.getIndex(), slots.size());
+            slots.add(slot);
+            slotByIndex.put(delta.getIndex(), slot);
+        }
+        if(id != null && slot.id == null) {
+            slot.id = id;
+        }
+        if(delta.hasName() && slot.name == null && delta.getName().length() > 0) {
+            slot.name = delta.getName();
+        }
+        if(delta.hasArguments()) {
+            slot.arguments.append(delta.getArgumentsChars());
+        }
+    }
+
+    // 是否收到过函数调用
+    public boolean isEmpty() {
+        return slots.isEmpty();
+    }
+
+    public int size() {
+        return slots.size();
+    }
+
+    // 回复结束时生成完整的函数调用列表（按index排序），并校验参数是否为合法的JSON
+    public ArrayList<CallingFunction> finish() {
+        ArrayList<Slot> sorted = new ArrayList<>(slots);
+        Collections.sort(sorted, (a, b) -> a.index != b.index ? Integer.compare(a.index, b.index) : Integer.compare(a.order, b.order));
+        ArrayList<CallingFunction> functions = new ArrayList<>();
+        malformedCalls.clear();
+        for(Slot slot : sorted) {
+            if(slot.name == null) { // 没有函数名的调用无法执行
+                continue;
+            }
+            CallingFunction function = new CallingFunction();
+            function.toolId = slot.id == null ? "" : slot.id;
+            function.name = slot.name;
+            String arguments = slot.arguments.toString().trim();
+            function.arguments = arguments.isEmpty() ? "{}" : arguments; // 无参数函数可能不返回参数
+            if(!isValidJson(function.arguments)) {
+                malformedCalls.add(function);
+            }
+            functions.add(function);
+        }
+        return functions;
+    }
+
+    // 上一次finish()中参数不是合法JSON的调用
+    public List<CallingFunction> getMalformedCalls() {
+        return malformedCalls;
+    }
+
+    public void reset() {
+        slots.clear();
+        slotByIndex.clear();
+        malformedCalls.clear();
+    }
+
+    private static boolean isValidJson(String text) {
+        try {
+            JSONUtil.parseObj(text);
+            return true;
+        } catch (JSONException e) {
+            return false;
+        }
+    }
+}
@@ -9,7 +9,6 @@ import com.unfbx.chatgpt.entity.whisper.WhisperResponse;
 import java.io.File;
 import java.util.Arrays;
 
-import okhttp3.ConnectionSpec;
 import okhttp3.OkHttpClient;
 
 public class WhisperApiClient {
@@ -21,12 +20,7 @@ public class WhisperApiClient {
 
     public WhisperApiClient(Context context, String url, String apiKey) {
         this.context = context;
-        httpClient = new OkHttpClient.Builder()
-                .connectTimeout(30, java.util.concurrent.TimeUnit.SECONDS)
-                .readTimeout(30, java.util.concurrent.TimeUnit.SECONDS)
-                .writeTimeout(30, java.util.concurrent.TimeUnit.SECONDS)
-                .connectionSpecs(Arrays.asList(ConnectionSpec.CLEARTEXT, ConnectionSpec.COMPATIBLE_TLS))
-                .build();
+        httpClient = HttpEngine.getClient(HttpEngine.Profile.UPLOAD);
         setApiInfo(url, apiKey);
     }
 
@@ -0,0 +1,66 @@
+package com.skythinker.gptassistant.data;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// 一个OpenAI兼容的API接入点，包含地址、密钥和该接入点可用的模型列表
+public class ApiEndpoint implements Serializable {
+    private static final long serialVersionUID = 6140829913265412207L;
+
+    private String host;
+    private String key;
+    private ArrayList<String> models; // 为空表示支持所有模型
+
+    public ApiEndpoint(String host, String key, List<String> models) {
+        this.host = normalizeHost(host);
+        this.key = key.trim();
+        this.models = new ArrayList<>(models);
+        this.models.removeIf(String::isEmpty);
+    }
+
+    public String getHost() { return host; }
+
+    public String getKey() { return key; }
+
+    public List<String> getModels() { return models; }
+
+    // 地址和密钥均已填写
+    public boolean isValid() {
+        return !host.isEmpty() && !key.isEmpty();
+    }
+
+    public boolean supportsModel(String model) {
+        return models.isEmpty() || models.contains(model);
+    }
+
+    // 补全URL的协议头和结尾的斜杠
+    public static String normalizeHost(String host) {
+        host = host.trim();
+        if(!host.isEmpty()) {
+            if(!host.startsWith("http://") && !host.startsWith("https://")) {
+                host = "https://" + host;
+            }
+            if(!host.endsWith("/")) {
+                host += "/";
+            }
+        }
+        return host;
+    }
+
+    // 从一行文本解析接入点，格式为"地址 密钥 [模型1;模型2]"，格式错误时返回null
+    public static ApiEndpoint parse(String line) {
+        String[] parts = line.trim().split("\\s+");
+        if(parts.length < 2 || parts.length > 3) {
+            return null;
+        }
+        List<String> models = parts.length == 3 ? Arrays.asList(parts[2].split(";")) : new ArrayList<>();
+        return new ApiEndpoint(parts[0], parts[1], models);
+    }
+
+    // 转为parse()可解析的一行文本
+    public String toLine() {
+        return models.isEmpty() ? host + " " + key : host + " " + key + " " + String.join(";", models);
+    }
+}
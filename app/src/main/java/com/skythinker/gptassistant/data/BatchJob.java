@@ -0,0 +1,245 @@
+package com.skythinker.gptassistant.data;
+
+import android.content.Context;
+
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage.ChatRole;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+// 批量运行任务：将同一模板（参数已填好）依次应用到多条输入，每条输入单独请求
+// 任务信息保存在job.json中，每条结果完成时追加一行到results.jsonl，应用被关闭后可从断点继续
+// 同一时间只保留一个任务，新建任务时覆盖旧任务
+public class BatchJob {
+    public enum Status { PENDING, DONE, FAILED }
+
+    private static final String JOB_FILE = "job.json", RESULTS_FILE = "results.jsonl";
+
+    public String id;
+    public String title; // 模板标题
+    public String template; // 已填入参数的模板内容，${input}或%input%处填入每条输入
+    public boolean systemMode; // 模板作为系统消息发送（模板声明了@system）
+    public String model;
+    public long created;
+    private final ArrayList<String> inputs = new ArrayList<>();
+    private String[] outputs;
+    private Status[] statuses;
+    private File dir;
+
+    private BatchJob() { }
+
+    public static File getDir(Context context) {
+        return new File(context.getFilesDir(), "batch");
+    }
+
+    // 新建任务并保存，旧任务及其结果被删除
+    public static BatchJob create(File dir, String title, String template, boolean systemMode, String model, List<String> inputs) throws IOException {
+        BatchJob job = new BatchJob();
+        job.id = UUID.randomUUID().toString();
+        job.title = title;
+        job.template = template;
+        job.systemMode = systemMode;
+        job.model = model;
+        job.created = System.currentTimeMillis();
+        job.inputs.addAll(inputs);
+        job.initResults();
+        job.dir = dir;
+        dir.mkdirs();
+        new File(dir, RESULTS_FILE).delete();
+        JSONObject json = new JSONObject()
+                .putOpt("id", job.id)
+                .putOpt("title", title)
+                .putOpt("template", template)
+                .putOpt("system", systemMode)
+                .putOpt("model", model)
+                .putOpt("created", job.created)
+                .putOpt("inputs", new JSONArray(inputs));
+        writeFile(new File(dir, JOB_FILE), json.toString(), false);
+        return job;
+    }
+
+    // 载入已保存的任务及已完成的结果，没有任务时返回null
+    public static BatchJob load(File dir) {
+        File jobFile = new File(dir, JOB_FILE);
+        if(!jobFile.exists()) {
+            return null;
+        }
+        BatchJob job = new BatchJob();
+        try {
+            JSONObject json = JSONUtil.parseObj(readFile(jobFile));
+            job.id = json.getStr("id");
+            job.title = json.getStr("title", "");
+            job.template = json.getStr("template", "");
+            job.systemMode = json.getBool("system", false);
+            job.model = json.getStr("model", "");
+            job.created = json.getLong("created", 0L);
+            job.inputs.addAll(json.getJSONArray("inputs").toList(String.class));
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+        job.initResults();
+        job.dir = dir;
+        File resultsFile = new File(dir, RESULTS_FILE);
+        if(resultsFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(resultsFile), StandardCharsets.UTF_8))) {
+                String line;
+                while((line = reader.readLine()) != null) { // 同一条输入可能有多条结果（失败后重试），以最后一条为准
+                    try {
+                        JSONObject result = JSONUtil.parseObj(line);
+                        int index = result.getInt("i", -1);
+                        if(index >= 0 && index < job.inputs.size()) {
+                            job.statuses[index] = Status.valueOf(result.getStr("s"));
+                            job.outputs[index] = result.getStr("o", "");
+                        }
+                    } catch (RuntimeException e) { // 被中断时写了一半的行
+                        e.printStackTrace();
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return job;
+    }
+
+    // 删除保存的任务
+    public static void delete(File dir) {
+        new File(dir, JOB_FILE).delete();
+        new File(dir, RESULTS_FILE).delete();
+    }
+
+    // 将文本附件拆分为输入：每个非空行为一条，表格（XLSX）中的工作表标题行被忽略
+    public static List<String> splitInputs(String text) {
+        List<String> inputs = new ArrayList<>();
+        for(String line : text.split("\n")) {
+            line = line.replaceAll("\t+$", "").trim(); // 表格行末尾的空单元格
+            if(line.isEmpty() || line.matches("^Sheet \\d+:$")) {
+                continue;
+            }
+            inputs.add(line);
+        }
+        return inputs;
+    }
+
+    private void initResults() {
+        outputs = new String[inputs.size()];
+        statuses = new Status[inputs.size()];
+        Arrays.fill(outputs, "");
+        Arrays.fill(statuses, Status.PENDING);
+    }
+
+    // 构建第index条输入的请求消息，与主界面首次提问时添加模板的方式一致
+    public List<ChatMessage> buildMessages(int index) {
+        String input = inputs.get(index);
+        List<ChatMessage> messages = new ArrayList<>();
+        if(systemMode) {
+            messages.add(new ChatMessage(ChatRole.SYSTEM).setText(template));
+            messages.add(new ChatMessage(ChatRole.USER).setText(input));
+        } else {
+            String question = template;
+            if(!question.contains("%input%") && !question.contains("${input}"))
+                question += "${input}";
+            messages.add(new ChatMessage(ChatRole.USER).setText(question.replace("%input%", input).replace("${input}", input)));
+        }
+        return messages;
+    }
+
+    // 记录一条结果并追加到结果文件
+    public synchronized void setResult(int index, Status status, String output) {
+        statuses[index] = status;
+        outputs[index] = output;
+        if(dir == null) {
+            return;
+        }
+        String line = new JSONObject()
+                .putOpt("i", index)
+                .putOpt("s", status.name())
+                .putOpt("o", output)
+                .toString() + "\n";
+        try {
+            writeFile(new File(dir, RESULTS_FILE), line, true);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public int size() { return inputs.size(); }
+
+    public String getInput(int index) { return inputs.get(index); }
+
+    public synchronized String getOutput(int index) { return outputs[index]; }
+
+    public synchronized Status getStatus(int index) { return statuses[index]; }
+
+    public synchronized int getCount(Status status) {
+        int count = 0;
+        for(Status s : statuses) {
+            if(s == status) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // 尚未成功的输入序号（包括失败的，重新运行时重试）
+    public synchronized List<Integer> getUnfinishedIndexes() {
+        List<Integer> indexes = new ArrayList<>();
+        for(int i = 0; i < statuses.length; i++) {
+            if(statuses[i] != Status.DONE) {
+                indexes.add(i);
+            }
+        }
+        return indexes;
+    }
+
+    // 导出为CSV表格：序号、输入、状态、输出
+    public synchronized String toCsv() {
+        StringBuilder sb = new StringBuilder("index,input,status,output\n");
+        for(int i = 0; i < inputs.size(); i++) {
+            sb.append(i + 1).append(',')
+                    .append(csvField(inputs.get(i))).append(',')
+                    .append(statuses[i].name()).append(',')
+                    .append(csvField(outputs[i])).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String csvField(String value) {
+        if(value.contains(",") || value.contains("\"") || value.contains("\n") || value.contains("\r")) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
+
+    private static void writeFile(File file, String content, boolean append) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(file, append)) {
+            fos.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String readFile(File file) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            byte[] buffer = new byte[(int) file.length()];
+            int offset = 0, read;
+            while(offset < buffer.length && (read = fis.read(buffer, offset, buffer.length - offset)) > 0) {
+                offset += read;
+            }
+            return new String(buffer, 0, offset, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.skythinker.gptassistant.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// 附件内容的文件存储：以内容的SHA-256命名，相同内容（如重复添加的截图）只保存一份，文件中保存原始字节
+// 引用计数保存在数据库中，由ChatManager在写入和删除消息时维护，计数归零后删除文件
+public class BlobStore {
+    private static File directory = null;
+
+    public static void setDirectory(File directory) {
+        BlobStore.directory = directory;
+    }
+
+    // 计算内容的键（SHA-256的十六进制表示）
+    public static String hashOf(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for(byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static File fileOf(String hash) {
+        return new File(directory, hash);
+    }
+
+    public static boolean exists(String hash) {
+        return fileOf(hash).exists();
+    }
+
+    // 保存内容，已存在时跳过；先写入临时文件再重命名，中断时不会留下不完整的文件
+    public static void put(String hash, byte[] data) throws IOException {
+        File file = fileOf(hash);
+        if(file.exists()) {
+            return;
+        }
+        directory.mkdirs();
+        File temp = new File(directory, hash + ".tmp" + Thread.currentThread().getId());
+        try (FileOutputStream fos = new FileOutputStream(temp)) {
+            fos.write(data);
+        }
+        if(!temp.renameTo(file) && !file.exists()) {
+            temp.delete();
+            throw new IOException("failed to store blob " + hash);
+        }
+        temp.delete(); // 其他线程已写入相同内容时重命名失败
+    }
+
+    // 读取内容，不存在时返回null
+    public static byte[] read(String hash) throws IOException {
+        File file = fileOf(hash);
+        return file.exists() ? readFile(file) : null;
+    }
+
+    // 读取整个文件（FileInputStream.available()不保证返回文件的全部长度）
+    public static byte[] readFile(File file) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int offset = 0;
+            while(offset < data.length) {
+                int count = fis.read(data, offset, data.length - offset);
+                if(count < 0) {
+                    throw new IOException("unexpected end of " + file.getName());
+                }
+                offset += count;
+            }
+            return data;
+        }
+    }
+
+    public static void delete(String hash) {
+        fileOf(hash).delete();
+    }
+
+    // 列出所有已保存内容的键
+    public static String[] list() {
+        String[] names = directory.list();
+        return names == null ? new String[0] : names;
+    }
+
+    public static void deleteAll() {
+        for(String name : list()) {
+            new File(directory, name).delete();
+        }
+    }
+}
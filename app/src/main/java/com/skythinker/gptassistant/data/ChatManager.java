@@ -6,7 +6,6 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.util.Base64;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -15,15 +14,21 @@ import androidx.annotation.Nullable;
 import com.unfbx.chatgpt.entity.assistant.Tool;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.UUID;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
-import cn.hutool.crypto.digest.MD5;
 import cn.hutool.json.JSONArray;
 import cn.hutool.json.JSONObject;
 
@@ -33,7 +38,10 @@ public class ChatManager{
     // 用于存储一条聊天消息
     public static class ChatMessage {
         static private Context context;
-        static public void setContext(Context context) { ChatMessage.context = context; }
+        static public void setContext(Context context) {
+            ChatMessage.context = context;
+            BlobStore.setDirectory(new File(context.getFilesDir(), "blobs"));
+        }
 
         // 用于标记消息的角色
         public enum ChatRole {
@@ -53,29 +61,41 @@ public class ChatManager{
         }
 
         public static class Attachment {
-            public String uuid;
+            public String uuid; // 旧版本附件的文件名，内容迁移到BlobStore前使用
+            public String hash; // 内容的SHA-256，即在BlobStore中的键
             public enum Type {
                 IMAGE,
                 TEXT,
             }
             public Type type;
             public String name;
-            public String content;
+            private volatile byte[] data = null; // 图片的原始字节（JPEG），发送时才编码为base64
+            private volatile String text = null; // 文本附件的内容
+            private volatile boolean fileLoaded = false; // 从数据库读取的附件在首次使用时才从文件加载
 
-            public static Attachment createNew(Type type, String name, String content, boolean saveFile) { // 创建一个新的附件
+            public static Attachment createNew(Type type, String name, byte[] data, boolean saveFile) { // 创建一个新的附件
                 Attachment attachment = new Attachment();
-                attachment.uuid = UUID.randomUUID().toString();
                 attachment.type = type;
                 attachment.name = name;
-                attachment.content = content;
+                attachment.hash = BlobStore.hashOf(data);
+                if(type == Type.TEXT) {
+                    attachment.text = new String(data, StandardCharsets.UTF_8);
+                } else {
+                    attachment.data = data;
+                }
+                attachment.fileLoaded = true;
                 if(saveFile) {
                     attachment.saveFile();
                 }
                 return attachment;
             }
+            public static Attachment createNew(Type type, String name, String content, boolean saveFile) {
+                return createNew(type, name, content.getBytes(StandardCharsets.UTF_8), saveFile);
+            }
 
-            public static Attachment loadExist(String uuid, String name, Type type, boolean loadFile) { // 加载已有附件
+            public static Attachment loadExist(String hash, String uuid, String name, Type type, boolean loadFile) { // 加载已有附件
                 Attachment attachment = new Attachment();
+                attachment.hash = hash;
                 attachment.uuid = uuid;
                 attachment.name = name;
                 attachment.type = type;
@@ -85,6 +105,7 @@ public class ChatManager{
                 return attachment;
             }
 
+            // 旧版本附件文件所在的目录
             public static String getDirPath(Type type) {
                 if(type == Type.IMAGE) {
                     return context.getFilesDir().getAbsolutePath() + "/images/";
@@ -96,6 +117,7 @@ public class ChatManager{
 
             public static Attachment fromJson(JSONObject json, boolean loadFile) { // 从json中读取附件
                 return loadExist(
+                        json.getStr("hash", null),
                         json.getStr("uuid", null),
                         json.getStr("name", null),
                         Type.valueOf(json.getStr("type", "TEXT")),
@@ -105,13 +127,19 @@ public class ChatManager{
 
             public JSONObject toJson() { // 将附件转换为json
                 JSONObject json = new JSONObject();
-                json.putOpt("uuid", uuid)
+                json.putOpt("hash", hash)
+                    .putOpt("uuid", hash == null ? uuid : null)
                     .putOpt("name", name)
                     .putOpt("type", type.name());
                 return json;
             }
 
-            private String getFilePath() {
+            // 附件内容的标识，用于判断附件是否改变；旧版本附件保存后仍使用uuid，使已有的缓存和摘要保持有效
+            public String getKey() {
+                return uuid != null ? uuid : hash;
+            }
+
+            String getLegacyFilePath() {
                 if(type == Type.IMAGE) {
                     return getDirPath(type) + uuid + ".jpg";
                 } else if(type == Type.TEXT) {
@@ -120,47 +148,85 @@ public class ChatManager{
                 return null;
             }
 
+            // 将内容写入BlobStore（相同内容已存在时跳过），旧版本附件在此时计算hash
             public void saveFile() {
                 try {
-                    File file = new File(getFilePath());
-                    if(!file.exists()) {
-                        file.getParentFile().mkdirs();
-                        file.createNewFile();
-                        FileOutputStream fos = new FileOutputStream(file);
-                        if(type == Type.IMAGE) {
-                            fos.write(Base64.decode(content, Base64.NO_WRAP));
-                        } else if(type == Type.TEXT) {
-                            fos.write(content.getBytes());
+                    if(hash != null && BlobStore.exists(hash)) {
+                        return;
+                    }
+                    byte[] bytes = getBytes();
+                    if(bytes != null) {
+                        if(hash == null) {
+                            hash = BlobStore.hashOf(bytes);
                         }
+                        BlobStore.put(hash, bytes);
                     }
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
             }
 
+            // 获取原始字节（图片为JPEG，文本为UTF-8），尚未加载时从文件读取
+            public byte[] getBytes() {
+                ensureLoaded();
+                if(type == Type.TEXT) {
+                    return text == null ? null : text.getBytes(StandardCharsets.UTF_8);
+                }
+                return data;
+            }
+
+            // 获取文本附件的内容，尚未加载时从文件读取；图片附件返回null，使用getBytes()
+            public String getContent() {
+                ensureLoaded();
+                return text;
+            }
+
+            private void ensureLoaded() {
+                if(!fileLoaded) {
+                    synchronized (this) {
+                        if(!fileLoaded) {
+                            loadFile();
+                        }
+                    }
+                }
+            }
+
             public void loadFile() {
                 try {
-                    File file = new File(getFilePath());
-                    if(file.exists()) {
-                        FileInputStream fis = new FileInputStream(file);
-                        byte[] buffer = new byte[fis.available()];
-                        fis.read(buffer);
-                        if(type == Type.IMAGE) {
-                            content = Base64.encodeToString(buffer, Base64.NO_WRAP);
-                        } else if(type == Type.TEXT) {
-                            content = new String(buffer);
+                    byte[] bytes = null;
+                    if(hash != null) {
+                        bytes = BlobStore.read(hash);
+                    }
+                    if(bytes == null && uuid != null) { // 尚未迁移的旧版本附件
+                        File file = new File(getLegacyFilePath());
+                        if(file.exists()) {
+                            bytes = BlobStore.readFile(file);
+                        }
+                    }
+                    if(bytes != null) {
+                        if(type == Type.TEXT) {
+                            text = new String(bytes, StandardCharsets.UTF_8);
+                        } else {
+                            data = bytes;
                         }
                     }
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
+                fileLoaded = true;
             }
 
-            public void deleteFile() {
-                File file = new File(getFilePath());
-                if(file.exists()) {
-                    file.delete();
-                }
+            // 复制附件，内容不可变，直接共用
+            public Attachment copy() {
+                Attachment copy = new Attachment();
+                copy.uuid = uuid;
+                copy.hash = hash;
+                copy.type = type;
+                copy.name = name;
+                copy.data = data;
+                copy.text = text;
+                copy.fileLoaded = fileLoaded;
+                return copy;
             }
         }
 
@@ -191,10 +257,34 @@ public class ChatManager{
             }
         }
 
+        // 请求编码缓存，由ChatRequestEncoder读写（不持久化），克隆出的消息共享同一个缓存对象
+        public static class EncodeCache {
+            public Object latest, previous;
+        }
+
+        // token计数缓存，由TokenCounter读写（不持久化），克隆出的消息共享同一个缓存对象
+        public static class TokenCountCache {
+            public Object[] fingerprint; // 计数时消息各字段的引用
+            public Object estimator; // 计数使用的分词器或估算器，词表载入后重新计数
+            public int count;
+        }
+
+        // 屏蔽函数结果后的副本缓存，由MessageView读写（不持久化），克隆出的消息共享同一个缓存对象
+        public static class MaskCache {
+            public Object[] fingerprint; // 生成副本时消息各字段的引用
+            public ChatMessage masked;
+        }
+
         public ChatRole role;
         public String contentText;
+        public String reasoningText; // 思维链内容，不会发送给GPT
         public ArrayList<Attachment> attachments;
         public ArrayList<ToolCall> toolCalls;
+        public EncodeCache encodeCache = new EncodeCache();
+        public TokenCountCache tokenCountCache = new TokenCountCache();
+        public MaskCache maskCache = new MaskCache();
+        public long seq = -1; // 在消息表中的序号，未保存时为-1
+        public String savedDigest = null; // 最后一次保存的消息JSON的SHA-256，用于判断已保存的消息是否被修改
 
         public ChatMessage(ChatRole role) {
             this.role = role;
@@ -207,6 +297,11 @@ public class ChatManager{
             return this;
         }
 
+        public ChatMessage setReasoning(String reasoning) {
+            this.reasoningText = reasoning;
+            return this;
+        }
+
         public ChatMessage addFunctionCall(String toolId, String functionName, String arguments, String content) {
             ToolCall toolCall = new ToolCall();
             toolCall.id = toolId;
@@ -227,24 +322,6 @@ public class ChatManager{
             return this;
         }
 
-        // 删除指定的附件
-        void deleteAttachment(Attachment attachment) {
-            if(attachments != null) {
-                attachment.deleteFile();
-                attachments.remove(attachment);
-            }
-        }
-
-        // 删除所有附件
-        void deleteAllAttachments() {
-            if(attachments != null) {
-                for(Attachment attachment : attachments) {
-                    attachment.deleteFile();
-                }
-                attachments.clear();
-            }
-        }
-
         // 将消息转换为json
         public JSONObject toJson() {
             JSONArray attachmentsJson = new JSONArray();
@@ -259,6 +336,9 @@ public class ChatManager{
             JSONObject json = new JSONObject();
             json.putOpt("role", role.name())
                     .putOpt("text", contentText);
+            if(reasoningText != null && !reasoningText.isEmpty()) {
+                json.putOpt("reasoning", reasoningText);
+            }
             if(toolCalls.size() > 0) {
                 json.putOpt("tools", toolCallsJson);
             }
@@ -271,8 +351,9 @@ public class ChatManager{
         public static ChatMessage fromJson(JSONObject json, boolean loadFiles) {
             ChatMessage msg = new ChatMessage(ChatRole.fromName(json.getStr("role", "USER")));
             msg.contentText = json.getStr("text", null);
+            msg.reasoningText = json.getStr("reasoning", null);
             if(json.containsKey("image")) { // 历史遗留，旧版本仅能添加一张图片
-                msg.addAttachment(Attachment.loadExist(json.getStr("image", null), null, Attachment.Type.IMAGE, loadFiles));
+                msg.addAttachment(Attachment.loadExist(null, json.getStr("image", null), null, Attachment.Type.IMAGE, loadFiles));
             } else {
                 JSONArray attachmentsJson = json.getJSONArray("attachments");
                 if(attachmentsJson != null) {
@@ -295,17 +376,33 @@ public class ChatManager{
             return msg;
         }
 
+        // 将旧版本保存在回复开头的“<think>...</think>”拆分到reasoning字段，有修改时返回true
+        static boolean splitLegacyReasoning(JSONObject json) {
+            String text = json.getStr("text", null);
+            if(!"ASSISTANT".equals(json.getStr("role", null)) || text == null || !text.startsWith("<think>\n")) {
+                return false;
+            }
+            int end = text.indexOf("\n</think>\n");
+            if(end == -1) { // 回复在思考过程中被中断
+                json.putOpt("reasoning", text.substring("<think>\n".length()));
+                json.putOpt("text", "");
+            } else {
+                json.putOpt("reasoning", text.substring("<think>\n".length(), end));
+                json.putOpt("text", text.substring(end + "\n</think>\n".length()));
+            }
+            return true;
+        }
+
         @NonNull
         public ChatMessage clone() {
             ChatMessage clone = new ChatMessage(this.role);
             clone.contentText = this.contentText;
+            clone.reasoningText = this.reasoningText;
+            clone.encodeCache = this.encodeCache;
+            clone.tokenCountCache = this.tokenCountCache;
+            clone.maskCache = this.maskCache;
             for(Attachment attachment : this.attachments) {
-                Attachment newAttachment = new Attachment();
-                newAttachment.uuid = attachment.uuid;
-                newAttachment.type = attachment.type;
-                newAttachment.name = attachment.name;
-                newAttachment.content = attachment.content;
-                clone.attachments.add(newAttachment);
+                clone.attachments.add(attachment.copy());
             }
             for(ToolCall toolCall : this.toolCalls) {
                 ToolCall newToolCall = new ToolCall();
@@ -322,12 +419,6 @@ public class ChatManager{
     // 用于存储一轮对话中的一组聊天消息
     public static class MessageList extends ArrayList<ChatMessage> {
 
-        public void deteteAllAttachments() {
-            for(ChatMessage msg : this) {
-                msg.deleteAllAttachments();
-            }
-        }
-
         public JSONArray toJson() {
             JSONArray json = new JSONArray();
             for(ChatMessage msg : this) {
@@ -345,12 +436,66 @@ public class ChatManager{
         }
     }
 
+    // 对话开头若干条消息的滚动摘要，由ContextSummarizer生成，发送请求时代替被覆盖的消息
+    public static class Summary {
+        public String text = "";
+        public int messageCount = 0; // 覆盖的消息数（从对话开头起）
+        public long fingerprint = 0; // 被覆盖消息的指纹，这些消息被修改或删除后摘要失效
+
+        public Summary() { }
+
+        public Summary(String text, List<ChatMessage> messages, int messageCount) {
+            this.text = text;
+            this.messageCount = messageCount;
+            this.fingerprint = fingerprintOf(messages, messageCount);
+        }
+
+        // 摘要是否仍与消息列表的开头一致
+        public boolean matches(List<ChatMessage> messages) {
+            return messageCount > 0 && messageCount <= messages.size() && fingerprint == fingerprintOf(messages, messageCount);
+        }
+
+        // 计算前count条消息的指纹（角色、文本和函数调用），不含函数结果内容，发送时被屏蔽的结果不影响摘要
+        public static long fingerprintOf(List<ChatMessage> messages, int count) {
+            long hash = 17;
+            for(int i = 0; i < count; i++) {
+                ChatMessage message = messages.get(i);
+                hash = hash * 31 + message.role.ordinal();
+                hash = hash * 31 + Objects.hashCode(message.contentText);
+                for(ChatMessage.ToolCall toolCall : message.toolCalls) {
+                    hash = hash * 31 + Objects.hash(toolCall.id, toolCall.functionName, toolCall.arguments);
+                }
+                for(ChatMessage.Attachment attachment : message.attachments) {
+                    hash = hash * 31 + Objects.hashCode(attachment.getKey());
+                }
+            }
+            return hash;
+        }
+
+        public JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            json.putOpt("text", text)
+                    .putOpt("count", messageCount)
+                    .putOpt("fingerprint", fingerprint);
+            return json;
+        }
+
+        public static Summary fromJson(JSONObject json) {
+            Summary summary = new Summary();
+            summary.text = json.getStr("text", "");
+            summary.messageCount = json.getInt("count", 0);
+            summary.fingerprint = json.getLong("fingerprint", 0L);
+            return summary;
+        }
+    }
+
     // 一轮聊天的信息
     public static class Conversation {
         public long id;
         public LocalDateTime time;
         public String title;
         public MessageList messages;
+        public Summary summary = null; // 较早消息的摘要，未开启摘要或历史较短时为null
         public Conversation() {
             id = -1;
             time = LocalDateTime.now();
@@ -362,11 +507,35 @@ public class ChatManager{
         }
     }
 
+    // 会话的摘要信息，用于历史列表显示，读取时不解析消息
+    public static class ConversationHeader {
+        private static final int PREVIEW_LENGTH = 100;
+        public long id;
+        public LocalDateTime time;
+        public String title;
+        public String preview; // 第一条回复的开头
+        public int messageCount;
+        public String snippet = null; // 搜索结果中匹配内容的摘录，匹配部分以SearchIndex.HIGHLIGHT_START/HIGHLIGHT_END标记，未搜索时为null
+
+        // 根据消息列表计算预览文本
+        public static String previewOf(List<ChatMessage> messages) {
+            for(ChatMessage message : messages) {
+                if(message.role == ChatMessage.ChatRole.ASSISTANT && message.toolCalls.isEmpty() && message.contentText != null) {
+                    String text = message.contentText.replace('\n', ' ');
+                    return text.length() > PREVIEW_LENGTH ? text.substring(0, PREVIEW_LENGTH) : text;
+                }
+            }
+            return "";
+        }
+    }
+
     // 数据库管理器
-    private class DatabaseHelper extends SQLiteOpenHelper {
+    private static class DatabaseHelper extends SQLiteOpenHelper {
         final static private String databaseName = "chat.db";
         final static private String tableName = "conversations";
-        final static private int version = 1;
+        final static private String messageTableName = "messages"; // 每条消息一行，按(会话ID, 序号)排列
+        final static private String blobTableName = "blobs"; // 附件内容的引用计数，见BlobStore
+        final static private int version = 7; // v2: 思维链从回复内容中拆分为单独的字段; v3: 添加对话摘要字段; v4: 消息移至单独的消息表; v5: 添加预览和消息数字段; v6: 添加全文搜索索引; v7: 附件移至BlobStore
         public DatabaseHelper(Context context) {
             super(context, databaseName, null, version);
         }
@@ -377,53 +546,189 @@ public class ChatManager{
                     "id INTEGER PRIMARY KEY AUTOINCREMENT," +
                     "time TEXT," +
                     "title TEXT," +
-                    "messages TEXT" +
+                    "messages TEXT," + // 旧版本整段保存的消息JSON，迁移到消息表后为NULL
+                    "summary TEXT," +
+                    "preview TEXT," +
+                    "message_count INTEGER," + // 为NULL时预览和消息数尚未计算
+                    "search_indexed INTEGER," + // 为NULL时尚未写入全文搜索索引
+                    "blobs_migrated INTEGER" + // 为NULL时附件尚未迁移到BlobStore并计入引用计数
                     ");";
             sqLiteDatabase.execSQL(sql);
+            createMessageTable(sqLiteDatabase);
+            SearchIndex.createTable(sqLiteDatabase);
+            createBlobTable(sqLiteDatabase);
         }
 
         @Override
-        public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) { }
+        public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+            if(oldVersion < 2) {
+                migrateLegacyReasoning(sqLiteDatabase);
+            }
+            if(oldVersion < 3) {
+                sqLiteDatabase.execSQL("ALTER TABLE " + tableName + " ADD COLUMN summary TEXT");
+            }
+            if(oldVersion < 4) { // 已有的消息在后台逐个会话迁移，见migrateLegacyMessages()
+                createMessageTable(sqLiteDatabase);
+            }
+            if(oldVersion < 5) { // 预览和消息数同样在后台迁移时计算
+                sqLiteDatabase.execSQL("ALTER TABLE " + tableName + " ADD COLUMN preview TEXT");
+                sqLiteDatabase.execSQL("ALTER TABLE " + tableName + " ADD COLUMN message_count INTEGER");
+            }
+            if(oldVersion < 6) { // 已有的会话在后台迁移时写入索引
+                sqLiteDatabase.execSQL("ALTER TABLE " + tableName + " ADD COLUMN search_indexed INTEGER");
+                SearchIndex.createTable(sqLiteDatabase);
+            }
+            if(oldVersion < 7) { // 已有的附件文件在后台迁移时写入BlobStore
+                sqLiteDatabase.execSQL("ALTER TABLE " + tableName + " ADD COLUMN blobs_migrated INTEGER");
+                createBlobTable(sqLiteDatabase);
+            }
+        }
+
+        private void createBlobTable(SQLiteDatabase sqLiteDatabase) {
+            sqLiteDatabase.execSQL("CREATE TABLE " + blobTableName + " (hash TEXT PRIMARY KEY, refs INTEGER NOT NULL)");
+        }
+
+        private void createMessageTable(SQLiteDatabase sqLiteDatabase) {
+            String sql = "CREATE TABLE " + messageTableName + " (" +
+                    "conversation_id INTEGER NOT NULL," +
+                    "seq INTEGER NOT NULL," +
+                    "role TEXT," +
+                    "data TEXT," + // 消息JSON
+                    "PRIMARY KEY (conversation_id, seq)" +
+                    ");";
+            sqLiteDatabase.execSQL(sql);
+        }
+
+        // 将旧版本回复中的<think>内容迁移到reasoning字段
+        private void migrateLegacyReasoning(SQLiteDatabase sqLiteDatabase) {
+            Cursor cursor = sqLiteDatabase.query(tableName, new String[]{"id", "messages"}, "messages LIKE ?", new String[]{"%<think>%"}, null, null, null);
+            while(cursor.moveToNext()) {
+                JSONArray messages = new JSONArray(cursor.getString(cursor.getColumnIndex("messages")));
+                boolean changed = false;
+                for(int i = 0; i < messages.size(); i++) {
+                    changed |= ChatMessage.splitLegacyReasoning(messages.getJSONObject(i));
+                }
+                if(changed) {
+                    ContentValues values = new ContentValues();
+                    values.put("messages", messages.toString());
+                    sqLiteDatabase.update(tableName, values, "id=?", new String[]{String.valueOf(cursor.getLong(cursor.getColumnIndex("id")))});
+                }
+            }
+            cursor.close();
+        }
     }
 
-    private DatabaseHelper dbHelper;
+    private static DatabaseHelper dbHelper = null; // 本进程的所有实例共用同一个数据库连接，保持打开直到进程结束
+    private static final ExecutorService migrationExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ChatManager-migration");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final AtomicBoolean migrationStarted = new AtomicBoolean(false); // 本进程是否已开始后台迁移
     private SQLiteDatabase db;
+    private SearchIndex searchIndex;
+    private static final AtomicLong cachedCount = new AtomicLong(-1); // 会话总数，各实例共用同一数据库，-1表示尚未查询
+    private static final long ORPHAN_BLOB_AGE_MS = 60 * 60 * 1000; // 未被引用的附件文件保留的时间，给尚未保存的新附件留出余量
 
     public ChatManager(Context context) {
-        dbHelper = new DatabaseHelper(context);
-        db = dbHelper.getWritableDatabase();
+        ChatMessage.setContext(context.getApplicationContext()); // 后台迁移需要读写附件文件
+        db = openDatabase(context);
+        searchIndex = new SearchIndex(db, DatabaseHelper.messageTableName);
+        if(migrationStarted.compareAndSet(false, true)) { // 每个进程只在一个后台线程中迁移一次
+            migrationExecutor.execute(this::migrateLegacyMessages);
+        }
     }
 
-    public void destroy() { db.close(); }
+    private static synchronized SQLiteDatabase openDatabase(Context context) {
+        if(dbHelper == null) {
+            dbHelper = new DatabaseHelper(context.getApplicationContext());
+        }
+        return dbHelper.getWritableDatabase();
+    }
 
     // 转义like语句中的特殊字符
     private String escapeLikeText(String text) {
         return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
     }
 
-    // 获取数据库会话数量
+    // 获取数据库会话数量，不筛选时使用缓存的总数，插入和删除会话时更新
     public long getConversationCount(String filterTitleText) {
+        if(filterTitleText == null && cachedCount.get() >= 0) {
+            return cachedCount.get();
+        }
         String selection = (filterTitleText == null) ? null : "title LIKE ? ESCAPE '\\'";
         String[] selectionArgs = (filterTitleText == null) ? null : new String[]{"%" + escapeLikeText(filterTitleText) + "%"};
         Cursor cursor = db.query(DatabaseHelper.tableName, new String[]{"COUNT(*)"}, selection, selectionArgs, null, null, null);
         cursor.moveToFirst();
-        return cursor.getLong(0);
+        long count = cursor.getLong(0);
+        cursor.close();
+        if(filterTitleText == null) {
+            cachedCount.set(count);
+        }
+        return count;
     }
     public long getConversationCount() {
         return getConversationCount(null);
     }
 
+    // 更新缓存的会话总数，尚未查询时不变
+    private static void adjustCachedCount(long delta) {
+        cachedCount.updateAndGet(count -> count < 0 ? count : Math.max(0, count + delta));
+    }
+
     // 从数据库游标中读取会话信息
     private Conversation getConversationByCursor(Cursor cursor, boolean loadImages) {
         Conversation conversation = new Conversation();
         conversation.id = cursor.getLong(cursor.getColumnIndex("id"));
         conversation.time = LocalDateTime.parse(cursor.getString(cursor.getColumnIndex("time")), DateTimeFormatter.ISO_LOCAL_DATE_TIME);
         conversation.title = cursor.getString(cursor.getColumnIndex("title"));
-        conversation.messages = MessageList.fromJson(new JSONArray(cursor.getString(cursor.getColumnIndex("messages"))), loadImages);
+        String legacyMessages = cursor.getString(cursor.getColumnIndex("messages"));
+        if(legacyMessages != null) { // 尚未迁移到消息表，保存时再写入消息表
+            conversation.messages = MessageList.fromJson(new JSONArray(legacyMessages), loadImages);
+        } else {
+            conversation.messages = getMessages(conversation.id, loadImages);
+        }
+        String summary = cursor.getString(cursor.getColumnIndex("summary"));
+        if(summary != null) {
+            conversation.summary = Summary.fromJson(new JSONObject(summary));
+        }
         return conversation;
     }
     private Conversation getConversationByCursor(Cursor cursor) {
-        return getConversationByCursor(cursor, true);
+        return getConversationByCursor(cursor, false); // 附件内容在显示或发送时才加载
+    }
+
+    private static final String[] headerColumns = new String[]{"id", "time", "title", "preview", "message_count"};
+
+    // 从数据库游标中读取会话摘要信息，游标需包含headerColumns中的列
+    private ConversationHeader getHeaderByCursor(Cursor cursor) {
+        ConversationHeader header = new ConversationHeader();
+        header.id = cursor.getLong(cursor.getColumnIndex("id"));
+        header.time = LocalDateTime.parse(cursor.getString(cursor.getColumnIndex("time")), DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+        header.title = cursor.getString(cursor.getColumnIndex("title"));
+        if(cursor.isNull(cursor.getColumnIndex("message_count"))) { // 旧版本的会话尚未在后台计算预览，先不显示，不为此解析消息
+            header.preview = "";
+            header.messageCount = 0;
+        } else {
+            header.preview = cursor.getString(cursor.getColumnIndex("preview"));
+            header.messageCount = cursor.getInt(cursor.getColumnIndex("message_count"));
+        }
+        return header;
+    }
+
+    // 从消息表中按序号读取会话的所有消息
+    private MessageList getMessages(long conversationId, boolean loadImages) {
+        MessageList messages = new MessageList();
+        Cursor cursor = db.query(DatabaseHelper.messageTableName, new String[]{"seq", "data"}, "conversation_id=?",
+                new String[]{String.valueOf(conversationId)}, null, null, "seq");
+        while(cursor.moveToNext()) {
+            ChatMessage message = ChatMessage.fromJson(new JSONObject(cursor.getString(1)), loadImages);
+            message.seq = cursor.getLong(0);
+            message.savedDigest = digestOf(cursor.getString(1));
+            messages.add(message);
+        }
+        cursor.close();
+        return messages;
     }
 
     // 根据会话ID获取会话
@@ -449,6 +754,17 @@ public class ChatManager{
         return getConversationAtPosition(position, null);
     }
 
+    // 按ID倒序获取ID小于beforeId的最多limit个会话的摘要信息（键集分页，不随页数增加而变慢），不读取消息
+    public List<ConversationHeader> getHeaders(long beforeId, int limit) {
+        Cursor cursor = db.query(DatabaseHelper.tableName, headerColumns, "id<?", new String[]{String.valueOf(beforeId)}, null, null, "id DESC", String.valueOf(limit));
+        List<ConversationHeader> headers = new ArrayList<>();
+        while(cursor.moveToNext()) {
+            headers.add(getHeaderByCursor(cursor));
+        }
+        cursor.close();
+        return headers;
+    }
+
     // 获取所有会话（按时间倒序）
     public List<Conversation> getAllConversations() {
         Cursor cursor = db.query(DatabaseHelper.tableName, null, null, null, null, null, "id DESC");
@@ -460,50 +776,425 @@ public class ChatManager{
         return conversations;
     }
 
-    // 添加会话到数据库
-    public long addConversation(Conversation conversation) {
+    // 全文搜索会话标题和内容，按相关度排序返回最多limit个会话的摘要信息（含匹配内容的摘录）
+    public List<ConversationHeader> searchConversations(String keyword, int limit) {
+        List<SearchIndex.Hit> hits = searchIndex.search(keyword, limit);
+        if(hits.isEmpty()) {
+            return new ArrayList<>();
+        }
+        StringBuilder placeholders = new StringBuilder();
+        String[] args = new String[hits.size()];
+        for(int i = 0; i < hits.size(); i++) {
+            placeholders.append(i == 0 ? "?" : ",?");
+            args[i] = String.valueOf(hits.get(i).conversationId);
+        }
+        Map<Long, ConversationHeader> headers = new HashMap<>();
+        Cursor cursor = db.query(DatabaseHelper.tableName, headerColumns, "id IN (" + placeholders + ")", args, null, null, null);
+        while(cursor.moveToNext()) {
+            ConversationHeader header = getHeaderByCursor(cursor);
+            headers.put(header.id, header);
+        }
+        cursor.close();
+        List<ConversationHeader> result = new ArrayList<>();
+        for(SearchIndex.Hit hit : hits) {
+            ConversationHeader header = headers.get(hit.conversationId);
+            if(header != null) {
+                header.snippet = hit.snippet;
+                result.add(header);
+            }
+        }
+        return result;
+    }
+
+    // 保存会话：新会话插入所有消息；已保存的会话只插入新增的消息、更新被修改的消息、删除被移除的消息，
+    // 未改动的消息不会重新序列化和写入
+    public long saveConversation(Conversation conversation) {
         ContentValues values = new ContentValues();
         values.put("time", conversation.time.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
         values.put("title", conversation.title);
-        values.put("messages", conversation.messages.toJson().toString());
-        conversation.id = db.insert(DatabaseHelper.tableName, null, values);
+        values.putNull("messages");
+        values.put("summary", conversation.summary == null ? null : conversation.summary.toJson().toString());
+        values.put("preview", ConversationHeader.previewOf(conversation.messages));
+        values.put("message_count", conversation.messages.size());
+        Set<String> released = new HashSet<>(); // 引用计数减少的附件
+        db.beginTransaction();
+        try {
+            if(conversation.id == -1 || db.update(DatabaseHelper.tableName, values, "id=?", new String[]{String.valueOf(conversation.id)}) == 0) { // 新会话或已从历史中删除
+                values.put("search_indexed", 1);
+                values.put("blobs_migrated", 1);
+                conversation.id = db.insert(DatabaseHelper.tableName, null, values);
+                adjustCachedCount(1);
+                for(ChatMessage message : conversation.messages) {
+                    message.seq = -1;
+                }
+            } else {
+                migrateBlobs(conversation.id); // 先将已保存的消息中的旧版本附件计入引用计数
+            }
+            saveMessages(conversation.id, conversation.messages, released);
+            searchIndex.indexTitle(conversation.id, conversation.title);
+            deleteUnreferencedBlobs(released);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
         return conversation.id;
     }
-
+    public long addConversation(Conversation conversation) {
+        conversation.id = -1;
+        return saveConversation(conversation);
+    }
     public void updateConversation(Conversation conversation) {
+        saveConversation(conversation);
+    }
+
+    // 将消息列表与消息表中已保存的行对比，只写入有变化的行，同时更新这些行的搜索索引和附件的引用计数
+    private void saveMessages(long conversationId, List<ChatMessage> messages, Set<String> released) {
+        String[] idArgs = new String[]{String.valueOf(conversationId)};
+        Map<Long, Long> storedRows = new HashMap<>(); // 序号 -> rowid
+        long maxSeq = -1;
+        Cursor cursor = db.query(DatabaseHelper.messageTableName, new String[]{"seq", "rowid"}, "conversation_id=?", idArgs, null, null, null);
+        while(cursor.moveToNext()) {
+            storedRows.put(cursor.getLong(0), cursor.getLong(1));
+            maxSeq = Math.max(maxSeq, cursor.getLong(0));
+        }
+        cursor.close();
+        Set<Long> storedSeqs = storedRows.keySet();
+
+        // 新消息只能追加在已保存的消息之后，已保存的消息顺序改变或在其间插入了消息时重写全部消息
+        boolean appendOnly = true, foundNew = false;
+        long lastSeq = -1;
+        for(ChatMessage message : messages) {
+            if(storedSeqs.contains(message.seq)) {
+                if(foundNew || message.seq <= lastSeq) {
+                    appendOnly = false;
+                    break;
+                }
+                lastSeq = message.seq;
+            } else {
+                foundNew = true;
+            }
+        }
+        if(!appendOnly) {
+            for(long rowId : storedRows.values()) {
+                searchIndex.remove(rowId);
+                changeBlobRefs(getStoredBlobHashes(rowId), -1, released);
+            }
+            db.delete(DatabaseHelper.messageTableName, "conversation_id=?", idArgs);
+            storedRows.clear();
+        }
+
+        Set<Long> keptSeqs = new HashSet<>();
+        for(ChatMessage message : messages) {
+            JSONObject json = message.toJson();
+            String data = json.toString();
+            String digest = digestOf(data);
+            if(storedSeqs.contains(message.seq)) {
+                keptSeqs.add(message.seq);
+                if(!digest.equals(message.savedDigest)) { // 已保存的消息被修改
+                    long rowId = storedRows.get(message.seq);
+                    changeBlobRefs(getStoredBlobHashes(rowId), -1, released);
+                    changeBlobRefs(blobHashesOf(json), 1, released);
+                    ContentValues values = new ContentValues();
+                    values.put("role", message.role.name());
+                    values.put("data", data);
+                    db.update(DatabaseHelper.messageTableName, values, "conversation_id=? AND seq=?",
+                            new String[]{String.valueOf(conversationId), String.valueOf(message.seq)});
+                    searchIndex.indexMessage(rowId, message);
+                }
+            } else {
+                message.seq = ++maxSeq;
+                changeBlobRefs(blobHashesOf(json), 1, released);
+                long rowId = insertMessageRow(conversationId, message.seq, message.role.name(), data);
+                searchIndex.indexMessage(rowId, message);
+            }
+            message.savedDigest = digest;
+        }
+        for(long seq : storedSeqs) { // 已被移除的消息
+            if(!keptSeqs.contains(seq)) {
+                searchIndex.remove(storedRows.get(seq));
+                changeBlobRefs(getStoredBlobHashes(storedRows.get(seq)), -1, released);
+                db.delete(DatabaseHelper.messageTableName, "conversation_id=? AND seq=?",
+                        new String[]{String.valueOf(conversationId), String.valueOf(seq)});
+            }
+        }
+    }
+
+    // 消息JSON的SHA-256
+    private static String digestOf(String data) {
+        return BlobStore.hashOf(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private long insertMessageRow(long conversationId, long seq, String role, String data) {
         ContentValues values = new ContentValues();
-        values.put("time", conversation.time.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
-        values.put("title", conversation.title);
-        values.put("messages", conversation.messages.toJson().toString());
-        db.update(DatabaseHelper.tableName, values, "id=?", new String[]{String.valueOf(conversation.id)});
+        values.put("conversation_id", conversationId);
+        values.put("seq", seq);
+        values.put("role", role);
+        values.put("data", data);
+        return db.insert(DatabaseHelper.messageTableName, null, values);
     }
 
-    // 删除指定的会话
-    public void removeConversation(long id) {
-        Cursor cursor = db.query(DatabaseHelper.tableName, null, "id=?", new String[]{String.valueOf(id)}, null, null, null);
-        if (cursor.moveToFirst()) {
-            Conversation conversation = getConversationByCursor(cursor, false);
-            conversation.messages.deteteAllAttachments();
+    // 消息JSON中引用的附件内容
+    private static List<String> blobHashesOf(JSONObject message) {
+        List<String> hashes = new ArrayList<>();
+        JSONArray attachments = message.getJSONArray("attachments");
+        if(attachments != null) {
+            for(int i = 0; i < attachments.size(); i++) {
+                String hash = attachments.getJSONObject(i).getStr("hash", null);
+                if(hash != null) {
+                    hashes.add(hash);
+                }
+            }
         }
-        db.delete(DatabaseHelper.tableName, "id=?", new String[]{String.valueOf(id)});
+        return hashes;
     }
-    public void removeConversation(Conversation conversation) { removeConversation(conversation.id); }
 
-    // 删除所有会话
-    public void removeAllConversations() {
+    // 消息表中一行引用的附件内容
+    private List<String> getStoredBlobHashes(long messageRowId) {
+        Cursor cursor = db.query(DatabaseHelper.messageTableName, new String[]{"data"}, "rowid=?", new String[]{String.valueOf(messageRowId)}, null, null, null);
+        List<String> hashes = cursor.moveToFirst() ? blobHashesOf(new JSONObject(cursor.getString(0))) : new ArrayList<>();
+        cursor.close();
+        return hashes;
+    }
+
+    // 增减附件的引用计数，减少的记录到released中（只增加时可为null），由deleteUnreferencedBlobs()检查是否已不再被引用
+    private void changeBlobRefs(List<String> hashes, int delta, Set<String> released) {
+        for(String hash : hashes) {
+            db.execSQL("INSERT OR IGNORE INTO " + DatabaseHelper.blobTableName + "(hash, refs) VALUES(?, 0)", new Object[]{hash});
+            db.execSQL("UPDATE " + DatabaseHelper.blobTableName + " SET refs=refs+? WHERE hash=?", new Object[]{delta, hash});
+            if(delta < 0) {
+                released.add(hash);
+            }
+        }
+    }
+
+    // 删除引用计数已归零的附件，需在事务中调用，使其他线程不会在检查和删除文件之间增加引用
+    private void deleteUnreferencedBlobs(Set<String> hashes) {
+        for(String hash : hashes) {
+            Cursor cursor = db.query(DatabaseHelper.blobTableName, new String[]{"refs"}, "hash=?", new String[]{hash}, null, null, null);
+            boolean unreferenced = !cursor.moveToFirst() || cursor.getLong(0) <= 0;
+            cursor.close();
+            if(unreferenced) {
+                db.delete(DatabaseHelper.blobTableName, "hash=?", new String[]{hash});
+                BlobStore.delete(hash);
+            }
+        }
+    }
+
+    // 会话的附件是否已迁移到BlobStore（不存在的会话视为已迁移）
+    private boolean isBlobsMigrated(long conversationId) {
+        Cursor cursor = db.query(DatabaseHelper.tableName, new String[]{"blobs_migrated"}, "id=?", new String[]{String.valueOf(conversationId)}, null, null, null);
+        boolean migrated = !cursor.moveToFirst() || !cursor.isNull(0);
+        cursor.close();
+        return migrated;
+    }
+
+    // 将一个会话中旧版本的附件文件写入BlobStore并计入引用计数，已迁移的会话直接返回，需在事务中调用
+    private void migrateBlobs(long conversationId) {
+        if(isBlobsMigrated(conversationId)) {
+            return;
+        }
+        String[] idArgs = new String[]{String.valueOf(conversationId)};
+        Cursor cursor = db.query(DatabaseHelper.messageTableName, new String[]{"rowid", "data"}, "conversation_id=? AND (data LIKE ? OR data LIKE ?)",
+                new String[]{idArgs[0], "%\"attachments\"%", "%\"image\"%"}, null, null, null); // 更早的版本使用image字段保存图片
+        while(cursor.moveToNext()) {
+            JSONObject json = new JSONObject(cursor.getString(1));
+            ChatMessage message = ChatMessage.fromJson(json, false);
+            JSONObject migratedJson = message.toJson(); // toJson()中将旧版本附件写入BlobStore，记录hash
+            changeBlobRefs(blobHashesOf(migratedJson), 1, null);
+            ContentValues values = new ContentValues();
+            values.put("data", migratedJson.toString());
+            db.update(DatabaseHelper.messageTableName, values, "rowid=?", new String[]{String.valueOf(cursor.getLong(0))});
+        }
+        cursor.close();
+        ContentValues values = new ContentValues();
+        values.put("blobs_migrated", 1);
+        db.update(DatabaseHelper.tableName, values, "id=?", idArgs);
+    }
+
+    // 旧版本附件全部迁移后删除原来的附件目录，只在进程中第一次检查时执行，此前读取的附件可能仍通过uuid从旧文件加载
+    private void deleteLegacyAttachmentDirs() {
         for(ChatMessage.Attachment.Type type : ChatMessage.Attachment.Type.values()) {
             File dir = new File(ChatMessage.Attachment.getDirPath(type));
-            if(dir.exists()) {
-                for(File file : dir.listFiles()) {
+            File[] files = dir.listFiles();
+            if(files != null) {
+                for(File file : files) {
                     file.delete();
                 }
             }
+            dir.delete();
+        }
+    }
+
+    // 删除没有被任何消息引用的附件文件（如添加后未发送的附件、写入中断留下的临时文件）
+    private void deleteOrphanBlobs() {
+        long deadline = System.currentTimeMillis() - ORPHAN_BLOB_AGE_MS;
+        db.beginTransaction();
+        try {
+            Set<String> referenced = new HashSet<>();
+            Cursor cursor = db.query(DatabaseHelper.blobTableName, new String[]{"hash"}, "refs>0", null, null, null, null);
+            while(cursor.moveToNext()) {
+                referenced.add(cursor.getString(0));
+            }
+            cursor.close();
+            for(String name : BlobStore.list()) {
+                File file = BlobStore.fileOf(name);
+                if(!referenced.contains(name) && file.lastModified() < deadline) {
+                    file.delete();
+                }
+            }
+            db.delete(DatabaseHelper.blobTableName, "refs<=0", null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // 重建一个会话的搜索索引
+    private void reindexConversation(long conversationId, String title) {
+        Cursor cursor = db.query(DatabaseHelper.messageTableName, new String[]{"rowid", "data"}, "conversation_id=?",
+                new String[]{String.valueOf(conversationId)}, null, null, null);
+        while(cursor.moveToNext()) {
+            searchIndex.indexMessage(cursor.getLong(0), ChatMessage.fromJson(new JSONObject(cursor.getString(1)), false));
+        }
+        cursor.close();
+        searchIndex.indexTitle(conversationId, title);
+    }
+
+    // 将会话移到历史列表的最前面（赋予新的最大ID），重新打开历史会话时使用
+    public void moveConversationToTop(Conversation conversation) {
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.rawQuery("SELECT MAX(id) FROM " + DatabaseHelper.tableName, null);
+            long maxId = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+            cursor.close();
+            if(conversation.id != -1 && conversation.id != maxId) {
+                String[] args = new String[]{String.valueOf(maxId + 1), String.valueOf(conversation.id)};
+                db.execSQL("UPDATE " + DatabaseHelper.tableName + " SET id=? WHERE id=?", args);
+                db.execSQL("UPDATE " + DatabaseHelper.messageTableName + " SET conversation_id=? WHERE conversation_id=?", args);
+                searchIndex.removeTitle(conversation.id); // 消息行的rowid不变，只需更新标题行
+                searchIndex.indexTitle(maxId + 1, conversation.title);
+                conversation.id = maxId + 1;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static final String legacySelection = "messages IS NOT NULL OR message_count IS NULL OR search_indexed IS NULL OR blobs_migrated IS NULL";
+
+    // 将旧版本保存在会话表中的整段消息JSON迁移到消息表，计算预览和消息数，写入搜索索引并将附件迁移到BlobStore，
+    // 每个进程只在一个后台线程中执行，与界面共用同一连接，逐个会话提交事务，其他操作最多等待一个会话迁移完成
+    private void migrateLegacyMessages() {
+        List<Long> ids = new ArrayList<>();
+        try {
+            Cursor cursor = db.query(DatabaseHelper.tableName, new String[]{"id"}, legacySelection, null, null, null, "id DESC");
+            while(cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+            cursor.close();
+            if(ids.isEmpty()) {
+                deleteLegacyAttachmentDirs();
+            }
+            deleteOrphanBlobs();
+            for(long id : ids) {
+                migrateLegacyMessages(id);
+            }
+        } catch (Exception e) { // 剩余的会话在下次启动时继续迁移
+            Log.w("ChatManager", "migrateLegacyMessages: " + e.getMessage());
+        }
+    }
+    private void migrateLegacyMessages(long id) {
+        String[] idArgs = new String[]{String.valueOf(id)};
+        db.beginTransaction();
+        try {
+            // 在事务中重新读取，会话可能已被保存或删除
+            Cursor cursor = db.query(DatabaseHelper.tableName, new String[]{"messages", "title"}, "id=? AND (" + legacySelection + ")", idArgs, null, null, null);
+            if(cursor.moveToFirst()) {
+                if(!cursor.isNull(0)) {
+                    JSONArray messages = new JSONArray(cursor.getString(0));
+                    db.delete(DatabaseHelper.messageTableName, "conversation_id=?", idArgs);
+                    for(int i = 0; i < messages.size(); i++) {
+                        JSONObject message = messages.getJSONObject(i);
+                        insertMessageRow(id, i, message.getStr("role", "USER"), message.toString());
+                    }
+                }
+                migrateBlobs(id);
+                MessageList messageList = getMessages(id, false);
+                ContentValues values = new ContentValues();
+                values.putNull("messages");
+                values.put("preview", ConversationHeader.previewOf(messageList));
+                values.put("message_count", messageList.size());
+                values.put("search_indexed", 1);
+                db.update(DatabaseHelper.tableName, values, "id=?", idArgs);
+                reindexConversation(id, cursor.getString(1));
+            }
+            cursor.close();
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            Log.e("ChatManager", "migrateLegacyMessages: conversation " + id + " " + e.getMessage());
+        } finally {
+            db.endTransaction();
         }
-        db.delete(DatabaseHelper.tableName, null, null);
+    }
+
+    // 删除指定的会话
+    public void removeConversation(long id) {
+        Set<String> released = new HashSet<>();
+        db.beginTransaction();
+        try {
+            boolean countedBlobs = isBlobsMigrated(id); // 未迁移的会话的附件仍在旧版本目录中，未计入引用计数
+            Cursor cursor = db.query(DatabaseHelper.messageTableName, new String[]{"rowid", "data"}, "conversation_id=?", new String[]{String.valueOf(id)}, null, null, null);
+            while(cursor.moveToNext()) {
+                searchIndex.remove(cursor.getLong(0));
+                if(countedBlobs) {
+                    changeBlobRefs(blobHashesOf(new JSONObject(cursor.getString(1))), -1, released);
+                }
+            }
+            cursor.close();
+            searchIndex.removeTitle(id);
+            adjustCachedCount(-db.delete(DatabaseHelper.tableName, "id=?", new String[]{String.valueOf(id)}));
+            db.delete(DatabaseHelper.messageTableName, "conversation_id=?", new String[]{String.valueOf(id)});
+            deleteUnreferencedBlobs(released);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+    public void removeConversation(Conversation conversation) { removeConversation(conversation.id); }
+
+    // 删除所有会话
+    public void removeAllConversations() {
+        db.beginTransaction();
+        try {
+            db.delete(DatabaseHelper.tableName, null, null);
+            db.delete(DatabaseHelper.messageTableName, null, null);
+            db.delete(DatabaseHelper.blobTableName, null, null);
+            searchIndex.clear();
+            BlobStore.deleteAll();
+            deleteLegacyAttachmentDirs();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        cachedCount.set(0);
     }
 
     // 删除所有空会话
     public void removeEmptyConversations() {
-        db.delete(DatabaseHelper.tableName, "messages=?", new String[]{"[]"});
+        String selection = "(messages IS NULL OR messages='[]') AND NOT EXISTS (SELECT 1 FROM " +
+                DatabaseHelper.messageTableName + " WHERE conversation_id=" + DatabaseHelper.tableName + ".id)";
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.query(DatabaseHelper.tableName, new String[]{"id"}, selection, null, null, null, null);
+            while(cursor.moveToNext()) {
+                searchIndex.removeTitle(cursor.getLong(0));
+            }
+            cursor.close();
+            adjustCachedCount(-db.delete(DatabaseHelper.tableName, selection, null));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 }
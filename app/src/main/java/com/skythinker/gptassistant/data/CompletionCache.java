@@ -0,0 +1,189 @@
+package com.skythinker.gptassistant.data;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+// 对话回复的精确匹配缓存，键为请求体（模型、温度、函数列表和消息列表）的哈希值
+// 每条回复以JSON文件保存在缓存目录中，按最近使用时间淘汰，总大小和有效期均有上限
+// 仅用于声明了@cache的模板，命中时直接重放保存的数据块，不发起网络请求
+public class CompletionCache {
+    private static final long MAX_TOTAL_BYTES = 16 * 1024 * 1024; // 缓存总大小上限
+    private static final long TTL_MS = 7L * 24 * 3600 * 1000; // 有效期
+
+    // 回复的一个数据块
+    public static class Chunk {
+        public final boolean reasoning; // 是否为思维链
+        public final String text;
+
+        public Chunk(boolean reasoning, String text) {
+            this.reasoning = reasoning;
+            this.text = text;
+        }
+    }
+
+    // 一条缓存的回复
+    public static class Entry {
+        public long created = System.currentTimeMillis();
+        public final ArrayList<Chunk> chunks = new ArrayList<>();
+
+        public synchronized void add(boolean reasoning, String text) {
+            chunks.add(new Chunk(reasoning, text));
+        }
+
+        public synchronized boolean isEmpty() {
+            return chunks.isEmpty();
+        }
+
+        synchronized JSONObject toJson() {
+            JSONArray chunksJson = new JSONArray();
+            for(Chunk chunk : chunks) {
+                chunksJson.put(new JSONObject().putOpt(chunk.reasoning ? "r" : "c", chunk.text));
+            }
+            return new JSONObject().putOpt("created", created).putOpt("chunks", chunksJson);
+        }
+
+        static Entry fromJson(JSONObject json) {
+            Entry entry = new Entry();
+            entry.created = json.getLong("created", 0L);
+            JSONArray chunksJson = json.getJSONArray("chunks");
+            if(chunksJson != null) {
+                for(int i = 0; i < chunksJson.size(); i++) {
+                    JSONObject chunkJson = chunksJson.getJSONObject(i);
+                    if(chunkJson.containsKey("r")) {
+                        entry.add(true, chunkJson.getStr("r"));
+                    } else {
+                        entry.add(false, chunkJson.getStr("c", ""));
+                    }
+                }
+            }
+            return entry;
+        }
+    }
+
+    private static File dir = null;
+    private static long totalBytes = 0;
+    private static long hitCount = 0, missCount = 0; // 本次启动以来的命中和未命中次数
+
+    // 设置缓存目录，未调用时不进行缓存
+    public static synchronized void init(Context context) {
+        init(new File(context.getCacheDir(), "completions"));
+    }
+
+    public static synchronized void init(File cacheDir) {
+        dir = cacheDir;
+        dir.mkdirs();
+        totalBytes = 0;
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                totalBytes += file.length();
+            }
+        }
+    }
+
+    private static File fileOf(String key) {
+        return new File(dir, key + ".json");
+    }
+
+    // 查找缓存的回复，过期或不存在时返回null
+    public static synchronized Entry get(String key) {
+        File file = dir == null ? null : fileOf(key);
+        if(file == null || !file.exists()) {
+            missCount++;
+            return null;
+        }
+        try {
+            Entry entry = Entry.fromJson(JSONUtil.parseObj(readFile(file)));
+            if(System.currentTimeMillis() - entry.created > TTL_MS) {
+                totalBytes -= file.length();
+                file.delete();
+                missCount++;
+                return null;
+            }
+            file.setLastModified(System.currentTimeMillis()); // 按最近使用时间淘汰
+            hitCount++;
+            return entry;
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            file.delete();
+            missCount++;
+            return null;
+        }
+    }
+
+    // 保存一条回复，超出总大小时删除最久未使用的缓存
+    public static synchronized void put(String key, Entry entry) {
+        if(dir == null) {
+            return;
+        }
+        File file = fileOf(key);
+        long oldLength = file.exists() ? file.length() : 0;
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(entry.toJson().toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        totalBytes += file.length() - oldLength;
+        if(totalBytes > MAX_TOTAL_BYTES) {
+            trim();
+        }
+    }
+
+    private static void trim() {
+        File[] files = dir.listFiles();
+        if(files == null) {
+            return;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        long now = System.currentTimeMillis();
+        for(File file : files) {
+            if(totalBytes <= MAX_TOTAL_BYTES * 3 / 4 && now - file.lastModified() <= TTL_MS) { // 留出余量，避免每次写入都要整理
+                break;
+            }
+            totalBytes -= file.length();
+            file.delete();
+        }
+    }
+
+    private static String readFile(File file) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            byte[] buffer = new byte[(int) file.length()];
+            int offset = 0, read;
+            while(offset < buffer.length && (read = fis.read(buffer, offset, buffer.length - offset)) > 0) {
+                offset += read;
+            }
+            return new String(buffer, 0, offset, StandardCharsets.UTF_8);
+        }
+    }
+
+    public static synchronized long getHitCount() { return hitCount; }
+
+    public static synchronized long getMissCount() { return missCount; }
+
+    public static synchronized long getTotalBytes() { return totalBytes; }
+
+    // 删除所有缓存
+    public static synchronized void clear() {
+        if(dir != null) {
+            File[] files = dir.listFiles();
+            if(files != null) {
+                for(File file : files) {
+                    file.delete();
+                }
+            }
+        }
+        totalBytes = 0;
+    }
+}
@@ -33,6 +33,14 @@ public class GlobalDataHolder {
     private static float gptTemperature;
     private static int gptMaxContextNum;
     private static List<String> customModels = null;
+    private static List<ApiEndpoint> extraEndpoints = null;
+    private static boolean hedgeRequests;
+    private static int batchConcurrency;
+    private static int batchRequestsPerMinute;
+    private static List<String> compareModels = null;
+    private static boolean summaryEnabled;
+    private static String summaryModel;
+    private static int summaryThreshold;
     private static boolean checkAccessOnStart;
     private static boolean defaultEnableTts;
     private static boolean defaultEnableMultiChat;
@@ -57,6 +65,11 @@ public class GlobalDataHolder {
         loadAsrSelection();
         loadBaiduAsrInfo();
         loadGptApiInfo();
+        loadExtraEndpoints();
+        loadHedgeSetting();
+        loadBatchSetting();
+        loadCompareSetting();
+        loadSummarySetting();
         loadModelParams();
         loadStartUpSetting();
         loadTtsSetting();
@@ -177,6 +190,89 @@ public class GlobalDataHolder {
         editor.apply();
     }
 
+    public static void loadExtraEndpoints() {
+        extraEndpoints = new ArrayList<>();
+        String base64 = sp.getString("extra_endpoints", "");
+        if (base64.equals("")) {
+            return;
+        }
+        byte[] bytes = Base64.decode(base64, Base64.DEFAULT);
+        try {
+            ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
+            extraEndpoints = (List<ApiEndpoint>) (new ObjectInputStream(bais).readObject());
+        } catch (ClassNotFoundException | IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static void saveExtraEndpoints(List<ApiEndpoint> endpoints) {
+        extraEndpoints = endpoints;
+        SharedPreferences.Editor editor = sp.edit();
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(baos);
+            oos.writeObject(new ArrayList<>(extraEndpoints));
+            editor.putString("extra_endpoints", Base64.encodeToString(baos.toByteArray(), Base64.DEFAULT));
+            editor.apply();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static void loadHedgeSetting() {
+        hedgeRequests = sp.getBoolean("hedge_requests", false);
+    }
+
+    public static void saveHedgeSetting(boolean enabled) {
+        hedgeRequests = enabled;
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putBoolean("hedge_requests", hedgeRequests);
+        editor.apply();
+    }
+
+    public static void loadBatchSetting() {
+        batchConcurrency = sp.getInt("batch_concurrency", 4);
+        batchRequestsPerMinute = sp.getInt("batch_requests_per_minute", 60);
+    }
+
+    public static void saveBatchSetting(int concurrency, int requestsPerMinute) {
+        batchConcurrency = concurrency;
+        batchRequestsPerMinute = requestsPerMinute;
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putInt("batch_concurrency", batchConcurrency);
+        editor.putInt("batch_requests_per_minute", batchRequestsPerMinute);
+        editor.apply();
+    }
+
+    public static void loadCompareSetting() {
+        compareModels = new ArrayList<>(Arrays.asList(sp.getString("compare_models", "").split(";")));
+        compareModels.removeIf(String::isEmpty);
+    }
+
+    public static void saveCompareSetting(List<String> models) {
+        compareModels = models;
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putString("compare_models", String.join(";", compareModels));
+        editor.apply();
+    }
+
+    public static void loadSummarySetting() {
+        summaryEnabled = sp.getBoolean("summary_enabled", false);
+        summaryModel = sp.getString("summary_model", "");
+        summaryThreshold = sp.getInt("summary_threshold", 6000);
+    }
+
+    public static void saveSummarySetting(boolean enabled, String model, int threshold) {
+        summaryEnabled = enabled;
+        summaryModel = model;
+        summaryThreshold = threshold;
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putBoolean("summary_enabled", summaryEnabled);
+        editor.putString("summary_model", summaryModel);
+        editor.putInt("summary_threshold", summaryThreshold);
+        editor.apply();
+    }
+
     public static void loadModelParams() {
         gptTemperature = sp.getFloat("model_temperature", 1.0f);
         gptMaxContextNum = sp.getInt("max_context_num", 10);
@@ -329,6 +425,35 @@ public class GlobalDataHolder {
 
     public static List<String> getCustomModels() { return customModels; }
 
+    public static List<ApiEndpoint> getExtraEndpoints() { return extraEndpoints; }
+
+    public static boolean getHedgeRequests() { return hedgeRequests; }
+
+    public static int getBatchConcurrency() { return batchConcurrency; }
+
+    public static int getBatchRequestsPerMinute() { return batchRequestsPerMinute; }
+
+    public static List<String> getCompareModels() { return compareModels; }
+
+    public static boolean getSummaryEnabled() { return summaryEnabled; }
+
+    public static String getSummaryModel() { return summaryModel; }
+
+    public static int getSummaryThreshold() { return summaryThreshold; }
+
+    // 获取其他接入点声明的、不在内置和自定义模型列表中的模型
+    public static List<String> getExtraEndpointModels(List<String> knownModels) {
+        List<String> models = new ArrayList<>();
+        for(ApiEndpoint endpoint : extraEndpoints) {
+            for(String model : endpoint.getModels()) {
+                if(!knownModels.contains(model) && !models.contains(model)) {
+                    models.add(model);
+                }
+            }
+        }
+        return models;
+    }
+
     public static float getGptTemperature() {return gptTemperature; }
 
     public static int getGptMaxContextNum() { return gptMaxContextNum; }
@@ -0,0 +1,123 @@
+package com.skythinker.gptassistant.data;
+
+import com.skythinker.gptassistant.data.ChatManager.ConversationHeader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+// 历史列表的分页数据源：按ID倒序以键集分页读取会话摘要信息，显示到距末尾prefetchDistance行时在后台预取下一页
+// 设置搜索词时改为一次读取按相关度排序的搜索结果，不再分页
+// 除后台读取外，所有方法和回调都在callbackExecutor（主线程）中执行
+public class HistoryPager {
+    // 数据读取接口，在后台线程中调用
+    public interface Source {
+        long count();
+        List<ConversationHeader> loadPage(long beforeId, int limit);
+        List<ConversationHeader> search(String keyword);
+    }
+
+    // 数据变化回调
+    public interface Listener {
+        void onReset(); // 切换搜索词后第一页或搜索结果已读取
+        void onPageLoaded(int start, int count);
+    }
+
+    private final Source source;
+    private final Executor backgroundExecutor, callbackExecutor;
+    private final int pageSize, prefetchDistance;
+    private final List<ConversationHeader> headers = new ArrayList<>();
+    private Listener listener = null;
+    private long totalCount = 0; // 会话总数或搜索结果数，每次切换搜索词时查询一次，删除时更新
+    private boolean loading = false, hasMore = false;
+    private int generation = 0; // 每次切换搜索词时增加，丢弃过期的读取结果
+
+    public HistoryPager(Source source, Executor backgroundExecutor, Executor callbackExecutor, int pageSize) {
+        this.source = source;
+        this.backgroundExecutor = backgroundExecutor;
+        this.callbackExecutor = callbackExecutor;
+        this.pageSize = pageSize;
+        this.prefetchDistance = Math.max(1, pageSize / 2);
+    }
+
+    public HistoryPager setListener(Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    // 已读取的行数
+    public int size() { return headers.size(); }
+
+    public long getTotalCount() { return totalCount; }
+
+    // 获取一行，接近已读取部分的末尾时预取下一页
+    public ConversationHeader get(int position) {
+        if(position >= headers.size() - prefetchDistance) {
+            loadMore();
+        }
+        return headers.get(position);
+    }
+
+    // 切换搜索词（null表示显示全部会话），清空已读取的行并重新读取第一页或搜索结果
+    public void reset(String keyword) {
+        int currentGeneration = ++generation;
+        headers.clear();
+        hasMore = false;
+        loading = true;
+        backgroundExecutor.execute(() -> {
+            List<ConversationHeader> page = keyword == null ? source.loadPage(Long.MAX_VALUE, pageSize) : source.search(keyword);
+            long count = keyword == null ? source.count() : page.size();
+            callbackExecutor.execute(() -> {
+                if(currentGeneration != generation) {
+                    return;
+                }
+                loading = false;
+                totalCount = count;
+                headers.addAll(page);
+                hasMore = keyword == null && page.size() == pageSize && headers.size() < totalCount;
+                if(listener != null) {
+                    listener.onReset();
+                }
+            });
+        });
+    }
+
+    // 在后台读取下一页，已在读取或已读取全部时忽略
+    public void loadMore() {
+        if(loading || !hasMore) {
+            return;
+        }
+        loading = true;
+        int currentGeneration = generation;
+        long beforeId = headers.get(headers.size() - 1).id;
+        backgroundExecutor.execute(() -> {
+            List<ConversationHeader> page = source.loadPage(beforeId, pageSize);
+            callbackExecutor.execute(() -> {
+                if(currentGeneration != generation) {
+                    return;
+                }
+                loading = false;
+                int start = headers.size();
+                headers.addAll(page);
+                hasMore = page.size() == pageSize;
+                if(listener != null && page.size() > 0) {
+                    listener.onPageLoaded(start, page.size());
+                }
+            });
+        });
+    }
+
+    // 删除一行（会话已从数据库中删除后调用）
+    public ConversationHeader remove(int position) {
+        totalCount = Math.max(0, totalCount - 1);
+        return headers.remove(position);
+    }
+
+    // 清空所有行（所有会话已删除后调用）
+    public void clear() {
+        generation++;
+        headers.clear();
+        totalCount = 0;
+        loading = hasMore = false;
+    }
+}
@@ -0,0 +1,253 @@
+package com.skythinker.gptassistant.data;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage.ChatRole;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// 会话全文搜索索引：会话标题、用户和助手消息的文本以及文本附件写入SQLite全文索引表，优先使用FTS5，不支持时使用FTS4
+// 索引行的rowid：消息为消息表中该行的rowid，标题为会话ID的相反数
+// 默认分词器不切分中日文，写入和查询前在这些字符两侧插入空格按单字索引，查询时作为短语匹配
+public class SearchIndex {
+    static final String tableName = "search_index";
+    public static final char HIGHLIGHT_START = '\u0002', HIGHLIGHT_END = '\u0003'; // 摘录中匹配部分的标记
+    private static final double TITLE_WEIGHT = 5.0; // 标题匹配的权重（正文为1）
+    private static final int SNIPPET_TOKENS = 16;
+    private static final int FTS4_SCAN_LIMIT = 1000; // FTS4无法在SQL中排序，最多读取的匹配行数
+
+    // 一个匹配的会话
+    public static class Hit {
+        public long conversationId;
+        public double score; // 越大越相关
+        public String snippet; // 最相关的匹配行的摘录，匹配部分以HIGHLIGHT_START/HIGHLIGHT_END标记
+    }
+
+    private final SQLiteDatabase db;
+    private final String messageTableName;
+    private final boolean fts5;
+
+    SearchIndex(SQLiteDatabase db, String messageTableName) {
+        this.db = db;
+        this.messageTableName = messageTableName;
+        Cursor cursor = db.rawQuery("SELECT sql FROM sqlite_master WHERE name=?", new String[]{tableName});
+        fts5 = cursor.moveToFirst() && cursor.getString(0).toLowerCase().contains("fts5");
+        cursor.close();
+    }
+
+    // 创建索引表，系统的SQLite未编译FTS5时使用FTS4
+    static void createTable(SQLiteDatabase db) {
+        try {
+            db.execSQL("CREATE VIRTUAL TABLE " + tableName + " USING fts5(title, body)");
+        } catch (SQLException e) {
+            db.execSQL("CREATE VIRTUAL TABLE " + tableName + " USING fts4(title, body)");
+        }
+    }
+
+    void indexTitle(long conversationId, String title) {
+        removeTitle(conversationId);
+        insert(-conversationId, segment(title), "");
+    }
+
+    void removeTitle(long conversationId) {
+        remove(-conversationId);
+    }
+
+    // 写入或更新一条消息的索引，messageRowId为消息表中该行的rowid
+    void indexMessage(long messageRowId, ChatMessage message) {
+        remove(messageRowId);
+        String text = textOf(message);
+        if(!text.isEmpty()) {
+            insert(messageRowId, "", segment(text));
+        }
+    }
+
+    void remove(long rowId) {
+        db.execSQL("DELETE FROM " + tableName + " WHERE rowid=?", new Object[]{rowId});
+    }
+
+    void clear() {
+        db.execSQL("DELETE FROM " + tableName);
+    }
+
+    private void insert(long rowId, String title, String body) {
+        db.execSQL("INSERT INTO " + tableName + "(rowid, title, body) VALUES(?, ?, ?)", new Object[]{rowId, title, body});
+    }
+
+    // 消息中参与搜索的文本：用户和助手的消息内容及文本附件，不包括系统消息和函数结果
+    static String textOf(ChatMessage message) {
+        if(message.role != ChatRole.USER && message.role != ChatRole.ASSISTANT) {
+            return "";
+        }
+        StringBuilder text = new StringBuilder();
+        if(message.contentText != null) {
+            text.append(message.contentText);
+        }
+        for(ChatMessage.Attachment attachment : message.attachments) {
+            if(attachment.type == ChatMessage.Attachment.Type.TEXT && attachment.getContent() != null) {
+                text.append('\n').append(attachment.name).append('\n').append(attachment.getContent());
+            }
+        }
+        return text.toString().trim();
+    }
+
+    // 按相关度搜索会话，每个会话只返回最相关的一行
+    public List<Hit> search(String keyword, int limit) {
+        String query = buildMatchQuery(keyword, fts5);
+        if(query.isEmpty()) {
+            return new ArrayList<>();
+        }
+        String[] args = new String[]{String.valueOf(HIGHLIGHT_START), String.valueOf(HIGHLIGHT_END), "…", query};
+        String from = " FROM " + tableName + " LEFT JOIN " + messageTableName +
+                " ON " + messageTableName + ".rowid=" + tableName + ".rowid WHERE " + tableName + " MATCH ?";
+        Map<Long, Hit> hits = new LinkedHashMap<>();
+        if(fts5) { // bm25越小越相关，结果已排序，每个会话保留第一行
+            String bm25 = "bm25(" + tableName + ", " + TITLE_WEIGHT + ", 1.0)";
+            Cursor cursor = db.rawQuery("SELECT " + tableName + ".rowid, conversation_id, -" + bm25 + ", snippet(" + tableName + ", -1, ?, ?, ?, " + SNIPPET_TOKENS + ")" +
+                    from + " ORDER BY " + bm25 + " LIMIT " + (limit * 5), args);
+            while(cursor.moveToNext() && hits.size() < limit) {
+                Hit hit = readHit(cursor);
+                hit.score = cursor.getDouble(2);
+                if(!hits.containsKey(hit.conversationId)) {
+                    hits.put(hit.conversationId, hit);
+                }
+            }
+            cursor.close();
+            return new ArrayList<>(hits.values());
+        } else { // 根据matchinfo在此计算相关度
+            Cursor cursor = db.rawQuery("SELECT " + tableName + ".rowid, conversation_id, matchinfo(" + tableName + ", 'pcnx'), snippet(" + tableName + ", ?, ?, ?, -1, " + SNIPPET_TOKENS + ")" +
+                    from + " LIMIT " + FTS4_SCAN_LIMIT, args);
+            while(cursor.moveToNext()) {
+                Hit hit = readHit(cursor);
+                hit.score = scoreMatchInfo(toInts(cursor.getBlob(2)), new double[]{TITLE_WEIGHT, 1.0});
+                Hit best = hits.get(hit.conversationId);
+                if(best == null || hit.score > best.score) {
+                    hits.put(hit.conversationId, hit);
+                }
+            }
+            cursor.close();
+            List<Hit> result = new ArrayList<>(hits.values());
+            Collections.sort(result, (a, b) -> Double.compare(b.score, a.score));
+            return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+        }
+    }
+
+    private static Hit readHit(Cursor cursor) {
+        Hit hit = new Hit();
+        hit.conversationId = cursor.isNull(1) ? -cursor.getLong(0) : cursor.getLong(1); // 标题行没有对应的消息
+        hit.snippet = joinSegments(cursor.getString(3));
+        return hit;
+    }
+
+    private static int[] toInts(byte[] blob) {
+        ByteBuffer buffer = ByteBuffer.wrap(blob).order(ByteOrder.nativeOrder());
+        int[] values = new int[blob.length / 4];
+        for(int i = 0; i < values.length; i++) {
+            values[i] = buffer.getInt();
+        }
+        return values;
+    }
+
+    // 根据FTS4的matchinfo(..., 'pcnx')计算TF-IDF形式的相关度，weights为各列的权重
+    static double scoreMatchInfo(int[] matchInfo, double[] weights) {
+        int phraseCount = matchInfo[0], columnCount = matchInfo[1], rowCount = matchInfo[2];
+        double score = 0;
+        for(int p = 0; p < phraseCount; p++) {
+            for(int c = 0; c < columnCount; c++) {
+                int base = 3 + (p * columnCount + c) * 3;
+                int hitsInRow = matchInfo[base], rowsWithHits = matchInfo[base + 2];
+                if(hitsInRow > 0) {
+                    double idf = Math.log((rowCount + 1.0) / (rowsWithHits + 0.5));
+                    score += (c < weights.length ? weights[c] : 1.0) * hitsInRow * Math.max(idf, 0.01);
+                }
+            }
+        }
+        return score;
+    }
+
+    private static boolean isCjk(int codePoint) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+        return script == Character.UnicodeScript.HAN || script == Character.UnicodeScript.HIRAGANA || script == Character.UnicodeScript.KATAKANA;
+    }
+
+    // 在中日文字符两侧插入空格，使默认分词器按单字切分
+    static String segment(String text) {
+        if(text == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(text.length() + text.length() / 2);
+        boolean lastCjk = false;
+        for(int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            boolean cjk = isCjk(codePoint);
+            if((cjk || lastCjk) && sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ') {
+                sb.append(' ');
+            }
+            sb.appendCodePoint(codePoint);
+            lastCjk = cjk;
+            i += Character.charCount(codePoint);
+        }
+        return sb.toString();
+    }
+
+    // 去掉摘录中segment()插入的空格（两侧都是中日文字符的空格，忽略高亮标记）
+    static String joinSegments(String text) {
+        if(text == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(text.length());
+        for(int i = 0; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            if(ch == ' ' && isCjk(neighbor(text, i, -1)) && isCjk(neighbor(text, i, 1))) {
+                continue;
+            }
+            sb.append(ch);
+        }
+        return sb.toString();
+    }
+
+    private static int neighbor(String text, int index, int direction) {
+        for(int i = index + direction; i >= 0 && i < text.length(); i += direction) {
+            char ch = text.charAt(i);
+            if(ch != HIGHLIGHT_START && ch != HIGHLIGHT_END) {
+                return direction > 0 ? text.codePointAt(i) : text.codePointBefore(i + 1);
+            }
+        }
+        return ' ';
+    }
+
+    // 将搜索框输入转换为MATCH查询：各词均需匹配，单个英文词按前缀匹配，含中日文或符号的词按相邻单字/单词的短语匹配
+    static String buildMatchQuery(String keyword, boolean fts5) {
+        StringBuilder query = new StringBuilder();
+        if(keyword == null) {
+            return "";
+        }
+        for(String word : keyword.trim().split("\\s+")) {
+            String segmented = segment(word.replaceAll("[^\\p{L}\\p{N}]+", " ")).trim().replaceAll("\\s+", " ");
+            if(segmented.isEmpty()) {
+                continue;
+            }
+            if(query.length() > 0) {
+                query.append(' ');
+            }
+            boolean prefix = segmented.indexOf(' ') == -1 && !isCjk(segmented.codePointAt(0));
+            if(prefix && fts5) {
+                query.append('"').append(segmented).append("\"*");
+            } else if(prefix) { // FTS4的前缀标记写在引号内
+                query.append('"').append(segmented).append("*\"");
+            } else {
+                query.append('"').append(segmented).append('"');
+            }
+        }
+        return query.toString();
+    }
+}
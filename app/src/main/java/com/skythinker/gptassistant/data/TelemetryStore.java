@@ -0,0 +1,310 @@
+package com.skythinker.gptassistant.data;
+
+import android.content.Context;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+// 对话请求的性能数据存储，按模型和接入点地址分组，每组保留最近的样本用于计算分位数
+// 原始记录以CSV格式追加到文件中，重启后重新载入，也可直接导出
+public class TelemetryStore {
+    public static final String CSV_HEADER = "time,model,host,status,attempts,hedged,hedge_won,build_us,payload_bytes,connect_ms,tls_ms,ttft_ms,itl_ms,tokens,tokens_per_sec,total_ms,conn_reused,rate_wait_ms";
+    private static final int MAX_RECORDS = 2000; // 文件中保留的记录数，超过两倍时压缩
+    public static final int WINDOW_SIZE = 200; // 每组每项指标保留的样本数
+
+    // 一次请求的记录，无数据的项为-1
+    public static class Record {
+        public long time;
+        public String model = "", host = "";
+        public String status = ""; // 请求的终止状态，如DONE、TOOL_CALL、FAILED
+        public int attempts = 0;
+        public boolean hedged = false, hedgeWon = false;
+        public long buildUs = -1, payloadBytes = -1, connectMs = -1, tlsMs = -1, ttftMs = -1, tokens = -1, totalMs = -1;
+        public double itlMs = -1, tokensPerSec = -1;
+        public int connReused = -1; // 是否复用了已有的连接（如预热的连接），1为复用，0为新建，-1为未知
+        public long rateWaitMs = -1; // 在客户端限速队列中等待的时间
+
+        public boolean isSuccess() {
+            return status.equals("DONE") || status.equals("TOOL_CALL");
+        }
+
+        public String toCsv() {
+            return String.format(Locale.ROOT, "%d,%s,%s,%s,%d,%d,%d,%d,%d,%d,%d,%d,%.2f,%d,%.2f,%d,%d,%d",
+                    time, csvField(model), csvField(host), status, attempts, hedged ? 1 : 0, hedgeWon ? 1 : 0,
+                    buildUs, payloadBytes, connectMs, tlsMs, ttftMs, itlMs, tokens, tokensPerSec, totalMs, connReused, rateWaitMs);
+        }
+
+        // 解析toCsv()生成的一行，格式错误时返回null
+        public static Record fromCsv(String line) {
+            List<String> fields = splitCsv(line);
+            if(fields.size() < 16 || fields.size() > 18) { // 旧版本没有conn_reused、rate_wait_ms列
+                return null;
+            }
+            try {
+                Record record = new Record();
+                record.time = Long.parseLong(fields.get(0));
+                record.model = fields.get(1);
+                record.host = fields.get(2);
+                record.status = fields.get(3);
+                record.attempts = Integer.parseInt(fields.get(4));
+                record.hedged = fields.get(5).equals("1");
+                record.hedgeWon = fields.get(6).equals("1");
+                record.buildUs = Long.parseLong(fields.get(7));
+                record.payloadBytes = Long.parseLong(fields.get(8));
+                record.connectMs = Long.parseLong(fields.get(9));
+                record.tlsMs = Long.parseLong(fields.get(10));
+                record.ttftMs = Long.parseLong(fields.get(11));
+                record.itlMs = Double.parseDouble(fields.get(12));
+                record.tokens = Long.parseLong(fields.get(13));
+                record.tokensPerSec = Double.parseDouble(fields.get(14));
+                record.totalMs = Long.parseLong(fields.get(15));
+                if(fields.size() > 16) {
+                    record.connReused = Integer.parseInt(fields.get(16));
+                }
+                if(fields.size() > 17) {
+                    record.rateWaitMs = Long.parseLong(fields.get(17));
+                }
+                return record;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    // 一项指标的滚动样本，保留最近的WINDOW_SIZE个值
+    public static class Histogram {
+        private final double[] samples = new double[WINDOW_SIZE];
+        private int count = 0; // 累计样本数
+
+        void add(double value) {
+            if(value < 0) { // 无数据
+                return;
+            }
+            samples[count % WINDOW_SIZE] = value;
+            count++;
+        }
+
+        public int size() {
+            return Math.min(count, WINDOW_SIZE);
+        }
+
+        // 获取分位数（0~1），无样本时返回-1
+        public double percentile(double p) {
+            int size = size();
+            if(size == 0) {
+                return -1;
+            }
+            double[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(p * size) - 1;
+            return sorted[Math.max(0, Math.min(size - 1, index))];
+        }
+
+        public double mean() {
+            int size = size();
+            if(size == 0) {
+                return -1;
+            }
+            double sum = 0;
+            for(int i = 0; i < size; i++) {
+                sum += samples[i];
+            }
+            return sum / size;
+        }
+    }
+
+    // 同一模型和接入点的统计数据
+    public static class Series {
+        public final String model, host;
+        public long requestCount = 0, failureCount = 0, hedgedCount = 0, hedgeWinCount = 0;
+        public final Histogram buildUs = new Histogram();
+        public final Histogram payloadBytes = new Histogram();
+        public final Histogram connectMs = new Histogram();
+        public final Histogram tlsMs = new Histogram();
+        public final Histogram ttftMs = new Histogram();
+        public final Histogram ttftWarmMs = new Histogram(); // 复用已有连接时的首字延迟
+        public final Histogram ttftColdMs = new Histogram(); // 新建连接时的首字延迟
+        public final Histogram itlMs = new Histogram();
+        public final Histogram tokensPerSec = new Histogram();
+        public final Histogram rateWaitMs = new Histogram(); // 限速等待时间
+
+        Series(String model, String host) {
+            this.model = model;
+            this.host = host;
+        }
+
+        void add(Record record) {
+            requestCount++;
+            if(!record.isSuccess()) {
+                failureCount++;
+            }
+            if(record.hedged) {
+                hedgedCount++;
+                if(record.hedgeWon) {
+                    hedgeWinCount++;
+                }
+            }
+            buildUs.add(record.buildUs);
+            payloadBytes.add(record.payloadBytes);
+            connectMs.add(record.connectMs);
+            tlsMs.add(record.tlsMs);
+            rateWaitMs.add(record.rateWaitMs);
+            if(record.isSuccess()) {
+                ttftMs.add(record.ttftMs);
+                if(record.connReused == 1) {
+                    ttftWarmMs.add(record.ttftMs);
+                } else if(record.connReused == 0) {
+                    ttftColdMs.add(record.ttftMs);
+                }
+                itlMs.add(record.itlMs);
+                tokensPerSec.add(record.tokensPerSec);
+            }
+        }
+    }
+
+    private static File file = null;
+    private static int fileRecordCount = 0;
+    private static final ArrayDeque<Record> records = new ArrayDeque<>();
+    private static final LinkedHashMap<String, Series> seriesMap = new LinkedHashMap<>();
+
+    // 载入保存的记录，未调用时仅在内存中统计
+    public static synchronized void init(Context context) {
+        if(file != null) {
+            return;
+        }
+        file = new File(context.getFilesDir(), "telemetry.csv");
+        records.clear();
+        seriesMap.clear();
+        fileRecordCount = 0;
+        if(file.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                String line;
+                while((line = reader.readLine()) != null) {
+                    Record record = Record.fromCsv(line);
+                    if(record != null) {
+                        fileRecordCount++;
+                        addToMemory(record);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // 添加一条记录并追加到文件
+    public static synchronized void add(Record record) {
+        addToMemory(record);
+        if(file == null) {
+            return;
+        }
+        if(fileRecordCount >= MAX_RECORDS * 2) { // 只保留内存中的最近记录
+            rewriteFile();
+        } else {
+            try (Writer writer = new FileWriter(file, true)) {
+                writer.write(record.toCsv());
+                writer.write('\n');
+                fileRecordCount++;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void addToMemory(Record record) {
+        records.addLast(record);
+        if(records.size() > MAX_RECORDS) {
+            records.removeFirst();
+        }
+        String key = record.model + "\n" + record.host;
+        Series series = seriesMap.get(key);
+        if(series == null) {
+            series = new Series(record.model, record.host);
+            seriesMap.put(key, series);
+        }
+        series.add(record);
+    }
+
+    private static void rewriteFile() {
+        try (Writer writer = new FileWriter(file, false)) {
+            for(Record record : records) {
+                writer.write(record.toCsv());
+                writer.write('\n');
+            }
+            fileRecordCount = records.size();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // 获取各分组的统计数据
+    public static synchronized List<Series> getSeries() {
+        return new ArrayList<>(seriesMap.values());
+    }
+
+    public static synchronized int getRecordCount() {
+        return records.size();
+    }
+
+    // 将保留的记录导出为CSV（含表头）
+    public static synchronized String toCsv() {
+        StringBuilder sb = new StringBuilder(CSV_HEADER).append('\n');
+        for(Record record : records) {
+            sb.append(record.toCsv()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    public static synchronized void clear() {
+        records.clear();
+        seriesMap.clear();
+        if(file != null) {
+            rewriteFile();
+        }
+    }
+
+    private static String csvField(String value) {
+        if(value.contains(",") || value.contains("\"") || value.contains("\n")) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
+
+    private static List<String> splitCsv(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for(int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if(quoted) {
+                if(c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if(c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if(c == '"') {
+                quoted = true;
+            } else if(c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
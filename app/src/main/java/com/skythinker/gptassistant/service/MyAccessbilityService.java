@@ -84,6 +84,9 @@ public class MyAccessbilityService extends AccessibilityService {
 
                 keyDownTime = eventTime;
                 isPressing = true;
+                if(MainActivity.isAlive()) { // 可能即将开始语音提问，提前建立与接入点的连接
+                    LocalBroadcastManager.getInstance(this).sendBroadcast(new Intent("com.skythinker.gptassistant.PREWARM"));
+                }
                 handler.postDelayed(() -> { // 等待长按时间后进行长按判定
                     if(isPressing) { // 长按时间后仍然处于按下状态，判定为一次长按
                         if(!MainActivity.isAlive() || !MainActivity.isRunning()) { // 主活动未运行则唤起
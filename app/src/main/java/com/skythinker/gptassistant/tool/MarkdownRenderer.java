@@ -134,18 +134,11 @@ public class MarkdownRenderer {
                             // 为图片添加指向同一URL的链接
                             String regexImage = "!\\[(.*?)\\]\\((.*?)\\)"; // 匹配“![...](...)”
                             String imageReplacement = "[$0]($2)"; // 替换为“[![...](...)](...)”
-                            // 将开头的<think>内容替换为代码块
-                            String regexThinkComplete = "(?s)^<think>\\n(.*?)\\n</think>\\n"; // 匹配开头的“<think>...</think>”
-                            String thinkCompleteReplacement = "```text\n" + context.getString(R.string.text_think_header) + "\n\n$1\n```\n"; // 替换为代码块
-                            String regexThinkStart = "(?s)^<think>\\n(.*?)$"; // 匹配开头的“<think>...”到结尾
-                            String thinkStartReplacement = "```text\n" + context.getString(R.string.text_thinking_header) + "\n\n$1\n```\n"; // 替换为代码块
                             // 进行替换
                             sepList.set(i, sepList.get(i).replaceAll(regexDollar, latexReplacement)
                                     .replaceAll(regexBrackets, latexReplacement)
                                     .replaceAll(regexParentheses, latexReplacement)
-                                    .replaceAll(regexImage, imageReplacement)
-                                    .replaceAll(regexThinkComplete, thinkCompleteReplacement)
-                                    .replaceAll(regexThinkStart, thinkStartReplacement));
+                                    .replaceAll(regexImage, imageReplacement));
                         }
                         return String.join("```", sepList);
                     }
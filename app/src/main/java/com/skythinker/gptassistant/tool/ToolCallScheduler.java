@@ -0,0 +1,192 @@
+package com.skythinker.gptassistant.tool;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.skythinker.gptassistant.api.ChatApiClient.CallingFunction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// 函数调用调度器，同一轮中互不依赖的函数调用并发执行
+// 每个函数属于一个并发组，组内限制最大并发数和单次调用超时，全部完成后按原顺序返回结果
+// 超时的调用会先以错误结果返回给模型，但其名额一直占用到执行器真正回调为止，避免同组调用重叠执行
+// 所有方法和回调都在主线程中执行
+public class ToolCallScheduler {
+    // 执行单个函数调用，完成后调用callback（可异步、可在任意线程），超时后也必须回调以释放名额
+    public interface ToolExecutor {
+        void execute(CallingFunction function, ResultCallback callback);
+    }
+
+    // 主线程任务调度，通常为Handler
+    public interface Scheduler {
+        void postDelayed(Runnable task, long delayMs);
+        void removeCallbacks(Runnable task);
+    }
+
+    public interface ResultCallback {
+        void onResult(String result);
+    }
+
+    // 一轮函数调用全部完成的回调，results与functions顺序一致
+    public interface OnBatchCompleteListener {
+        void onBatchComplete(List<CallingFunction> functions, List<String> results);
+    }
+
+    // 并发组配置
+    private static class ToolGroup {
+        final int maxConcurrency;
+        final long timeoutMs;
+        int running = 0;
+
+        ToolGroup(int maxConcurrency, long timeoutMs) {
+            this.maxConcurrency = maxConcurrency;
+            this.timeoutMs = timeoutMs;
+        }
+    }
+
+    // 一轮函数调用
+    private class Batch {
+        final List<CallingFunction> functions;
+        final String[] results;
+        final boolean[] started;
+        final OnBatchCompleteListener listener;
+        int finishedCount = 0;
+
+        Batch(List<CallingFunction> functions, OnBatchCompleteListener listener) {
+            this.functions = new ArrayList<>(functions);
+            this.results = new String[functions.size()];
+            this.started = new boolean[functions.size()];
+            this.listener = listener;
+        }
+    }
+
+    private static final String DEFAULT_GROUP = "default";
+
+    private final Scheduler scheduler;
+    private final ToolExecutor executor;
+    private final HashMap<String, ToolGroup> groups = new HashMap<>();
+    private final HashMap<String, String> toolGroupNames = new HashMap<>(); // 函数名 -> 并发组名
+    private Batch currentBatch = null;
+
+    public ToolCallScheduler(Handler handler, ToolExecutor executor) {
+        this(new Scheduler() {
+            @Override
+            public void postDelayed(Runnable task, long delayMs) { handler.postDelayed(task, delayMs); }
+
+            @Override
+            public void removeCallbacks(Runnable task) { handler.removeCallbacks(task); }
+        }, executor);
+    }
+
+    public ToolCallScheduler(Scheduler scheduler, ToolExecutor executor) {
+        this.scheduler = scheduler;
+        this.executor = executor;
+        groups.put(DEFAULT_GROUP, new ToolGroup(4, 20000));
+    }
+
+    // 添加或修改一个并发组
+    public ToolCallScheduler setGroup(String groupName, int maxConcurrency, long timeoutMs) {
+        groups.put(groupName, new ToolGroup(Math.max(1, maxConcurrency), timeoutMs));
+        return this;
+    }
+
+    // 将函数划分到指定并发组，未划分的函数属于默认组
+    public ToolCallScheduler setToolGroup(String functionName, String groupName) {
+        toolGroupNames.put(functionName, groupName);
+        return this;
+    }
+
+    // 提交一轮函数调用，会取消尚未完成的上一轮
+    public void submit(List<CallingFunction> functions, OnBatchCompleteListener listener) {
+        cancel();
+        currentBatch = new Batch(functions, listener);
+        if(functions.isEmpty()) {
+            finishBatch(currentBatch);
+            return;
+        }
+        dispatch(currentBatch);
+    }
+
+    // 取消当前这一轮，已开始的调用结果将被忽略，其名额在执行器回调后才释放
+    public void cancel() {
+        currentBatch = null;
+    }
+
+    // 是否有未完成的函数调用
+    public boolean isRunning() {
+        return currentBatch != null;
+    }
+
+    private ToolGroup getGroup(CallingFunction function) {
+        String groupName = toolGroupNames.get(function.name);
+        ToolGroup group = groupName == null ? null : groups.get(groupName);
+        return group == null ? groups.get(DEFAULT_GROUP) : group;
+    }
+
+    // 按顺序启动各组中未达到并发上限的调用
+    private void dispatch(Batch batch) {
+        for(int i = 0; i < batch.functions.size(); i++) {
+            if(batch != currentBatch) // 执行过程中被取消
+                return;
+            if(batch.started[i])
+                continue;
+            CallingFunction function = batch.functions.get(i);
+            ToolGroup group = getGroup(function);
+            if(group.running >= group.maxConcurrency)
+                continue;
+            batch.started[i] = true;
+            group.running++;
+            start(batch, i, function, group);
+        }
+    }
+
+    private void start(Batch batch, int index, CallingFunction function, ToolGroup group) {
+        final AtomicBoolean returned = new AtomicBoolean(false); // 执行器已回调（可能来自其他线程）
+        final boolean[] timedOut = {false}; // 仅在主线程中访问
+        Runnable timeout = () -> {
+            Log.d("ToolCallScheduler", "timeout: " + function.name);
+            timedOut[0] = true;
+            onResult(batch, index, "Error: function call timed out."); // 先返回超时结果，名额保留到执行器回调
+        };
+        ResultCallback callback = result -> {
+            if(!returned.compareAndSet(false, true))
+                return;
+            scheduler.postDelayed(() -> {
+                scheduler.removeCallbacks(timeout);
+                group.running--;
+                if(!timedOut[0])
+                    onResult(batch, index, result);
+                if(currentBatch != null)
+                    dispatch(currentBatch); // 有空闲名额，继续启动排队中的调用
+            }, 0);
+        };
+        scheduler.postDelayed(timeout, group.timeoutMs);
+        try {
+            executor.execute(function, callback);
+        } catch (Exception e) {
+            e.printStackTrace();
+            callback.onResult("Error when getting response.");
+        }
+    }
+
+    private void onResult(Batch batch, int index, String result) {
+        if(batch != currentBatch) // 已被取消
+            return;
+        batch.results[index] = result;
+        batch.finishedCount++;
+        if(batch.finishedCount == batch.functions.size())
+            finishBatch(batch);
+    }
+
+    private void finishBatch(Batch batch) {
+        currentBatch = null;
+        ArrayList<String> results = new ArrayList<>();
+        for(String result : batch.results) {
+            results.add(result);
+        }
+        batch.listener.onBatchComplete(batch.functions, results);
+    }
+}
@@ -170,6 +170,7 @@ public class WebScraper {
     private Callback callback = null;
     private boolean isLoading = false;
     private int jumpCount = 0;
+    private int loadCount = 0; // 加载次数，用于让过期的超时线程退出
     WebsiteRule websiteRule = null;
 
     public WebScraper(Context context, LinearLayout parentLayout) {
@@ -278,6 +279,7 @@ public class WebScraper {
             stopLoading();
 
         isLoading = true;
+        final int loadIndex = ++loadCount;
         this.callback = callback;
         jumpCount = 1;
         loadingUrl = url;
@@ -297,16 +299,18 @@ public class WebScraper {
         new Thread(() -> { // 开启超时等待线程
             int timeout = websiteRule.timeout;
             int waitTime = 0;
-            while(waitTime < timeout && isLoading) {
+            while(waitTime < timeout && isLoading && loadIndex == loadCount) {
                 try {
                     Thread.sleep(100);
                 } catch (InterruptedException ignored) { }
                 waitTime += 100;
             }
-            if(isLoading) {
+            if(isLoading && loadIndex == loadCount) {
                 handler.post(() -> {
-                    if(callback != null)
-                        callback.onLoadFail("Timeout");
+                    if(loadIndex != loadCount) // 已开始加载其他页面
+                        return;
+                    if(this.callback != null)
+                        this.callback.onLoadFail("Timeout");
                     stopLoading();
                 });
                 Log.e("WebView", "Timeout");
@@ -0,0 +1,107 @@
+package com.skythinker.gptassistant.tool;
+
+import android.content.Context;
+import android.os.Handler;
+import android.widget.LinearLayout;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+// 网页抓取器池，每个WebScraper同时只能加载一个页面，使用多个实例并行加载
+// 实例按需创建，超过最大数量的请求排队等待
+public class WebScraperPool {
+    private static class PendingLoad {
+        final String url;
+        final WebScraper.Callback callback;
+
+        PendingLoad(String url, WebScraper.Callback callback) {
+            this.url = url;
+            this.callback = callback;
+        }
+    }
+
+    private final Context context;
+    private final Handler handler;
+    private final LinearLayout parentLayout;
+    private final int maxSize;
+    private final ArrayList<WebScraper> scrapers = new ArrayList<>();
+    private final LinkedList<PendingLoad> pendingLoads = new LinkedList<>();
+
+    public WebScraperPool(Context context, LinearLayout parentLayout, int maxSize) {
+        this.context = context;
+        this.handler = new Handler(context.getMainLooper());
+        this.parentLayout = parentLayout;
+        this.maxSize = Math.max(1, maxSize);
+        scrapers.add(new WebScraper(context, parentLayout)); // 预先创建一个实例
+    }
+
+    // 加载一个URL，需在主线程中调用
+    public void load(String url, WebScraper.Callback callback) {
+        WebScraper scraper = getIdleScraper();
+        if(scraper == null) {
+            pendingLoads.add(new PendingLoad(url, callback));
+            return;
+        }
+        scraper.load(url, new WebScraper.Callback() {
+            @Override
+            public void onLoadResult(String result) {
+                callback.onLoadResult(result);
+                handler.post(() -> loadNext()); // 等待该实例结束本次加载后再复用
+            }
+
+            @Override
+            public void onLoadFail(String message) {
+                callback.onLoadFail(message);
+                handler.post(() -> loadNext());
+            }
+        });
+    }
+
+    private WebScraper getIdleScraper() {
+        for(WebScraper scraper : scrapers) {
+            if(!scraper.isLoading())
+                return scraper;
+        }
+        if(scrapers.size() < maxSize) {
+            WebScraper scraper = new WebScraper(context, parentLayout);
+            scrapers.add(scraper);
+            return scraper;
+        }
+        return null;
+    }
+
+    // 有实例空闲后加载排队中的URL
+    private void loadNext() {
+        if(!pendingLoads.isEmpty() && getIdleScraper() != null) {
+            PendingLoad pendingLoad = pendingLoads.removeFirst();
+            load(pendingLoad.url, pendingLoad.callback);
+        }
+    }
+
+    // 停止所有加载并清空队列
+    public void stopLoading() {
+        pendingLoads.clear();
+        for(WebScraper scraper : scrapers) {
+            scraper.stopLoading();
+        }
+    }
+
+    // 判断是否有页面正在加载
+    public boolean isLoading() {
+        if(!pendingLoads.isEmpty())
+            return true;
+        for(WebScraper scraper : scrapers) {
+            if(scraper.isLoading())
+                return true;
+        }
+        return false;
+    }
+
+    public void destroy() {
+        pendingLoads.clear();
+        for(WebScraper scraper : scrapers) {
+            scraper.destroy();
+        }
+        scrapers.clear();
+    }
+}
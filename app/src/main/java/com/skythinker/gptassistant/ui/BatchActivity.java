@@ -0,0 +1,259 @@
+package com.skythinker.gptassistant.ui;
+
+import androidx.core.content.FileProvider;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.graphics.Color;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.WindowManager;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+
+import com.skythinker.gptassistant.BuildConfig;
+import com.skythinker.gptassistant.R;
+import com.skythinker.gptassistant.api.BatchRunner;
+import com.skythinker.gptassistant.api.ChatApiClient;
+import com.skythinker.gptassistant.api.RateLimiter;
+import com.skythinker.gptassistant.data.BatchJob;
+import com.skythinker.gptassistant.data.GlobalDataHolder;
+
+// 批量运行界面：显示MainActivity创建的BatchJob，设置并发数和限速后运行，逐条显示结果
+// 任务和已完成的结果保存在文件中，界面关闭或应用被结束后再次打开可继续运行
+public class BatchActivity extends Activity {
+    private static final long PROGRESS_INTERVAL_MS = 500; // 进度刷新间隔
+
+    private class BatchListAdapter extends RecyclerView.Adapter<BatchListAdapter.ViewHolder> {
+        @Override
+        public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.history_list_item, parent, false);
+            return new ViewHolder(view);
+        }
+
+        @Override
+        public void onBindViewHolder(ViewHolder holder, int position) {
+            holder.tvTitle.setText((position + 1) + ". " + job.getInput(position));
+            holder.tvDetail.setText(job.getOutput(position).replaceAll("\n", " "));
+            BatchJob.Status status = job.getStatus(position);
+            holder.tvTime.setText(status == BatchJob.Status.DONE ? R.string.batch_status_done
+                    : status == BatchJob.Status.FAILED ? R.string.batch_status_failed : R.string.batch_status_pending);
+        }
+
+        @Override
+        public int getItemCount() {
+            return job.size();
+        }
+
+        class ViewHolder extends RecyclerView.ViewHolder {
+            private TextView tvTitle, tvDetail, tvTime;
+            public ViewHolder(View itemView) {
+                super(itemView);
+                tvTitle = itemView.findViewById(R.id.tv_history_item_title);
+                tvDetail = itemView.findViewById(R.id.tv_history_item_detail);
+                tvTime = itemView.findViewById(R.id.tv_history_item_time);
+                LinearLayout llOuter = itemView.findViewById(R.id.ll_history_item_outer);
+                llOuter.setOnClickListener((view) -> { // 查看完整的输入和输出
+                    int position = getAdapterPosition();
+                    new ConfirmDialog(BatchActivity.this)
+                            .setTitle(job.getInput(position))
+                            .setMarkdownContent(job.getOutput(position))
+                            .setCancelButtonVisibility(View.GONE)
+                            .show();
+                });
+            }
+        }
+    }
+
+    private BatchJob job = null;
+    private BatchRunner runner = null;
+    private ChatApiClient chatApiClient = null;
+    private BatchListAdapter listAdapter;
+    private Handler handler;
+    private Button btStart;
+    private TextView tvProgress;
+    private EditText etConcurrency, etRate;
+
+    private final Runnable progressUpdater = new Runnable() {
+        @Override
+        public void run() {
+            updateProgress();
+            if(runner != null && runner.isRunning()) {
+                handler.postDelayed(this, PROGRESS_INTERVAL_MS);
+            }
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_batch);
+
+        overridePendingTransition(R.anim.translate_left_in, R.anim.translate_right_out); // 进入动画
+
+        getWindow().clearFlags(WindowManager.LayoutParams.FLAG_TRANSLUCENT_STATUS); // 沉浸式状态栏
+        getWindow().addFlags(WindowManager.LayoutParams.FLAG_DRAWS_SYSTEM_BAR_BACKGROUNDS);
+        getWindow().setStatusBarColor(Color.parseColor("#F5F6F7"));
+        getWindow().getDecorView().setSystemUiVisibility(View.SYSTEM_UI_FLAG_LIGHT_STATUS_BAR);
+
+        handler = new Handler();
+        job = BatchJob.load(BatchJob.getDir(this));
+        if(job == null) {
+            Toast.makeText(this, R.string.toast_batch_no_job, Toast.LENGTH_SHORT).show();
+            finish();
+            return;
+        }
+
+        ((TextView) findViewById(R.id.tv_batch_info)).setText(getString(R.string.format_batch_info, job.title, job.model, job.size()));
+        tvProgress = findViewById(R.id.tv_batch_progress);
+        btStart = findViewById(R.id.bt_batch_start);
+        etConcurrency = findViewById(R.id.et_batch_concurrency);
+        etRate = findViewById(R.id.et_batch_rate);
+        etConcurrency.setText(String.valueOf(GlobalDataHolder.getBatchConcurrency()));
+        etRate.setText(String.valueOf(GlobalDataHolder.getBatchRequestsPerMinute()));
+
+        RecyclerView rvList = findViewById(R.id.rv_batch_list);
+        rvList.setLayoutManager(new LinearLayoutManager(this));
+        listAdapter = new BatchListAdapter();
+        rvList.setAdapter(listAdapter);
+
+        chatApiClient = new ChatApiClient(this,
+                GlobalDataHolder.getGptApiHost(),
+                GlobalDataHolder.getGptApiKey(),
+                job.model,
+                new ChatApiClient.OnReceiveListener() { // 每条输入使用单独的回调，这里只处理配置错误
+                    @Override
+                    public void onError(String message) {
+                        handler.post(() -> Toast.makeText(BatchActivity.this, message, Toast.LENGTH_LONG).show());
+                    }
+
+                    @Override
+                    public void onFunctionCall(java.util.ArrayList<ChatApiClient.CallingFunction> functions) { }
+
+                    @Override
+                    public void onFinished(boolean completed) { }
+                });
+        chatApiClient.setExtraEndpoints(GlobalDataHolder.getExtraEndpoints());
+        chatApiClient.setTemperature(GlobalDataHolder.getGptTemperature());
+        chatApiClient.setPriority(RateLimiter.Priority.BACKGROUND); // 与主界面共用同一密钥的额度时让出
+
+        btStart.setOnClickListener(view -> {
+            if(runner != null && runner.isRunning()) {
+                runner.stop();
+            } else {
+                startRunner();
+            }
+            updateProgress();
+        });
+
+        (findViewById(R.id.bt_batch_export)).setOnClickListener(view -> exportCsv());
+
+        (findViewById(R.id.bt_batch_back)).setOnClickListener(view -> finish());
+
+        updateProgress();
+    }
+
+    private void startRunner() {
+        int concurrency = parseInt(etConcurrency.getText().toString(), GlobalDataHolder.getBatchConcurrency());
+        int requestsPerMinute = parseInt(etRate.getText().toString(), GlobalDataHolder.getBatchRequestsPerMinute());
+        GlobalDataHolder.saveBatchSetting(Math.max(1, concurrency), Math.max(0, requestsPerMinute));
+        runner = new BatchRunner(chatApiClient, job, GlobalDataHolder.getBatchConcurrency(), GlobalDataHolder.getBatchRequestsPerMinute())
+                .setListener(new BatchRunner.Listener() {
+                    @Override
+                    public void onItemFinished(int index) {
+                        handler.post(() -> listAdapter.notifyItemChanged(index));
+                    }
+
+                    @Override
+                    public void onStopped(boolean completed) {
+                        handler.post(() -> {
+                            getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+                            updateProgress();
+                            if(completed) {
+                                Toast.makeText(BatchActivity.this, R.string.toast_batch_finished, Toast.LENGTH_SHORT).show();
+                            }
+                        });
+                    }
+                });
+        getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON); // 运行期间保持亮屏，避免进入休眠后请求中断
+        runner.start();
+        handler.removeCallbacks(progressUpdater);
+        handler.postDelayed(progressUpdater, PROGRESS_INTERVAL_MS);
+    }
+
+    private static int parseInt(String text, int defaultValue) {
+        try {
+            return Integer.parseInt(text.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    // 刷新进度、速度和预计剩余时间
+    private void updateProgress() {
+        boolean running = runner != null && runner.isRunning();
+        BatchRunner.Progress progress = runner != null ? runner.getProgress() : null;
+        int done = progress != null ? progress.done : job.getCount(BatchJob.Status.DONE);
+        int failed = progress != null ? progress.failed : job.getCount(BatchJob.Status.FAILED);
+        String eta = "-";
+        if(progress != null && progress.etaSeconds >= 0) {
+            eta = progress.etaSeconds >= 3600
+                    ? String.format(Locale.ROOT, "%d:%02d:%02d", progress.etaSeconds / 3600, progress.etaSeconds / 60 % 60, progress.etaSeconds % 60)
+                    : String.format(Locale.ROOT, "%d:%02d", progress.etaSeconds / 60, progress.etaSeconds % 60);
+        }
+        tvProgress.setText(getString(R.string.format_batch_progress, done, job.size(), failed,
+                progress != null ? progress.running : 0, progress != null ? progress.itemsPerMinute : 0.0, eta));
+        btStart.setText(running ? R.string.batch_pause : (done + failed > 0 ? R.string.batch_resume : R.string.batch_start));
+        etConcurrency.setEnabled(!running);
+        etRate.setEnabled(!running);
+    }
+
+    // 将结果表格写入缓存目录并通过系统分享导出
+    private void exportCsv() {
+        File file = new File(getCacheDir(), "batch_" + System.currentTimeMillis() / 1000 + ".csv");
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(job.toCsv());
+        } catch (IOException e) {
+            e.printStackTrace();
+            Toast.makeText(this, e.toString(), Toast.LENGTH_SHORT).show();
+            return;
+        }
+        Uri uri = FileProvider.getUriForFile(this, BuildConfig.APPLICATION_ID + ".provider", file);
+        Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType("text/csv");
+        intent.putExtra(Intent.EXTRA_STREAM, uri);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        startActivity(Intent.createChooser(intent, getString(R.string.text_batch_export_title)));
+    }
+
+    @Override
+    protected void onDestroy() {
+        if(runner != null) { // 未完成的输入保持待运行，下次打开时可继续
+            runner.stop();
+        }
+        if(handler != null) {
+            handler.removeCallbacks(progressUpdater);
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public void finish() {
+        super.finish();
+        overridePendingTransition(R.anim.translate_left_in, R.anim.translate_right_out);
+    }
+}
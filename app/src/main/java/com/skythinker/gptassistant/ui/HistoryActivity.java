@@ -9,8 +9,12 @@ import android.app.Activity;
 import android.content.Intent;
 import android.graphics.Color;
 import android.os.Bundle;
+import android.os.Handler;
 import android.text.Editable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
 import android.text.TextWatcher;
+import android.text.style.ForegroundColorSpan;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -21,10 +25,14 @@ import android.widget.TextView;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.skythinker.gptassistant.data.ChatManager;
-import com.skythinker.gptassistant.data.ChatManager.Conversation;
-import com.skythinker.gptassistant.data.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.data.ChatManager.ConversationHeader;
+import com.skythinker.gptassistant.data.HistoryPager;
+import com.skythinker.gptassistant.data.SearchIndex;
 import com.skythinker.gptassistant.R;
 
 public class HistoryActivity extends Activity {
@@ -44,15 +52,9 @@ public class HistoryActivity extends Activity {
 
         @Override
         public void onBindViewHolder(ViewHolder holder, int position) {
-            Conversation conversation = historyActivity.chatManager.getConversationAtPosition(position, historyActivity.searchKeyword);
+            ConversationHeader conversation = historyActivity.historyPager.get(position); // 接近末尾时在后台预取下一页
             holder.tvTitle.setText(conversation.title);
-            holder.tvDetail.setText("");
-            for(ChatMessage message : conversation.messages) {
-                if (message.role == ChatMessage.ChatRole.ASSISTANT && message.toolCalls.isEmpty()) {
-                    holder.tvDetail.setText(message.contentText.replaceAll("\n", " "));
-                    break;
-                }
-            }
+            holder.tvDetail.setText(conversation.snippet != null ? highlightSnippet(conversation.snippet) : conversation.preview);
             LocalDateTime now = LocalDateTime.now();
             if (now.getYear() == conversation.time.getYear() && now.getMonthValue() == conversation.time.getMonthValue() && now.getDayOfMonth() == conversation.time.getDayOfMonth())
                 holder.tvTime.setText(conversation.time.format(DateTimeFormatter.ofPattern("HH:mm")));
@@ -62,7 +64,7 @@ public class HistoryActivity extends Activity {
 
         @Override
         public int getItemCount() {
-            return (int) historyActivity.chatManager.getConversationCount(historyActivity.searchKeyword);
+            return historyActivity.historyPager.size();
         }
 
         class ViewHolder extends RecyclerView.ViewHolder {
@@ -76,7 +78,7 @@ public class HistoryActivity extends Activity {
                 llOuter = itemView.findViewById(R.id.ll_history_item_outer);
                 llOuter.setOnClickListener((view) -> {
                     Intent intent = new Intent();
-                    intent.putExtra("id", historyActivity.chatManager.getConversationAtPosition(getAdapterPosition(), historyActivity.searchKeyword).id);
+                    intent.putExtra("id", historyActivity.historyPager.get(getAdapterPosition()).id);
                     historyActivity.setResult(RESULT_OK, intent);
                     historyActivity.finish();
                 });
@@ -84,10 +86,18 @@ public class HistoryActivity extends Activity {
         }
     }
 
+    private static final int PAGE_SIZE = 40;
+    private static final int SEARCH_LIMIT = 100; // 最多显示的搜索结果数
+    private static final long SEARCH_DELAY_MS = 300; // 停止输入后开始搜索的延时
+
     private ChatManager chatManager;
     private RecyclerView rvHistoryList;
     private HistoryListAdapter historyListAdapter;
     private String searchKeyword = null;
+    private ExecutorService dbExecutor; // 在后台执行数据库读取
+    private HistoryPager historyPager;
+    private Handler handler;
+    private final Runnable searchRunnable = () -> historyPager.reset(searchKeyword);
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -110,6 +120,26 @@ public class HistoryActivity extends Activity {
         historyListAdapter = new HistoryListAdapter(this);
         rvHistoryList.setAdapter(historyListAdapter);
 
+        dbExecutor = Executors.newSingleThreadExecutor();
+        handler = new Handler();
+        historyPager = new HistoryPager(new HistoryPager.Source() {
+            @Override
+            public long count() { return chatManager.getConversationCount(); }
+
+            @Override
+            public List<ConversationHeader> loadPage(long beforeId, int limit) { return chatManager.getHeaders(beforeId, limit); }
+
+            @Override
+            public List<ConversationHeader> search(String keyword) { return chatManager.searchConversations(keyword, SEARCH_LIMIT); }
+        }, dbExecutor, handler::post, PAGE_SIZE).setListener(new HistoryPager.Listener() {
+            @Override
+            public void onReset() { historyListAdapter.notifyDataSetChanged(); }
+
+            @Override
+            public void onPageLoaded(int start, int count) { historyListAdapter.notifyItemRangeInserted(start, count); }
+        });
+        historyPager.reset(null);
+
         new ItemTouchHelper(new ItemTouchHelper.SimpleCallback(0, ItemTouchHelper.LEFT) { // 左滑删除
             @Override
             public boolean onMove(@NonNull RecyclerView recyclerView, @NonNull RecyclerView.ViewHolder viewHolder, @NonNull RecyclerView.ViewHolder target) {
@@ -119,7 +149,7 @@ public class HistoryActivity extends Activity {
             @Override
             public void onSwiped(@NonNull RecyclerView.ViewHolder viewHolder, int direction) {
                 int position = viewHolder.getAdapterPosition(); // 获取滑动的item的position
-                chatManager.removeConversation(chatManager.getConversationAtPosition(position, searchKeyword).id);
+                chatManager.removeConversation(historyPager.remove(position).id);
                 historyListAdapter.notifyItemRemoved(position);
             }
         }).attachToRecyclerView(rvHistoryList);
@@ -129,10 +159,11 @@ public class HistoryActivity extends Activity {
             @Override public void onTextChanged(CharSequence s, int start, int before, int count) { }
             @Override
             public void afterTextChanged(Editable editable) {
-                searchKeyword = editable.toString();
+                searchKeyword = editable.toString().trim();
                 if(searchKeyword.length() == 0)
                     searchKeyword = null;
-                historyListAdapter.notifyDataSetChanged();
+                handler.removeCallbacks(searchRunnable); // 输入停止后再在后台搜索
+                handler.postDelayed(searchRunnable, searchKeyword == null ? 0 : SEARCH_DELAY_MS);
             }
         });
 
@@ -145,6 +176,7 @@ public class HistoryActivity extends Activity {
                     .setContent(getString(R.string.dialog_clear_history))
                     .setOnConfirmListener(() -> {
                         chatManager.removeAllConversations();
+                        historyPager.clear();
                         historyListAdapter.notifyDataSetChanged();
                     }).show();
         });
@@ -152,10 +184,31 @@ public class HistoryActivity extends Activity {
 
     @Override
     protected void onDestroy() {
-        chatManager.destroy();
+        handler.removeCallbacks(searchRunnable);
+        dbExecutor.shutdown();
         super.onDestroy();
     }
 
+    // 将搜索结果摘录中标记的匹配部分显示为高亮
+    private static CharSequence highlightSnippet(String snippet) {
+        SpannableStringBuilder builder = new SpannableStringBuilder();
+        int start = -1;
+        for(int i = 0; i < snippet.length(); i++) {
+            char ch = snippet.charAt(i);
+            if(ch == SearchIndex.HIGHLIGHT_START) {
+                start = builder.length();
+            } else if(ch == SearchIndex.HIGHLIGHT_END) {
+                if(start >= 0) {
+                    builder.setSpan(new ForegroundColorSpan(Color.parseColor("#1E88E5")), start, builder.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                }
+                start = -1;
+            } else {
+                builder.append(ch == '\n' ? ' ' : ch);
+            }
+        }
+        return builder;
+    }
+
     @Override
     public void finish() {
         super.finish();
@@ -28,13 +28,14 @@ import android.provider.OpenableColumns;
 import android.provider.Settings;
 import android.speech.tts.TextToSpeech;
 import android.speech.tts.UtteranceProgressListener;
+import android.text.Editable;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.text.method.LinkMovementMethod;
 import android.text.style.ClickableSpan;
 import android.text.style.ImageSpan;
-import android.util.Base64;
 import android.util.Log;
 import android.util.TypedValue;
 import android.view.DragEvent;
@@ -49,6 +50,7 @@ import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.HorizontalScrollView;
 import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
@@ -68,6 +70,7 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -88,14 +91,27 @@ import com.skythinker.gptassistant.data.ChatManager.MessageList;
 import com.skythinker.gptassistant.data.ChatManager.Conversation;
 import com.skythinker.gptassistant.service.AgentAccessibilityService;
 import com.skythinker.gptassistant.tool.DocumentParser;
+import com.skythinker.gptassistant.data.BatchJob;
 import com.skythinker.gptassistant.data.GlobalDataHolder;
+import com.skythinker.gptassistant.data.CompletionCache;
+import com.skythinker.gptassistant.data.TelemetryStore;
 import com.skythinker.gptassistant.tool.GlobalUtils;
 import com.skythinker.gptassistant.tool.MarkdownRenderer;
 import com.skythinker.gptassistant.service.MyAccessbilityService;
 import com.skythinker.gptassistant.data.PromptTabData;
 import com.skythinker.gptassistant.R;
+import com.skythinker.gptassistant.tool.ToolCallScheduler;
 import com.skythinker.gptassistant.tool.WebScraper;
+import com.skythinker.gptassistant.tool.WebScraperPool;
 import com.skythinker.gptassistant.api.ChatApiClient;
+import com.skythinker.gptassistant.api.ChatMetrics;
+import com.skythinker.gptassistant.api.ChatRequest;
+import com.skythinker.gptassistant.api.CompareSession;
+import com.skythinker.gptassistant.api.ContextSummarizer;
+import com.skythinker.gptassistant.api.MessageView;
+import com.skythinker.gptassistant.api.ContextPacker;
+import com.skythinker.gptassistant.api.StreamBuffer;
+import com.skythinker.gptassistant.api.TokenCounter;
 import com.skythinker.gptassistant.asr.AsrClientBase;
 import com.skythinker.gptassistant.asr.BaiduAsrClient;
 import com.skythinker.gptassistant.asr.GoogleAsrClient;
@@ -107,7 +123,7 @@ import com.skythinker.gptassistant.asr.WhisperAsrClient;
 public class MainActivity extends Activity {
 
     private int selectedTab = 0;
-    private TextView tvGptReply;
+    private TextView tvGptReply, tvGptReasoning;
     private EditText etUserInput;
     private ImageButton btSend, btAttachment;
     private ScrollView svChatArea;
@@ -122,12 +138,21 @@ public class MainActivity extends Activity {
     private static boolean isRunning = false;
 
     ChatApiClient chatApiClient = null;
-    private String chatApiBuffer = "";
+    private ChatRequest currentChatRequest = null; // 当前对话的GPT请求
+    private StreamBuffer replyStream = new StreamBuffer(); // 当前提问的回复（含函数调用前后的多轮请求）
+    private CompareSession compareSession = null; // 对比模式中尚未选择保留的多模型回复
+    private ChatMessage compareQuestion = null; // 对比模式的提问，未保留任何回复时从对话中移除
+    private ChatApiClient summaryApiClient = null; // 对话摘要使用的客户端，不影响对话请求的模型设置
+    private ContextSummarizer summarizer = null;
+    private boolean isReasoningExpanded = false;
 
     private TextToSpeech tts = null;
     private boolean ttsEnabled = true;
     final private List<String> ttsSentenceSeparator = Arrays.asList("。", ".", "？", "?", "！", "!", "……", "\n"); // 用于为TTS断句
     private int ttsSentenceEndIndex = 0;
+    private static final long RENDER_INTERVAL_MS = 100; // 限制最高渲染频率10Hz
+    private static final long TTS_INTERVAL_MS = 300; // 朗读断句的检查间隔
+    private static final int MAX_COMPARE_MODELS = 4; // 对比模式最多同时请求的模型数
     private String ttsLastId = "";
 
     private boolean multiChat = false;
@@ -145,7 +170,9 @@ public class MainActivity extends Activity {
     AsrClientBase asrClient = null;
     AsrClientBase.IAsrCallback asrCallback = null;
 
-    WebScraper webScraper = null;
+    WebScraperPool webScraper = null;
+    ToolCallScheduler toolCallScheduler = null;
+    private String visitingWebText = "";
 
     Uri photoUri = null;
 
@@ -171,6 +198,10 @@ public class MainActivity extends Activity {
         handler = new Handler(); // 初始化Handler
 
         GlobalDataHolder.init(this); // 初始化全局共享数据
+        Context appContext = getApplicationContext();
+        ChatApiClient.executeStorage(() -> TelemetryStore.init(appContext)); // 在后台载入请求性能记录，先于之后的请求写入记录
+        TokenCounter.init(this); // 设置分词词表的保存目录，首次使用时在后台下载
+        CompletionCache.init(this); // 设置回复缓存目录
 
         // 初始化Markdown渲染器
         markdownRenderer = new MarkdownRenderer(this);
@@ -191,7 +222,7 @@ public class MainActivity extends Activity {
                         @Override
                         public void onDone(String utteranceId) {
 //                            Log.d("TTS", "onDone: " + utteranceId);
-                            if(ttsLastId.equals(utteranceId) && !chatApiClient.isStreaming()) {
+                            if(ttsLastId.equals(utteranceId) && !isChatReplying()) {
                                 Log.d("TTS", "Queue finished");
                                 if(multiVoice) {
                                     Intent intent = new Intent("com.skythinker.gptassistant.KEY_SPEECH_START");
@@ -268,64 +299,28 @@ public class MainActivity extends Activity {
 //            conversation.messages.add(new ChatMessage(ChatRole.ASSISTANT).setText("你好，有什么可以帮您？" + i));
 //        }
 
-        webScraper = new WebScraper(this, findViewById(R.id.ll_main_base)); // 初始化网页抓取器
+        webScraper = new WebScraperPool(this, findViewById(R.id.ll_main_base), 3); // 初始化网页抓取器，最多同时加载3个网页
+
+        toolCallScheduler = new ToolCallScheduler(handler, this::callFunction) // 初始化函数调用调度器
+                .setGroup("web", 3, 40000)
+                .setToolGroup("get_html_text", "web")
+                .setGroup("agent", 1, 20000) // 操作手机界面的函数需依次执行
+                .setToolGroup("get_widget_tree", "agent")
+                .setToolGroup("widget_action", "agent")
+                .setToolGroup("launch_package", "agent");
 
         // 初始化GPT客户端
         chatApiClient = new ChatApiClient(this,
                 GlobalDataHolder.getGptApiHost(),
                 GlobalDataHolder.getGptApiKey(),
                 GlobalDataHolder.getGptModel(),
-                new ChatApiClient.OnReceiveListener() {
-                    private long lastRenderTime = 0;
-
-                    @Override
-                    public void onMsgReceive(String message) { // 收到GPT回复（增量）
-                        chatApiBuffer += message;
-                        if(System.currentTimeMillis() - lastRenderTime > 100) { // 限制最高渲染频率10Hz
-                            handler.post(() -> {
-                                boolean isBottom = svChatArea.getChildAt(0).getBottom()
-                                        <= svChatArea.getHeight() + svChatArea.getScrollY(); // 判断消息布局是否在底部
-
-                                markdownRenderer.render(tvGptReply, chatApiBuffer); // 渲染Markdown
-
-                                if (isBottom) {
-                                    scrollChatAreaToBottom(); // 渲染前在底部则渲染后滚动到底部
-                                }
-
-                                if (currentTemplateParams.getBool("speak", ttsEnabled)) { // 处理TTS
-                                    if (chatApiBuffer.startsWith("<think>\n") && !chatApiBuffer.contains("\n</think>\n")) { // 不朗读思维链部分
-                                        ttsSentenceEndIndex = tvGptReply.getText().toString().length(); // 正在思考则设置tts起点在末尾
-                                    } else {
-                                        String wholeText = tvGptReply.getText().toString(); // 获取可朗读的文本
-                                        if (ttsSentenceEndIndex < wholeText.length()) {
-                                            int nextSentenceEndIndex = wholeText.length();
-                                            boolean found = false;
-                                            for (String separator : ttsSentenceSeparator) { // 查找最后一个断句分隔符
-                                                int index = wholeText.indexOf(separator, ttsSentenceEndIndex);
-                                                if (index != -1 && index < nextSentenceEndIndex) {
-                                                    nextSentenceEndIndex = index + separator.length();
-                                                    found = true;
-                                                }
-                                            }
-                                            if (found) { // 找到断句分隔符则添加到朗读队列
-                                                String sentence = wholeText.substring(ttsSentenceEndIndex, nextSentenceEndIndex);
-                                                ttsSentenceEndIndex = nextSentenceEndIndex;
-                                                String id = UUID.randomUUID().toString();
-                                                tts.speak(sentence, TextToSpeech.QUEUE_ADD, null, id);
-                                                ttsLastId = id;
-                                            }
-                                        }
-                                    }
-                                }
-                            });
-
-                            lastRenderTime = System.currentTimeMillis();
-                        }
-                    }
-
+                new ChatApiClient.OnReceiveListener() { // 回复和思维链的增量由replyStream的订阅者处理
                     @Override
                     public void onFinished(boolean completed) { // GPT回复完成
                         handler.post(() -> {
+                            replyStream.unsubscribeAll(); // 之后由这里完成最终渲染
+                            String reply = replyStream.getContent().toString();
+                            String reasoning = replyStream.getReasoning().toString();
                             String referenceStr = "\n\n" + getString(R.string.text_ref_web_prefix);
                             int referenceCount = 0;
                             if(completed) { // 如果是完整回复则添加参考网页
@@ -347,7 +342,9 @@ public class MainActivity extends Activity {
                                 }
                             }
                             try {
-                                markdownRenderer.render(tvGptReply, chatApiBuffer); // 渲染Markdown
+                                setReasoningView(tvGptReasoning, reasoning, false, false); // 回复完成，折叠思维链
+                                isReasoningExpanded = false;
+                                markdownRenderer.render(tvGptReply, reply); // 渲染Markdown
                                 String ttsText = tvGptReply.getText().toString();
                                 if(currentTemplateParams.getBool("speak", ttsEnabled) && ttsText.length() > ttsSentenceEndIndex) { // 如果TTS开启则朗读剩余文本
                                     String id = UUID.randomUUID().toString();
@@ -355,11 +352,15 @@ public class MainActivity extends Activity {
                                     ttsLastId = id;
                                 }
                                 if(referenceCount > 0)
-                                    chatApiBuffer += referenceStr; // 添加参考网页
-                                multiChatList.add(new ChatMessage(ChatRole.ASSISTANT).setText(chatApiBuffer)); // 保存回复内容到聊天数据列表
-                                ((LinearLayout) tvGptReply.getParent()).setTag(multiChatList.get(multiChatList.size() - 1)); // 绑定该聊天数据到布局
-                                markdownRenderer.render(tvGptReply, chatApiBuffer); // 再次渲染Markdown添加参考网页
+                                    reply += referenceStr; // 添加参考网页
+                                multiChatList.add(new ChatMessage(ChatRole.ASSISTANT).setText(reply)
+                                        .setReasoning(reasoning.isEmpty() ? null : reasoning)); // 保存回复内容到聊天数据列表
+                                ((View) tvGptReply.getParent().getParent()).setTag(multiChatList.get(multiChatList.size() - 1)); // 绑定该聊天数据到布局
+                                markdownRenderer.render(tvGptReply, reply); // 再次渲染Markdown添加参考网页
                                 btSend.setImageResource(R.drawable.send_btn);
+                                if(completed) {
+                                    summarizeHistory();
+                                }
                             } catch (Exception e) {
                                 e.printStackTrace();
                             }
@@ -369,6 +370,7 @@ public class MainActivity extends Activity {
                     @Override
                     public void onError(String message) {
                         handler.post(() -> {
+                            replyStream.unsubscribeAll();
                             String errText = String.format(getString(R.string.text_gpt_error_prefix) + "%s", message);
                             if(tvGptReply != null){
                                 tvGptReply.setText(errText);
@@ -379,167 +381,60 @@ public class MainActivity extends Activity {
                         });
                     }
 
-                    private final ArrayList<ChatApiClient.CallingFunction> callingFunctions = new ArrayList<>();
-
-                    private void callFunction(ChatApiClient.CallingFunction function) {
-                        if (function.name.equals("get_html_text")) { // 调用联网函数
-                            try {
-                                JSONObject argJson = new JSONObject(function.arguments);
-                                String url = argJson.getStr("url"); // 获取URL
-                                runOnUiThread(() -> {
-                                    markdownRenderer.render(tvGptReply, String.format(getString(R.string.text_visiting_web_prefix) + "[%s](%s)", URLDecoder.decode(url), url));
-                                    webScraper.load(url, new WebScraper.Callback() { // 抓取网页内容
-                                        @Override
-                                        public void onLoadResult(String result) {
-                                            processFunctionResult(function, result); // 返回网页内容给GPT
-//                                            Log.d("FunctionCall", String.format("Response: %s", result));
-                                        }
-
-                                        @Override
-                                        public void onLoadFail(String message) {
-                                            processFunctionResult(function, "Failed to get response of this url. " + message);
-                                        }
-                                    });
-                                    Log.d("FunctionCall", String.format("Loading url: %s", url));
-                                });
-                            } catch (JSONException e) {
-                                e.printStackTrace();
-                                processFunctionResult(function, "Error when getting response.");
-                            }
-                        }else if (function.name.equals("get_widget_tree")) {
-                            if(AgentAccessibilityService.isConnected()) {
-                                moveTaskToBack(true); // 最小化当前窗口
-                                handler.postDelayed(() -> {
-                                    JSONObject json = AgentAccessibilityService.staticThis.getWidgetJson();
-                                    json.putOpt("package", AgentAccessibilityService.staticThis.getCurrentPackageName());
-                                    Intent intent = new Intent(MainActivity.this, MainActivity.class);
-                                    intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-                                    startActivity(intent);
-                                    processFunctionResult(function, json.toString());
-                                }, 500);
-                            } else {
-                                processFunctionResult(function, "Accessibility service is not enabled.");
-                            }
-                        } else if (function.name.equals("widget_action")) {
-                            try {
-                                JSONObject argJson = new JSONObject(function.arguments);
-                                int id =  Integer.parseInt(argJson.getStr("id")); // 获取widget id
-                                String action = argJson.getStr("action", "click"); // 获取操作类型
-                                String text = argJson.getStr("input_text", ""); // 获取输入文本
-                                if(AgentAccessibilityService.isConnected()) {
-                                    moveTaskToBack(true); // 最小化当前窗口
-                                    handler.postDelayed(() -> {
-                                        AgentAccessibilityService.staticThis.rootWidgetNode.performAction(id, action, text);
-                                        handler.postDelayed(() -> {
-                                            JSONObject json = AgentAccessibilityService.staticThis.getWidgetJson();
-                                            json.putOpt("package", AgentAccessibilityService.staticThis.getCurrentPackageName());
-                                            Intent intent = new Intent(MainActivity.this, MainActivity.class);
-                                            intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-                                            startActivity(intent);
-                                            processFunctionResult(function, json.toString());
-                                        }, 2000);
-                                    }, 500);
-                                } else {
-                                    processFunctionResult(function, "Error: accessibility service is not enabled.");
-                                }
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                                processFunctionResult(function, "Error when getting response.");
-                            }
-                        } else if(function.name.equals("find_package_name")) {
-                            try {
-                                JSONObject argJson = new JSONObject(function.arguments);
-                                String queryApp = argJson.getStr("app_name"); // 获取应用名称
-                                PackageManager pm = getPackageManager();
-                                Intent main = new Intent(Intent.ACTION_MAIN, null);
-                                main.addCategory(Intent.CATEGORY_LAUNCHER);
-                                List<ResolveInfo> packages = pm.queryIntentActivities(main, 0); // 获取所有可启动应用
-                                JSONObject resultJson = new JSONObject();
-                                for(ResolveInfo resolve_info : packages) {
-                                    String package_name = resolve_info.activityInfo.packageName;
-                                    String app_name = (String)pm.getApplicationLabel(pm.getApplicationInfo(package_name, PackageManager.GET_META_DATA));
-                                    if(app_name.toLowerCase().contains(queryApp.toLowerCase()) ||
-                                            queryApp.toLowerCase().contains(app_name.toLowerCase())) {
-                                        resultJson.putOpt(app_name, package_name);
-                                    }
-                                }
-                                if(!resultJson.isEmpty()) {
-                                    processFunctionResult(function, resultJson.toString());
-                                } else {
-                                    processFunctionResult(function, "No matching package found.");
-                                }
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                                processFunctionResult(function, "Error when getting response.");
+                    @Override
+                    public void onFunctionCall(ArrayList<ChatApiClient.CallingFunction> functions) { // 收到函数调用请求
+                        handler.post(() -> {
+                            ChatMessage assistantMessage = new ChatMessage(ChatRole.ASSISTANT);
+                            for(ChatApiClient.CallingFunction function : functions) {
+                                Log.d("FunctionCall", String.format("%s: %s", function.name, function.arguments));
+                                assistantMessage.addFunctionCall(function.toolId, function.name, function.arguments, null);
                             }
-                        } else if(function.name.equals("launch_package")) {
-                            try {
-                                JSONObject argJson = new JSONObject(function.arguments);
-                                String packageName = argJson.getStr("package"); // 获取包名
-                                Intent intent = getPackageManager().getLaunchIntentForPackage(packageName);
-                                if(intent != null) {
-                                    startActivity(intent); // 启动应用
-                                    handler.postDelayed(() -> {
-                                        if(packageName.equals(AgentAccessibilityService.staticThis.getCurrentPackageName())) {
-                                            Intent selfIntent = new Intent(MainActivity.this, MainActivity.class);
-                                            selfIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-                                            startActivity(selfIntent);
-                                            processFunctionResult(function, "OK");
-                                        } else {
-                                            processFunctionResult(function, "Error: failed to launch the package.");
-                                        }
-                                    }, 2000);
-                                } else {
-                                    processFunctionResult(function, "Error: package not found.");
+                            multiChatList.add(assistantMessage); // 保存请求到聊天数据列表
+
+                            visitingWebText = "";
+                            toolCallScheduler.submit(functions, (calledFunctions, results) -> { // 并发执行所有函数调用，全部完成后按顺序发送给GPT
+                                for(int i = 0; i < calledFunctions.size(); i++) {
+                                    ChatApiClient.CallingFunction function = calledFunctions.get(i);
+                                    Log.d("MainActivity", "function result: " + function.name);
+                                    Log.d("MainActivity", "function result: " + results.get(i));
+                                    multiChatList.add(new ChatMessage(ChatRole.FUNCTION).addFunctionCall(function.toolId, function.name, function.arguments, results.get(i)));
                                 }
-                            } catch (JSONException e) {
-                                e.printStackTrace();
-                                processFunctionResult(function, "Error when getting response.");
-                            }
-                        } else if (function.name.equals("exit_voice_chat")) {
-                            if (multiVoice)
-                                runOnUiThread(() -> pwMenu.getContentView().findViewById(R.id.cv_voice_chat).performClick());
-                            processFunctionResult(function, "OK");
-                        } else {
-                            processFunctionResult(function, "Function not found.");
-                            Log.d("FunctionCall", String.format("Function not found: %s", function.name));
-                        }
-                    }
-                    private void processFunctionResult(ChatApiClient.CallingFunction function, String result) {
-                        Log.d("MainActivity", "function result: " + function.name);
-                        Log.d("MainActivity", "function result: " + result);
-                        multiChatList.add(new ChatMessage(ChatRole.FUNCTION).addFunctionCall(function.toolId, function.name, function.arguments, result));
-                        callingFunctions.remove(function); // 从函数调用列表中移除已完成的函数
-                        if(callingFunctions.size() == 0) { // 所有函数调用完成，发送给GPT
-                            handler.post(() -> sendChatList(true));
-                        } else {
-                            handler.post(() -> callFunction(callingFunctions.get(0))); // 继续处理下一个函数调用
-                        }
+                                sendChatList(true);
+                            });
+                        });
                     }
+                });
 
+        chatApiClient.setExtraEndpoints(GlobalDataHolder.getExtraEndpoints());
+        chatApiClient.setHedgeEnabled(GlobalDataHolder.getHedgeRequests());
+        chatApiClient.setTemperature(GlobalDataHolder.getGptTemperature());
+
+        // 初始化对话摘要使用的独立客户端
+        summaryApiClient = new ChatApiClient(this,
+                GlobalDataHolder.getGptApiHost(),
+                GlobalDataHolder.getGptApiKey(),
+                GlobalDataHolder.getGptModel(),
+                new ChatApiClient.OnReceiveListener() { // 摘要请求使用单独的回调，这里只处理配置错误，摘要失败时仍发送完整的对话
                     @Override
-                    public void onFunctionCall(ArrayList<ChatApiClient.CallingFunction> functions) { // 收到函数调用请求
-                        ChatMessage assistantMessage = new ChatMessage(ChatRole.ASSISTANT);
-                        for(ChatApiClient.CallingFunction function : functions) {
-                            Log.d("FunctionCall", String.format("%s: %s", function.name, function.arguments));
-                            assistantMessage.addFunctionCall(function.toolId, function.name, function.arguments, null);
-                        }
-                        multiChatList.add(assistantMessage); // 保存请求到聊天数据列表
+                    public void onError(String message) {
+                        Log.w("MainActivity", "summary client: " + message);
+                    }
 
-                        callingFunctions.clear();
-                        callingFunctions.addAll(functions); // 保存函数调用列表（浅拷贝）
+                    @Override
+                    public void onFunctionCall(ArrayList<ChatApiClient.CallingFunction> functions) { }
 
-                        callFunction(callingFunctions.get(0)); // 处理第一个函数调用
-                    }
+                    @Override
+                    public void onFinished(boolean completed) { }
                 });
-
-        chatApiClient.setTemperature(GlobalDataHolder.getGptTemperature());
+        summaryApiClient.setExtraEndpoints(GlobalDataHolder.getExtraEndpoints());
+        summarizer = new ContextSummarizer(summaryApiClient);
 
         // 发送按钮点击事件
         btSend.setOnClickListener(view -> {
-            if (chatApiClient.isStreaming()) {
-                chatApiClient.stop();
-            }else if(webScraper.isLoading()){
+            if (isChatReplying()) {
+                stopReply();
+            }else if(toolCallScheduler.isRunning() || webScraper.isLoading()){
+                toolCallScheduler.cancel();
                 webScraper.stopLoading();
                 if(tvGptReply != null)
                     tvGptReply.setText(R.string.text_cancel_web);
@@ -551,6 +446,24 @@ public class MainActivity extends Activity {
             }
         });
 
+        // 发送按钮长按：以文本/表格附件的每一行为输入，用当前模板批量运行
+        btSend.setOnLongClickListener(view -> {
+            if(isChatReplying()) {
+                return false;
+            }
+            openBatch();
+            return true;
+        });
+
+        // 模型选择框长按：选择多个模型，将输入框中的问题同时发送给它们对比
+        findViewById(R.id.sp_main_model).setOnLongClickListener(view -> {
+            if(isChatReplying()) {
+                return false;
+            }
+            showCompareDialog();
+            return true;
+        });
+
         // 附件选择按钮点击事件
         btAttachment.setOnClickListener(view -> {
             // 弹出附件选择菜单
@@ -578,6 +491,27 @@ public class MainActivity extends Activity {
             return true;
         });
 
+        // 开始输入时预先建立与接入点的连接，持续输入时定期重新预热，发送时连接仍可复用
+        etUserInput.setOnFocusChangeListener((view, hasFocus) -> {
+            if(hasFocus) {
+                chatApiClient.prewarm();
+            }
+        });
+        etUserInput.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) { }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) { }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                if(s.length() > 0) {
+                    chatApiClient.prewarm();
+                }
+            }
+        });
+
         etUserInput.setOnTouchListener((view, motionEvent) -> {
             if(motionEvent.getAction() == MotionEvent.ACTION_UP){
                 if("recording".equals(view.getTag())){
@@ -611,8 +545,8 @@ public class MainActivity extends Activity {
 
             if(currentConversation != null &&
                     ((multiChatList.size() > 0 && multiChatList.get(0).role != ChatRole.SYSTEM) || (multiChatList.size() > 1 && multiChatList.get(0).role == ChatRole.SYSTEM)) &&
-                    GlobalDataHolder.getAutoSaveHistory()) // 包含有效对话则保存当前对话
-                chatManager.addConversation(currentConversation);
+                    GlobalDataHolder.getAutoSaveHistory()) // 包含有效对话则保存当前对话（只写入有变化的消息）
+                chatManager.saveConversation(currentConversation);
 
             currentConversation = new Conversation();
             multiChatList = currentConversation.messages;
@@ -811,6 +745,7 @@ public class MainActivity extends Activity {
                 String action = intent.getAction();
                 if(action.equals("com.skythinker.gptassistant.KEY_SPEECH_START")) { // 开始语音识别
                     tts.stop();
+                    chatApiClient.prewarm(); // 识别期间建立连接，识别结束后直接发送
                     asrClient.startRecognize();
                     asrStartTime = System.currentTimeMillis();
                     etUserInput.setText("");
@@ -823,8 +758,10 @@ public class MainActivity extends Activity {
                         asrClient.stopRecognize();
                     }
                 } else if(action.equals("com.skythinker.gptassistant.KEY_SEND")) { // 发送问题
-                    if(!chatApiClient.isStreaming())
+                    if(!isChatReplying())
                         sendQuestion(null);
+                } else if(action.equals("com.skythinker.gptassistant.PREWARM")) { // 预先建立连接
+                    chatApiClient.prewarm();
                 } else if(action.equals("com.skythinker.gptassistant.SHOW_KEYBOARD")) { // 弹出软键盘
                     etUserInput.requestFocus();
                     InputMethodManager imm = (InputMethodManager) getSystemService(INPUT_METHOD_SERVICE);
@@ -837,6 +774,7 @@ public class MainActivity extends Activity {
         intentFilter.addAction("com.skythinker.gptassistant.KEY_SPEECH_STOP");
         intentFilter.addAction("com.skythinker.gptassistant.KEY_SEND");
         intentFilter.addAction("com.skythinker.gptassistant.SHOW_KEYBOARD");
+        intentFilter.addAction("com.skythinker.gptassistant.PREWARM");
         LocalBroadcastManager.getInstance(this).registerReceiver(localReceiver, intentFilter);
 
         // 检查无障碍权限
@@ -924,8 +862,12 @@ public class MainActivity extends Activity {
 
             // 更新GPT客户端相关设置
             chatApiClient.setApiInfo(GlobalDataHolder.getGptApiHost(), GlobalDataHolder.getGptApiKey());
+            chatApiClient.setExtraEndpoints(GlobalDataHolder.getExtraEndpoints());
+            chatApiClient.setHedgeEnabled(GlobalDataHolder.getHedgeRequests());
             chatApiClient.setModel(currentTemplateParams.getStr("model", GlobalDataHolder.getGptModel()));
             chatApiClient.setTemperature(GlobalDataHolder.getGptTemperature());
+            summaryApiClient.setApiInfo(GlobalDataHolder.getGptApiHost(), GlobalDataHolder.getGptApiKey());
+            summaryApiClient.setExtraEndpoints(GlobalDataHolder.getExtraEndpoints());
 
             // 更新所使用的语音识别接口
             if(GlobalDataHolder.getAsrUseBaidu() && !(asrClient instanceof BaiduAsrClient)) {
@@ -951,8 +893,11 @@ public class MainActivity extends Activity {
             if(data.hasExtra("id")) {
                 long id = data.getLongExtra("id", -1);
                 Log.d("MainActivity", "onActivityResult 3: id=" + id);
+                if(currentConversation != null && currentConversation.id == id) { // 已是当前会话
+                    return;
+                }
                 Conversation conversation = chatManager.getConversation(id);
-                chatManager.removeConversation(id);
+                chatManager.moveConversationToTop(conversation); // 保留原有记录，之后只追加新的消息
                 conversation.updateTime();
                 reloadConversation(conversation);
             }
@@ -993,6 +938,7 @@ public class MainActivity extends Activity {
         Spinner spModels = findViewById(R.id.sp_main_model);
         List<String> models = new ArrayList<>(Arrays.asList(getResources().getStringArray(R.array.models))); // 获取内置模型列表
         models.addAll(GlobalDataHolder.getCustomModels()); // 添加自定义模型到列表
+        models.addAll(GlobalDataHolder.getExtraEndpointModels(models)); // 添加其他接入点的模型到列表
         ArrayAdapter<String> modelsAdapter = new ArrayAdapter<String>(this, R.layout.main_model_spinner_item, models) { // 设置Spinner样式和列表数据
             @Override
             public View getDropDownView(int position, @Nullable View convertView, @NonNull ViewGroup parent) { // 设置选中/未选中的选项样式
@@ -1161,7 +1107,7 @@ public class MainActivity extends Activity {
     }
 
     // 添加一条聊天记录到聊天列表布局
-    private LinearLayout addChatView(ChatRole role, String content, ArrayList<ChatMessage.Attachment> attachments) {
+    private LinearLayout addChatView(ChatRole role, String content, String reasoning, ArrayList<ChatMessage.Attachment> attachments) {
         ViewGroup.MarginLayoutParams iconParams = new ViewGroup.MarginLayoutParams(dpToPx(30), dpToPx(30)); // 头像布局参数
         iconParams.setMargins(dpToPx(4), dpToPx(12), dpToPx(4), dpToPx(12));
 
@@ -1197,7 +1143,7 @@ public class MainActivity extends Activity {
                         } else {
                             stringBuilder.append(" i");
                         }
-                        Bitmap bitmap = base64ToBitmap(attachment.content);
+                        Bitmap bitmap = bytesToBitmap(attachment.getBytes());
                         int maxSize = dpToPx(120);
                         bitmap = resizeBitmap(bitmap, maxSize, maxSize);
                         ImageSpan imageSpan = new ImageSpan(this, bitmap);
@@ -1205,7 +1151,7 @@ public class MainActivity extends Activity {
                         stringBuilder.setSpan(new ClickableSpan() {
                             @Override
                             public void onClick(@NonNull View view) {
-                                Bitmap bitmap = base64ToBitmap(attachment.content);
+                                Bitmap bitmap = bytesToBitmap(attachment.getBytes());
                                 AlertDialog.Builder builder = new AlertDialog.Builder(MainActivity.this);
                                 LayoutInflater inflater = LayoutInflater.from(MainActivity.this);
                                 View dialogView = inflater.inflate(R.layout.image_preview_dialog, null);
@@ -1229,7 +1175,7 @@ public class MainActivity extends Activity {
                             public void onClick(@NonNull View view) {
                                 new ConfirmDialog(MainActivity.this)
                                         .setTitle(attachment.name)
-                                        .setContent(attachment.content)
+                                        .setContent(attachment.getContent())
                                         .setContentAlignment(View.TEXT_ALIGNMENT_TEXT_START)
                                         .setOkButtonVisibility(View.GONE)
                                         .show();
@@ -1271,8 +1217,8 @@ public class MainActivity extends Activity {
                     multiChatList.remove(index);
             }
             if(tvContent == tvGptReply) { // 删除的是GPT正在回复的消息框，停止回复和TTS
-                if(chatApiClient.isStreaming())
-                    chatApiClient.stop();
+                if(isChatReplying())
+                    stopReply();
                 tts.stop();
             }
             llChatList.removeView(llOuter);
@@ -1356,15 +1302,149 @@ public class MainActivity extends Activity {
         });
 
         llOuter.addView(ivIcon);
-        llOuter.addView(tvContent);
+        if(role == ChatRole.ASSISTANT) { // 助手回复在内容上方添加可折叠的思维链
+            LinearLayout llContent = new LinearLayout(this);
+            llContent.setOrientation(LinearLayout.VERTICAL);
+            llContent.setLayoutParams(new LinearLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+            TextView tvReasoning = new TextView(this);
+            tvReasoning.setTextSize(14);
+            tvReasoning.setTextColor(Color.GRAY);
+            ViewGroup.MarginLayoutParams reasoningParams = new ViewGroup.MarginLayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT);
+            reasoningParams.setMargins(dpToPx(4), dpToPx(15), dpToPx(4), 0);
+            tvReasoning.setLayoutParams(reasoningParams);
+            setReasoningView(tvReasoning, reasoning, false, false);
+            llContent.addView(tvReasoning);
+            llContent.addView(tvContent);
+            llOuter.addView(llContent);
+        } else {
+            llOuter.addView(tvContent);
+        }
 
         llChatList.addView(llOuter);
 
         return llOuter;
     }
 
+    // 订阅回复的更新：渲染和朗读各自按自己的频率批量处理，不随每个数据块复制整个回复
+    private void subscribeReplyStream(StreamBuffer stream) {
+        stream.subscribe(RENDER_INTERVAL_MS, handler::postDelayed, snapshot -> {
+            boolean isBottom = svChatArea.getChildAt(0).getBottom()
+                    <= svChatArea.getHeight() + svChatArea.getScrollY(); // 判断消息布局是否在底部
+            if(snapshot.reasoningStart < snapshot.reasoning.length()) { // 收到思维链，思考过程中展开显示
+                setReasoningView(tvGptReasoning, snapshot.reasoning.toString(), true, true);
+                isReasoningExpanded = true;
+            }
+            if(snapshot.contentStart < snapshot.content.length()) { // 收到回复
+                if(isReasoningExpanded) { // 思考结束后折叠思维链
+                    setReasoningView(tvGptReasoning, snapshot.reasoning.toString(), false, false);
+                    isReasoningExpanded = false;
+                }
+                markdownRenderer.render(tvGptReply, snapshot.content.toString()); // 渲染Markdown
+            }
+            if(isBottom) {
+                scrollChatAreaToBottom(); // 渲染前在底部则渲染后滚动到底部
+            }
+        });
+        stream.subscribe(TTS_INTERVAL_MS, handler::postDelayed, snapshot -> { // 朗读已渲染的文本中完整的句子（思维链不在回复内容中，不会被朗读）
+            if(!currentTemplateParams.getBool("speak", ttsEnabled) || snapshot.finishReason != null) { // 回复结束时剩余文本由onFinished朗读
+                return;
+            }
+            CharSequence wholeText = tvGptReply.getText(); // 获取可朗读的文本
+            while(ttsSentenceEndIndex < wholeText.length()) { // 依次将新出现的完整句子添加到朗读队列
+                int nextSentenceEndIndex = wholeText.length();
+                boolean found = false;
+                for(String separator : ttsSentenceSeparator) { // 查找第一个断句分隔符
+                    int index = TextUtils.indexOf(wholeText, separator, ttsSentenceEndIndex);
+                    if(index != -1 && index < nextSentenceEndIndex) {
+                        nextSentenceEndIndex = index + separator.length();
+                        found = true;
+                    }
+                }
+                if(!found) {
+                    break;
+                }
+                String sentence = wholeText.subSequence(ttsSentenceEndIndex, nextSentenceEndIndex).toString();
+                ttsSentenceEndIndex = nextSentenceEndIndex;
+                String id = UUID.randomUUID().toString();
+                tts.speak(sentence, TextToSpeech.QUEUE_ADD, null, id);
+                ttsLastId = id;
+            }
+        });
+    }
+
+    // 设置思维链的显示内容，折叠时仅显示标题，点击标题切换展开状态
+    private void setReasoningView(TextView tvReasoning, String reasoning, boolean thinking, boolean expanded) {
+        if(tvReasoning == null) {
+            return;
+        }
+        if(reasoning == null || reasoning.isEmpty()) {
+            tvReasoning.setVisibility(View.GONE);
+            return;
+        }
+        String header = getString(thinking ? R.string.text_thinking_header : R.string.text_think_header);
+        tvReasoning.setVisibility(View.VISIBLE);
+        tvReasoning.setText(expanded ? header + " ▾\n" + reasoning : header + " ▸");
+        tvReasoning.setOnClickListener(view -> setReasoningView(tvReasoning, reasoning, thinking, !expanded));
+    }
+
+    // 打开批量运行界面：选中了文本附件时用当前模板新建任务，否则继续上次的任务
+    private void openBatch() {
+        ChatMessage.Attachment textAttachment = null;
+        for(ChatMessage.Attachment attachment : selectedAttachments) {
+            if(attachment.type == ChatMessage.Attachment.Type.TEXT) {
+                textAttachment = attachment;
+                break;
+            }
+        }
+        File batchDir = BatchJob.getDir(this);
+        BatchJob oldJob = BatchJob.load(batchDir);
+        if(textAttachment == null) {
+            if(oldJob != null) {
+                startActivity(new Intent(MainActivity.this, BatchActivity.class));
+            } else {
+                Toast.makeText(this, R.string.toast_batch_no_input, Toast.LENGTH_SHORT).show();
+            }
+            return;
+        }
+        List<String> inputs = BatchJob.splitInputs(textAttachment.getContent());
+        if(inputs.isEmpty()) {
+            Toast.makeText(this, R.string.toast_batch_no_input, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        PromptTabData tabData = GlobalDataHolder.getTabDataList().get(selectedTab);
+        String template = tabData.getFormattedPrompt(getTemplateParamsFromView());
+        boolean systemMode = currentTemplateParams.getBool("system", false);
+        Runnable createJob = () -> {
+            try {
+                BatchJob.create(batchDir, tabData.getTitle(), template, systemMode, chatApiClient.getModel(), inputs);
+            } catch (IOException e) {
+                e.printStackTrace();
+                Toast.makeText(this, e.toString(), Toast.LENGTH_SHORT).show();
+                return;
+            }
+            selectedAttachments.clear();
+            updateAttachmentButton();
+            startActivity(new Intent(MainActivity.this, BatchActivity.class));
+        };
+        if(oldJob != null && oldJob.getCount(BatchJob.Status.DONE) < oldJob.size()) { // 上次的任务未完成时确认是否覆盖
+            new ConfirmDialog(this)
+                    .setContent(getString(R.string.text_batch_overwrite, oldJob.getCount(BatchJob.Status.DONE), oldJob.size()))
+                    .setOnConfirmListener(createJob)
+                    .show();
+        } else {
+            createJob.run();
+        }
+    }
+
     // 发送一个提问，input为null时则从输入框获取
     private void sendQuestion(String input){
+        sendQuestion(input, null);
+    }
+
+    // 发送一个提问，compareModels不为null时同时发送给这些模型对比，由用户选择保留的回复
+    private void sendQuestion(String input, List<String> compareModels){
+        discardCompare(); // 之前未选择保留的对比回复不再可选
+
         boolean isMultiChat = currentTemplateParams.getBool("chat", multiChat);
 
         if(!isMultiChat) { // 若为单次对话模式则新建一个聊天
@@ -1435,17 +1515,30 @@ public class MainActivity extends Activity {
 //        }
 
         // 添加对话布局
-        LinearLayout llInput = addChatView(ChatRole.USER, isMultiChat ? multiChatList.get(multiChatList.size() - 1).contentText : userInput, multiChatList.get(multiChatList.size() - 1).attachments);
-        LinearLayout llReply = addChatView(ChatRole.ASSISTANT, getString(R.string.text_waiting_reply), null);
+        LinearLayout llInput = addChatView(ChatRole.USER, isMultiChat ? multiChatList.get(multiChatList.size() - 1).contentText : userInput, null, multiChatList.get(multiChatList.size() - 1).attachments);
+        LinearLayout llReply = addChatView(ChatRole.ASSISTANT, getString(R.string.text_waiting_reply), null, null);
 
         llInput.setTag(multiChatList.get(multiChatList.size() - 1)); // 将对话数据绑定到布局上
 
-        tvGptReply = (TextView) llReply.getChildAt(1);
+        LinearLayout llReplyContent = (LinearLayout) llReply.getChildAt(1);
+        tvGptReasoning = (TextView) llReplyContent.getChildAt(0);
+        tvGptReply = (TextView) llReplyContent.getChildAt(1);
 
         scrollChatAreaToBottom();
 
-        chatApiBuffer = "";
+        replyStream.unsubscribeAll(); // 上一个回复尚未完成的更新不再渲染
+        if(compareModels != null) {
+            compareQuestion = multiChatList.get(multiChatList.size() - 1);
+            startCompare(llReply, compareModels);
+            selectedAttachments.clear();
+            btSend.setImageResource(R.drawable.cancel_btn);
+            updateAttachmentButton(); // 更新附件按钮状态
+            return;
+        }
+        replyStream = new StreamBuffer();
+        isReasoningExpanded = false;
         ttsSentenceEndIndex = 0;
+        subscribeReplyStream(replyStream);
         if (BuildConfig.DEBUG && userInput.startsWith("#markdowndebug\n")) { // Markdown渲染测试
             markdownRenderer.render(tvGptReply, userInput.replace("#markdowndebug\n", ""));
         } else {
@@ -1456,68 +1549,370 @@ public class MainActivity extends Activity {
         }
     }
 
+    // 执行一个函数调用，完成后通过callback返回结果（由ToolCallScheduler调度）
+    private void callFunction(ChatApiClient.CallingFunction function, ToolCallScheduler.ResultCallback callback) {
+        if (function.name.equals("get_html_text")) { // 调用联网函数
+            try {
+                JSONObject argJson = new JSONObject(function.arguments);
+                String url = argJson.getStr("url"); // 获取URL
+                runOnUiThread(() -> {
+                    visitingWebText += String.format(getString(R.string.text_visiting_web_prefix) + "[%s](%s)\n\n", URLDecoder.decode(url), url); // 显示所有正在访问的网页
+                    markdownRenderer.render(tvGptReply, visitingWebText);
+                    webScraper.load(url, new WebScraper.Callback() { // 抓取网页内容
+                        @Override
+                        public void onLoadResult(String result) {
+                            callback.onResult(result); // 返回网页内容给GPT
+//                                            Log.d("FunctionCall", String.format("Response: %s", result));
+                        }
+
+                        @Override
+                        public void onLoadFail(String message) {
+                            callback.onResult("Failed to get response of this url. " + message);
+                        }
+                    });
+                    Log.d("FunctionCall", String.format("Loading url: %s", url));
+                });
+            } catch (JSONException e) {
+                e.printStackTrace();
+                callback.onResult("Error when getting response.");
+            }
+        }else if (function.name.equals("get_widget_tree")) {
+            if(AgentAccessibilityService.isConnected()) {
+                moveTaskToBack(true); // 最小化当前窗口
+                handler.postDelayed(() -> {
+                    JSONObject json = AgentAccessibilityService.staticThis.getWidgetJson();
+                    json.putOpt("package", AgentAccessibilityService.staticThis.getCurrentPackageName());
+                    Intent intent = new Intent(MainActivity.this, MainActivity.class);
+                    intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                    startActivity(intent);
+                    callback.onResult(json.toString());
+                }, 500);
+            } else {
+                callback.onResult("Accessibility service is not enabled.");
+            }
+        } else if (function.name.equals("widget_action")) {
+            try {
+                JSONObject argJson = new JSONObject(function.arguments);
+                int id =  Integer.parseInt(argJson.getStr("id")); // 获取widget id
+                String action = argJson.getStr("action", "click"); // 获取操作类型
+                String text = argJson.getStr("input_text", ""); // 获取输入文本
+                if(AgentAccessibilityService.isConnected()) {
+                    moveTaskToBack(true); // 最小化当前窗口
+                    handler.postDelayed(() -> {
+                        AgentAccessibilityService.staticThis.rootWidgetNode.performAction(id, action, text);
+                        handler.postDelayed(() -> {
+                            JSONObject json = AgentAccessibilityService.staticThis.getWidgetJson();
+                            json.putOpt("package", AgentAccessibilityService.staticThis.getCurrentPackageName());
+                            Intent intent = new Intent(MainActivity.this, MainActivity.class);
+                            intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                            startActivity(intent);
+                            callback.onResult(json.toString());
+                        }, 2000);
+                    }, 500);
+                } else {
+                    callback.onResult("Error: accessibility service is not enabled.");
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                callback.onResult("Error when getting response.");
+            }
+        } else if(function.name.equals("find_package_name")) {
+            try {
+                JSONObject argJson = new JSONObject(function.arguments);
+                String queryApp = argJson.getStr("app_name"); // 获取应用名称
+                PackageManager pm = getPackageManager();
+                Intent main = new Intent(Intent.ACTION_MAIN, null);
+                main.addCategory(Intent.CATEGORY_LAUNCHER);
+                List<ResolveInfo> packages = pm.queryIntentActivities(main, 0); // 获取所有可启动应用
+                JSONObject resultJson = new JSONObject();
+                for(ResolveInfo resolve_info : packages) {
+                    String package_name = resolve_info.activityInfo.packageName;
+                    String app_name = (String)pm.getApplicationLabel(pm.getApplicationInfo(package_name, PackageManager.GET_META_DATA));
+                    if(app_name.toLowerCase().contains(queryApp.toLowerCase()) ||
+                            queryApp.toLowerCase().contains(app_name.toLowerCase())) {
+                        resultJson.putOpt(app_name, package_name);
+                    }
+                }
+                if(!resultJson.isEmpty()) {
+                    callback.onResult(resultJson.toString());
+                } else {
+                    callback.onResult("No matching package found.");
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                callback.onResult("Error when getting response.");
+            }
+        } else if(function.name.equals("launch_package")) {
+            try {
+                JSONObject argJson = new JSONObject(function.arguments);
+                String packageName = argJson.getStr("package"); // 获取包名
+                Intent intent = getPackageManager().getLaunchIntentForPackage(packageName);
+                if(intent != null) {
+                    startActivity(intent); // 启动应用
+                    handler.postDelayed(() -> {
+                        if(packageName.equals(AgentAccessibilityService.staticThis.getCurrentPackageName())) {
+                            Intent selfIntent = new Intent(MainActivity.this, MainActivity.class);
+                            selfIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                            startActivity(selfIntent);
+                            callback.onResult("OK");
+                        } else {
+                            callback.onResult("Error: failed to launch the package.");
+                        }
+                    }, 2000);
+                } else {
+                    callback.onResult("Error: package not found.");
+                }
+            } catch (JSONException e) {
+                e.printStackTrace();
+                callback.onResult("Error when getting response.");
+            }
+        } else if (function.name.equals("exit_voice_chat")) {
+            if (multiVoice)
+                runOnUiThread(() -> pwMenu.getContentView().findViewById(R.id.cv_voice_chat).performClick());
+            callback.onResult("OK");
+        } else {
+            callback.onResult("Function not found.");
+            Log.d("FunctionCall", String.format("Function not found: %s", function.name));
+        }
+    }
+
+    // 获取发送用的聊天记录视图：按设置屏蔽较早的网页数据和手机屏幕信息，不复制聊天记录
+    private MessageView getOutgoingMessages() {
+        MessageView messages = new MessageView(multiChatList);
+        if(GlobalDataHolder.getOnlyLatestWebResult()) { // 若设置为仅保留最新网页数据，屏蔽之前的所有网页数据
+            messages.maskResultsBeforeLastUser("get_html_text");
+        }
+        messages.keepLatestResults(1, "get_widget_tree", "widget_action"); // 只保留最后1条手机屏幕信息
+        return messages;
+    }
+
     // 预处理并发送聊天列表给GPT
     void sendChatList(boolean isFunctionReply) {
-        MessageList chatList = new MessageList();
-        for(ChatMessage message : multiChatList) { // 深拷贝聊天记录
-            chatList.add(message.clone());
+        List<ChatMessage> chatList = getOutgoingMessages();
+
+        if(GlobalDataHolder.getSummaryEnabled()) { // 以已生成的摘要代替较早的消息
+            chatList = ContextSummarizer.apply(chatList, currentConversation.summary);
         }
 
-        if(GlobalDataHolder.getOnlyLatestWebResult()) { // 若设置为仅保留最新网页数据，删除之前的所有网页数据
-            boolean foundLastUserMessage = false;
-            for (int i = chatList.size() - 1; i >= 0; i--) {
-                ChatMessage message = chatList.get(i);
-                if(message.role == ChatRole.USER) {
-                    foundLastUserMessage = true;
-                }
-                if(foundLastUserMessage && message.role == ChatRole.FUNCTION && message.toolCalls.get(0).functionName.equals("get_html_text")) {
-                    message.toolCalls.get(0).content = ""; // 清空网页数据
+        // 按模型的token预算从新到旧保留最后一个USER之前的历史消息，同时不超过普通消息数上限(不包括system)
+        MessageList packedList = ContextPacker.pack(chatList, chatApiClient.getModel(), GlobalDataHolder.getGptMaxContextNum(), chatApiClient.getToolsTokenCount());
+
+        if(isFunctionReply) { // 如果是返回函数调用结果，需要将接收到一半的回复加到聊天列表
+            for (int i = packedList.size() - 1; i >= 0; i--) {
+                ChatMessage message = packedList.get(i);
+                if(message.role == ChatRole.ASSISTANT && message.toolCalls.size() > 0) { // 找到调用工具的消息，在前面插入
+                    packedList.add(i, new ChatMessage(ChatRole.ASSISTANT).setText(replyStream.getContent().toString()));
+                    break;
                 }
             }
         }
 
-        // 仅保留最后N条手机屏幕信息
-        int foundLastWidgetMessageCount = 0;
-        for(int i = chatList.size() - 1; i >= 0; i--) {
-            ChatMessage message = chatList.get(i);
-            if(message.role == ChatRole.FUNCTION) {
-                String functionName = message.toolCalls.get(0).functionName;
-                if(functionName.equals("get_widget_tree") || functionName.equals("widget_action")) {
-                    foundLastWidgetMessageCount++;
-                    if(foundLastWidgetMessageCount > 1) { // 只保留最后1条手机屏幕信息
-                        message.toolCalls.get(0).content = "";
+        chatApiClient.setCacheEnabled(currentTemplateParams.getBool("cache", false)); // 模板声明了@cache时相同的请求直接使用缓存的回复
+        currentChatRequest = chatApiClient.sendPromptList(packedList, replyStream); // 发送聊天列表给GPT
+    }
+
+    // 对话历史超过阈值时在后台扩展当前会话的摘要，供之后的请求使用
+    private void summarizeHistory() {
+        if(!GlobalDataHolder.getSummaryEnabled()) {
+            return;
+        }
+        Conversation conversation = currentConversation;
+        MessageList messages = new MessageList();
+        messages.addAll(multiChatList); // 消息本身不会被修改，只需固定列表
+        String chatModel = chatApiClient.getModel();
+        String summaryModel = GlobalDataHolder.getSummaryModel().trim();
+        summarizer.summarize(messages, conversation.summary, chatModel, summaryModel.isEmpty() ? chatModel : summaryModel,
+                GlobalDataHolder.getSummaryThreshold(), GlobalDataHolder.getGptMaxContextNum(),
+                summary -> handler.post(() -> conversation.summary = summary)); // 随会话一起保存
+    }
+
+    // 当前对话是否正在等待或接收GPT回复
+    private boolean isChatReplying() {
+        return (currentChatRequest != null && currentChatRequest.isActive())
+                || (compareSession != null && compareSession.isActive());
+    }
+
+    // 停止当前对话的GPT回复（含对比模式的所有回复）
+    private void stopReply() {
+        if(currentChatRequest != null) {
+            currentChatRequest.cancel();
+        }
+        if(compareSession != null) {
+            compareSession.cancel();
+        }
+    }
+
+    // 放弃尚未选择保留的对比回复：停止所有回复，并从对话中移除没有回答的提问，避免之后的请求和保存的历史中出现连续的用户消息
+    private void discardCompare() {
+        if(compareSession == null) {
+            return;
+        }
+        compareSession.cancel();
+        compareSession = null;
+        multiChatList.remove(compareQuestion);
+        compareQuestion = null;
+    }
+
+    // 显示对比模型选择框，确认后将输入框中的问题同时发送给选中的模型
+    private void showCompareDialog() {
+        if(etUserInput.getText().toString().isEmpty() && selectedAttachments.isEmpty()) {
+            Toast.makeText(this, R.string.toast_compare_empty_input, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        Spinner spModels = findViewById(R.id.sp_main_model);
+        String[] models = new String[spModels.getCount()];
+        boolean[] checked = new boolean[models.length];
+        for(int i = 0; i < models.length; i++) { // 默认选中上次对比的模型
+            models[i] = spModels.getItemAtPosition(i).toString();
+            checked[i] = GlobalDataHolder.getCompareModels().contains(models[i]);
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.text_compare_title)
+                .setMultiChoiceItems(models, checked, (dialog, which, isChecked) -> checked[which] = isChecked)
+                .setNegativeButton(R.string.confirm_dialog_default_cancel_text, null)
+                .setPositiveButton(R.string.text_compare_start, (dialog, which) -> {
+                    List<String> selected = new ArrayList<>();
+                    for(int i = 0; i < models.length; i++) {
+                        if(checked[i]) {
+                            selected.add(models[i]);
+                        }
+                    }
+                    if(selected.size() < 2 || selected.size() > MAX_COMPARE_MODELS) {
+                        Toast.makeText(this, getString(R.string.toast_compare_select, MAX_COMPARE_MODELS), Toast.LENGTH_SHORT).show();
+                        return;
                     }
+                    GlobalDataHolder.saveCompareSetting(selected);
+                    tts.stop();
+                    sendQuestion(null, selected);
+                    etUserInput.setText("");
+                })
+                .show();
+    }
+
+    // 对比模式：在回复布局中为每个模型添加一列，实时显示回复、首字延迟和生成速度
+    private void startCompare(LinearLayout llReply, List<String> models) {
+        LinearLayout llReplyContent = (LinearLayout) llReply.getChildAt(1);
+        tvGptReasoning.setVisibility(View.GONE);
+        tvGptReply.setVisibility(View.GONE);
+        HorizontalScrollView hsvLanes = new HorizontalScrollView(this);
+        hsvLanes.setLayoutParams(new LinearLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+        LinearLayout llLanes = new LinearLayout(this);
+        llLanes.setOrientation(LinearLayout.HORIZONTAL);
+        llLanes.setPadding(0, dpToPx(8), dpToPx(4), dpToPx(8));
+        hsvLanes.addView(llLanes);
+        llReplyContent.addView(hsvLanes);
+
+        ChatApiClient compareClient = new ChatApiClient(this, // 独立的客户端，切换模型不影响主对话
+                GlobalDataHolder.getGptApiHost(),
+                GlobalDataHolder.getGptApiKey(),
+                models.get(0),
+                new ChatApiClient.OnReceiveListener() { // 每列使用单独的回调，这里只处理配置错误（如未填写完整的地址）
+                    @Override
+                    public void onError(String message) {
+                        handler.post(() -> Toast.makeText(MainActivity.this, message, Toast.LENGTH_LONG).show());
+                    }
+
+                    @Override
+                    public void onFunctionCall(ArrayList<ChatApiClient.CallingFunction> functions) { }
+
+                    @Override
+                    public void onFinished(boolean completed) { }
+                });
+        compareClient.setExtraEndpoints(GlobalDataHolder.getExtraEndpoints());
+        compareClient.setTemperature(GlobalDataHolder.getGptTemperature());
+        CompareSession session = new CompareSession(compareClient, models);
+        compareSession = session;
+
+        ArrayList<Button> keepButtons = new ArrayList<>();
+        for(CompareSession.Lane lane : session.getLanes()) {
+            View laneView = LayoutInflater.from(this).inflate(R.layout.compare_lane_item, llLanes, false);
+            TextView tvStats = laneView.findViewById(R.id.tv_compare_stats);
+            TextView tvReply = laneView.findViewById(R.id.tv_compare_reply);
+            Button btKeep = laneView.findViewById(R.id.bt_compare_keep);
+            ((TextView) laneView.findViewById(R.id.tv_compare_model)).setText(lane.model);
+            tvStats.setText(R.string.text_compare_waiting);
+            tvReply.setMovementMethod(LinkMovementMethod.getInstance());
+            btKeep.setOnClickListener(view -> keepCompareLane(llReply, hsvLanes, session, lane));
+            keepButtons.add(btKeep);
+            lane.stream.subscribe(RENDER_INTERVAL_MS, handler::postDelayed, snapshot -> {
+                if(snapshot.contentStart < snapshot.content.length()) {
+                    markdownRenderer.render(tvReply, snapshot.content.toString());
+                } else if(snapshot.content.length() == 0 && snapshot.reasoning.length() > 0) { // 只收到思维链时仅显示思考中
+                    tvReply.setText(R.string.text_thinking_header);
                 }
-            }
+                updateCompareStats(tvStats, lane);
+            });
+            llLanes.addView(laneView);
         }
 
-        // 向上查找第一个USER之前的所有普通聊天消息，超过最大限制则删除之前的(不包括system)
-        int normalChatCount = -1;
-        for(int i = chatList.size() - 1; i >= 0; i--) {
-            ChatMessage message = chatList.get(i);
-            if(normalChatCount >= 0 &&
-                    (message.role == ChatRole.USER || (message.role == ChatRole.ASSISTANT && message.toolCalls.size() == 0))) {
-                normalChatCount++;
-            }
-            if(normalChatCount > GlobalDataHolder.getGptMaxContextNum() && message.role != ChatRole.SYSTEM) {
-                chatList.remove(i);
+        session.setListener(lane -> handler.post(() -> {
+            int index = session.getLanes().indexOf(lane);
+            View laneView = llLanes.getChildAt(index);
+            TextView tvReply = laneView.findViewById(R.id.tv_compare_reply);
+            String reply = lane.stream.getContent().toString();
+            if(!reply.isEmpty()) {
+                markdownRenderer.render(tvReply, reply);
+            } else if(lane.getError() != null) {
+                tvReply.setText(String.format(getString(R.string.text_gpt_error_prefix) + "%s", lane.getError()));
             }
-            if(normalChatCount == -1 && message.role == ChatRole.USER) { // 找到第一个USER，开始计数
-                normalChatCount = 0;
+            updateCompareStats(laneView.findViewById(R.id.tv_compare_stats), lane);
+            keepButtons.get(index).setEnabled(compareSession == session && !reply.isEmpty());
+            if(compareSession == session && !session.isActive()) {
+                btSend.setImageResource(R.drawable.send_btn);
             }
+        }));
+
+        MessageList chatList = new MessageList();
+        chatList.addAll(getOutgoingMessages()); // 各模型的请求在后台发出前固定消息列表
+        session.start(chatList, GlobalDataHolder.getGptMaxContextNum());
+    }
+
+    // 更新对比列的首字延迟和生成速度
+    private void updateCompareStats(TextView tvStats, CompareSession.Lane lane) {
+        ChatMetrics metrics = lane.getMetrics();
+        long ttftMs = metrics == null ? -1 : metrics.getTtftMs();
+        if(ttftMs < 0) {
+            tvStats.setText(R.string.text_compare_waiting);
+            return;
         }
+        double tokensPerSec = metrics.getTokensPerSec();
+        tvStats.setText(getString(R.string.format_compare_stats,
+                ttftMs + "ms",
+                tokensPerSec < 0 ? "-" : String.format(Locale.getDefault(), "%.1f", tokensPerSec)));
+    }
 
-        if(isFunctionReply) { // 如果是返回函数调用结果，需要将接收到一半的回复加到聊天列表
-            for (int i = chatList.size() - 1; i >= 0; i--) {
-                ChatMessage message = chatList.get(i);
-                if(message.role == ChatRole.ASSISTANT && message.toolCalls.size() > 0) { // 找到调用工具的消息，在前面插入
-                    chatList.add(i, new ChatMessage(ChatRole.ASSISTANT).setText(chatApiBuffer));
-                    break;
-                }
-            }
+    // 保留对比中的一个回复作为对话的后续，其余模型的回复停止并移除，之后的对话使用该模型
+    private void keepCompareLane(LinearLayout llReply, View compareView, CompareSession session, CompareSession.Lane lane) {
+        if(compareSession != session) { // 已有新的提问，不能再插入到对话中间
+            return;
+        }
+        compareSession = null;
+        compareQuestion = null;
+        session.cancelOthers(lane);
+        for(CompareSession.Lane other : session.getLanes()) {
+            other.stream.unsubscribeAll();
         }
+        btSend.setImageResource(R.drawable.send_btn);
+
+        String reply = lane.stream.getContent().toString();
+        String reasoning = lane.stream.getReasoning().toString();
+        LinearLayout llReplyContent = (LinearLayout) llReply.getChildAt(1);
+        llReplyContent.removeView(compareView);
+        setReasoningView((TextView) llReplyContent.getChildAt(0), reasoning, false, false);
+        TextView tvReply = (TextView) llReplyContent.getChildAt(1);
+        tvReply.setVisibility(View.VISIBLE);
+        markdownRenderer.render(tvReply, reply);
+        multiChatList.add(new ChatMessage(ChatRole.ASSISTANT).setText(reply)
+                .setReasoning(reasoning.isEmpty() ? null : reasoning)); // 保存回复内容到聊天数据列表
+        llReply.setTag(multiChatList.get(multiChatList.size() - 1)); // 绑定该聊天数据到布局
 
-        chatApiClient.sendPromptList(chatList); // 发送聊天列表给GPT
+        Spinner spModels = findViewById(R.id.sp_main_model);
+        for(int i = 0; i < spModels.getCount(); i++) { // 切换到保留的模型继续对话
+            if(spModels.getItemAtPosition(i).toString().equals(lane.model)) {
+                spModels.setSelection(i);
+                break;
+            }
+        }
     }
 
     // 获取附件弹窗
@@ -1577,7 +1972,7 @@ public class MainActivity extends Activity {
 
                 cvFilename.setOnClickListener(view -> { // 点击文件名进行预览
                     if (attachment.type == ChatMessage.Attachment.Type.IMAGE) { // 图片类型的附件
-                        Bitmap bitmap = base64ToBitmap(attachment.content);
+                        Bitmap bitmap = bytesToBitmap(attachment.getBytes());
                         AlertDialog.Builder builder = new AlertDialog.Builder(MainActivity.this);
                         LayoutInflater inflater = LayoutInflater.from(MainActivity.this);
                         View dialogView = inflater.inflate(R.layout.image_preview_dialog, null);
@@ -1592,7 +1987,7 @@ public class MainActivity extends Activity {
                     } else { // 文本类型的附件
                         new ConfirmDialog(MainActivity.this)
                                 .setTitle(attachment.name)
-                                .setContent(attachment.content)
+                                .setContent(attachment.getContent())
                                 .setContentAlignment(View.TEXT_ALIGNMENT_TEXT_START)
                                 .setOkButtonVisibility(View.GONE)
                                 .show();
@@ -1732,7 +2127,7 @@ public class MainActivity extends Activity {
                 } else {
                     bitmap = resizeBitmap(bitmap, 2048, 2048);
                 }
-                selectedAttachments.add(ChatMessage.Attachment.createNew(ChatMessage.Attachment.Type.IMAGE, filename, bitmapToBase64(bitmap), false));
+                selectedAttachments.add(ChatMessage.Attachment.createNew(ChatMessage.Attachment.Type.IMAGE, filename, bitmapToJpeg(bitmap), false));
                 Log.d("MainActivity", "addImageAttachment: fileName=" + filename + " size=" + bitmap.getWidth() + "x" + bitmap.getHeight());
                 updateAttachmentButton(); // 更新附件按钮状态
             } else {
@@ -1786,7 +2181,7 @@ public class MainActivity extends Activity {
         llChatList.removeViewAt(0); // 删除占位TextView
         for(ChatMessage chatItem : multiChatList) { // 依次添加对话布局
             if(chatItem.role == ChatRole.USER || (chatItem.role == ChatRole.ASSISTANT && chatItem.toolCalls.size() == 0)) {
-                LinearLayout llChatItem = addChatView(chatItem.role, chatItem.contentText, chatItem.attachments);
+                LinearLayout llChatItem = addChatView(chatItem.role, chatItem.contentText, chatItem.reasoningText, chatItem.attachments);
                 llChatItem.setTag(chatItem);
             }
         }
@@ -1795,9 +2190,11 @@ public class MainActivity extends Activity {
 
     // 清空聊天界面
     private void clearChatListView() {
-        if(chatApiClient.isStreaming()){
-            chatApiClient.stop();
+        if(isChatReplying()){
+            stopReply();
         }
+        discardCompare(); // 未保留的对比回复随布局一起丢弃，在新建对话保存当前对话之前执行
+        toolCallScheduler.cancel(); // 丢弃未完成的函数调用
         llChatList.removeAllViews();
         tts.stop();
 
@@ -1807,6 +2204,7 @@ public class MainActivity extends Activity {
         tv.setPadding(dpToPx(10), dpToPx(10), dpToPx(10), dpToPx(10));
         tv.setText(R.string.default_greeting);
         tvGptReply = tv;
+        tvGptReasoning = null;
         llChatList.addView(tv);
     }
 
@@ -1870,18 +2268,16 @@ public class MainActivity extends Activity {
         return Bitmap.createScaledBitmap(bitmap, (int)(width * scale), (int)(height * scale), true);
     }
 
-    // 将Base64编码转换为Bitmap
-    private Bitmap base64ToBitmap(String base64) {
-        byte[] bytes = Base64.decode(base64, Base64.NO_WRAP);
-        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+    // 将图片附件的字节解码为Bitmap
+    private Bitmap bytesToBitmap(byte[] bytes) {
+        return bytes == null ? null : BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
     }
 
-    // 将Bitmap转换为Base64编码
-    private String bitmapToBase64(Bitmap bitmap) {
+    // 将Bitmap压缩为JPEG字节，附件中保存原始字节，发送时才编码为base64
+    private byte[] bitmapToJpeg(Bitmap bitmap) {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         bitmap.compress(Bitmap.CompressFormat.JPEG, 100, baos);
-        byte[] bytes = baos.toByteArray();
-        return Base64.encodeToString(bytes, Base64.NO_WRAP);
+        return baos.toByteArray();
     }
 
     // onDestroy->false onCreate->true
@@ -1959,11 +2355,11 @@ public class MainActivity extends Activity {
         tts.stop();
         tts.shutdown();
         webScraper.destroy();
+        discardCompare();
         if(((multiChatList.size() > 0 && multiChatList.get(0).role != ChatRole.SYSTEM) || (multiChatList.size() > 1 && multiChatList.get(0).role == ChatRole.SYSTEM)) &&
-                GlobalDataHolder.getAutoSaveHistory()) // 包含有效对话则保存当前对话
-            chatManager.addConversation(currentConversation);
+                GlobalDataHolder.getAutoSaveHistory()) // 包含有效对话则保存当前对话（只写入有变化的消息）
+            chatManager.saveConversation(currentConversation);
         chatManager.removeEmptyConversations();
-        chatManager.destroy();
         super.onDestroy();
     }
 
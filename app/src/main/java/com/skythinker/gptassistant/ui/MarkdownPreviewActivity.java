@@ -10,6 +10,7 @@ import android.view.WindowManager;
 import android.widget.ImageButton;
 import android.widget.TextView;
 
+import com.skythinker.gptassistant.api.HttpEngine;
 import com.skythinker.gptassistant.tool.GlobalUtils;
 import com.skythinker.gptassistant.tool.MarkdownRenderer;
 import com.skythinker.gptassistant.R;
@@ -60,7 +61,7 @@ public class MarkdownPreviewActivity extends Activity {
             tvPreview.setText(R.string.text_markdown_preview_loading);
             String url = recv_intent.getStringExtra("url");
             new Thread(() -> {
-                OkHttpClient client = new OkHttpClient();
+                OkHttpClient client = HttpEngine.getClient(HttpEngine.Profile.FETCH);
                 Request request = new Request.Builder()
                         .url(url)
                         .build();
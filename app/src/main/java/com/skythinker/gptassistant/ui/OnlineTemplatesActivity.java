@@ -19,6 +19,7 @@ import android.view.WindowManager;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
+import com.skythinker.gptassistant.api.HttpEngine;
 import com.skythinker.gptassistant.data.GlobalDataHolder;
 import com.skythinker.gptassistant.R;
 
@@ -135,7 +136,7 @@ public class OnlineTemplatesActivity extends Activity {
         });
 
         new Thread(() -> {
-            OkHttpClient client = new OkHttpClient();
+            OkHttpClient client = HttpEngine.getClient(HttpEngine.Profile.FETCH);
             Request request = new Request.Builder()
                     .url(getString(GlobalDataHolder.getUseGitee() ? R.string.shared_templates_url_gitee : R.string.shared_templates_url_github))
                     .build();
@@ -2,6 +2,7 @@ package com.skythinker.gptassistant.ui;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.core.content.FileProvider;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import androidx.recyclerview.widget.ItemTouchHelper;
 import androidx.recyclerview.widget.LinearLayoutManager;
@@ -34,19 +35,28 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.skythinker.gptassistant.BuildConfig;
+import com.skythinker.gptassistant.api.ChatApiClient;
+import com.skythinker.gptassistant.api.HttpEngine;
+import com.skythinker.gptassistant.api.RateLimiter;
+import com.skythinker.gptassistant.data.ApiEndpoint;
 import com.skythinker.gptassistant.data.GlobalDataHolder;
 import com.skythinker.gptassistant.tool.GlobalUtils;
+import com.skythinker.gptassistant.data.CompletionCache;
 import com.skythinker.gptassistant.data.PromptTabData;
+import com.skythinker.gptassistant.data.TelemetryStore;
 import com.skythinker.gptassistant.R;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -141,6 +151,7 @@ public class TabConfActivity extends Activity {
 
         List<String> models = new ArrayList<>(Arrays.asList(getResources().getStringArray(R.array.models))); // 内置模型列表
         models.addAll(GlobalDataHolder.getCustomModels()); // 自定义模型列表
+        models.addAll(GlobalDataHolder.getExtraEndpointModels(models)); // 其他接入点的模型
         ArrayAdapter<String> modelsAdapter = new ArrayAdapter<String>(this, R.layout.model_spinner_item, models) { // 设置Spinner样式和列表数据
             @Override
             public View getDropDownView(int position, @Nullable View convertView, @NonNull ViewGroup parent) { // 设置选中/未选中的选项样式
@@ -181,6 +192,7 @@ public class TabConfActivity extends Activity {
                 models.clear();
                 models.addAll(Arrays.asList(getResources().getStringArray(R.array.models)));
                 models.addAll(modelList);
+                models.addAll(GlobalDataHolder.getExtraEndpointModels(models));
                 modelsAdapter.notifyDataSetChanged();
             }
         });
@@ -194,6 +206,38 @@ public class TabConfActivity extends Activity {
                     .show();
         });
 
+        List<String> endpointLines = new ArrayList<>();
+        for(ApiEndpoint endpoint : GlobalDataHolder.getExtraEndpoints()) {
+            endpointLines.add(endpoint.toLine());
+        }
+        ((EditText) findViewById(R.id.et_extra_endpoints_conf)).setText(String.join("\n", endpointLines));
+        ((EditText) findViewById(R.id.et_extra_endpoints_conf)).addTextChangedListener(new CustomTextWatcher() {
+            public void afterTextChanged(Editable editable) { // 每行解析为一个接入点，忽略格式错误的行
+                List<ApiEndpoint> endpoints = new ArrayList<>();
+                for(String line : editable.toString().split("\n")) {
+                    ApiEndpoint endpoint = ApiEndpoint.parse(line);
+                    if(endpoint != null && endpoint.isValid()) {
+                        endpoints.add(endpoint);
+                    }
+                }
+                GlobalDataHolder.saveExtraEndpoints(endpoints);
+                models.clear();
+                models.addAll(Arrays.asList(getResources().getStringArray(R.array.models)));
+                models.addAll(GlobalDataHolder.getCustomModels());
+                models.addAll(GlobalDataHolder.getExtraEndpointModels(models));
+                modelsAdapter.notifyDataSetChanged();
+            }
+        });
+
+        ((LinearLayout) findViewById(R.id.bt_extra_endpoints_help).getParent()).setOnClickListener(view -> {
+            new ConfirmDialog(this)
+                    .setTitle(getString(R.string.dialog_extra_endpoints_help_title))
+                    .setContent(getString(R.string.dialog_extra_endpoints_help))
+                    .setContentAlignment(View.TEXT_ALIGNMENT_TEXT_START)
+                    .setOkButtonVisibility(View.GONE)
+                    .show();
+        });
+
         ((EditText) findViewById(R.id.et_temperature_conf)).setText(String.valueOf(GlobalDataHolder.getGptTemperature()));
         ((EditText) findViewById(R.id.et_temperature_conf)).addTextChangedListener(new CustomTextWatcher() {
             public void afterTextChanged(Editable editable) {
@@ -223,6 +267,33 @@ public class TabConfActivity extends Activity {
             }
         });
 
+        ((Switch) findViewById(R.id.sw_summary_conf)).setChecked(GlobalDataHolder.getSummaryEnabled());
+        ((Switch) findViewById(R.id.sw_summary_conf)).setOnCheckedChangeListener((compoundButton, checked) -> {
+            GlobalDataHolder.saveSummarySetting(checked, GlobalDataHolder.getSummaryModel(), GlobalDataHolder.getSummaryThreshold());
+        });
+
+        ((EditText) findViewById(R.id.et_summary_model_conf)).setText(GlobalDataHolder.getSummaryModel());
+        ((EditText) findViewById(R.id.et_summary_model_conf)).addTextChangedListener(new CustomTextWatcher() {
+            public void afterTextChanged(Editable editable) { // 留空时使用对话的模型
+                GlobalDataHolder.saveSummarySetting(GlobalDataHolder.getSummaryEnabled(), editable.toString().trim(), GlobalDataHolder.getSummaryThreshold());
+            }
+        });
+
+        ((EditText) findViewById(R.id.et_summary_threshold_conf)).setText(String.valueOf(GlobalDataHolder.getSummaryThreshold()));
+        ((EditText) findViewById(R.id.et_summary_threshold_conf)).addTextChangedListener(new CustomTextWatcher() {
+            public void afterTextChanged(Editable editable) {
+                try {
+                    if (!editable.toString().isEmpty()) {
+                        int threshold = Integer.parseInt(editable.toString().trim());
+                        if (threshold > 0)
+                            GlobalDataHolder.saveSummarySetting(GlobalDataHolder.getSummaryEnabled(), GlobalDataHolder.getSummaryModel(), threshold);
+                    }
+                } catch (NumberFormatException e) {
+                    ((EditText) findViewById(R.id.et_summary_threshold_conf)).setText(String.valueOf(GlobalDataHolder.getSummaryThreshold()));
+                }
+            }
+        });
+
         ((LinearLayout) findViewById(R.id.bt_asr_help).getParent()).setOnClickListener(view -> {
             new ConfirmDialog(this)
                     .setTitle(getString(R.string.dialog_asr_select_help_title))
@@ -331,6 +402,11 @@ public class TabConfActivity extends Activity {
             GlobalDataHolder.saveHistorySetting(checked);
         });
 
+        ((Switch) findViewById(R.id.sw_hedge_requests_conf)).setChecked(GlobalDataHolder.getHedgeRequests());
+        ((Switch) findViewById(R.id.sw_hedge_requests_conf)).setOnCheckedChangeListener((compoundButton, checked) -> {
+            GlobalDataHolder.saveHedgeSetting(checked);
+        });
+
         ((Switch) findViewById(R.id.sw_limit_vision_size_conf)).setChecked(GlobalDataHolder.getLimitVisionSize());
         ((Switch) findViewById(R.id.sw_limit_vision_size_conf)).setOnCheckedChangeListener((compoundButton, checked) -> {
             GlobalDataHolder.saveVisionSetting(checked);
@@ -381,6 +457,8 @@ public class TabConfActivity extends Activity {
             startActivity(intent);
         });
 
+        ((LinearLayout) findViewById(R.id.tv_diagnostics_conf).getParent()).setOnClickListener(view -> showDiagnosticsDialog());
+
         (findViewById(R.id.tv_help_conf)).setOnClickListener(view -> { // 弹出帮助对话框
             new ConfirmDialog(this)
                     .setTitle(getString(R.string.dialog_help_title))
@@ -395,7 +473,7 @@ public class TabConfActivity extends Activity {
         });
 
         new Thread(() -> { // 通过Gitee/GitHub检查更新
-            OkHttpClient client = new OkHttpClient();
+            OkHttpClient client = HttpEngine.getClient(HttpEngine.Profile.FETCH);
             Request request = new Request.Builder()
                     .url(getString(GlobalDataHolder.getUseGitee() ? R.string.check_update_url_gitee : R.string.check_update_url_github))
                     .build();
@@ -421,7 +499,7 @@ public class TabConfActivity extends Activity {
 
         ((LinearLayout) findViewById(R.id.tv_check_update_conf).getParent()).setOnClickListener(view -> {
             new Thread(() -> { // 通过Gitee/GitHub检查更新
-                OkHttpClient client = new OkHttpClient();
+                OkHttpClient client = HttpEngine.getClient(HttpEngine.Profile.FETCH);
                 Request request = new Request.Builder()
                         .url(getString(GlobalDataHolder.getUseGitee() ? R.string.releases_raw_url_gitee : R.string.releases_raw_url_github))
                         .build();
@@ -518,4 +596,83 @@ public class TabConfActivity extends Activity {
         super.finish();
         overridePendingTransition(R.anim.translate_left_in, R.anim.translate_right_out);
     }
-}
\ No newline at end of file
+
+    // 显示各模型和接入点的请求性能统计，可导出原始记录，记录在后台载入和统计
+    private void showDiagnosticsDialog() {
+        Context context = getApplicationContext();
+        ChatApiClient.executeStorage(() -> {
+            TelemetryStore.init(context);
+            String markdown = buildDiagnosticsMarkdown();
+            runOnUiThread(() -> {
+                if(isFinishing() || isDestroyed()) {
+                    return;
+                }
+                new ConfirmDialog(this)
+                        .setTitle(getString(R.string.dialog_diagnostics_title))
+                        .setContentAlignment(TextView.TEXT_ALIGNMENT_TEXT_START)
+                        .setMarkdownContent(markdown)
+                        .setCancelText(getString(R.string.dialog_diagnostics_cancel))
+                        .setOkText(getString(R.string.dialog_diagnostics_export))
+                        .setOnConfirmListener(this::exportTelemetryCsv)
+                        .show();
+            });
+        });
+    }
+
+    private String buildDiagnosticsMarkdown() {
+        List<TelemetryStore.Series> seriesList = TelemetryStore.getSeries();
+        StringBuilder markdown = new StringBuilder();
+        markdown.append(String.format(getString(R.string.format_diagnostics_cache), CompletionCache.getHitCount(),
+                CompletionCache.getMissCount(), CompletionCache.getTotalBytes() / 1024)).append("\n\n");
+        RateLimiter.Stats rateStats = RateLimiter.getShared().getStats();
+        markdown.append(String.format(getString(R.string.format_diagnostics_rate_limit), rateStats.waitedCount, rateStats.grantedCount,
+                rateStats.totalWaitMs, rateStats.maxWaitMs, rateStats.rateLimitedCount, rateStats.queuedCount)).append("\n\n");
+        if(seriesList.isEmpty()) {
+            markdown.append(getString(R.string.dialog_diagnostics_empty));
+        } else {
+            markdown.append(String.format(getString(R.string.format_diagnostics_summary), TelemetryStore.getRecordCount(), TelemetryStore.WINDOW_SIZE)).append("\n\n");
+            for(TelemetryStore.Series series : seriesList) {
+                markdown.append("**").append(series.model).append("** @ ").append(Uri.parse(series.host).getHost()).append("\n\n")
+                        .append("| | |\n|:-|:-|\n")
+                        .append("| requests | ").append(series.requestCount).append(" (").append(series.failureCount).append(" failed) |\n")
+                        .append("| TTFT | ").append(formatPercentiles(series.ttftMs, "ms")).append(" |\n")
+                        .append("| TTFT warm | ").append(formatPercentiles(series.ttftWarmMs, "ms")).append(" |\n")
+                        .append("| TTFT cold | ").append(formatPercentiles(series.ttftColdMs, "ms")).append(" |\n")
+                        .append("| ITL | ").append(formatPercentiles(series.itlMs, "ms")).append(" |\n")
+                        .append("| tok/s | ").append(formatPercentiles(series.tokensPerSec, "")).append(" |\n")
+                        .append("| payload | ").append(formatPercentiles(series.payloadBytes, "B")).append(" |\n")
+                        .append("| build | ").append(formatPercentiles(series.buildUs, "us")).append(" |\n")
+                        .append("| connect | ").append(formatPercentiles(series.connectMs, "ms")).append(" |\n")
+                        .append("| TLS | ").append(formatPercentiles(series.tlsMs, "ms")).append(" |\n")
+                        .append("| rate wait | ").append(formatPercentiles(series.rateWaitMs, "ms")).append(" |\n")
+                        .append("| hedged | ").append(series.hedgedCount).append(" (").append(series.hedgeWinCount).append(" won) |\n\n");
+            }
+        }
+        return markdown.toString();
+    }
+
+    private static String formatPercentiles(TelemetryStore.Histogram histogram, String unit) {
+        if(histogram.size() == 0) {
+            return "-";
+        }
+        return String.format(Locale.ROOT, "%.0f / %.0f %s", histogram.percentile(0.5), histogram.percentile(0.9), unit).trim();
+    }
+
+    // 将请求记录写入缓存目录并通过系统分享导出
+    private void exportTelemetryCsv() {
+        File file = new File(getCacheDir(), "telemetry_" + System.currentTimeMillis() / 1000 + ".csv");
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(TelemetryStore.toCsv());
+        } catch (IOException e) {
+            e.printStackTrace();
+            Toast.makeText(this, e.toString(), Toast.LENGTH_SHORT).show();
+            return;
+        }
+        Uri uri = FileProvider.getUriForFile(this, BuildConfig.APPLICATION_ID + ".provider", file);
+        Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType("text/csv");
+        intent.putExtra(Intent.EXTRA_STREAM, uri);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        startActivity(Intent.createChooser(intent, getString(R.string.text_diagnostics_export_title)));
+    }
+}
@@ -0,0 +1,59 @@
+package com.skythinker.gptassistant.api;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.Assert.*;
+
+public class BpeTokenizerTest {
+    // 生成tiktoken格式的词表：所有单字节之后依次为merges中的字节序列
+    private static String vocabulary(String... merges) {
+        StringBuilder sb = new StringBuilder();
+        int rank = 0;
+        for(int i = 0; i < 256; i++) {
+            sb.append(Base64.getEncoder().encodeToString(new byte[]{(byte) i})).append(' ').append(rank++).append('\n');
+        }
+        for(String merge : merges) {
+            sb.append(Base64.getEncoder().encodeToString(merge.getBytes(StandardCharsets.UTF_8))).append(' ').append(rank++).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static BpeTokenizer load(String vocabulary) throws IOException {
+        return BpeTokenizer.load(TokenEstimator.Encoding.CL100K_BASE, new ByteArrayInputStream(vocabulary.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    public void mergesPairsByRank() throws Exception {
+        BpeTokenizer tokenizer = load(vocabulary("he", "ll", "hell", " w", "or", " wor"));
+        assertTrue(tokenizer.isExact());
+        assertEquals(1, tokenizer.count("hell")); // 整个片段在词表中
+        assertEquals(2, tokenizer.count("hello")); // he+ll -> hell, o
+        assertEquals(5, tokenizer.count("hello world")); // 先按正则切分为"hello"和" world"，" world" -> " wor", l, d
+        assertEquals(3, tokenizer.count("你")); // 未合并的UTF-8字节各为一个token
+        assertEquals(0, tokenizer.count(""));
+    }
+
+    @Test
+    public void prefersLowerRankedMerge() throws Exception {
+        assertEquals(2, load(vocabulary("ab", "bc")).count("abc")); // ab先合并，bc不再可合并
+        assertEquals(2, load(vocabulary("bc", "ab")).count("abc"));
+        assertEquals(1, load(vocabulary("bc", "ab", "abc")).count("abc"));
+    }
+
+    @Test
+    public void rejectsIncompleteVocabulary() {
+        try {
+            load(vocabulary().substring(0, 100)); // 下载中断
+            fail();
+        } catch (IOException ignore) { }
+        try {
+            load(vocabulary("ab").replace("YWI= 256", "YWI= 300")); // rank不连续
+            fail();
+        } catch (IOException ignore) { }
+    }
+}
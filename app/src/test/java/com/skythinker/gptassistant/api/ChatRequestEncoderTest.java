@@ -0,0 +1,235 @@
+package com.skythinker.gptassistant.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage.Attachment;
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage.ChatRole;
+import com.unfbx.chatgpt.entity.chat.Content;
+import com.unfbx.chatgpt.entity.chat.FunctionCall;
+import com.unfbx.chatgpt.entity.chat.ImageUrl;
+import com.unfbx.chatgpt.entity.chat.Message;
+import com.unfbx.chatgpt.entity.chat.MessagePicture;
+import com.unfbx.chatgpt.entity.chat.tool.ToolCallFunction;
+import com.unfbx.chatgpt.entity.chat.tool.ToolCalls;
+import com.unfbx.chatgpt.entity.chat.tool.Tools;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import okhttp3.RequestBody;
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+public class ChatRequestEncoderTest {
+    // 按原先基于chatgpt-java实体类的方式构造消息列表，作为对照
+    private static List<Object> buildBaseline(List<ChatMessage> messages, boolean visionSupport) {
+        boolean hasAttachment = false;
+        for(ChatMessage message : messages) {
+            hasAttachment |= message.attachments.size() > 0;
+        }
+        List<Object> messageList = new ArrayList<>();
+        for(ChatMessage message : messages) {
+            if(!hasAttachment) {
+                if(message.role == ChatRole.ASSISTANT && message.toolCalls.size() > 0) {
+                    if(message.toolCalls.get(0).id != null) {
+                        messageList.add(Message.builder().role(Message.Role.ASSISTANT).toolCalls(toolCallsOf(message)).content("").build());
+                    } else {
+                        messageList.add(Message.builder().role(Message.Role.ASSISTANT).functionCall(functionCallOf(message)).content("").build());
+                    }
+                } else if(message.role == ChatRole.FUNCTION) {
+                    ChatMessage.ToolCall toolCall = message.toolCalls.get(0);
+                    if(toolCall.id != null) {
+                        messageList.add(Message.builder().role(Message.Role.TOOL).toolCallId(toolCall.id).name(toolCall.functionName).content(toolCall.content).build());
+                    } else {
+                        messageList.add(Message.builder().role(Message.Role.FUNCTION).name(toolCall.functionName).content(toolCall.content).build());
+                    }
+                } else {
+                    messageList.add(Message.builder().role(roleOf(message)).content(message.contentText).build());
+                }
+                continue;
+            }
+            List<Content> contentList = new ArrayList<>();
+            if(message.contentText != null) {
+                contentList.add(Content.builder().type(Content.Type.TEXT.getName()).text(message.contentText).build());
+            }
+            for(ChatMessage.ToolCall toolCall : message.toolCalls) {
+                if(toolCall.content != null) {
+                    contentList.add(Content.builder().type(Content.Type.TEXT.getName()).text(toolCall.content).build());
+                }
+            }
+            for(Attachment attachment : message.attachments) {
+                if(attachment.type == Attachment.Type.IMAGE && visionSupport) {
+                    ImageUrl imageUrl = ImageUrl.builder().url("data:image/jpeg;base64," + Base64.getEncoder().encodeToString(attachment.getBytes())).build();
+                    contentList.add(Content.builder().type(Content.Type.IMAGE_URL.getName()).imageUrl(imageUrl).build());
+                } else if(attachment.type == Attachment.Type.TEXT) {
+                    contentList.add(Content.builder().type(Content.Type.TEXT.getName()).text(attachment.getContent()).build());
+                }
+            }
+            if(message.role == ChatRole.ASSISTANT && message.toolCalls.size() > 0) {
+                if(message.toolCalls.get(0).id != null) {
+                    messageList.add(MessagePicture.builder().role(Message.Role.ASSISTANT).toolCalls(toolCallsOf(message)).build());
+                } else {
+                    messageList.add(MessagePicture.builder().role(Message.Role.ASSISTANT).functionCall(functionCallOf(message)).build());
+                }
+            } else if(message.role == ChatRole.FUNCTION) {
+                ChatMessage.ToolCall toolCall = message.toolCalls.get(0);
+                if(toolCall.id != null) {
+                    messageList.add(MessagePicture.builder().role(Message.Role.TOOL).toolCallId(toolCall.id).name(toolCall.functionName).content(contentList).build());
+                } else {
+                    messageList.add(MessagePicture.builder().role(Message.Role.FUNCTION).name(toolCall.functionName).content(contentList).build());
+                }
+            } else {
+                messageList.add(MessagePicture.builder().role(roleOf(message)).content(contentList).build());
+            }
+        }
+        return messageList;
+    }
+
+    private static Message.Role roleOf(ChatMessage message) {
+        return message.role == ChatRole.SYSTEM ? Message.Role.SYSTEM : message.role == ChatRole.USER ? Message.Role.USER : Message.Role.ASSISTANT;
+    }
+
+    private static List<ToolCalls> toolCallsOf(ChatMessage message) {
+        List<ToolCalls> toolCallsList = new ArrayList<>();
+        for(ChatMessage.ToolCall toolCall : message.toolCalls) {
+            ToolCallFunction function = ToolCallFunction.builder().name(toolCall.functionName).arguments(toolCall.arguments).build();
+            toolCallsList.add(ToolCalls.builder().id(toolCall.id).type(Tools.Type.FUNCTION.getName()).function(function).build());
+        }
+        return toolCallsList;
+    }
+
+    private static FunctionCall functionCallOf(ChatMessage message) {
+        ChatMessage.ToolCall toolCall = message.toolCalls.get(0);
+        return FunctionCall.builder().name(toolCall.functionName).arguments(toolCall.arguments).build();
+    }
+
+    // 将JSON转为有序的Map和List，忽略字段顺序进行比较
+    private static Object normalize(Object value) {
+        if(value instanceof JSONObject) {
+            TreeMap<String, Object> map = new TreeMap<>();
+            for(String key : ((JSONObject) value).keySet()) {
+                map.put(key, normalize(((JSONObject) value).get(key)));
+            }
+            return map;
+        } else if(value instanceof JSONArray) {
+            List<Object> list = new ArrayList<>();
+            for(Object item : (JSONArray) value) {
+                list.add(normalize(item));
+            }
+            return list;
+        }
+        return value;
+    }
+
+    private static String write(RequestBody body) throws Exception {
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        assertEquals(body.contentLength(), buffer.size());
+        return buffer.readUtf8();
+    }
+
+    // 编码结果中的消息列表应与原先的实现一致
+    private static JSONObject assertMatchesBaseline(List<ChatMessage> messages, boolean visionSupport) throws Exception {
+        JSONObject request = JSONUtil.parseObj(write(ChatRequestEncoder.encode(messages, "gpt-4o", 0.5f, null, visionSupport)));
+        JSONArray expected = JSONUtil.parseArray(new ObjectMapper().writeValueAsString(buildBaseline(messages, visionSupport)));
+        assertEquals(normalize(expected), normalize(request.getJSONArray("messages")));
+        assertEquals("gpt-4o", request.getStr("model"));
+        assertTrue(request.getBool("stream"));
+        return request;
+    }
+
+    private static List<ChatMessage> toolConversation() {
+        return new ArrayList<>(Arrays.asList(
+                new ChatMessage(ChatRole.SYSTEM).setText("你是一个助手"),
+                new ChatMessage(ChatRole.USER).setText("打开\"设置\"\n然后返回"),
+                new ChatMessage(ChatRole.ASSISTANT).addFunctionCall("call_1", "launch_package", "{\"package\":\"com.android.settings\"}", null),
+                new ChatMessage(ChatRole.FUNCTION).addFunctionCall("call_1", "launch_package", null, "OK"),
+                new ChatMessage(ChatRole.ASSISTANT).addFunctionCall(null, "get_widget_tree", "{}", null), // 旧版本的function方式
+                new ChatMessage(ChatRole.FUNCTION).addFunctionCall(null, "get_widget_tree", null, "{\"id\":1}"),
+                new ChatMessage(ChatRole.ASSISTANT).setText("已打开")));
+    }
+
+    private static byte[] randomBytes(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void encodesPlainText() throws Exception {
+        assertMatchesBaseline(Arrays.asList(
+                new ChatMessage(ChatRole.USER).setText("你好 \\ \u0001 😀"),
+                new ChatMessage(ChatRole.ASSISTANT).setText("有什么可以帮您？")), true);
+    }
+
+    @Test
+    public void encodesSystemAndToolMessages() throws Exception {
+        assertMatchesBaseline(toolConversation(), true);
+    }
+
+    @Test
+    public void encodesToolMessagesAsContentList() throws Exception {
+        List<ChatMessage> messages = toolConversation();
+        messages.get(1).addAttachment(Attachment.createNew(Attachment.Type.TEXT, "a.txt", "附件内容", false));
+        assertMatchesBaseline(messages, true);
+    }
+
+    @Test
+    public void encodesImagesAcrossChunks() throws Exception {
+        List<ChatMessage> messages = Arrays.asList(
+                new ChatMessage(ChatRole.USER).setText("这是什么")
+                        .addAttachment(Attachment.createNew(Attachment.Type.IMAGE, "a.jpg", randomBytes(3 * 1024 * 3 + 1, 1), false)) // 跨越多段，最后剩余1字节
+                        .addAttachment(Attachment.createNew(Attachment.Type.IMAGE, "b.jpg", randomBytes(3 * 1024 * 2 + 2, 2), false)) // 最后剩余2字节
+                        .addAttachment(Attachment.createNew(Attachment.Type.IMAGE, "c.jpg", randomBytes(3 * 1024, 3), false)), // 恰好一段
+                new ChatMessage(ChatRole.ASSISTANT).setText("图片"));
+        assertMatchesBaseline(messages, true);
+    }
+
+    @Test
+    public void dropsImagesWithoutVisionSupport() throws Exception {
+        List<ChatMessage> messages = Arrays.asList(
+                new ChatMessage(ChatRole.USER).setText("这是什么")
+                        .addAttachment(Attachment.createNew(Attachment.Type.IMAGE, "a.jpg", randomBytes(5000, 4), false))
+                        .addAttachment(Attachment.createNew(Attachment.Type.TEXT, "a.txt", "附件内容", false)));
+        JSONObject request = assertMatchesBaseline(messages, false);
+        assertFalse(request.toString().contains("image_url"));
+    }
+
+    @Test
+    public void invalidatesFragmentWhenMessageChanges() throws Exception {
+        ChatMessage message = new ChatMessage(ChatRole.USER).setText("第一版");
+        List<ChatMessage> messages = Arrays.asList(message);
+        write(ChatRequestEncoder.encode(messages, "gpt-4o", 0.5f, null, true));
+        Object fragment = message.encodeCache.latest;
+        assertNotNull(fragment);
+        write(ChatRequestEncoder.encode(messages, "gpt-4o", 0.5f, null, true));
+        assertSame(fragment, message.encodeCache.latest); // 未修改时复用
+
+        message.setText("第二版");
+        assertTrue(write(ChatRequestEncoder.encode(messages, "gpt-4o", 0.5f, null, true)).contains("第二版"));
+        assertNotSame(fragment, message.encodeCache.latest);
+        assertMatchesBaseline(messages, true);
+
+        fragment = message.encodeCache.latest;
+        message.addAttachment(Attachment.createNew(Attachment.Type.TEXT, "a.txt", "新附件", false));
+        assertTrue(write(ChatRequestEncoder.encode(messages, "gpt-4o", 0.5f, null, true)).contains("新附件"));
+        assertNotSame(fragment, message.encodeCache.latest);
+        assertMatchesBaseline(messages, true);
+
+        fragment = message.encodeCache.latest;
+        message.attachments.set(0, Attachment.createNew(Attachment.Type.IMAGE, "a.jpg", randomBytes(100, 5), false));
+        write(ChatRequestEncoder.encode(messages, "gpt-4o", 0.5f, null, true));
+        assertNotSame(fragment, message.encodeCache.latest);
+        assertMatchesBaseline(messages, true);
+    }
+}
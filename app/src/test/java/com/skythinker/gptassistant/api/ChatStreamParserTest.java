@@ -0,0 +1,156 @@
+package com.skythinker.gptassistant.api;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONObject;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class ChatStreamParserTest {
+    private static final List<String> TRACES = Arrays.asList("openai_content.txt", "deepseek_reasoning.txt", "tool_calls.txt", "parallel_tool_calls.txt", "index_zero_tool_calls.txt");
+
+    // 按原先基于hutool的方式提取增量内容，作为对照
+    private static String extractWithHutool(String data) {
+        JSONObject json = new JSONObject(data);
+        StringBuilder sb = new StringBuilder();
+        if(json.containsKey("choices") && json.getJSONArray("choices").size() > 0) {
+            JSONObject delta = ((JSONObject) json.getJSONArray("choices").get(0)).getJSONObject("delta");
+            if(delta != null) {
+                sb.append("content=").append(delta.getStr("content")).append('|');
+                sb.append("reasoning=").append(delta.getStr("reasoning_content")).append('|');
+                JSONArray toolCalls = delta.getJSONArray("tool_calls");
+                if(toolCalls != null) {
+                    for(int i = 0; i < toolCalls.size(); i++) {
+                        JSONObject toolCall = toolCalls.getJSONObject(i);
+                        JSONObject function = toolCall.getJSONObject("function");
+                        sb.append("tool[").append(toolCall.getInt("index", i)).append("]=")
+                                .append(toolCall.getStr("id")).append(',')
+                                .append(function == null ? null : function.getStr("name")).append(',')
+                                .append(function == null ? null : function.getStr("arguments")).append('|');
+                    }
+                }
+            }
+        }
+        JSONObject usage = json.getJSONObject("usage");
+        if(usage != null) {
+            sb.append("usage=").append(usage.getLong("prompt_tokens", -1L)).append(',')
+                    .append(usage.getLong("completion_tokens", -1L)).append(',')
+                    .append(usage.getLong("total_tokens", -1L));
+        }
+        return sb.toString();
+    }
+
+    private static String extractWithParser(ChatStreamParser parser, String data) {
+        assertTrue(parser.parse(data));
+        StringBuilder sb = new StringBuilder();
+        if(parser.hasDelta()) {
+            sb.append("content=").append(parser.getContent()).append('|');
+            sb.append("reasoning=").append(parser.getReasoningContent()).append('|');
+            for(int i = 0; i < parser.getToolCallCount(); i++) {
+                ChatStreamParser.ToolCallDelta toolCall = parser.getToolCall(i);
+                sb.append("tool[").append(toolCall.getIndex()).append("]=")
+                        .append(toolCall.getId()).append(',')
+                        .append(toolCall.getName()).append(',')
+                        .append(toolCall.getArguments()).append('|');
+            }
+        }
+        if(parser.hasUsage()) {
+            sb.append("usage=").append(parser.getPromptTokens()).append(',')
+                    .append(parser.getCompletionTokens()).append(',')
+                    .append(parser.getTotalTokens());
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void matchesHutoolOnRecordedTraces() throws Exception {
+        ChatStreamParser parser = new ChatStreamParser();
+        for(String trace : TRACES) {
+            for(String data : SseTraceReader.read(trace)) {
+                if(data.equals("[DONE]"))
+                    continue;
+                assertEquals(trace + ": " + data, extractWithHutool(data), extractWithParser(parser, data));
+            }
+        }
+    }
+
+    @Test
+    public void handlesEscapesAndUnknownFields() {
+        ChatStreamParser parser = new ChatStreamParser();
+        assertTrue(parser.parse("{\"extra\":{\"a\":[1,{\"b\":\"}\"}]},\"choices\":[{\"delta\":{\"content\":\"\\u4f60\\u597d\\/\\\"x\\\"\"}},{\"delta\":{\"content\":\"ignored\"}}]}"));
+        assertEquals("你好/\"x\"", parser.getContent());
+        assertFalse(parser.hasReasoningContent());
+        assertEquals(0, parser.getToolCallCount());
+    }
+
+    @Test
+    public void rejectsMalformedChunks() {
+        ChatStreamParser parser = new ChatStreamParser();
+        assertFalse(parser.parse("{\"choices\":[{\"delta\":{\"content\":\"abc"));
+        assertFalse(parser.hasContent());
+        assertFalse(parser.parse(": keep-alive"));
+        assertTrue(parser.parse("{\"choices\":[{\"delta\":{\"content\":\"ok\"}}]}"));
+        assertEquals("ok", parser.getContent());
+    }
+
+    // 解析每个增量的内存分配应少于原先基于hutool的方式
+    @Test
+    public void allocatesLessThanHutool() throws Exception {
+        List<String> chunks = new ArrayList<>();
+        for(String trace : TRACES) {
+            for(String data : SseTraceReader.read(trace)) {
+                if(!data.equals("[DONE]"))
+                    chunks.add(data);
+            }
+        }
+        assumeTrue(allocatedBytes() > 0); // 当前JVM不支持统计线程的内存分配
+        final int rounds = 20;
+        ChatStreamParser parser = new ChatStreamParser();
+        int sink = 0;
+        for(String data : chunks) { // 预热，初始化类和缓冲区
+            sink += extractWithHutool(data).length();
+            parser.parse(data);
+        }
+
+        long hutoolBytes = allocatedBytes();
+        for(int i = 0; i < rounds; i++) {
+            for(String data : chunks) {
+                JSONObject json = new JSONObject(data);
+                JSONArray choices = json.getJSONArray("choices");
+                if(choices != null && choices.size() > 0) {
+                    JSONObject delta = choices.getJSONObject(0).getJSONObject("delta");
+                    if(delta != null && delta.getStr("content") != null)
+                        sink += delta.getStr("content").length();
+                }
+            }
+        }
+        hutoolBytes = allocatedBytes() - hutoolBytes;
+
+        long parserBytes = allocatedBytes();
+        for(int i = 0; i < rounds; i++) {
+            for(String data : chunks) {
+                if(parser.parse(data) && parser.hasContent())
+                    sink += parser.getContentChars().length();
+            }
+        }
+        parserBytes = allocatedBytes() - parserBytes;
+
+        int total = rounds * chunks.size();
+        assertTrue(sink > 0);
+        assertTrue("parser " + parserBytes / total + " B/chunk, hutool " + hutoolBytes / total + " B/chunk", parserBytes < hutoolBytes);
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return 0;
+    }
+}
@@ -0,0 +1,67 @@
+package com.skythinker.gptassistant.api;
+
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.data.CompletionCache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+// 使用本地模拟的接入点测试回复缓存
+public class CompletionCacheTest {
+    private MockSseServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockSseServer();
+        CompletionCache.init(Files.createTempDirectory("completions").toFile());
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        CompletionCache.clear();
+    }
+
+    private static List<ChatMessage> prompt(String text) {
+        return Collections.singletonList(new ChatMessage(ChatMessage.ChatRole.USER).setText(text));
+    }
+
+    private static String send(ChatApiClient client, String text) throws InterruptedException {
+        Recorder recorder = new Recorder();
+        ChatRequest request = client.sendPromptList(prompt(text), recorder);
+        recorder.await();
+        assertNull(recorder.error);
+        assertEquals(ChatRequest.State.DONE, request.getState());
+        return recorder.content.toString();
+    }
+
+    @Test
+    public void replaysIdenticalRequests() throws Exception {
+        MockSseServer.Backend backend = MockSseServer.Backend.reply("Bon", "jour");
+        ChatApiClient client = new ChatApiClient(null, server.addBackend("a", backend), "sk-test", "gpt-4o", null);
+        client.setCacheEnabled(true);
+        long hits = CompletionCache.getHitCount(), misses = CompletionCache.getMissCount();
+
+        assertEquals("Bonjour", send(client, "hello"));
+        assertEquals("Bonjour", send(client, "hello"));
+        assertEquals(1, backend.hits.get()); // 第二次直接重放缓存
+        assertEquals(hits + 1, CompletionCache.getHitCount());
+        assertEquals(misses + 1, CompletionCache.getMissCount());
+
+        send(client, "hello again"); // 消息不同
+        client.setTemperature(0.1f);
+        send(client, "hello"); // 温度不同
+        assertEquals(3, backend.hits.get());
+
+        client.setCacheEnabled(false);
+        send(client, "hello");
+        assertEquals(4, backend.hits.get());
+    }
+}
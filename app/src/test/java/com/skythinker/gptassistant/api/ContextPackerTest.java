@@ -0,0 +1,91 @@
+package com.skythinker.gptassistant.api;
+
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage.ChatRole;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ContextPackerTest {
+    private static final String MODEL = "gpt-4o";
+
+    private static ChatMessage text(ChatRole role, String text) {
+        return new ChatMessage(role).setText(text);
+    }
+
+    private static ChatMessage call(String id) {
+        return new ChatMessage(ChatRole.ASSISTANT).addFunctionCall(id, "get_time", "{}", null);
+    }
+
+    private static ChatMessage result(String id, String content) {
+        return new ChatMessage(ChatRole.FUNCTION).addFunctionCall(id, "get_time", null, content);
+    }
+
+    private static String words(int count) {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < count; i++) {
+            sb.append(" word");
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void leavesMarginForEstimatedCounts() {
+        assertFalse(TokenCounter.isExact(MODEL)); // 测试中不下载词表
+        assertEquals((int) ((128000 - 8192) * 0.75), ContextPacker.getBudget(MODEL, 0));
+    }
+
+    @Test
+    public void keepsNewestHistoryWithinBudget() {
+        ChatMessage system = text(ChatRole.SYSTEM, "system");
+        ChatMessage oldUser = text(ChatRole.USER, "short");
+        ChatMessage oldReply = text(ChatRole.ASSISTANT, words(500));
+        ChatMessage user = text(ChatRole.USER, "short");
+        ChatMessage reply = text(ChatRole.ASSISTANT, "short");
+        ChatMessage current = text(ChatRole.USER, "question");
+        List<ChatMessage> messages = Arrays.asList(system, oldUser, oldReply, user, reply, current);
+
+        assertEquals(messages, ContextPacker.packWithBudget(messages, MODEL, 10, 100000));
+        // 较早的长消息装不下，之后的历史仍保留，且不会跳过它去装更早的消息
+        assertEquals(Arrays.asList(system, user, reply, current), ContextPacker.packWithBudget(messages, MODEL, 10, 200));
+        // 普通消息数上限仍然生效
+        assertEquals(Arrays.asList(system, reply, current), ContextPacker.packWithBudget(messages, MODEL, 1, 100000));
+        // 预算不足时仍发送系统消息和当前问题
+        assertEquals(Arrays.asList(system, current), ContextPacker.packWithBudget(messages, MODEL, 10, 0));
+    }
+
+    @Test
+    public void keepsToolCallsWithTheirResults() {
+        ChatMessage user = text(ChatRole.USER, "what time is it");
+        ChatMessage call = call("call_1");
+        ChatMessage result1 = result("call_1", words(100));
+        ChatMessage reply = text(ChatRole.ASSISTANT, "it is noon");
+        ChatMessage current = text(ChatRole.USER, "thanks");
+        List<ChatMessage> messages = Arrays.asList(user, call, result1, reply, current);
+
+        assertEquals(messages, ContextPacker.packWithBudget(messages, MODEL, 10, 100000));
+        // 函数结果装不下时连同调用消息一起删除，不留下不成对的调用
+        List<ChatMessage> packed = ContextPacker.packWithBudget(messages, MODEL, 10, 40);
+        assertEquals(Arrays.asList(reply, current), packed);
+
+        // 没有对应结果的调用和没有调用的结果都不发送
+        ChatMessage orphanResult = result("call_2", "late");
+        ChatMessage orphanCall = call("call_3");
+        List<ChatMessage> broken = new ArrayList<>(Arrays.asList(orphanResult, user, orphanCall, reply, current));
+        assertEquals(Arrays.asList(user, reply, current), ContextPacker.packWithBudget(broken, MODEL, 10, 100000));
+    }
+
+    @Test
+    public void cachesTokenCountsUntilMessageChanges() {
+        ChatMessage message = text(ChatRole.USER, words(10));
+        int count = TokenCounter.countMessage(message, MODEL);
+        assertEquals(count, TokenCounter.countMessage(message.clone(), MODEL)); // 克隆共享缓存
+        message.setText(words(20));
+        assertTrue(TokenCounter.countMessage(message, MODEL) > count);
+    }
+}
@@ -0,0 +1,93 @@
+package com.skythinker.gptassistant.api;
+
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage.ChatRole;
+import com.skythinker.gptassistant.data.ChatManager.MessageList;
+import com.skythinker.gptassistant.data.ChatManager.Summary;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ContextSummarizerTest {
+    private static final String MODEL = "gpt-4o";
+
+    private static ChatMessage text(ChatRole role, String text) {
+        return new ChatMessage(role).setText(text);
+    }
+
+    private static String words(int count) {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < count; i++) {
+            sb.append(" word");
+        }
+        return sb.toString();
+    }
+
+    // 系统消息加上turns轮各约100token的问答
+    private static List<ChatMessage> conversation(int turns) {
+        List<ChatMessage> messages = new ArrayList<>();
+        messages.add(text(ChatRole.SYSTEM, "system"));
+        for(int i = 0; i < turns; i++) {
+            messages.add(text(ChatRole.USER, "question " + i + words(50)));
+            messages.add(text(ChatRole.ASSISTANT, "answer " + i + words(50)));
+        }
+        return messages;
+    }
+
+    @Test
+    public void splitsAtUserMessageWhenOverThreshold() {
+        List<ChatMessage> messages = conversation(10);
+        assertEquals(0, ContextSummarizer.findSplit(messages, MODEL, 100000, 100)); // 未超过阈值
+
+        int split = ContextSummarizer.findSplit(messages, MODEL, 1000, 100);
+        assertTrue(split > 1);
+        assertEquals(ChatRole.USER, messages.get(split).role);
+        int keptTokens = 0;
+        for(int i = split; i < messages.size(); i++) {
+            keptTokens += TokenCounter.countMessage(messages.get(i), MODEL);
+        }
+        assertTrue(keptTokens <= 500);
+
+        split = ContextSummarizer.findSplit(messages, MODEL, 100000, 4); // 按消息数触发，保留约一半
+        assertEquals(messages.size() - 2, split);
+    }
+
+    @Test
+    public void keepsLatestTurnEvenIfLarge() {
+        List<ChatMessage> messages = conversation(2);
+        messages.add(text(ChatRole.USER, words(3000)));
+        assertEquals(messages.size() - 1, ContextSummarizer.findSplit(messages, MODEL, 1000, 100));
+    }
+
+    @Test
+    public void appliesSummaryInPlaceOfCoveredMessages() {
+        List<ChatMessage> messages = conversation(3);
+        Summary summary = new Summary("the user asked three questions", messages, 5);
+        MessageList applied = ContextSummarizer.apply(messages, summary);
+        assertEquals(4, applied.size());
+        assertSame(messages.get(0), applied.get(0));
+        assertEquals(ChatRole.SYSTEM, applied.get(1).role);
+        assertTrue(applied.get(1).contentText.endsWith("the user asked three questions"));
+        assertSame(messages.get(5), applied.get(2));
+
+        messages.get(2).contentText = "edited"; // 被覆盖的消息被修改后摘要失效
+        assertFalse(summary.matches(messages));
+        assertEquals(messages.size(), ContextSummarizer.apply(messages, summary).size());
+    }
+
+    @Test
+    public void buildsIncrementalRequest() {
+        List<ChatMessage> messages = conversation(3);
+        MessageList request = ContextSummarizer.buildRequest("earlier summary", messages, 2);
+        assertEquals(2, request.size());
+        String transcript = request.get(1).contentText;
+        assertTrue(transcript.contains("earlier summary"));
+        assertFalse(transcript.contains("question 0"));
+        assertTrue(transcript.contains("answer 0")); // 从第1轮的回答开始
+        assertTrue(transcript.contains("question 2"));
+    }
+}
@@ -0,0 +1,163 @@
+package com.skythinker.gptassistant.api;
+
+import com.skythinker.gptassistant.data.ApiEndpoint;
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+// 使用本地模拟的多个接入点测试路由和故障切换
+public class EndpointFailoverTest {
+    private MockSseServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockSseServer();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private static List<ChatMessage> prompt() {
+        return Collections.singletonList(new ChatMessage(ChatMessage.ChatRole.USER).setText("hi"));
+    }
+
+    private static ApiEndpoint endpoint(String url) {
+        return new ApiEndpoint(url, "sk-test", new ArrayList<>());
+    }
+
+    private static ChatApiClient newClient(String primaryUrl, String... extraUrls) {
+        ChatApiClient client = new ChatApiClient(null, primaryUrl, "sk-test", "gpt-4o", null);
+        List<ApiEndpoint> extras = new ArrayList<>();
+        for(String url : extraUrls) {
+            extras.add(endpoint(url));
+        }
+        client.setExtraEndpoints(extras);
+        return client;
+    }
+
+    @Test
+    public void failsOverOnConnectErrorsAnd5xxAnd429() throws Exception {
+        MockSseServer.Backend err500 = MockSseServer.Backend.error(500);
+        MockSseServer.Backend err429 = MockSseServer.Backend.error(429);
+        MockSseServer.Backend ok = MockSseServer.Backend.reply("Hello", ", world");
+        String okUrl = server.addBackend("ok", ok);
+        ChatApiClient client = newClient(server.addBackend("err500", err500),
+                server.addBackend("err429", err429), MockSseServer.refusedUrl(), okUrl);
+
+        Recorder recorder = new Recorder();
+        ChatRequest request = client.sendPromptList(prompt(), recorder);
+        recorder.await();
+        assertNull(recorder.error);
+        assertTrue(recorder.completed);
+        assertEquals("Hello, world", recorder.content.toString());
+        assertEquals(ChatRequest.State.DONE, request.getState());
+        assertEquals(4, request.getAttemptCount());
+        assertEquals(okUrl, request.getEndpoint().getHost());
+        assertEquals(1, err500.hits.get());
+        assertEquals(1, err429.hits.get());
+
+        // 出错的接入点被降级，下一次请求直接使用可用的接入点
+        Recorder second = new Recorder();
+        ChatRequest secondRequest = client.sendPromptList(prompt(), second);
+        second.await();
+        assertEquals(1, secondRequest.getAttemptCount());
+        assertEquals(okUrl, secondRequest.getEndpoint().getHost());
+        assertEquals(1, err500.hits.get());
+    }
+
+    @Test
+    public void waitsForRetryAfterOn429() throws Exception {
+        MockSseServer.Backend limited = MockSseServer.Backend.reply("ok").failFirst(1, 429).header("retry-after-ms", "300");
+        ChatApiClient client = newClient(server.addBackend("limited", limited));
+
+        Recorder recorder = new Recorder();
+        long start = System.nanoTime();
+        ChatRequest request = client.sendPromptList(prompt(), recorder);
+        recorder.await();
+        assertNull(recorder.error); // 只有一个接入点时排队等待后重试，而不是直接报错
+        assertEquals("ok", recorder.content.toString());
+        assertEquals(2, limited.hits.get());
+        assertEquals(2, request.getAttemptCount());
+        assertTrue((System.nanoTime() - start) / 1000000 >= 300);
+    }
+
+    @Test
+    public void doesNotFailOverOnClientErrors() throws Exception {
+        MockSseServer.Backend err401 = MockSseServer.Backend.error(401);
+        MockSseServer.Backend ok = MockSseServer.Backend.reply("unused");
+        ChatApiClient client = newClient(server.addBackend("err401", err401), server.addBackend("ok", ok));
+
+        Recorder recorder = new Recorder();
+        ChatRequest request = client.sendPromptList(prompt(), recorder);
+        recorder.await();
+        assertNotNull(recorder.error);
+        assertTrue(recorder.error.contains("mock error 401"));
+        assertEquals(ChatRequest.State.FAILED, request.getState());
+        assertEquals(0, ok.hits.get());
+    }
+
+    @Test
+    public void doesNotFailOverAfterFirstByte() throws Exception {
+        MockSseServer.Backend dropping = MockSseServer.Backend.reply("partial");
+        MockSseServer.Backend ok = MockSseServer.Backend.reply("unused");
+        ChatApiClient client = newClient(server.addDroppingBackend(dropping), server.addBackend("ok", ok));
+
+        Recorder recorder = new Recorder();
+        ChatRequest request = client.sendPromptList(prompt(), recorder);
+        recorder.await();
+        assertEquals("partial", recorder.content.toString()); // 已输出的内容不会被另一个接入点的回复重复
+        assertNotNull(recorder.error);
+        assertEquals(ChatRequest.State.FAILED, request.getState());
+        assertEquals(1, request.getAttemptCount());
+        assertEquals(0, ok.hits.get());
+    }
+
+    @Test
+    public void routesToFasterBackend() throws Exception {
+        String slowUrl = server.addBackend("slow", MockSseServer.Backend.reply("slow").delay(400));
+        String fastUrl = server.addBackend("fast", MockSseServer.Backend.reply("fast"));
+        ChatApiClient client = newClient(slowUrl, fastUrl);
+
+        List<String> used = new ArrayList<>();
+        for(int i = 0; i < 4; i++) {
+            Recorder recorder = new Recorder();
+            ChatRequest request = client.sendPromptList(prompt(), recorder);
+            recorder.await();
+            assertTrue(recorder.completed);
+            used.add(request.getEndpoint().getHost());
+        }
+        assertEquals(Arrays.asList(slowUrl, fastUrl, fastUrl, fastUrl), used); // 两个接入点各采样一次后一直使用较快的
+        EndpointRouter.EndpointStats slowStats = client.getRouter().getStats(endpoint(slowUrl));
+        EndpointRouter.EndpointStats fastStats = client.getRouter().getStats(endpoint(fastUrl));
+        assertTrue(slowStats.ttftMs >= 400);
+        assertTrue(fastStats.ttftMs < slowStats.ttftMs);
+        assertEquals(3, fastStats.successCount);
+    }
+
+    @Test
+    public void reportsLastErrorWhenAllBackendsFail() throws Exception {
+        MockSseServer.Backend err503 = MockSseServer.Backend.error(503);
+        MockSseServer.Backend err502 = MockSseServer.Backend.error(502);
+        ChatApiClient client = newClient(server.addBackend("err503", err503), server.addBackend("err502", err502));
+
+        Recorder recorder = new Recorder();
+        ChatRequest request = client.sendPromptList(prompt(), recorder);
+        recorder.await();
+        assertNotNull(recorder.error);
+        assertEquals(ChatRequest.State.FAILED, request.getState());
+        assertEquals(2, request.getAttemptCount());
+        assertEquals(1, err503.hits.get());
+        assertEquals(1, err502.hits.get());
+    }
+}
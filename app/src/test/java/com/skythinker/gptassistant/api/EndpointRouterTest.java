@@ -0,0 +1,100 @@
+package com.skythinker.gptassistant.api;
+
+import com.skythinker.gptassistant.data.ApiEndpoint;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EndpointRouterTest {
+    private static ApiEndpoint endpoint(String host, String... models) {
+        return new ApiEndpoint(host, "sk-test", Arrays.asList(models));
+    }
+
+    @Test
+    public void filtersEndpointsByModel() {
+        ApiEndpoint all = endpoint("https://a.example.com/");
+        ApiEndpoint special = endpoint("https://b.example.com/", "model-b");
+        EndpointRouter router = new EndpointRouter();
+        router.setEndpoints(Arrays.asList(all, special));
+        assertEquals(Arrays.asList(all, special), router.route("model-b"));
+        assertEquals(Arrays.asList(all), router.route("model-a"));
+
+        router.setEndpoints(Arrays.asList(special));
+        assertEquals(Arrays.asList(special), router.route("model-a")); // 没有接入点声明该模型时使用全部接入点
+    }
+
+    @Test
+    public void ignoresIncompleteEndpoints() {
+        EndpointRouter router = new EndpointRouter();
+        router.setEndpoints(Arrays.asList(new ApiEndpoint("", "sk-test", new ArrayList<>()), new ApiEndpoint("https://a.example.com/", "", new ArrayList<>())));
+        assertTrue(router.route("gpt-4o").isEmpty());
+    }
+
+    @Test
+    public void prefersLowerLatency() {
+        ApiEndpoint slow = endpoint("https://slow.example.com/");
+        ApiEndpoint fast = endpoint("https://fast.example.com/");
+        ApiEndpoint fresh = endpoint("https://fresh.example.com/");
+        EndpointRouter router = new EndpointRouter();
+        router.setEndpoints(Arrays.asList(slow, fast, fresh));
+        router.recordSuccess(slow, "gpt-4o", 900);
+        router.recordSuccess(fast, "gpt-4o", 200);
+        assertEquals(Arrays.asList(fresh, fast, slow), router.route("gpt-4o")); // 没有样本的接入点先尝试一次
+        router.recordSuccess(fresh, "gpt-4o", 500);
+        assertEquals(Arrays.asList(fast, fresh, slow), router.route("gpt-4o"));
+    }
+
+    @Test
+    public void demotesFailingEndpoints() {
+        ApiEndpoint flaky = endpoint("https://flaky.example.com/");
+        ApiEndpoint steady = endpoint("https://steady.example.com/");
+        EndpointRouter router = new EndpointRouter();
+        router.setEndpoints(Arrays.asList(flaky, steady));
+        router.recordSuccess(flaky, "gpt-4o", 100);
+        router.recordSuccess(steady, "gpt-4o", 300);
+        router.recordFailure(flaky);
+        List<ApiEndpoint> route = router.route("gpt-4o");
+        assertEquals(Arrays.asList(steady, flaky), route); // 降级中的接入点排在最后，但仍可作为备选
+        assertEquals(1, router.getStats(flaky).consecutiveFailures);
+        assertTrue(router.getStats(flaky).errorRate > 0);
+
+        router.recordSuccess(flaky, "gpt-4o", 100);
+        assertEquals(0, router.getStats(flaky).cooldownUntil);
+        assertEquals(Arrays.asList(flaky, steady), router.route("gpt-4o"));
+    }
+
+    @Test
+    public void keepsStatsWhenEndpointsAreReplaced() {
+        EndpointRouter router = new EndpointRouter();
+        router.setEndpoints(Arrays.asList(endpoint("https://a.example.com/")));
+        router.recordSuccess(endpoint("https://a.example.com"), "gpt-4o", 250);
+        router.setEndpoints(Arrays.asList(endpoint("a.example.com", "gpt-4o")));
+        assertEquals(250, router.getStats(router.getEndpoints().get(0)).ttftMs, 0.001);
+    }
+
+    @Test
+    public void hedgeDelayFollowsP90OfModel() {
+        EndpointRouter router = new EndpointRouter();
+        ApiEndpoint endpoint = endpoint("https://a.example.com/");
+        router.setHedgeDelayRange(4000, 100, 20000);
+        for(int i = 1; i <= 9; i++) {
+            router.recordSuccess(endpoint, "gpt-4o", i * 100);
+        }
+        assertEquals(4000, router.getHedgeDelay("gpt-4o")); // 样本不足时使用默认值
+        router.recordSuccess(endpoint, "gpt-4o", 1000);
+        assertEquals(900, router.getHedgeDelay("gpt-4o"));
+        assertEquals(4000, router.getHedgeDelay("deepseek-chat")); // 各模型分别统计
+
+        for(int i = 0; i < 50; i++) { // 只保留最近的样本
+            router.recordSuccess(endpoint, "gpt-4o", 30000);
+        }
+        assertEquals(20000, router.getHedgeDelay("gpt-4o"));
+        router.setHedgeDelayRange(4000, 100, 60000);
+        assertEquals(30000, router.getHedgeDelay("gpt-4o"));
+    }
+}
@@ -0,0 +1,137 @@
+package com.skythinker.gptassistant.api;
+
+import com.skythinker.gptassistant.data.ApiEndpoint;
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+// 使用本地模拟的接入点测试对冲请求
+public class HedgedRequestTest {
+    private MockSseServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockSseServer();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private static List<ChatMessage> prompt() {
+        return Collections.singletonList(new ChatMessage(ChatMessage.ChatRole.USER).setText("hi"));
+    }
+
+    private static ChatApiClient newClient(boolean hedge, long hedgeDelayMs, String primaryUrl, String secondUrl) {
+        ChatApiClient client = new ChatApiClient(null, primaryUrl, "sk-test", "gpt-4o", null);
+        client.setExtraEndpoints(Collections.singletonList(new ApiEndpoint(secondUrl, "sk-test", new ArrayList<>())));
+        client.setHedgeEnabled(hedge);
+        client.getRouter().setHedgeDelayRange(hedgeDelayMs, hedgeDelayMs, hedgeDelayMs);
+        return client;
+    }
+
+    @Test
+    public void hedgeWinsWhenPrimaryStalls() throws Exception {
+        MockSseServer.Backend stalled = MockSseServer.Backend.reply("slow").delay(3000);
+        MockSseServer.Backend fast = MockSseServer.Backend.reply("fast");
+        String fastUrl = server.addBackend("fast", fast);
+        ChatApiClient client = newClient(true, 200, server.addBackend("stalled", stalled), fastUrl);
+
+        long start = System.currentTimeMillis();
+        Recorder recorder = new Recorder();
+        ChatRequest request = client.sendPromptList(prompt(), recorder);
+        recorder.await();
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertNull(recorder.error);
+        assertEquals("fast", recorder.content.toString());
+        assertTrue(request.isHedged());
+        assertTrue(request.isWonByHedge());
+        assertEquals(fastUrl, request.getEndpoint().getHost());
+        assertEquals(2, request.getAttemptCount());
+
+        Thread.sleep(3500); // 等待落选的连接结束，确认不会再产生回调
+        assertEquals("fast", recorder.content.toString());
+        assertEquals(1, recorder.finishCount.get());
+
+        EndpointRouter.HedgeStats stats = client.getRouter().getHedgeStats();
+        assertEquals(1, stats.requestCount);
+        assertEquals(1, stats.hedgedCount);
+        assertEquals(1, stats.hedgeWinCount);
+        assertEquals(1.0, stats.getHedgeRate(), 0.001);
+        assertEquals(1.0, stats.getHedgeWinRate(), 0.001);
+    }
+
+    @Test
+    public void primaryCanStillWinAfterHedging() throws Exception {
+        MockSseServer.Backend primary = MockSseServer.Backend.reply("primary").delay(400);
+        MockSseServer.Backend slower = MockSseServer.Backend.reply("hedge").delay(2000);
+        String primaryUrl = server.addBackend("primary", primary);
+        ChatApiClient client = newClient(true, 100, primaryUrl, server.addBackend("slower", slower));
+
+        Recorder recorder = new Recorder();
+        ChatRequest request = client.sendPromptList(prompt(), recorder);
+        recorder.await();
+        assertEquals("primary", recorder.content.toString());
+        assertTrue(request.isHedged());
+        assertFalse(request.isWonByHedge());
+        assertEquals(primaryUrl, request.getEndpoint().getHost());
+        assertEquals(1, client.getRouter().getHedgeStats().primaryWinCount);
+        assertEquals(1, slower.hits.get());
+    }
+
+    @Test
+    public void noHedgeWhenFirstTokenIsInTime() throws Exception {
+        MockSseServer.Backend primary = MockSseServer.Backend.reply("primary");
+        MockSseServer.Backend second = MockSseServer.Backend.reply("unused");
+        ChatApiClient client = newClient(true, 1000, server.addBackend("primary", primary), server.addBackend("second", second));
+
+        Recorder recorder = new Recorder();
+        ChatRequest request = client.sendPromptList(prompt(), recorder);
+        recorder.await();
+        Thread.sleep(1200); // 超过对冲阈值后也不应再发起对冲
+        assertFalse(request.isHedged());
+        assertEquals(0, second.hits.get());
+        assertEquals(0, client.getRouter().getHedgeStats().hedgedCount);
+    }
+
+    @Test
+    public void noHedgeWhenDisabled() throws Exception {
+        MockSseServer.Backend primary = MockSseServer.Backend.reply("primary").delay(600);
+        MockSseServer.Backend second = MockSseServer.Backend.reply("unused");
+        ChatApiClient client = newClient(false, 100, server.addBackend("primary", primary), server.addBackend("second", second));
+
+        Recorder recorder = new Recorder();
+        ChatRequest request = client.sendPromptList(prompt(), recorder);
+        recorder.await();
+        assertEquals("primary", recorder.content.toString());
+        assertFalse(request.isHedged());
+        assertEquals(0, second.hits.get());
+    }
+
+    @Test
+    public void cancelStopsBothConnections() throws Exception {
+        MockSseServer.Backend primary = MockSseServer.Backend.reply("primary").delay(2000);
+        MockSseServer.Backend second = MockSseServer.Backend.reply("hedge").delay(2000);
+        ChatApiClient client = newClient(true, 100, server.addBackend("primary", primary), server.addBackend("second", second));
+
+        Recorder recorder = new Recorder();
+        ChatRequest request = client.sendPromptList(prompt(), recorder);
+        Thread.sleep(400);
+        assertTrue(request.isHedged());
+        request.cancel();
+        assertEquals(ChatRequest.State.CANCELLED, request.getState());
+        assertFalse(client.isStreaming());
+        assertEquals(1, primary.hits.get());
+        assertEquals(1, second.hits.get());
+        assertEquals(0, recorder.content.length());
+    }
+}
@@ -0,0 +1,198 @@
+package com.skythinker.gptassistant.api;
+
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage.ChatRole;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// 端到端压测工具：并发运行多个脚本对话驱动ChatApiClient，统计延迟分位数、内存分配和吞吐量
+// 配合MockSseServer使用，无需真实的服务商即可发现流式处理路径的性能退化
+public class LoadHarness {
+    private static final long REQUEST_TIMEOUT_MS = 30000;
+
+    // 一次压测的结果
+    public static class Report {
+        public int requests = 0, failures = 0;
+        public long chunks = 0; // 收到的回复数据块数（回复和思维链）
+        public long[] ttftMs = new long[0], totalMs = new long[0]; // 已排序
+        public long allocatedBytes = -1; // 压测期间所有线程分配的内存（不支持统计时为-1）
+        public double wallSeconds = 0;
+
+        public long ttftPercentile(double p) { return percentile(ttftMs, p); }
+
+        public long totalPercentile(double p) { return percentile(totalMs, p); }
+
+        public double requestsPerSecond() { return wallSeconds > 0 ? requests / wallSeconds : 0; }
+
+        public double chunksPerSecond() { return wallSeconds > 0 ? chunks / wallSeconds : 0; }
+
+        public long allocatedBytesPerRequest() { return allocatedBytes < 0 || requests == 0 ? -1 : allocatedBytes / requests; }
+
+        private static long percentile(long[] sorted, double p) {
+            if(sorted.length == 0) {
+                return -1;
+            }
+            int index = (int) Math.ceil(p * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "requests=%d failures=%d ttft(p50/p90/p99)=%d/%d/%dms total(p50/p90/p99)=%d/%d/%dms "
+                            + "throughput=%.1f req/s %.1f chunks/s alloc=%d B/req wall=%.2fs",
+                    requests, failures, ttftPercentile(0.5), ttftPercentile(0.9), ttftPercentile(0.99),
+                    totalPercentile(0.5), totalPercentile(0.9), totalPercentile(0.99),
+                    requestsPerSecond(), chunksPerSecond(), allocatedBytesPerRequest(), wallSeconds);
+        }
+    }
+
+    // 一个请求的计时
+    private static class RequestListener implements ChatApiClient.OnReceiveListener {
+        final long startNanos = System.nanoTime();
+        final CountDownLatch finished = new CountDownLatch(1);
+        final StringBuilder content = new StringBuilder();
+        volatile long firstTokenNanos = 0, endNanos = 0;
+        volatile int chunks = 0;
+        volatile boolean failed = false;
+        volatile ArrayList<ChatApiClient.CallingFunction> functions = null;
+
+        private void onToken() {
+            if(firstTokenNanos == 0) {
+                firstTokenNanos = System.nanoTime();
+            }
+            chunks++;
+        }
+
+        private void end() {
+            endNanos = System.nanoTime();
+            finished.countDown();
+        }
+
+        @Override public void onMsgReceive(String message) { onToken(); content.append(message); }
+        @Override public void onReasoningReceive(String reasoning) { onToken(); }
+        @Override public void onError(String message) { failed = true; end(); }
+        @Override public void onFunctionCall(ArrayList<ChatApiClient.CallingFunction> functions) { this.functions = functions; end(); }
+        @Override public void onFinished(boolean completed) { failed |= !completed; end(); }
+    }
+
+    private final ChatApiClient client;
+    private final List<String> script; // 每轮对话中用户依次发送的消息
+    private final ArrayList<Long> ttftSamples = new ArrayList<>(), totalSamples = new ArrayList<>();
+    private int requests = 0, failures = 0;
+    private long chunks = 0;
+
+    public LoadHarness(ChatApiClient client, List<String> script) {
+        this.client = client;
+        this.script = script;
+    }
+
+    // 用concurrency个线程运行conversations轮对话，返回统计结果
+    public Report run(int conversations, int concurrency) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for(int i = 0; i < conversations; i++) {
+            executor.execute(this::runConversation);
+        }
+        executor.shutdown();
+        if(!executor.awaitTermination(REQUEST_TIMEOUT_MS * script.size() * conversations, TimeUnit.MILLISECONDS)) {
+            executor.shutdownNow();
+        }
+        Report report = new Report();
+        report.wallSeconds = (System.nanoTime() - start) / 1e9;
+        long allocatedAfter = allocatedBytes();
+        report.allocatedBytes = allocatedBefore < 0 || allocatedAfter < 0 ? -1 : allocatedAfter - allocatedBefore;
+        synchronized (this) {
+            report.requests = requests;
+            report.failures = failures;
+            report.chunks = chunks;
+            report.ttftMs = toSortedArray(ttftSamples);
+            report.totalMs = toSortedArray(totalSamples);
+        }
+        return report;
+    }
+
+    // 运行一轮脚本对话，GPT请求调用函数时返回固定结果并继续请求
+    private void runConversation() {
+        List<ChatMessage> messages = new ArrayList<>();
+        for(String userText : script) {
+            messages.add(new ChatMessage(ChatRole.USER).setText(userText));
+            while(true) {
+                RequestListener listener = new RequestListener();
+                client.sendPromptList(new ArrayList<>(messages), listener);
+                boolean done;
+                try {
+                    done = listener.finished.await(REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                record(listener, done);
+                if(!done || listener.failed) { // 本轮对话失败，不再继续
+                    return;
+                }
+                if(listener.functions == null) {
+                    messages.add(new ChatMessage(ChatRole.ASSISTANT).setText(listener.content.toString()));
+                    break;
+                }
+                ChatMessage call = new ChatMessage(ChatRole.ASSISTANT);
+                for(ChatApiClient.CallingFunction function : listener.functions) {
+                    call.addFunctionCall(function.toolId, function.name, function.arguments, null);
+                }
+                messages.add(call);
+                for(ChatApiClient.CallingFunction function : listener.functions) {
+                    messages.add(new ChatMessage(ChatRole.FUNCTION).addFunctionCall(function.toolId, function.name, null, "{\"result\":\"ok\"}"));
+                }
+            }
+        }
+    }
+
+    private synchronized void record(RequestListener listener, boolean done) {
+        requests++;
+        chunks += listener.chunks;
+        if(!done || listener.failed) {
+            failures++;
+            return;
+        }
+        if(listener.firstTokenNanos != 0) {
+            ttftSamples.add((listener.firstTokenNanos - listener.startNanos) / 1000000);
+        }
+        totalSamples.add((listener.endNanos - listener.startNanos) / 1000000);
+    }
+
+    private static long[] toSortedArray(List<Long> samples) {
+        long[] array = new long[samples.size()];
+        for(int i = 0; i < array.length; i++) {
+            array[i] = samples.get(i);
+        }
+        Arrays.sort(array);
+        return array;
+    }
+
+    // 所有存活线程累计分配的内存，压测期间结束的线程无法计入，结果为近似值
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        if(!sunBean.isThreadAllocatedMemorySupported() || !sunBean.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        long total = 0;
+        for(long bytes : sunBean.getThreadAllocatedBytes(sunBean.getAllThreadIds())) {
+            if(bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,83 @@
+package com.skythinker.gptassistant.api;
+
+import com.skythinker.gptassistant.data.ApiEndpoint;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+// 使用本地模拟的接入点对ChatApiClient进行端到端压测，输出各场景的统计结果
+public class LoadHarnessTest {
+    private static final String REPLY = "The quick brown fox jumps over the lazy dog. 敏捷的棕色狐狸跳过了懒狗。";
+
+    private MockSseServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockSseServer();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private static ChatApiClient newClient(String url) {
+        return new ChatApiClient(null, url, "sk-test", "gpt-4o", null);
+    }
+
+    @Test
+    public void streamsReasoningAndContent() throws Exception {
+        MockSseServer.Backend backend = MockSseServer.Backend.stream("Let me think.", REPLY, 4).delay(50).rate(500);
+        LoadHarness harness = new LoadHarness(newClient(server.addBackend("stream", backend)), Arrays.asList("hi", "more"));
+        LoadHarness.Report report = harness.run(12, 4);
+        System.out.println("stream: " + report);
+        assertEquals(24, report.requests);
+        assertEquals(0, report.failures);
+        assertEquals(24, backend.hits.get());
+        assertTrue(report.ttftPercentile(0.5) >= 50); // 不早于模拟的首字延迟
+        assertTrue(report.totalPercentile(0.5) > report.ttftPercentile(0.5));
+        int chunksPerReply = (int) Math.ceil("Let me think.".length() / 4.0) + (int) Math.ceil(REPLY.length() / 4.0);
+        assertEquals(24L * chunksPerReply, report.chunks);
+    }
+
+    @Test
+    public void completesToolCallRoundTrips() throws Exception {
+        MockSseServer.Backend backend = MockSseServer.Backend.toolRoundTrip("get_time", "{\"timezone\":\"Asia/Shanghai\"}",
+                MockSseServer.Backend.stream(null, "It is noon.", 3));
+        LoadHarness harness = new LoadHarness(newClient(server.addBackend("tools", backend)), Collections.singletonList("what time is it"));
+        LoadHarness.Report report = harness.run(8, 4);
+        System.out.println("tools: " + report);
+        assertEquals(16, report.requests); // 每轮对话为函数调用和最终回复两次请求
+        assertEquals(0, report.failures);
+    }
+
+    @Test
+    public void failsOverInjectedErrors() throws Exception {
+        MockSseServer.Backend flaky = MockSseServer.Backend.stream(null, REPLY, 8).failEvery(2, 503);
+        MockSseServer.Backend healthy = MockSseServer.Backend.stream(null, REPLY, 8);
+        ChatApiClient client = newClient(server.addBackend("flaky", flaky));
+        client.setExtraEndpoints(Collections.singletonList(new ApiEndpoint(server.addBackend("healthy", healthy), "sk-test", new ArrayList<>())));
+        LoadHarness.Report report = new LoadHarness(client, Collections.singletonList("hi")).run(10, 2);
+        System.out.println("failover: " + report);
+        assertEquals(10, report.requests);
+        assertEquals(0, report.failures); // 503在首个数据前出现，切换到另一个接入点
+        assertTrue(flaky.hits.get() + healthy.hits.get() >= 10);
+    }
+
+    @Test
+    public void reportsDroppedStreams() throws Exception {
+        MockSseServer.Backend dropping = MockSseServer.Backend.stream(null, REPLY, 8).dropAfter(2);
+        LoadHarness.Report report = new LoadHarness(newClient(server.addBackend("drop", dropping)), Arrays.asList("hi", "more")).run(6, 3);
+        System.out.println("drop: " + report);
+        assertEquals(6, report.requests); // 每轮对话在第一次请求失败后停止
+        assertEquals(6, report.failures);
+        assertEquals(12, report.chunks);
+    }
+}
@@ -0,0 +1,69 @@
+package com.skythinker.gptassistant.api;
+
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage.ChatRole;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageViewTest {
+    private static ChatMessage text(ChatRole role, String text) {
+        return new ChatMessage(role).setText(text);
+    }
+
+    private static ChatMessage call(String id, String function) {
+        return new ChatMessage(ChatRole.ASSISTANT).addFunctionCall(id, function, "{}", null);
+    }
+
+    private static ChatMessage result(String id, String function, String content) {
+        return new ChatMessage(ChatRole.FUNCTION).addFunctionCall(id, function, "{}", content);
+    }
+
+    private static List<ChatMessage> agentSession() {
+        List<ChatMessage> messages = new ArrayList<>();
+        messages.add(text(ChatRole.USER, "open the page"));
+        messages.add(call("1", "get_html_text"));
+        messages.add(result("1", "get_html_text", "old page"));
+        messages.add(text(ChatRole.ASSISTANT, "done"));
+        messages.add(text(ChatRole.USER, "tap the button"));
+        messages.add(call("2", "get_widget_tree"));
+        messages.add(result("2", "get_widget_tree", "screen 1"));
+        messages.add(call("3", "widget_action"));
+        messages.add(result("3", "widget_action", "screen 2"));
+        messages.add(call("4", "get_html_text"));
+        messages.add(result("4", "get_html_text", "new page"));
+        return messages;
+    }
+
+    @Test
+    public void masksWithoutTouchingBaseMessages() {
+        List<ChatMessage> messages = agentSession();
+        MessageView view = new MessageView(messages)
+                .maskResultsBeforeLastUser("get_html_text")
+                .keepLatestResults(1, "get_widget_tree", "widget_action");
+
+        assertEquals(messages.size(), view.size());
+        assertEquals("", view.get(2).toolCalls.get(0).content); // 上一轮的网页
+        assertEquals("", view.get(6).toolCalls.get(0).content); // 较早的屏幕信息
+        assertEquals("screen 2", view.get(8).toolCalls.get(0).content);
+        assertEquals("new page", view.get(10).toolCalls.get(0).content);
+        assertSame(messages.get(8), view.get(8)); // 未屏蔽的消息直接返回原对象
+        assertEquals("old page", messages.get(2).toolCalls.get(0).content);
+        assertEquals("screen 1", messages.get(6).toolCalls.get(0).content);
+    }
+
+    @Test
+    public void reusesMaskedCopyAcrossRequests() {
+        List<ChatMessage> messages = agentSession();
+        ChatMessage first = new MessageView(messages).mask(2).get(2);
+        messages.add(text(ChatRole.USER, "next"));
+        ChatMessage second = new MessageView(messages).mask(2).get(2);
+        assertSame(first, second);
+        assertSame(first, new MessageView(messages).mask(2).get(2));
+        assertFalse(new MessageView(messages).mask(0).isMasked(0)); // 只屏蔽函数结果
+    }
+}
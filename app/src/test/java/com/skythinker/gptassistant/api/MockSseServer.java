@@ -0,0 +1,292 @@
+package com.skythinker.gptassistant.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cn.hutool.json.JSONUtil;
+
+// 本地模拟的OpenAI兼容SSE服务（/v1/chat/completions），可同时模拟多个延迟不同或会出错的接入点
+// 可配置首字延迟、生成速度、数据块大小、思维链、函数调用和故障注入
+public class MockSseServer {
+    // 根据请求体决定回复的数据块
+    public interface Responder {
+        List<String> respond(String requestBody);
+    }
+
+    // 一个模拟的接入点
+    public static class Backend {
+        public int status = 200; // 非200时直接返回错误
+        public long firstByteDelayMs = 0; // 返回响应头前的等待时间
+        public long chunkIntervalMs = 0; // 数据块之间的间隔
+        public List<String> chunks = new ArrayList<>(); // 依次发送的data字段
+        public Responder responder = null; // 不为null时按请求内容决定回复，忽略chunks
+        public int failEvery = 0; // 大于0时每failEvery个请求返回一次failStatus
+        public int failStatus = 500;
+        public int failFirst = 0; // 前failFirst个请求返回failStatus
+        public int dropAfterChunks = -1; // 不小于0时发送该数量的数据块后中断连接
+        public final Map<String, String> headers = new LinkedHashMap<>(); // 附加到每个响应的响应头（如限速头）
+        public final AtomicInteger hits = new AtomicInteger(0);
+
+        // 返回普通文本回复的接入点
+        public static Backend reply(String... contents) {
+            Backend backend = new Backend();
+            for(String content : contents) {
+                backend.chunks.add(contentChunk(content));
+            }
+            backend.chunks.add("[DONE]");
+            return backend;
+        }
+
+        public static Backend error(int status) {
+            Backend backend = new Backend();
+            backend.status = status;
+            return backend;
+        }
+
+        // 按文本生成回复，每个数据块含chunkChars个字符，可带思维链（reasoning为null时不带）
+        public static Backend stream(String reasoning, String content, int chunkChars) {
+            Backend backend = new Backend();
+            if(reasoning != null) {
+                for(String piece : split(reasoning, chunkChars)) {
+                    backend.chunks.add(reasoningChunk(piece));
+                }
+            }
+            for(String piece : split(content, chunkChars)) {
+                backend.chunks.add(contentChunk(piece));
+            }
+            backend.chunks.add(usageChunk(content.length()));
+            backend.chunks.add("[DONE]");
+            return backend;
+        }
+
+        // 请求中还没有函数结果时返回函数调用（参数分块发送），有结果后返回finalReply的数据块
+        public static Backend toolRoundTrip(String functionName, String arguments, Backend finalReply) {
+            Backend backend = new Backend();
+            List<String> callChunks = toolCallChunks("call_mock", functionName, arguments, 8);
+            backend.chunks = finalReply.chunks;
+            backend.responder = body -> body.contains("\"role\":\"tool\"") ? finalReply.chunks : callChunks;
+            return backend;
+        }
+
+        public Backend delay(long firstByteDelayMs) {
+            this.firstByteDelayMs = firstByteDelayMs;
+            return this;
+        }
+
+        // 设置生成速度（每秒数据块数）
+        public Backend rate(double chunksPerSecond) {
+            this.chunkIntervalMs = Math.round(1000 / chunksPerSecond);
+            return this;
+        }
+
+        public Backend failEvery(int requests, int status) {
+            this.failEvery = requests;
+            this.failStatus = status;
+            return this;
+        }
+
+        public Backend failFirst(int requests, int status) {
+            this.failFirst = requests;
+            this.failStatus = status;
+            return this;
+        }
+
+        public Backend header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        public Backend dropAfter(int chunks) {
+            this.dropAfterChunks = chunks;
+            return this;
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<ServerSocket> rawSockets = new ArrayList<>();
+
+    public MockSseServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    // 添加一个接入点，返回其地址（以/结尾）
+    public String addBackend(String name, Backend backend) {
+        server.createContext("/" + name + "/", exchange -> handle(exchange, backend));
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/" + name + "/";
+    }
+
+    // 添加一个发送第一个数据块后直接断开连接的接入点（响应未完整发送），返回其地址
+    public String addDroppingBackend(Backend backend) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        rawSockets.add(serverSocket);
+        executor.execute(() -> {
+            while(!serverSocket.isClosed()) {
+                try (Socket socket = serverSocket.accept()) {
+                    backend.hits.incrementAndGet();
+                    skipRequest(socket.getInputStream());
+                    byte[] chunk = ("data: " + backend.chunks.get(0) + "\n\n").getBytes(StandardCharsets.UTF_8);
+                    OutputStream os = socket.getOutputStream();
+                    os.write(("HTTP/1.1 200 OK\r\nContent-Type: text/event-stream\r\nContent-Length: " + (chunk.length + 1000) + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+                    os.write(chunk);
+                    os.flush();
+                } catch (IOException ignored) { }
+            }
+        });
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/";
+    }
+
+    // 读完一个HTTP请求（请求头和Content-Length指定长度的请求体）
+    private static void skipRequest(InputStream is) throws IOException {
+        StringBuilder header = new StringBuilder();
+        while(!header.toString().endsWith("\r\n\r\n")) {
+            int c = is.read();
+            if(c == -1)
+                throw new IOException("unexpected end of request");
+            header.append((char) c);
+        }
+        long length = 0;
+        for(String line : header.toString().split("\r\n")) {
+            if(line.toLowerCase().startsWith("content-length:")) {
+                length = Long.parseLong(line.substring("content-length:".length()).trim());
+            }
+        }
+        while(length > 0) {
+            long skipped = is.skip(length);
+            if(skipped <= 0) {
+                if(is.read() == -1)
+                    throw new IOException("unexpected end of request");
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    public void stop() {
+        for(ServerSocket socket : rawSockets) {
+            try {
+                socket.close();
+            } catch (IOException ignored) { }
+        }
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    // 获取一个无法连接的地址
+    public static String refusedUrl() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return "http://127.0.0.1:" + socket.getLocalPort() + "/";
+        }
+    }
+
+    private static String chunkOf(String delta, String finishReason) {
+        return "{\"id\":\"chatcmpl-mock\",\"object\":\"chat.completion.chunk\",\"created\":1725000000,\"model\":\"mock\","
+                + "\"choices\":[{\"index\":0,\"delta\":" + delta + ",\"finish_reason\":" + finishReason + "}]}";
+    }
+
+    public static String contentChunk(String content) {
+        return chunkOf("{\"content\":" + JSONUtil.quote(content) + "}", "null");
+    }
+
+    public static String reasoningChunk(String reasoning) {
+        return chunkOf("{\"reasoning_content\":" + JSONUtil.quote(reasoning) + "}", "null");
+    }
+
+    // 统计用量的数据块（choices为空）
+    public static String usageChunk(int completionTokens) {
+        return "{\"id\":\"chatcmpl-mock\",\"object\":\"chat.completion.chunk\",\"created\":1725000000,\"model\":\"mock\",\"choices\":[],"
+                + "\"usage\":{\"prompt_tokens\":10,\"completion_tokens\":" + completionTokens + ",\"total_tokens\":" + (completionTokens + 10) + "}}";
+    }
+
+    // 一个函数调用的数据块，首个数据块含id和函数名，之后的数据块每个含argChars个字符的参数
+    public static List<String> toolCallChunks(String id, String name, String arguments, int argChars) {
+        List<String> chunks = new ArrayList<>();
+        chunks.add(chunkOf("{\"tool_calls\":[{\"index\":0,\"id\":\"" + id + "\",\"type\":\"function\",\"function\":{\"name\":\"" + name + "\",\"arguments\":\"\"}}]}", "null"));
+        for(String piece : split(arguments, argChars)) {
+            chunks.add(chunkOf("{\"tool_calls\":[{\"index\":0,\"function\":{\"arguments\":" + JSONUtil.quote(piece) + "}}]}", "null"));
+        }
+        chunks.add(chunkOf("{}", "\"tool_calls\""));
+        chunks.add("[DONE]");
+        return chunks;
+    }
+
+    private static List<String> split(String text, int chunkChars) {
+        List<String> pieces = new ArrayList<>();
+        for(int i = 0; i < text.length(); i += chunkChars) {
+            pieces.add(text.substring(i, Math.min(text.length(), i + chunkChars)));
+        }
+        return pieces;
+    }
+
+    private static void handle(HttpExchange exchange, Backend backend) throws IOException {
+        int hit = backend.hits.incrementAndGet();
+        boolean dropped = false;
+        try {
+            ByteArrayOutputStream requestBody = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while((read = exchange.getRequestBody().read(buffer)) != -1) { // 读完请求体
+                requestBody.write(buffer, 0, read);
+            }
+            sleep(backend.firstByteDelayMs);
+            int status = (backend.failEvery > 0 && hit % backend.failEvery == 0) || hit <= backend.failFirst ? backend.failStatus : backend.status;
+            for(Map.Entry<String, String> header : backend.headers.entrySet()) {
+                exchange.getResponseHeaders().set(header.getKey(), header.getValue());
+            }
+            if(status != 200) {
+                byte[] body = ("{\"error\":{\"message\":\"mock error " + status + "\"}}").getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(status, body.length);
+                exchange.getResponseBody().write(body);
+                return;
+            }
+            List<String> chunks = backend.responder != null
+                    ? backend.responder.respond(new String(requestBody.toByteArray(), StandardCharsets.UTF_8)) : backend.chunks;
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream os = exchange.getResponseBody();
+            for(int i = 0; i < chunks.size(); i++) {
+                if(i == backend.dropAfterChunks) { // 不结束分块编码直接断开，客户端读到不完整的响应
+                    dropped = true;
+                    throw new IOException("mock connection drop");
+                }
+                if(i > 0) {
+                    sleep(backend.chunkIntervalMs);
+                }
+                os.write(("data: " + chunks.get(i) + "\n\n").getBytes(StandardCharsets.UTF_8));
+                os.flush();
+            }
+        } finally {
+            if(!dropped) {
+                exchange.close();
+            }
+        }
+    }
+
+    private static void sleep(long ms) {
+        if(ms <= 0)
+            return;
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException ignored) { }
+    }
+}
@@ -0,0 +1,90 @@
+package com.skythinker.gptassistant.api;
+
+import com.skythinker.gptassistant.data.ApiEndpoint;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Headers;
+
+import static org.junit.Assert.*;
+
+public class RateLimiterTest {
+    private static ApiEndpoint endpoint() {
+        return new ApiEndpoint("https://api.example.com/", "sk-test", new ArrayList<>());
+    }
+
+    @Test
+    public void parsesResetDurations() {
+        assertEquals(20, RateLimiter.parseDuration("20ms"));
+        assertEquals(1000, RateLimiter.parseDuration("1s"));
+        assertEquals(1500, RateLimiter.parseDuration("1.5s"));
+        assertEquals(360000, RateLimiter.parseDuration("6m0s"));
+        assertEquals(3723000, RateLimiter.parseDuration("1h2m3s"));
+        assertEquals(2000, RateLimiter.parseDuration("2"));
+        assertEquals(-1, RateLimiter.parseDuration("soon"));
+        assertEquals(-1, RateLimiter.parseDuration(null));
+        assertEquals(250, RateLimiter.parseRetryAfter(Headers.of("retry-after-ms", "250", "retry-after", "1")));
+        assertEquals(3000, RateLimiter.parseRetryAfter(Headers.of("retry-after", "3")));
+        assertEquals(-1, RateLimiter.parseRetryAfter(Headers.of()));
+    }
+
+    @Test
+    public void unknownLimitsGrantImmediately() {
+        RateLimiter limiter = new RateLimiter();
+        long[] waited = {-1};
+        limiter.acquire(endpoint(), 1000, RateLimiter.Priority.INTERACTIVE, waitMs -> waited[0] = waitMs);
+        assertEquals(0, waited[0]); // 在当前线程立即回调
+        assertEquals(1, limiter.getStats().grantedCount);
+        assertEquals(0, limiter.getStats().waitedCount);
+    }
+
+    @Test
+    public void interactiveRequestsJumpAheadWhileRateLimited() throws Exception {
+        RateLimiter limiter = new RateLimiter();
+        ApiEndpoint endpoint = endpoint();
+        assertEquals(200, limiter.onRateLimited(endpoint, Headers.of("retry-after-ms", "200")));
+
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(3);
+        limiter.acquire(endpoint, 10, RateLimiter.Priority.BACKGROUND, waitMs -> { order.add("bg1"); latch.countDown(); });
+        limiter.acquire(endpoint, 10, RateLimiter.Priority.BACKGROUND, waitMs -> { order.add("bg2"); latch.countDown(); });
+        RateLimiter.Ticket cancelled = limiter.acquire(endpoint, 10, RateLimiter.Priority.INTERACTIVE, waitMs -> order.add("cancelled"));
+        long[] interactiveWait = {0};
+        limiter.acquire(endpoint, 10, RateLimiter.Priority.INTERACTIVE, waitMs -> {
+            interactiveWait[0] = waitMs;
+            order.add("fg");
+            latch.countDown();
+        });
+        assertEquals(4, limiter.getStats().queuedCount);
+        assertTrue(cancelled.cancel());
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals("fg", order.get(0)); // 后到的交互请求先于排队中的后台请求
+        assertFalse(order.contains("cancelled"));
+        assertTrue(interactiveWait[0] >= 150);
+        RateLimiter.Stats stats = limiter.getStats();
+        assertEquals(3, stats.waitedCount);
+        assertEquals(1, stats.rateLimitedCount);
+        assertEquals(0, stats.queuedCount);
+    }
+
+    @Test
+    public void pacesByRemainingRequestsHeader() throws Exception {
+        RateLimiter limiter = new RateLimiter();
+        ApiEndpoint endpoint = endpoint();
+        limiter.onResponse(endpoint, Headers.of("x-ratelimit-limit-requests", "10",
+                "x-ratelimit-remaining-requests", "0", "x-ratelimit-reset-requests", "1s")); // 每100ms恢复一个请求
+
+        CountDownLatch latch = new CountDownLatch(1);
+        long[] waited = {0};
+        limiter.acquire(endpoint, 10, RateLimiter.Priority.INTERACTIVE, waitMs -> { waited[0] = waitMs; latch.countDown(); });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(waited[0] >= 50 && waited[0] < 1000);
+    }
+}
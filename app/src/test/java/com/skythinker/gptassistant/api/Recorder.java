@@ -0,0 +1,32 @@
+package com.skythinker.gptassistant.api;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertTrue;
+
+// 记录一次请求的回调结果，供使用MockSseServer的测试共用
+public class Recorder implements ChatApiClient.OnReceiveListener {
+    final StringBuilder content = new StringBuilder();
+    final CountDownLatch finished = new CountDownLatch(1);
+    final AtomicInteger finishCount = new AtomicInteger(0); // 结束回调（出错、函数调用或完成）的次数
+    volatile String error = null;
+    volatile boolean completed = false;
+
+    @Override public void onMsgReceive(String message) { content.append(message); }
+    @Override public void onReasoningReceive(String reasoning) { }
+    @Override public void onError(String message) { error = message; onEnd(); }
+    @Override public void onFunctionCall(ArrayList<ChatApiClient.CallingFunction> functions) { onEnd(); }
+    @Override public void onFinished(boolean completed) { this.completed = completed; onEnd(); }
+
+    private void onEnd() {
+        finishCount.incrementAndGet();
+        finished.countDown();
+    }
+
+    void await() throws InterruptedException {
+        assertTrue("request timed out", finished.await(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,30 @@
+package com.skythinker.gptassistant.api;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// 读取test/resources/sse下录制的SSE数据，返回各个data字段
+public class SseTraceReader {
+    public static List<String> read(String name) throws IOException {
+        InputStream is = SseTraceReader.class.getClassLoader().getResourceAsStream("sse/" + name);
+        if(is == null)
+            throw new IOException("trace not found: " + name);
+        List<String> events = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                if(line.startsWith("data: ")) {
+                    events.add(line.substring("data: ".length()));
+                } else if(line.startsWith("data:")) {
+                    events.add(line.substring("data:".length()));
+                }
+            }
+        }
+        return events;
+    }
+}
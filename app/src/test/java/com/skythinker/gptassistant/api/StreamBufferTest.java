@@ -0,0 +1,111 @@
+package com.skythinker.gptassistant.api;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StreamBufferTest {
+    // 记录安排的任务，由测试手动执行
+    private static class ManualScheduler implements StreamBuffer.Scheduler {
+        final List<Runnable> tasks = new ArrayList<>();
+        final List<Long> delays = new ArrayList<>();
+
+        @Override
+        public void post(Runnable task, long delayMs) {
+            tasks.add(task);
+            delays.add(delayMs);
+        }
+
+        void runAll() {
+            List<Runnable> pending = new ArrayList<>(tasks);
+            tasks.clear();
+            for(Runnable task : pending) {
+                task.run();
+            }
+        }
+    }
+
+    @Test
+    public void coalescesDeltasBetweenDeliveries() {
+        StreamBuffer stream = new StreamBuffer();
+        ManualScheduler scheduler = new ManualScheduler();
+        List<StreamBuffer.Snapshot> updates = new ArrayList<>();
+        stream.subscribe(100, scheduler, updates::add);
+        assertEquals(0, scheduler.tasks.size()); // 没有内容时不更新
+
+        stream.accept(StreamEvent.content("Hel"));
+        stream.accept(StreamEvent.content("lo"));
+        stream.accept(StreamEvent.reasoning("think"));
+        assertEquals(1, scheduler.tasks.size()); // 多个事件合并为一次更新
+        assertEquals(0L, (long) scheduler.delays.get(0)); // 首次更新立即送达
+        scheduler.runAll();
+        assertEquals(1, updates.size());
+        assertEquals("Hello", updates.get(0).content.toString());
+        assertEquals("think", updates.get(0).reasoning.toString());
+
+        StringBuilder parserBuffer = new StringBuilder(", world"); // 解析器复用的缓冲区
+        stream.accept(StreamEvent.content(parserBuffer));
+        parserBuffer.setLength(0);
+        assertTrue(scheduler.delays.get(1) > 0); // 距上次更新不足间隔，延迟送达
+        stream.accept(StreamEvent.finish("stop"));
+        scheduler.runAll();
+        assertEquals(2, updates.size()); // 结束事件立即安排了一次更新，之前安排的更新不再重复送达
+        StreamBuffer.Snapshot last = updates.get(1);
+        assertEquals("Hello, world", last.content.toString());
+        assertEquals(", world", last.newContent().toString());
+        assertEquals(0, last.newReasoning().length());
+        assertEquals("stop", last.finishReason);
+    }
+
+    @Test
+    public void snapshotsAreStableWhileAppending() {
+        StreamBuffer stream = new StreamBuffer();
+        StringBuilder expected = new StringBuilder();
+        List<CharSequence> snapshots = new ArrayList<>();
+        List<String> copies = new ArrayList<>();
+        for(int i = 0; i < 500; i++) { // 超过初始容量，触发多次扩容
+            String delta = "token" + i + " ";
+            stream.accept(StreamEvent.content(delta));
+            expected.append(delta);
+            if(i % 50 == 0) {
+                snapshots.add(stream.getContent());
+                copies.add(expected.toString());
+            }
+        }
+        assertEquals(expected.toString(), stream.getContent().toString());
+        for(int i = 0; i < snapshots.size(); i++) {
+            assertEquals(copies.get(i), snapshots.get(i).toString());
+        }
+        CharSequence tail = stream.getContent().subSequence(expected.length() - 9, expected.length());
+        assertEquals("token499 ", tail.toString());
+    }
+
+    @Test
+    public void tracksToolCallsAndUsagePerRound() {
+        StreamBuffer stream = new StreamBuffer();
+        List<StreamBuffer.Snapshot> updates = new ArrayList<>();
+        StreamBuffer.Subscription subscription = stream.subscribe(0, (task, delayMs) -> task.run(), updates::add);
+
+        stream.accept(StreamEvent.toolCall(0, "call_1", "get_html_text", "{\"url\""));
+        stream.accept(StreamEvent.toolCall(1, "call_2", "get_html_text", null));
+        stream.accept(StreamEvent.finish("tool_calls"));
+        StreamBuffer.Snapshot snapshot = updates.get(updates.size() - 1);
+        assertEquals(2, snapshot.toolCallCount);
+        assertEquals("tool_calls", snapshot.finishReason);
+
+        stream.accept(StreamEvent.content("done")); // 函数调用后的下一轮请求
+        stream.accept(StreamEvent.usage(10, 2));
+        snapshot = updates.get(updates.size() - 1);
+        assertEquals(0, snapshot.toolCallCount);
+        assertNull(snapshot.finishReason);
+        assertEquals(2, snapshot.completionTokens);
+
+        subscription.cancel();
+        int count = updates.size();
+        stream.accept(StreamEvent.content("!"));
+        assertEquals(count, updates.size());
+    }
+}
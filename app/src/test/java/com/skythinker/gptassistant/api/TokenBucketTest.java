@@ -0,0 +1,27 @@
+package com.skythinker.gptassistant.api;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+    @Test
+    public void burstThenPacedByRefillRate() {
+        TokenBucket bucket = TokenBucket.perMinute(60, 2); // 每秒1个，允许突发2个
+        assertEquals(0, bucket.reserve(1));
+        assertEquals(0, bucket.reserve(1));
+        long wait3 = bucket.reserve(1);
+        long wait4 = bucket.reserve(1);
+        assertTrue(wait3 > 900 && wait3 <= 1000);
+        assertTrue(wait4 > 1900 && wait4 <= 2000); // 预支的令牌依次顺延
+        assertTrue(bucket.getTokens() < -1.9);
+    }
+
+    @Test
+    public void zeroRateIsUnlimited() {
+        TokenBucket bucket = TokenBucket.perMinute(0, 1);
+        for(int i = 0; i < 100; i++) {
+            assertEquals(0, bucket.reserve(1));
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.skythinker.gptassistant.api;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TokenEstimatorTest {
+    @Test
+    public void estimateIsNotBelowWordCount() {
+        TokenEstimator estimator = new TokenEstimator(TokenEstimator.Encoding.CL100K_BASE);
+        assertEquals(2, estimator.count("hello world"));
+        assertEquals(3, estimator.count("123456789")); // 数字每3位一组
+        assertTrue(estimator.count("这是一段中文文本") >= 8);
+        assertEquals(0, estimator.count(""));
+    }
+
+    @Test
+    public void selectsEncodingByModel() {
+        assertEquals(TokenEstimator.Encoding.O200K_BASE, TokenCounter.encodingOf("gpt-4o-mini"));
+        assertEquals(TokenEstimator.Encoding.CL100K_BASE, TokenCounter.encodingOf("gpt-3.5-turbo*"));
+    }
+}
@@ -0,0 +1,93 @@
+package com.skythinker.gptassistant.api;
+
+import com.skythinker.gptassistant.api.ChatApiClient.CallingFunction;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ToolCallAssemblerTest {
+    // 重放录制的SSE数据，返回拼接得到的函数调用
+    private static List<CallingFunction> replay(ToolCallAssembler assembler, String trace) throws Exception {
+        ChatStreamParser parser = new ChatStreamParser();
+        for(String data : SseTraceReader.read(trace)) {
+            if(data.equals("[DONE]"))
+                break;
+            assertTrue(parser.parse(data));
+            assembler.accept(parser);
+        }
+        return assembler.finish();
+    }
+
+    private static void assertCall(CallingFunction function, String id, String name, String arguments) {
+        assertEquals(id, function.toolId);
+        assertEquals(name, function.name);
+        assertEquals(arguments, function.arguments);
+    }
+
+    @Test
+    public void assemblesSingleCall() throws Exception {
+        ToolCallAssembler assembler = new ToolCallAssembler();
+        List<CallingFunction> functions = replay(assembler, "tool_calls.txt");
+        assertEquals(1, functions.size());
+        assertCall(functions.get(0), "call_Qa1", "get_html_text", "{\"url\": \"https://www.bing.com/search?q=weather\"}");
+        assertTrue(assembler.getMalformedCalls().isEmpty());
+    }
+
+    @Test
+    public void assemblesInterleavedParallelCalls() throws Exception {
+        ToolCallAssembler assembler = new ToolCallAssembler();
+        List<CallingFunction> functions = replay(assembler, "parallel_tool_calls.txt");
+        assertEquals(3, functions.size());
+        assertCall(functions.get(0), "call_A0", "get_html_text", "{\"url\": \"https://www.bing.com/search?q=weather%20today\"}");
+        assertCall(functions.get(1), "call_B1", "get_html_text", "{\"url\": \"https://en.wikipedia.org/wiki/Weather\"}");
+        assertCall(functions.get(2), "call_C2", "launch_package", "{\"package_name\": \"com.android.settings\"}");
+        assertTrue(assembler.getMalformedCalls().isEmpty());
+    }
+
+    @Test
+    public void splitsCallsSharingIndexById() throws Exception {
+        ToolCallAssembler assembler = new ToolCallAssembler();
+        List<CallingFunction> functions = replay(assembler, "index_zero_tool_calls.txt");
+        assertEquals(3, functions.size());
+        assertCall(functions.get(0), "call_g1", "get_html_text", "{\"url\":\"https://example.com/a\"}");
+        assertCall(functions.get(1), "call_g2", "get_html_text", "{\"url\":\"https://example.com/b\"}");
+        assertCall(functions.get(2), "call_g3", "get_widget_tree", "{}"); // 空参数补全为{}
+        assertTrue(assembler.getMalformedCalls().isEmpty());
+    }
+
+    @Test
+    public void reportsMalformedArgumentsAtFinish() throws Exception {
+        ToolCallAssembler assembler = new ToolCallAssembler();
+        ChatStreamParser parser = new ChatStreamParser();
+        assertTrue(parser.parse("{\"choices\":[{\"index\":0,\"delta\":{\"tool_calls\":[{\"index\":0,\"id\":\"call_x\",\"type\":\"function\",\"function\":{\"name\":\"get_html_text\",\"arguments\":\"{\\\"url\\\": \\\"htt\"}}]}}]}"));
+        assembler.accept(parser);
+        List<CallingFunction> functions = assembler.finish();
+        assertEquals(1, functions.size());
+        assertEquals(1, assembler.getMalformedCalls().size());
+        assertSame(functions.get(0), assembler.getMalformedCalls().get(0));
+    }
+
+    @Test
+    public void appendsManySmallFragments() throws Exception {
+        ToolCallAssembler assembler = new ToolCallAssembler();
+        ChatStreamParser parser = new ChatStreamParser();
+        assertTrue(parser.parse("{\"choices\":[{\"index\":0,\"delta\":{\"tool_calls\":[{\"index\":0,\"id\":\"call_big\",\"type\":\"function\",\"function\":{\"name\":\"f\",\"arguments\":\"{\\\"text\\\": \\\"\"}}]}}]}"));
+        assembler.accept(parser);
+        StringBuilder expected = new StringBuilder("{\"text\": \"");
+        for(int i = 0; i < 50000; i++) {
+            assertTrue(parser.parse("{\"choices\":[{\"index\":0,\"delta\":{\"tool_calls\":[{\"index\":0,\"function\":{\"arguments\":\"ab\"}}]}}]}"));
+            assembler.accept(parser);
+            expected.append("ab");
+        }
+        assertTrue(parser.parse("{\"choices\":[{\"index\":0,\"delta\":{\"tool_calls\":[{\"index\":0,\"function\":{\"arguments\":\"\\\"}\"}}]}}]}"));
+        assembler.accept(parser);
+        expected.append("\"}");
+        List<CallingFunction> functions = assembler.finish();
+        assertEquals(1, functions.size());
+        assertEquals(expected.toString(), functions.get(0).arguments);
+        assertTrue(assembler.getMalformedCalls().isEmpty());
+    }
+}
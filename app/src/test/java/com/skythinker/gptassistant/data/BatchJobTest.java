@@ -0,0 +1,60 @@
+package com.skythinker.gptassistant.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class BatchJobTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("batch").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        BatchJob.delete(dir);
+        dir.delete();
+    }
+
+    @Test
+    public void resumesFromSavedResults() throws Exception {
+        BatchJob job = BatchJob.create(dir, "翻译", "翻译：${input}", false, "gpt-4o", Arrays.asList("a", "b", "c", "d"));
+        job.setResult(0, BatchJob.Status.DONE, "A");
+        job.setResult(2, BatchJob.Status.FAILED, "timeout");
+        job.setResult(3, BatchJob.Status.FAILED, "timeout");
+        job.setResult(3, BatchJob.Status.DONE, "D"); // 失败后重试成功，以最后一条为准
+        try (FileOutputStream fos = new FileOutputStream(new File(dir, "results.jsonl"), true)) { // 被中断时写了一半的行
+            fos.write("{\"i\":1,\"s\":\"DO".getBytes(StandardCharsets.UTF_8));
+        }
+
+        BatchJob loaded = BatchJob.load(dir);
+        assertNotNull(loaded);
+        assertEquals(job.id, loaded.id);
+        assertEquals("gpt-4o", loaded.model);
+        assertEquals(4, loaded.size());
+        assertEquals(Arrays.asList(1, 2), loaded.getUnfinishedIndexes());
+        assertEquals("A", loaded.getOutput(0));
+        assertEquals("D", loaded.getOutput(3));
+        assertEquals(BatchJob.Status.FAILED, loaded.getStatus(2));
+        assertEquals(BatchJob.Status.PENDING, loaded.getStatus(1));
+    }
+
+    @Test
+    public void creatingJobDiscardsOldResults() throws Exception {
+        BatchJob.create(dir, "", "${input}", false, "gpt-4o", Arrays.asList("a", "b")).setResult(0, BatchJob.Status.DONE, "A");
+        BatchJob.create(dir, "", "${input}", false, "gpt-4o", Arrays.asList("x", "y"));
+        assertEquals(Arrays.asList(0, 1), BatchJob.load(dir).getUnfinishedIndexes());
+        BatchJob.delete(dir);
+        assertNull(BatchJob.load(dir));
+    }
+}
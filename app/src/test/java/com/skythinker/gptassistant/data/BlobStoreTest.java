@@ -0,0 +1,48 @@
+package com.skythinker.gptassistant.data;
+
+import com.skythinker.gptassistant.data.ChatManager.ChatMessage.Attachment;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class BlobStoreTest {
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("blobs").toFile();
+        BlobStore.setDirectory(directory);
+    }
+
+    @After
+    public void tearDown() {
+        BlobStore.deleteAll();
+        directory.delete();
+    }
+
+    @Test
+    public void storesIdenticalContentOnce() throws Exception {
+        byte[] image = new byte[]{(byte) 0xFF, (byte) 0xD8, 1, 2, 3};
+        Attachment first = Attachment.createNew(Attachment.Type.IMAGE, "a.jpg", image, true);
+        Attachment second = Attachment.createNew(Attachment.Type.IMAGE, "b.jpg", image.clone(), true);
+        assertEquals(first.hash, second.hash);
+        assertEquals(1, BlobStore.list().length);
+        assertArrayEquals(image, BlobStore.read(first.hash));
+
+        Attachment text = Attachment.createNew(Attachment.Type.TEXT, "a.txt", "附件内容", true);
+        assertEquals(2, BlobStore.list().length);
+        assertNull(BlobStore.read("0000"));
+
+        // 从json读取的附件在使用时才从BlobStore加载
+        Attachment loaded = Attachment.fromJson(first.toJson(), false);
+        assertEquals(first.hash, loaded.getKey());
+        assertArrayEquals(image, loaded.getBytes());
+        assertEquals("附件内容", Attachment.fromJson(text.toJson(), false).getContent());
+    }
+}
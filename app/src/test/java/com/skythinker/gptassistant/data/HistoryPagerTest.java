@@ -0,0 +1,115 @@
+package com.skythinker.gptassistant.data;
+
+import com.skythinker.gptassistant.data.ChatManager.ConversationHeader;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class HistoryPagerTest {
+    // 会话ID为1~total，记录每次读取的参数
+    private static class FakeSource implements HistoryPager.Source {
+        final int total;
+        final List<Long> requestedBeforeIds = new ArrayList<>();
+
+        FakeSource(int total) {
+            this.total = total;
+        }
+
+        @Override
+        public long count() { return total; }
+
+        @Override
+        public List<ConversationHeader> loadPage(long beforeId, int limit) {
+            requestedBeforeIds.add(beforeId);
+            List<ConversationHeader> page = new ArrayList<>();
+            for(long id = Math.min(total, beforeId - 1); id >= 1 && page.size() < limit; id--) {
+                page.add(header(id, "chat " + id));
+            }
+            return page;
+        }
+
+        @Override
+        public List<ConversationHeader> search(String keyword) { // 返回3个结果，按相关度而非ID排序
+            List<ConversationHeader> result = new ArrayList<>();
+            for(long id : new long[]{7, 20, 3}) {
+                result.add(header(id, keyword + " " + id));
+            }
+            return result;
+        }
+
+        private static ConversationHeader header(long id, String title) {
+            ConversationHeader header = new ConversationHeader();
+            header.id = id;
+            header.title = title;
+            return header;
+        }
+    }
+
+    // 暂存任务，由测试手动执行，模拟后台线程
+    private static class QueuedExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable runnable) { tasks.add(runnable); }
+
+        void runAll() {
+            while(!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    @Test
+    public void pagesByKeysetAndPrefetches() {
+        FakeSource source = new FakeSource(25);
+        QueuedExecutor background = new QueuedExecutor();
+        HistoryPager pager = new HistoryPager(source, background, Runnable::run, 10);
+        pager.reset(null);
+        assertEquals(0, pager.size());
+        background.runAll();
+        assertEquals(10, pager.size());
+        assertEquals(25, pager.getTotalCount());
+        assertEquals(25, pager.get(0).id);
+
+        pager.get(3); // 距末尾较远，不预取
+        assertTrue(background.tasks.isEmpty());
+        pager.get(5);
+        pager.get(6); // 读取进行中，不重复预取
+        assertEquals(1, background.tasks.size());
+        background.runAll();
+        assertEquals(20, pager.size());
+        assertEquals(Long.valueOf(16), source.requestedBeforeIds.get(1)); // 从上一页最后一个ID继续
+
+        pager.get(19);
+        background.runAll();
+        assertEquals(25, pager.size());
+        pager.get(24); // 已读取全部
+        assertTrue(background.tasks.isEmpty());
+        assertEquals(1, pager.get(24).id);
+    }
+
+    @Test
+    public void showsSearchResultsAndDropsStaleResults() {
+        FakeSource source = new FakeSource(30);
+        QueuedExecutor background = new QueuedExecutor();
+        HistoryPager pager = new HistoryPager(source, background, Runnable::run, 10);
+        pager.reset(null);
+        pager.reset("query"); // 第一次读取尚未完成时切换搜索词
+        background.runAll();
+        assertEquals(3, pager.size());
+        assertEquals("query 7", pager.get(0).title);
+        pager.get(2); // 搜索结果不分页
+        assertTrue(background.tasks.isEmpty());
+
+        pager.remove(0);
+        assertEquals(2, pager.size());
+        assertEquals(2, pager.getTotalCount());
+        pager.clear();
+        assertEquals(0, pager.size());
+    }
+}
@@ -0,0 +1,37 @@
+package com.skythinker.gptassistant.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SearchIndexTest {
+    @Test
+    public void segmentsCjkIntoSingleCharacters() {
+        assertEquals("如 何 配 置 API Key？", SearchIndex.segment("如何配置API Key？"));
+        assertEquals("hello world", SearchIndex.segment("hello world"));
+
+        // 去掉两侧都是中日文的空格，忽略高亮标记
+        String start = String.valueOf(SearchIndex.HIGHLIGHT_START), end = String.valueOf(SearchIndex.HIGHLIGHT_END);
+        assertEquals("…如何" + start + "配置" + end + "文件 API Key",
+                SearchIndex.joinSegments("…如 何 " + start + "配 置" + end + " 文 件 API Key"));
+    }
+
+    @Test
+    public void buildsMatchQuery() {
+        assertEquals("\"token\"* \"配 置\"", SearchIndex.buildMatchQuery("  token 配置 ", true));
+        assertEquals("\"token*\" \"配 置\"", SearchIndex.buildMatchQuery("token 配置", false));
+        assertEquals("\"gpt 4o\"", SearchIndex.buildMatchQuery("gpt-4o", true)); // 符号拆分为短语
+        assertEquals("", SearchIndex.buildMatchQuery(" \"*\" ", true));
+    }
+
+    @Test
+    public void scoresTitleHitsAboveBodyHits() {
+        // p=1, c=2, n=100; 每列依次为本行命中数、所有行命中数、有命中的行数
+        int[] titleHit = {1, 2, 100, 1, 3, 3, 0, 50, 40};
+        int[] bodyHit = {1, 2, 100, 0, 3, 3, 1, 50, 40};
+        int[] rareBodyHit = {1, 2, 100, 0, 3, 3, 1, 2, 2};
+        double[] weights = {5.0, 1.0};
+        assertTrue(SearchIndex.scoreMatchInfo(titleHit, weights) > SearchIndex.scoreMatchInfo(bodyHit, weights));
+        assertTrue(SearchIndex.scoreMatchInfo(rareBodyHit, weights) > SearchIndex.scoreMatchInfo(bodyHit, weights));
+    }
+}
@@ -0,0 +1,89 @@
+package com.skythinker.gptassistant.data;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TelemetryStoreTest {
+    private static TelemetryStore.Record record(String model, String host, String status, long ttftMs) {
+        TelemetryStore.Record record = new TelemetryStore.Record();
+        record.time = 1700000000000L;
+        record.model = model;
+        record.host = host;
+        record.status = status;
+        record.attempts = 1;
+        record.ttftMs = ttftMs;
+        record.tokensPerSec = 42.5;
+        return record;
+    }
+
+    @Before
+    public void setUp() {
+        TelemetryStore.clear();
+    }
+
+    @Test
+    public void groupsByModelAndHost() {
+        for(int i = 1; i <= 10; i++) {
+            TelemetryStore.add(record("gpt-4o", "https://a.example.com/", "DONE", i * 100));
+        }
+        TelemetryStore.add(record("gpt-4o", "https://a.example.com/", "FAILED", -1));
+        TelemetryStore.add(record("gpt-4o", "https://b.example.com/", "TOOL_CALL", 300));
+
+        List<TelemetryStore.Series> seriesList = TelemetryStore.getSeries();
+        assertEquals(2, seriesList.size());
+        TelemetryStore.Series a = seriesList.get(0);
+        assertEquals("https://a.example.com/", a.host);
+        assertEquals(11, a.requestCount);
+        assertEquals(1, a.failureCount);
+        assertEquals(10, a.ttftMs.size()); // 失败的请求不计入延迟
+        assertEquals(500, a.ttftMs.percentile(0.5), 0);
+        assertEquals(900, a.ttftMs.percentile(0.9), 0);
+        assertEquals(0, a.connectMs.size()); // 无数据的项不计入
+        assertEquals(1, seriesList.get(1).ttftMs.size());
+    }
+
+    @Test
+    public void csvRoundTrip() {
+        TelemetryStore.Record record = record("my,model", "https://a.example.com/", "DONE", 320);
+        record.hedged = true;
+        record.itlMs = 21.25;
+        TelemetryStore.Record parsed = TelemetryStore.Record.fromCsv(record.toCsv());
+        assertNotNull(parsed);
+        assertEquals(record.toCsv(), parsed.toCsv());
+        assertEquals("my,model", parsed.model);
+        assertTrue(parsed.hedged);
+        assertNull(TelemetryStore.Record.fromCsv("not,a,record"));
+
+        TelemetryStore.add(record);
+        String[] lines = TelemetryStore.toCsv().split("\n");
+        assertEquals(TelemetryStore.CSV_HEADER, lines[0]);
+        assertEquals(2, lines.length);
+    }
+
+    @Test
+    public void splitsTtftByConnectionReuse() {
+        TelemetryStore.Record warm = record("gpt-4o", "https://a.example.com/", "DONE", 200);
+        warm.connReused = 1;
+        TelemetryStore.Record cold = record("gpt-4o", "https://a.example.com/", "DONE", 600);
+        cold.connReused = 0;
+        TelemetryStore.add(warm);
+        TelemetryStore.add(cold);
+        TelemetryStore.add(record("gpt-4o", "https://a.example.com/", "DONE", 400)); // 未知不计入分组
+
+        TelemetryStore.Series series = TelemetryStore.getSeries().get(0);
+        assertEquals(3, series.ttftMs.size());
+        assertEquals(200, series.ttftWarmMs.percentile(0.5), 0);
+        assertEquals(600, series.ttftColdMs.percentile(0.5), 0);
+
+        String line = cold.toCsv();
+        String oldLine = line.substring(0, line.lastIndexOf(',', line.lastIndexOf(',') - 1)); // 旧版本的记录没有conn_reused、rate_wait_ms列
+        TelemetryStore.Record parsed = TelemetryStore.Record.fromCsv(oldLine);
+        assertNotNull(parsed);
+        assertEquals(-1, parsed.connReused);
+        assertEquals(-1, parsed.rateWaitMs);
+    }
+}
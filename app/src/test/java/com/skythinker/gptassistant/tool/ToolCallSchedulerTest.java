@@ -0,0 +1,132 @@
+package com.skythinker.gptassistant.tool;
+
+import com.skythinker.gptassistant.api.ChatApiClient.CallingFunction;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ToolCallSchedulerTest {
+    // 记录安排的任务，由测试手动执行
+    private static class ManualScheduler implements ToolCallScheduler.Scheduler {
+        final LinkedHashMap<Runnable, Long> tasks = new LinkedHashMap<>();
+
+        @Override
+        public void postDelayed(Runnable task, long delayMs) {
+            tasks.put(task, delayMs);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            tasks.remove(task);
+        }
+
+        // 执行所有立即任务（包括执行过程中新安排的）
+        void runPending() {
+            while(true) {
+                Runnable next = null;
+                for(Runnable task : tasks.keySet()) {
+                    if(tasks.get(task) == 0) {
+                        next = task;
+                        break;
+                    }
+                }
+                if(next == null)
+                    return;
+                tasks.remove(next);
+                next.run();
+            }
+        }
+
+        // 模拟时间经过，执行所有延迟任务
+        void runDelayed() {
+            List<Runnable> pending = new ArrayList<>(tasks.keySet());
+            tasks.clear();
+            for(Runnable task : pending) {
+                task.run();
+            }
+            runPending();
+        }
+    }
+
+    private final ManualScheduler handler = new ManualScheduler();
+    private final List<String> started = new ArrayList<>();
+    private final List<ToolCallScheduler.ResultCallback> callbacks = new ArrayList<>();
+    private List<String> results = null;
+    private ToolCallScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new ToolCallScheduler(handler, (function, callback) -> {
+            started.add(function.arguments);
+            callbacks.add(callback);
+        }).setGroup("agent", 1, 20000)
+                .setToolGroup("widget_action", "agent");
+    }
+
+    private static CallingFunction function(String name, String arguments) {
+        CallingFunction function = new CallingFunction();
+        function.name = name;
+        function.arguments = arguments;
+        return function;
+    }
+
+    // 完成第index个已启动的调用
+    private void finish(int index, String result) {
+        callbacks.get(index).onResult(result);
+        handler.runPending();
+    }
+
+    private void submit(CallingFunction... functions) {
+        scheduler.submit(Arrays.asList(functions), (calledFunctions, batchResults) -> results = batchResults);
+    }
+
+    @Test
+    public void limitsGroupConcurrencyAndKeepsOrder() {
+        submit(function("widget_action", "a1"), function("widget_action", "a2"), function("get_html_text", "w1"), function("get_html_text", "w2"));
+        assertEquals(Arrays.asList("a1", "w1", "w2"), started); // agent组同时只执行一个
+        finish(2, "W2");
+        finish(1, "W1");
+        assertEquals(3, started.size());
+        finish(0, "A1");
+        assertEquals("a2", started.get(3)); // 前一个完成后才启动
+        assertNull(results);
+        finish(3, "A2");
+        assertEquals(Arrays.asList("A1", "A2", "W1", "W2"), results); // 按提交顺序返回
+        assertTrue(handler.tasks.isEmpty()); // 完成后超时任务已移除
+        assertFalse(scheduler.isRunning());
+    }
+
+    @Test
+    public void timedOutCallKeepsSlotUntilReturned() {
+        submit(function("widget_action", "a1"));
+        handler.runDelayed(); // a1超时
+        assertEquals(Arrays.asList("Error: function call timed out."), results);
+
+        submit(function("widget_action", "a2"));
+        assertEquals(1, started.size()); // a1仍在执行，a2需等待
+        finish(0, "A1"); // 超时后的结果被忽略
+        assertEquals(Arrays.asList("a1", "a2"), started);
+        finish(0, "A1"); // 重复回调被忽略
+        finish(1, "A2");
+        assertEquals(Arrays.asList("A2"), results);
+    }
+
+    @Test
+    public void cancelKeepsRunningSlots() {
+        submit(function("widget_action", "a1"));
+        scheduler.cancel();
+        submit(function("widget_action", "a2"));
+        assertEquals(1, started.size());
+        finish(0, "A1");
+        assertEquals(2, started.size());
+        finish(1, "A2");
+        assertEquals(Arrays.asList("A2"), results);
+    }
+}